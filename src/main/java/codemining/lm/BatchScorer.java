@@ -0,0 +1,230 @@
+/**
+ *
+ */
+package codemining.lm;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Score many files (or strings) with a language model in parallel. The items
+ * are read lazily from an iterator and at most a bounded number of them are
+ * queued for scoring at any time, so that huge project trees do not flood the
+ * pool. Each task writes the score of its own item, so no locking is needed,
+ * and the scores are returned (and reduced) in the order of the input, so
+ * that the results do not depend on the scheduling of the tasks.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class BatchScorer {
+
+	/**
+	 * The entropy to compute for each item.
+	 */
+	public enum Measure {
+		/**
+		 * The (not normalized) entropy of the item.
+		 *
+		 * @see ILanguageModel#getAbsoluteEntropy(File)
+		 */
+		ABSOLUTE_ENTROPY,
+
+		/**
+		 * The entropy per token of the item.
+		 *
+		 * @see ILanguageModel#getExtrinsticEntropy(File)
+		 */
+		CROSS_ENTROPY
+	}
+
+	/**
+	 * The score of an item. If the item could not be scored, the entropy is
+	 * NaN.
+	 *
+	 * @param <T>
+	 */
+	public static final class Score<T> {
+
+		private final T item;
+
+		private double entropy = Double.NaN;
+
+		Score(final T item) {
+			this.item = item;
+		}
+
+		public double getEntropy() {
+			return entropy;
+		}
+
+		public T getItem() {
+			return item;
+		}
+
+		public boolean isScored() {
+			return !Double.isNaN(entropy);
+		}
+	}
+
+	/**
+	 * Score a single item.
+	 */
+	private interface IScoringFunction<T> {
+		double score(T item) throws IOException;
+	}
+
+	private static final Logger LOGGER = Logger.getLogger(BatchScorer.class
+			.getName());
+
+	/**
+	 * The number of items per thread that may be queued for scoring.
+	 */
+	private static final int QUEUED_ITEMS_PER_THREAD = 4;
+
+	/**
+	 * Return the average entropy of the scored items or NaN if no item was
+	 * scored.
+	 */
+	public static double getAverage(final List<? extends Score<?>> scores) {
+		double sum = 0;
+		long count = 0;
+		for (final Score<?> score : scores) {
+			if (score.isScored()) {
+				sum += score.entropy;
+				count++;
+			}
+		}
+		return sum / count;
+	}
+
+	/**
+	 * Return the sum of the entropies of the scored items.
+	 */
+	public static double getTotal(final List<? extends Score<?>> scores) {
+		double sum = 0;
+		for (final Score<?> score : scores) {
+			if (score.isScored()) {
+				sum += score.entropy;
+			}
+		}
+		return sum;
+	}
+
+	private final ILanguageModel langModel;
+
+	private final int parallelism;
+
+	public BatchScorer(final ILanguageModel model) {
+		this(model, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param model
+	 * @param parallelism
+	 *            the number of threads that score items
+	 */
+	public BatchScorer(final ILanguageModel model, final int parallelism) {
+		checkArgument(parallelism > 0);
+		langModel = model.getImmutableVersion();
+		this.parallelism = parallelism;
+	}
+
+	public final ILanguageModel getLanguageModel() {
+		return langModel;
+	}
+
+	/**
+	 * Score all the items with the given function.
+	 */
+	private <T> List<Score<T>> score(final Iterator<T> items,
+			final IScoringFunction<T> function) {
+		final List<Score<T>> scores = Lists.newArrayList();
+		final int maxQueued = parallelism * QUEUED_ITEMS_PER_THREAD;
+		final Semaphore queueSlots = new Semaphore(maxQueued);
+		final ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			while (items.hasNext()) {
+				final Score<T> score = new Score<T>(items.next());
+				scores.add(score);
+				queueSlots.acquireUninterruptibly();
+				pool.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							score.entropy = function.score(score.item);
+						} catch (final Throwable e) {
+							LOGGER.warning(ExceptionUtils.getFullStackTrace(e));
+						} finally {
+							queueSlots.release();
+						}
+					}
+
+				});
+			}
+			// Wait for all the tasks to finish. This also makes their scores
+			// visible to this thread.
+			queueSlots.acquireUninterruptibly(maxQueued);
+		} finally {
+			pool.shutdown();
+		}
+		return scores;
+	}
+
+	/**
+	 * Score the given files.
+	 *
+	 * @param files
+	 * @param measure
+	 * @return the scores of the files, in the order of the input
+	 */
+	public List<Score<File>> scoreFiles(final Iterator<File> files,
+			final Measure measure) {
+		return score(files, new IScoringFunction<File>() {
+
+			@Override
+			public double score(final File file) throws IOException {
+				if (measure == Measure.ABSOLUTE_ENTROPY) {
+					return langModel.getAbsoluteEntropy(file);
+				}
+				return langModel.getExtrinsticEntropy(file);
+			}
+
+		});
+	}
+
+	/**
+	 * Score the given contents of files.
+	 *
+	 * @param contents
+	 * @param measure
+	 * @return the scores of the strings, in the order of the input
+	 */
+	public List<Score<String>> scoreStrings(final Iterator<String> contents,
+			final Measure measure) {
+		return score(contents, new IScoringFunction<String>() {
+
+			@Override
+			public double score(final String content) {
+				if (measure == Measure.ABSOLUTE_ENTROPY) {
+					return langModel.getAbsoluteEntropy(content);
+				}
+				return langModel.getExtrinsticEntropy(content);
+			}
+
+		});
+	}
+
+}
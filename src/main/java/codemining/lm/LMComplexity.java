@@ -4,20 +4,17 @@
 package codemining.lm;
 
 import java.io.File;
-import java.util.Collection;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Iterator;
 import java.util.logging.Logger;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.DirectoryFileFilter;
-import org.apache.commons.lang.exception.ExceptionUtils;
 
-import codemining.util.parallel.ParallelThreadPool;
+import codemining.lm.BatchScorer.Measure;
+import codemining.lm.ngram.AbstractNGramLM;
 import codemining.util.serialization.ISerializationStrategy.SerializationException;
-import codemining.util.serialization.Serializer;
 
-import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
 
 /**
  * Terminal User Interface: get the average complexity per project or file.
@@ -32,18 +29,14 @@ public class LMComplexity {
 
 	private final ILanguageModel langModel;
 
-	long fileCount = 0;
-
-	double totalEntropy = 0;
-
 	public LMComplexity(final ILanguageModel model) {
 		langModel = model.getImmutableVersion();
 	}
 
 	public LMComplexity(final String lmPath) throws ClassNotFoundException,
 			SerializationException {
-		langModel = ((ILanguageModel) Serializer.getSerializer()
-				.deserializeFrom(lmPath)).getImmutableVersion();
+		langModel = AbstractNGramLM.readLanguageModel(lmPath)
+				.getImmutableVersion();
 
 		LOGGER.info("Read " + langModel.getClass().getSimpleName()
 				+ " language model from " + lmPath);
@@ -54,44 +47,20 @@ public class LMComplexity {
 	 * @return
 	 */
 	public double getAvgProjectCrossEntropy(final File projectDir) {
-		fileCount = 0;
-		totalEntropy = 0;
-		final Lock l = new ReentrantLock();
-		final ParallelThreadPool threadPool = new ParallelThreadPool();
+		return BatchScorer.getAverage(new BatchScorer(langModel).scoreFiles(
+				getFiles(projectDir), Measure.CROSS_ENTROPY));
+	}
 
-		final Collection<File> fileList;
+	/**
+	 * Return the files of the project that the model can score.
+	 */
+	private Iterator<File> getFiles(final File projectDir) {
 		if (projectDir.isDirectory()) {
-			fileList = FileUtils.listFiles(projectDir,
+			return FileUtils.iterateFiles(projectDir,
 					langModel.modelledFilesFilter(),
 					DirectoryFileFilter.DIRECTORY);
-		} else {
-			fileList = ImmutableList.of(projectDir);
-		}
-
-		for (final File file : fileList) {
-			threadPool.pushTask(new Runnable() {
-
-				@Override
-				public void run() {
-					try {
-						final double fileCrossEntropy = langModel
-								.getExtrinsticEntropy(file);
-						l.lock();
-						totalEntropy += fileCrossEntropy;
-						fileCount++;
-					} catch (Exception e) {
-						LOGGER.warning(ExceptionUtils.getFullStackTrace(e));
-					}
-					l.unlock();
-				}
-
-			});
 		}
-
-		threadPool.waitForTermination();
-
-		final double modelAvgCrossEntropy = totalEntropy / fileCount;
-		return modelAvgCrossEntropy;
+		return Iterators.singletonIterator(projectDir);
 	}
 
 	public final ILanguageModel getLanguageModel() {
@@ -99,44 +68,8 @@ public class LMComplexity {
 	}
 
 	public double getTotalProjectEntropy(final File projectDir) {
-		fileCount = 0;
-		totalEntropy = 0;
-		final Lock l = new ReentrantLock();
-		final ParallelThreadPool threadPool = new ParallelThreadPool();
-
-		final Collection<File> fileList;
-		if (projectDir.isDirectory()) {
-			fileList = FileUtils.listFiles(projectDir,
-					langModel.modelledFilesFilter(),
-					DirectoryFileFilter.DIRECTORY);
-		} else {
-			fileList = ImmutableList.of(projectDir);
-		}
-
-		for (final File file : fileList) {
-			threadPool.pushTask(new Runnable() {
-
-				@Override
-				public void run() {
-					try {
-						final double fileCrossEntropy = langModel
-								.getAbsoluteEntropy(file);
-						l.lock();
-						totalEntropy += fileCrossEntropy;
-						fileCount++;
-					} catch (Exception e) {
-						LOGGER.warning(ExceptionUtils.getFullStackTrace(e));
-					}
-					l.unlock();
-				}
-
-			});
-
-		}
-
-		threadPool.waitForTermination();
-
-		return totalEntropy;
+		return BatchScorer.getTotal(new BatchScorer(langModel).scoreFiles(
+				getFiles(projectDir), Measure.ABSOLUTE_ENTROPY));
 	}
 
 }
@@ -18,9 +18,12 @@ import codemining.languagetools.ITokenizer.FullToken;
 import codemining.lm.ILanguageModel;
 import codemining.lm.ITokenGeneratingLanguageModel;
 import codemining.lm.util.TokenVocabularyBuilder;
+import codemining.lm.util.TokenizedCorpus;
+import codemining.lm.util.TokenizedCorpusStore;
 import codemining.lm.util.VocabularyToInt;
 import codemining.util.SettingsLoader;
 
+import com.google.common.collect.BiMap;
 import com.google.common.collect.Lists;
 
 /**
@@ -108,6 +111,10 @@ public class HiddenMarkovModelLM implements
 
 	@Override
 	public void trainModel(final Collection<File> files) throws IOException {
+		if (TokenizedCorpusStore.isCacheEnabled()) {
+			trainModel(TokenizedCorpusStore.tokenize(files, tokenizer));
+			return;
+		}
 		final Set<String> vocabulary = TokenVocabularyBuilder.buildVocabulary(
 				files, tokenizer, CLEAN_VOCABULARY_THRESHOLD);
 		vocabularyMapper = new VocabularyToInt(tokenizer, vocabulary);
@@ -138,4 +145,42 @@ public class HiddenMarkovModelLM implements
 
 	}
 
+	/**
+	 * Train the model on an already tokenized corpus.
+	 * 
+	 * @param corpus
+	 */
+	public void trainModel(final TokenizedCorpus corpus) {
+		final Set<String> vocabulary = corpus
+				.getVocabulary(CLEAN_VOCABULARY_THRESHOLD);
+		vocabularyMapper = new VocabularyToInt(tokenizer, vocabulary);
+		LOGGER.info("Vocabulary Built. Mapping sequences...");
+
+		hmm = new HMM(100, vocabulary.size());
+
+		final BiMap<String, Integer> alphabet = vocabularyMapper.getAlphabet();
+		final int unkId = alphabet.get(VocabularyToInt.UNK_SYMBOL);
+		final int[] idMap = new int[corpus.getNumTokens()];
+		for (int i = 0; i < idMap.length; i++) {
+			final Integer id = alphabet.get(corpus.getToken(i));
+			idMap[i] = id == null ? unkId : id;
+		}
+
+		int nTokens = 0;
+		for (final int[] sequence : corpus.getSequences()) {
+			nTokens += sequence.length;
+		}
+		final int[] allToks = new int[nTokens];
+		int pos = 0;
+		for (final int[] sequence : corpus.getSequences()) {
+			for (final int token : sequence) {
+				allToks[pos] = idMap[token];
+				pos++;
+			}
+		}
+		LOGGER.info("Sequences stored. Stating " + NUM_ITERATIONS
+				+ " iterations");
+		hmm.train(allToks, NUM_ITERATIONS);
+	}
+
 }
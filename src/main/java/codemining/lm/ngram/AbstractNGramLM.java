@@ -20,8 +20,9 @@ import org.apache.commons.lang.math.RandomUtils;
 
 import codemining.languagetools.ITokenizer;
 import codemining.languagetools.ITokenizer.FullToken;
+import codemining.lm.ILanguageModel;
 import codemining.lm.ITokenGeneratingLanguageModel;
-import codemining.lm.ngram.Trie.TrieNode;
+import codemining.lm.util.TokenizedCorpusStore;
 import codemining.util.SettingsLoader;
 import codemining.util.serialization.ISerializationStrategy.SerializationException;
 import codemining.util.serialization.Serializer;
@@ -49,6 +50,21 @@ public abstract class AbstractNGramLM implements
 	public static final boolean DEBUG_PROBS = SettingsLoader.getBooleanSetting(
 			"debugProbs", false);
 
+	/**
+	 * If true, immutable models look up their n-grams through a
+	 * {@link ProbingHashTrie} instead of walking their frozen trie.
+	 */
+	public static final boolean USE_PROBING_HASH = SettingsLoader
+			.getBooleanSetting("ProbingHashBackend", false);
+
+	/**
+	 * If true, the frozen tries of immutable models (including the ones that
+	 * are read from an {@link NGramModelFile}) have compressed symbols, see
+	 * {@link FrozenLongTrie#compressSymbols()}.
+	 */
+	public static final boolean COMPRESS_TRIE_SYMBOLS = SettingsLoader
+			.getBooleanSetting("CompressedTrieSymbols", false);
+
 	private static final Logger LOGGER = Logger.getLogger(AbstractNGramLM.class
 			.getName());
 
@@ -69,11 +85,51 @@ public abstract class AbstractNGramLM implements
 		return buf.toString();
 	}
 
+	/**
+	 * Return the read-only version of the given trie that immutable models
+	 * use, as set by {@link #USE_PROBING_HASH} and
+	 * {@link #COMPRESS_TRIE_SYMBOLS}.
+	 */
+	private static LongTrie<String> getImmutableTrie(
+			final LongTrie<String> trie) {
+		final LongTrie<String> frozen = COMPRESS_TRIE_SYMBOLS ? trie
+				.compressSymbols() : trie.freeze();
+		return USE_PROBING_HASH ? frozen.toProbingHash() : frozen;
+	}
+
+	/**
+	 * Read a model from the given file. The file may either be an
+	 * {@link NGramModelFile}, which is memory-mapped, or a serialized model.
+	 * 
+	 * @param filename
+	 * @return
+	 * @throws SerializationException
+	 */
 	public static AbstractNGramLM readFromSerialized(final String filename)
 			throws SerializationException {
-		final AbstractNGramLM ngrams = (AbstractNGramLM) Serializer
-				.getSerializer().deserializeFrom(filename);
-		return ngrams;
+		return (AbstractNGramLM) readLanguageModel(filename);
+	}
+
+	/**
+	 * Read any language model from the given file. The file may either be an
+	 * {@link NGramModelFile}, which is memory-mapped, or a serialized
+	 * language model (e.g. a cached model).
+	 * 
+	 * @param filename
+	 * @return
+	 * @throws SerializationException
+	 */
+	public static ILanguageModel readLanguageModel(final String filename)
+			throws SerializationException {
+		if (NGramModelFile.isModelFile(filename)) {
+			try {
+				return NGramModelFile.read(filename);
+			} catch (final IOException e) {
+				throw new SerializationException(e);
+			}
+		}
+		return (ILanguageModel) Serializer.getSerializer().deserializeFrom(
+				filename);
 	}
 
 	public static AbstractNGramLM readSerialized(final String filename)
@@ -96,13 +152,16 @@ public abstract class AbstractNGramLM implements
 	}
 
 	/**
-	 * Return an immutable copy of this abstractNGramLM
+	 * Return an immutable copy of this abstractNGramLM. The trie of the copy
+	 * is frozen into a flat, read-only representation.
 	 * 
+	 * @see #USE_PROBING_HASH
+	 * @see #COMPRESS_TRIE_SYMBOLS
 	 * @param original
 	 */
 	protected AbstractNGramLM(final AbstractNGramLM original) {
 		nGramSize = original.nGramSize;
-		trie = original.trie; // TODO: Need a deep (immutable) copy?
+		trie = getImmutableTrie(original.trie);
 		tokenizer = original.getTokenizer();
 	}
 
@@ -112,6 +171,24 @@ public abstract class AbstractNGramLM implements
 		tokenizer = tokenizerModule;
 	}
 
+	/**
+	 * Create a model on an existing trie. A frozen trie is backed by a
+	 * {@link ProbingHashTrie} if {@link #USE_PROBING_HASH} is set and its
+	 * symbols are compressed if {@link #COMPRESS_TRIE_SYMBOLS} is set.
+	 * 
+	 * @param size
+	 * @param tokenizerModule
+	 * @param existingTrie
+	 */
+	protected AbstractNGramLM(final int size,
+			final ITokenizer tokenizerModule,
+			final LongTrie<String> existingTrie) {
+		nGramSize = size;
+		trie = existingTrie.isFrozen() ? getImmutableTrie(existingTrie)
+				: existingTrie;
+		tokenizer = tokenizerModule;
+	}
+
 	public abstract void addFromSentence(final List<String> sentence,
 			boolean addNewVoc);
 
@@ -122,6 +199,32 @@ public abstract class AbstractNGramLM implements
 			final Collection<List<String>> sentenceSet,
 			final boolean addNewVocabulary);
 
+	/**
+	 * Count the n-gram in [from, to) of the sequence and its prefix, as in
+	 * {@link LongTrie#getCount(NGram, boolean, boolean)} with and without
+	 * terminals respectively. The counts are stored in the sequence. Without
+	 * UNKs, the counts are retrieved from the context state of the sequence,
+	 * so counting the n-grams (and their suffixes) at increasing positions
+	 * only costs a few child lookups per position.
+	 * 
+	 * @param sequence
+	 * @param from
+	 * @param to
+	 * @param useUNKs
+	 */
+	protected final void countNGram(final SymbolSequence sequence,
+			final int from, final int to, final boolean useUNKs) {
+		final int order = to - from;
+		if (!useUNKs && order <= sequence.getMaxOrder()) {
+			final ContextState state = sequence.getStateAt(to - 1);
+			sequence.counts[0] = state.getNGramCount(order);
+			sequence.counts[1] = state.getContextCount(order);
+		} else {
+			trie.getNGramCounts(sequence.getSymbols(), from, to, useUNKs,
+					sequence.counts);
+		}
+	}
+
 	public abstract void cutoffRare(final int threshold);
 
 	/**
@@ -153,17 +256,20 @@ public abstract class AbstractNGramLM implements
 
 	@Override
 	public double getAbsoluteEntropy(final File file) throws IOException {
+		if (TokenizedCorpusStore.isCacheEnabled()) {
+			return getAbsoluteEntropy(TokenizedCorpusStore.getTokens(file,
+					getTokenizer()));
+		}
 		return getAbsoluteEntropy(FileUtils.readFileToString(file));
 	}
 
-	@Override
-	public double getAbsoluteEntropy(final String fileContent) {
-		final char[] code = fileContent.toCharArray();
-		if (code.length == 0) {
-			return 0;
-		}
-		final List<String> tokens = ImmutableList.copyOf(getTokenizer()
-				.tokenListFromCode(code));
+	/**
+	 * Return the absolute entropy of a (tokenized) file.
+	 * 
+	 * @param tokens
+	 * @return
+	 */
+	private double getAbsoluteEntropy(final List<String> tokens) {
 		if (tokens.isEmpty()) {
 			return 0;
 		}
@@ -172,6 +278,16 @@ public abstract class AbstractNGramLM implements
 		return sentenceProb;
 	}
 
+	@Override
+	public double getAbsoluteEntropy(final String fileContent) {
+		final char[] code = fileContent.toCharArray();
+		if (code.length == 0) {
+			return 0;
+		}
+		return getAbsoluteEntropy(ImmutableList.copyOf(getTokenizer()
+				.tokenListFromCode(code)));
+	}
+
 	public Multiset<String> getAlternativeNamings(
 			final Multiset<NGram<String>> ngrams, final String tokenToSubstitute) {
 		final Multiset<String> namings = TreeMultiset.create();
@@ -206,7 +322,7 @@ public abstract class AbstractNGramLM implements
 		prefix = prefix.getPrefix(); // Remove the substitute token
 
 		// Then get the node that has as children all possible names
-		final TrieNode<Long> sNode = globalTrie.getNGramNodeForInput(prefix,
+		final ILongTrieNode sNode = globalTrie.getNGramNodeForInput(prefix,
 				false);
 		if (sNode == null) {
 			return Collections.emptySet();
@@ -222,10 +338,9 @@ public abstract class AbstractNGramLM implements
 			final NGram<String> suffix = new NGram<String>(ngram,
 					prefixSize + 1, ngramSize);
 
-			for (final Map.Entry<Long, TrieNode<Long>> entry : sNode.prods
-					.entrySet()) {
-				final String token = globalTrie
-						.getSymbolFromKey(entry.getKey());
+			for (int i = 0; i < sNode.nChildren(); i++) {
+				final String token = globalTrie.getSymbolFromKey(sNode
+						.getSymbolAt(i));
 				final NGram<String> replacedNgramSuffix = NGram
 						.substituteTokenWith(suffix, tokenToSubstitute, token); // The
 																				// current
@@ -234,40 +349,81 @@ public abstract class AbstractNGramLM implements
 																				// also
 																				// any
 				// future appearances in the n-gram
-				final TrieNode<Long> fNode = globalTrie.getNGramNodeForInput(
-						replacedNgramSuffix, false, entry.getValue());
+				final ILongTrieNode fNode = globalTrie.getNGramNodeForInput(
+						replacedNgramSuffix, false, sNode.getChildAt(i));
 				if (fNode != null) {
 					renamings.add(token);
 				}
 			}
 		} else {
-			for (final Long key : sNode.prods.keySet()) {
-				final String token = globalTrie.getSymbolFromKey(key);
+			for (int i = 0; i < sNode.nChildren(); i++) {
+				final String token = globalTrie.getSymbolFromKey(sNode
+						.getSymbolAt(i));
 				renamings.add(token);
 			}
 		}
 		return renamings;
 	}
 
+	/**
+	 * Return the context state of the sequence, positioned for the n-grams
+	 * that end at the given token.
+	 * 
+	 * @param sequence
+	 * @param position
+	 * @return
+	 */
+	protected final ContextState getContextState(
+			final SymbolSequence sequence, final int position) {
+		return sequence.getStateAt(position);
+	}
+
 	@Override
 	public double getExtrinsticEntropy(final File file) throws IOException {
+		if (TokenizedCorpusStore.isCacheEnabled()) {
+			return getExtrinsticEntropy(TokenizedCorpusStore.getTokens(file,
+					getTokenizer()));
+		}
 		return getExtrinsticEntropy(FileUtils.readFileToString(file));
 	}
 
+	/**
+	 * Return the extrinsic entropy of a (tokenized) file.
+	 * 
+	 * @param tokens
+	 * @return
+	 */
+	private double getExtrinsticEntropy(final List<String> tokens) {
+		if (tokens.isEmpty()) {
+			return 0;
+		}
+		final double sentenceProb = getLogProbOfSentence(tokens);
+
+		return sentenceProb / (tokens.size() - 1.);
+	}
+
 	@Override
 	public double getExtrinsticEntropy(final String fileContent) {
 		final char[] code = fileContent.toCharArray();
 		if (code.length == 0) {
 			return 0;
 		}
-		final List<String> tokens = ImmutableList.copyOf(getTokenizer()
-				.tokenListFromCode(code));
-		if (tokens.isEmpty()) {
-			return 0;
-		}
-		final double sentenceProb = getLogProbOfSentence(tokens);
+		return getExtrinsticEntropy(ImmutableList.copyOf(getTokenizer()
+				.tokenListFromCode(code)));
+	}
 
-		return sentenceProb / (tokens.size() - 1.);
+	/**
+	 * Return the log2 backoff weight of the given context, i.e. the weight of
+	 * the lower order probability for the tokens that have not been seen
+	 * after the context, as in an ARPA file. By default, this is the
+	 * normalizing weight.
+	 *
+	 * @see #getNormalizingLogBackoffWeight(NGram)
+	 * @param context
+	 * @return
+	 */
+	public double getLogBackoffWeight(final NGram<String> context) {
+		return getNormalizingLogBackoffWeight(context);
 	}
 
 	public ArrayList<Double> getLogProbDistOfSentence(final String fileContent) {
@@ -283,42 +439,81 @@ public abstract class AbstractNGramLM implements
 			return logProbDist;
 		}
 
-		for (int i = 0; i < tokens.size(); ++i) {
-			final NGram<String> ngram = NGram.constructNgramAt(i, tokens,
-					nGramSize);
-			if (ngram.size() > 1) {
-				final double prob = getProbabilityFor(ngram);
-				if (AbstractNGramLM.DEBUG_PROBS) {
-					LOGGER.info(AbstractNGramLM.getProbString(
-							trie.substituteWordsToUNK(ngram), prob));
-				}
-				checkArgument(prob > 0);
-				checkArgument(!Double.isInfinite(prob));
-				logProbDist.add(DoubleMath.log2(prob));
+		final SymbolSequence sequence = getSymbolSequence(tokens);
+		for (int i = 0; i < sequence.size(); ++i) {
+			if (i - Math.max(0, i - nGramSize + 1) > 0) {
+				logProbDist.add(getLogProbAt(sequence, i));
 			}
 		}
 		return logProbDist;
 	}
 
+	/**
+	 * Return the log2 probability of the token at the given position given
+	 * its context.
+	 * 
+	 * @param sequence
+	 * @param position
+	 * @return
+	 */
+	private double getLogProbAt(final SymbolSequence sequence,
+			final int position) {
+		final int from = Math.max(0, position - nGramSize + 1);
+		final double logProb = getLogProbabilityFor(sequence, from,
+				position + 1);
+		if (AbstractNGramLM.DEBUG_PROBS) {
+			LOGGER.info(AbstractNGramLM.getProbString(
+					trie.substituteWordsToUNK(sequence.getNGram(from,
+							position + 1)), Math.pow(2, logProb)));
+		}
+		return logProb;
+	}
+
+	/**
+	 * Return the log2 of the (possibly smoothed) probability of the n-gram in
+	 * [from, to) of the sequence. Models that precompute log-probabilities
+	 * may override it to avoid the conversion.
+	 * 
+	 * @see #getProbabilityFor(SymbolSequence, int, int)
+	 */
+	public double getLogProbabilityFor(final SymbolSequence sequence,
+			final int from, final int to) {
+		final double prob = getProbabilityFor(sequence, from, to);
+		checkArgument(prob > 0);
+		checkArgument(!Double.isInfinite(prob));
+		return DoubleMath.log2(prob);
+	}
+
 	public double getLogProbOfSentence(final List<String> sentence) {
+		final SymbolSequence sequence = getSymbolSequence(sentence);
 		double logProb = 0;
-		for (int i = 0; i < sentence.size(); ++i) {
-			final NGram<String> ngram = NGram.constructNgramAt(i, sentence,
-					nGramSize);
-			if (ngram.size() > 1) {
-				final double prob = getProbabilityFor(ngram);
-				if (AbstractNGramLM.DEBUG_PROBS) {
-					LOGGER.info(AbstractNGramLM.getProbString(
-							trie.substituteWordsToUNK(ngram), prob));
-				}
-				checkArgument(prob > 0);
-				checkArgument(!Double.isInfinite(prob));
-				logProb += DoubleMath.log2(prob);
+		for (int i = 0; i < sequence.size(); ++i) {
+			// Only score tokens that have some context
+			if (i - Math.max(0, i - nGramSize + 1) > 0) {
+				logProb += getLogProbAt(sequence, i);
 			}
 		}
 		return logProb;
 	}
 
+	/**
+	 * Return the ML probability of the n-gram in [from, to) of the sequence.
+	 * 
+	 * @see #getMLProbabilityFor(NGram, boolean)
+	 */
+	public double getMLProbabilityFor(final SymbolSequence sequence,
+			final int from, final int to, final boolean useUNKs) {
+		countNGram(sequence, from, to, useUNKs);
+		final long ngramCount = sequence.getNGramCount();
+		final long productionCount = sequence.getPrefixCount();
+		if (productionCount == 0) {
+			return 0;
+		}
+
+		checkArgument(ngramCount <= productionCount);
+		return ((double) ngramCount) / ((double) (productionCount));
+	}
+
 	/**
 	 * Return the frequency that an ngram appears in the dictionary.
 	 * 
@@ -347,6 +542,64 @@ public abstract class AbstractNGramLM implements
 		return nGramSize;
 	}
 
+	/**
+	 * Return the log2 weight that normalizes the probability that the model
+	 * leaves for the tokens that have not been seen after the context over
+	 * the probability that the lower order gives to them.
+	 *
+	 * @param context
+	 * @return
+	 */
+	protected final double getNormalizingLogBackoffWeight(
+			final NGram<String> context) {
+		checkArgument(context.size() > 0);
+		final ILongTrieNode contextNode = trie.getNGramNodeForInput(context,
+				false);
+		if (contextNode == null) {
+			return 0;
+		}
+		final List<String> ngram = context.toList();
+		ngram.add(null);
+		final int last = ngram.size() - 1;
+		double seenProb = 0;
+		double seenLowerProb = 0;
+		final long unkSymbolId = trie.getUnkSymbolId();
+		for (int i = 0; i < contextNode.nChildren(); i++) {
+			if (contextNode.getSymbolAt(i) == unkSymbolId) {
+				continue;
+			}
+			ngram.set(last, trie.getSymbolFromKey(contextNode.getSymbolAt(i)));
+			seenProb += getProbabilityFor(new NGram<String>(ngram));
+			seenLowerProb += getProbabilityFor(new NGram<String>(ngram, 1,
+					ngram.size()));
+		}
+
+		if (seenProb >= 1) {
+			// No probability is remaining
+			return DoubleMath.log2(1E-10);
+		} else if (seenLowerProb >= 1) {
+			return 0;
+		}
+		return DoubleMath.log2((1. - seenProb) / (1. - seenLowerProb));
+	}
+
+	/**
+	 * Return the (possibly smoothed) probability of the n-gram in [from, to)
+	 * of the sequence. This is equivalent to
+	 * {@link #getProbabilityFor(NGram)} and is used when scoring sentences.
+	 * Models should override it to avoid creating an n-gram object for each
+	 * position.
+	 * 
+	 * @param sequence
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public double getProbabilityFor(final SymbolSequence sequence,
+			final int from, final int to) {
+		return getProbabilityFor(sequence.getNGram(from, to));
+	}
+
 	/**
 	 * Return the (possibly smoothed) probability of an n-gram for this language
 	 * model.
@@ -356,6 +609,17 @@ public abstract class AbstractNGramLM implements
 	 */
 	public abstract double getProbabilityFor(final NGram<String> ngram);
 
+	/**
+	 * Map the sentence to the symbols of this model, for scoring its n-grams.
+	 * 
+	 * @param sentence
+	 * @return
+	 */
+	public SymbolSequence getSymbolSequence(final List<String> sentence) {
+		return new SymbolSequence(sentence, trie.getSymbolIdArray(sentence),
+				trie.createContextState(getN()));
+	}
+
 	@Override
 	public ITokenizer getTokenizer() {
 		return tokenizer;
@@ -0,0 +1,575 @@
+/**
+ *
+ */
+package codemining.lm.ngram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import codemining.languagetools.ITokenizer;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Reads and writes n-gram models in the ARPA back-off format, so that models
+ * can be exchanged with other toolkits. Both directions are streaming: the
+ * writer walks the trie of the model once per order and the reader only
+ * keeps primitive per-level arrays, whose sizes are known from the header.
+ * Files ending in .gz are compressed.
+ *
+ * The sentence start and end tokens are written as &lt;s&gt; and &lt;/s&gt;
+ * and UNK as &lt;unk&gt;. Whitespace and backslashes in tokens are escaped
+ * with a backslash (\s, \t, \n, \r and \\).
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public final class ArpaFile {
+
+	public static final String ARPA_UNK = "<unk>";
+
+	public static final String ARPA_SENTENCE_START = "<s>";
+
+	public static final String ARPA_SENTENCE_END = "</s>";
+
+	/**
+	 * The log10 probability written for zero probabilities.
+	 */
+	private static final float ZERO_LOG_PROB = -99;
+
+	private static final double LOG10_2 = Math.log10(2);
+
+	private static final Splitter FIELD_SPLITTER = Splitter.on(
+			CharMatcher.WHITESPACE).omitEmptyStrings();
+
+	private static final Logger LOGGER = Logger.getLogger(ArpaFile.class
+			.getName());
+
+	/**
+	 * Count the n-grams that will be written, for each order.
+	 */
+	private static void countNGrams(final LongTrie<String> trie,
+			final ILongTrieNode node, final int level, final long[] counts) {
+		final long unkSymbolId = trie.getUnkSymbolId();
+		for (int i = 0; i < node.nChildren(); i++) {
+			if (node.getSymbolAt(i) == unkSymbolId
+					|| !isListed(trie, node.getChildAt(i))) {
+				continue;
+			}
+			counts[level + 1]++;
+			if (level + 2 < counts.length) {
+				countNGrams(trie, node.getChildAt(i), level + 1, counts);
+			}
+		}
+	}
+
+	private static String escape(final String token) {
+		if (token.equals(ITokenizer.SENTENCE_START)) {
+			return ARPA_SENTENCE_START;
+		} else if (token.equals(ITokenizer.SENTENCE_END)) {
+			return ARPA_SENTENCE_END;
+		}
+		final StringBuilder sb = new StringBuilder(token.length());
+		for (int i = 0; i < token.length(); i++) {
+			final char c = token.charAt(i);
+			switch (c) {
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case ' ':
+				sb.append("\\s");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Return the position of the node with the given symbols (in [0, size))
+	 * or -1 if it does not exist.
+	 */
+	private static int findNode(final long[][] symbols,
+			final int[][] childStart, final long[] ngram, final int size) {
+		int index = 0;
+		for (int level = 0; level < size; level++) {
+			final int pos = Arrays.binarySearch(symbols[level + 1],
+					childStart[level][index], childStart[level][index + 1],
+					ngram[level]);
+			if (pos < 0) {
+				return -1;
+			}
+			index = pos;
+		}
+		return index;
+	}
+
+	/**
+	 * Return a token that is not in the vocabulary of the model, used to get
+	 * the probability of UNK.
+	 */
+	private static String getOutOfVocabularyToken(final LongTrie<String> trie) {
+		String token = ARPA_UNK;
+		while (trie.getVocabulary().contains(token)) {
+			token = token + "_";
+		}
+		return token;
+	}
+
+	/**
+	 * Return the tokens of the vocabulary that are not written as unigrams
+	 * from the trie, e.g. because they only appear at the end of sentences,
+	 * since all the tokens must have a unigram.
+	 */
+	private static List<String> getUnlistedTokens(final LongTrie<String> trie) {
+		final List<String> tokens = Lists.newArrayList();
+		final ILongTrieNode root = trie.getRoot();
+		for (final String token : trie.getVocabulary()) {
+			final long symbol = trie.getSymbolIdArray(
+					Lists.newArrayList(token))[0];
+			if (symbol == trie.getUnkSymbolId()) {
+				continue;
+			}
+			final ILongTrieNode unigram = root.getChild(symbol);
+			if (unigram == null || !isListed(trie, unigram)) {
+				tokens.add(token);
+			}
+		}
+		return tokens;
+	}
+
+	/**
+	 * Return true if the node is an n-gram that is written, i.e. it has been
+	 * seen excluding its UNK continuations. All the nodes of a trie without
+	 * counts (e.g. of a read ARPA model) are n-grams.
+	 */
+	private static boolean isListed(final LongTrie<String> trie,
+			final ILongTrieNode node) {
+		if (trie.isFrozen() && !trie.getFrozenTrie().hasCounts()) {
+			return true;
+		}
+		final ILongTrieNode unk = node.getChild(trie.getUnkSymbolId());
+		return node.getCount() - (unk == null ? 0 : unk.getCount()) > 0;
+	}
+
+	private static float log10(final double prob) {
+		if (prob == 0) {
+			return ZERO_LOG_PROB;
+		}
+		return (float) Math.log10(prob);
+	}
+
+	private static InputStream openInput(final String filename)
+			throws IOException {
+		final InputStream in = new FileInputStream(filename);
+		if (filename.endsWith(".gz")) {
+			return new GZIPInputStream(in, 1 << 16);
+		}
+		return in;
+	}
+
+	private static OutputStream openOutput(final String filename)
+			throws IOException {
+		final OutputStream out = new FileOutputStream(filename);
+		if (filename.endsWith(".gz")) {
+			return new GZIPOutputStream(out, 1 << 16);
+		}
+		return out;
+	}
+
+	/**
+	 * Read an ARPA file into a back-off model.
+	 *
+	 * @param filename
+	 * @param tokenizer
+	 *            the tokenizer of the model, since ARPA files do not store it
+	 * @return
+	 * @throws IOException
+	 */
+	public static ArpaNGramLM read(final String filename,
+			final ITokenizer tokenizer) throws IOException {
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(
+				openInput(filename), Charsets.UTF_8), 1 << 16)) {
+			final long[] nNGrams = readHeader(in);
+			final int n = nNGrams.length - 1;
+
+			final long unkSymbolId = Long.MIN_VALUE;
+			final Map<String, Long> alphabet = Maps.newHashMap();
+			alphabet.put(AbstractNGramLM.UNK_SYMBOL, unkSymbolId);
+
+			final long[][] symbols = new long[n + 1][];
+			final int[][] childStart = new int[n + 1][];
+			final float[][] logProbs = new float[n + 1][];
+			final float[][] logBackoffs = new float[n + 1][];
+			symbols[0] = new long[1];
+			logProbs[0] = new float[1];
+			logBackoffs[0] = new float[1];
+
+			long nextId = unkSymbolId + 1;
+			for (int k = 1; k <= n; k++) {
+				checkArgument(nNGrams[k] < Integer.MAX_VALUE,
+						"Too many n-grams of order %s", k);
+				final int size = (int) nNGrams[k];
+				String line = in.readLine();
+				while (line != null && line.trim().isEmpty()) {
+					line = in.readLine();
+				}
+				if (line == null || !line.trim().equals("\\" + k + "-grams:")) {
+					throw new IOException("Expected the " + k
+							+ "-grams section but found " + line);
+				}
+
+				// Each n-gram is keyed by its parent and its symbol
+				final long[] keys = new long[size];
+				final float[] probs = new float[size];
+				final float[] backoffs = new float[size];
+				final long[] ngram = new long[k];
+				final List<String> previousContext = Lists.newArrayList();
+				int parent = 0;
+				for (int i = 0; i < size; i++) {
+					line = in.readLine();
+					if (line == null) {
+						throw new IOException("Expected " + size + " " + k
+								+ "-grams but found " + i);
+					}
+					final List<String> fields = Lists.newArrayList(FIELD_SPLITTER
+							.split(line));
+					if (fields.size() != k + 1 && fields.size() != k + 2) {
+						throw new IOException("Malformed " + k + "-gram: "
+								+ line);
+					}
+					probs[i] = (float) (Float.parseFloat(fields.get(0)) / LOG10_2);
+					if (fields.size() == k + 2) {
+						backoffs[i] = (float) (Float.parseFloat(fields.get(k + 1)) / LOG10_2);
+					}
+
+					if (k == 1) {
+						final String token = unescape(fields.get(1));
+						if (token.equals(AbstractNGramLM.UNK_SYMBOL)) {
+							ngram[0] = unkSymbolId;
+						} else if (alphabet.containsKey(token)) {
+							throw new IOException("Duplicate unigram " + line);
+						} else {
+							ngram[0] = nextId;
+							alphabet.put(token, nextId);
+							nextId++;
+						}
+					} else {
+						for (int j = 0; j < k; j++) {
+							final Long id = alphabet.get(unescape(fields
+									.get(j + 1)));
+							if (id == null) {
+								throw new IOException("Unknown token in "
+										+ line);
+							}
+							ngram[j] = id;
+						}
+						final List<String> context = fields.subList(1, k);
+						if (!context.equals(previousContext)) {
+							parent = findNode(symbols, childStart, ngram,
+									k - 1);
+							if (parent < 0) {
+								throw new IOException("The context of " + line
+										+ " does not exist");
+							}
+							previousContext.clear();
+							previousContext.addAll(context);
+						}
+					}
+					keys[i] = ((long) parent << 32)
+							| (ngram[k - 1] - Long.MIN_VALUE);
+				}
+
+				sort(keys, probs, backoffs, 0, size - 1);
+				symbols[k] = new long[size];
+				childStart[k - 1] = new int[symbols[k - 1].length + 1];
+				for (int i = 0; i < size; i++) {
+					if (i > 0 && keys[i] == keys[i - 1]) {
+						throw new IOException("Duplicate " + k + "-gram");
+					}
+					symbols[k][i] = (keys[i] & 0xFFFFFFFFL) + Long.MIN_VALUE;
+					childStart[k - 1][(int) (keys[i] >>> 32) + 1]++;
+				}
+				for (int i = 0; i < symbols[k - 1].length; i++) {
+					childStart[k - 1][i + 1] += childStart[k - 1][i];
+				}
+				logProbs[k] = probs;
+				logBackoffs[k] = backoffs;
+			}
+			childStart[n] = new int[symbols[n].length + 1];
+
+			final ArpaNGramLM model = new ArpaNGramLM(n, tokenizer,
+					new LongTrie<String>(alphabet, nextId,
+							AbstractNGramLM.UNK_SYMBOL, wrap(unkSymbolId,
+									symbols, childStart)), logProbs,
+					logBackoffs);
+			LOGGER.info("Read " + n + "-gram ARPA model from " + filename);
+			return model;
+		}
+	}
+
+	/**
+	 * Read the \data\ section and return the number of n-grams of each order
+	 * (indexed by the order).
+	 */
+	private static long[] readHeader(final BufferedReader in)
+			throws IOException {
+		String line = in.readLine();
+		while (line != null && !line.trim().equals("\\data\\")) {
+			line = in.readLine();
+		}
+		if (line == null) {
+			throw new IOException("No \\data\\ section found");
+		}
+
+		final List<Long> counts = Lists.newArrayList();
+		counts.add(1L); // the root
+		in.mark(1 << 12);
+		line = in.readLine();
+		while (line != null && !line.startsWith("\\")) {
+			line = line.trim();
+			if (line.startsWith("ngram ")) {
+				final int eq = line.indexOf('=');
+				final int order = Integer.parseInt(line.substring(6, eq)
+						.trim());
+				if (order != counts.size()) {
+					throw new IOException("Unexpected order in " + line);
+				}
+				counts.add(Long.parseLong(line.substring(eq + 1).trim()));
+			}
+			in.mark(1 << 12);
+			line = in.readLine();
+		}
+		in.reset();
+		if (counts.size() < 2) {
+			throw new IOException("No n-gram counts in the \\data\\ section");
+		}
+
+		final long[] nNGrams = new long[counts.size()];
+		for (int i = 0; i < nNGrams.length; i++) {
+			nNGrams[i] = counts.get(i);
+		}
+		return nNGrams;
+	}
+
+	/**
+	 * Sort the keys in [from, to] along with their values.
+	 */
+	private static void sort(final long[] keys, final float[] probs,
+			final float[] backoffs, int from, int to) {
+		while (from < to) {
+			final long pivot = keys[(from + to) >>> 1];
+			int i = from;
+			int j = to;
+			while (i <= j) {
+				while (keys[i] < pivot) {
+					i++;
+				}
+				while (keys[j] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					swap(keys, probs, backoffs, i, j);
+					i++;
+					j--;
+				}
+			}
+			// Recurse on the smaller part, so that the stack is bounded
+			if (j - from < to - i) {
+				sort(keys, probs, backoffs, from, j);
+				from = i;
+			} else {
+				sort(keys, probs, backoffs, i, to);
+				to = j;
+			}
+		}
+	}
+
+	private static void swap(final long[] keys, final float[] probs,
+			final float[] backoffs, final int i, final int j) {
+		final long key = keys[i];
+		keys[i] = keys[j];
+		keys[j] = key;
+		final float prob = probs[i];
+		probs[i] = probs[j];
+		probs[j] = prob;
+		final float backoff = backoffs[i];
+		backoffs[i] = backoffs[j];
+		backoffs[j] = backoff;
+	}
+
+	private static String unescape(final String token) {
+		if (token.equals(ARPA_SENTENCE_START)) {
+			return ITokenizer.SENTENCE_START;
+		} else if (token.equals(ARPA_SENTENCE_END)) {
+			return ITokenizer.SENTENCE_END;
+		} else if (token.equals(ARPA_UNK)) {
+			return AbstractNGramLM.UNK_SYMBOL;
+		} else if (token.indexOf('\\') < 0) {
+			return token;
+		}
+		final StringBuilder sb = new StringBuilder(token.length());
+		for (int i = 0; i < token.length(); i++) {
+			final char c = token.charAt(i);
+			if (c != '\\' || i == token.length() - 1) {
+				sb.append(c);
+				continue;
+			}
+			i++;
+			switch (token.charAt(i)) {
+			case 's':
+				sb.append(' ');
+				break;
+			case 't':
+				sb.append('\t');
+				break;
+			case 'n':
+				sb.append('\n');
+				break;
+			case 'r':
+				sb.append('\r');
+				break;
+			default:
+				sb.append(token.charAt(i));
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Create a frozen trie on the given levels. The counts of the nodes are
+	 * not known, so the trie only stores the symbols and the child offsets.
+	 */
+	static FrozenLongTrie wrap(final long unkSymbolId,
+			final long[][] symbols, final int[][] childStart) {
+		final int nLevels = symbols.length;
+		final ChunkedLongBuffer[] symbolBuffers = new ChunkedLongBuffer[nLevels];
+		final ChunkedIntBuffer[] childStartBuffers = new ChunkedIntBuffer[nLevels];
+		for (int l = 0; l < nLevels; l++) {
+			symbolBuffers[l] = ChunkedLongBuffer.wrap(symbols[l]);
+			childStartBuffers[l] = ChunkedIntBuffer.wrap(childStart[l]);
+		}
+		return new FrozenLongTrie(unkSymbolId, symbolBuffers, null, null,
+				childStartBuffers);
+	}
+
+	/**
+	 * Write the given model as an ARPA file. The n-grams are the ones in the
+	 * trie of the model, with the probabilities of the model and the backoff
+	 * weights given by {@link AbstractNGramLM#getLogBackoffWeight(NGram)}.
+	 * The probability of &lt;unk&gt; is the one the model gives to tokens
+	 * that are not in its vocabulary.
+	 *
+	 * @param model
+	 * @param filename
+	 * @throws IOException
+	 */
+	public static void write(final AbstractNGramLM model, final String filename)
+			throws IOException {
+		final LongTrie<String> trie = model.getTrie();
+		final int n = model.getN();
+		final long[] nNGrams = new long[n + 1];
+		countNGrams(trie, trie.getRoot(), 0, nNGrams);
+		final List<String> unlistedTokens = getUnlistedTokens(trie);
+		nNGrams[1] += unlistedTokens.size() + 1; // and UNK
+
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(
+				openOutput(filename), Charsets.UTF_8), 1 << 16)) {
+			out.write("\n\\data\\\n");
+			for (int k = 1; k <= n; k++) {
+				out.write("ngram " + k + "=" + nNGrams[k] + "\n");
+			}
+
+			for (int k = 1; k <= n; k++) {
+				out.write("\n\\" + k + "-grams:\n");
+				if (k == 1) {
+					final double unkProb = model
+							.getProbabilityFor(new NGram<String>(Lists
+									.newArrayList(getOutOfVocabularyToken(trie))));
+					out.write(log10(unkProb) + "\t" + ARPA_UNK + "\n");
+					for (final String token : unlistedTokens) {
+						final double prob = model
+								.getProbabilityFor(new NGram<String>(Lists
+										.newArrayList(token)));
+						out.write(log10(prob) + "\t" + escape(token) + "\n");
+					}
+				}
+				writeNGrams(model, trie.getRoot(), Lists.<String> newArrayList(),
+						k, out);
+			}
+			out.write("\n\\end\\\n");
+		}
+		LOGGER.info("Wrote " + n + "-gram ARPA model to " + filename);
+	}
+
+	/**
+	 * Write the n-grams of the given order that start with the given context
+	 * node.
+	 */
+	private static void writeNGrams(final AbstractNGramLM model,
+			final ILongTrieNode node, final List<String> context,
+			final int order, final Writer out) throws IOException {
+		final LongTrie<String> trie = model.getTrie();
+		final long unkSymbolId = trie.getUnkSymbolId();
+		for (int i = 0; i < node.nChildren(); i++) {
+			final ILongTrieNode child = node.getChildAt(i);
+			if (node.getSymbolAt(i) == unkSymbolId || !isListed(trie, child)) {
+				continue;
+			}
+			context.add(trie.getSymbolFromKey(node.getSymbolAt(i)));
+			if (context.size() < order) {
+				writeNGrams(model, child, context, order, out);
+			} else {
+				final NGram<String> ngram = new NGram<String>(context);
+				out.write(Float.toString(log10(model.getProbabilityFor(ngram))));
+				out.write('\t');
+				for (int j = 0; j < context.size(); j++) {
+					if (j > 0) {
+						out.write(' ');
+					}
+					out.write(escape(context.get(j)));
+				}
+				if (order < model.getN()) {
+					out.write('\t');
+					out.write(Float.toString((float) (model
+							.getLogBackoffWeight(ngram) * LOG10_2)));
+				}
+				out.write('\n');
+			}
+			context.remove(context.size() - 1);
+		}
+	}
+
+	private ArpaFile() {
+	}
+}
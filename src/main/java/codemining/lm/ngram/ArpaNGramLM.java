@@ -0,0 +1,305 @@
+/**
+ *
+ */
+package codemining.lm.ngram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+import codemining.languagetools.ITokenizer;
+import codemining.lm.ILanguageModel;
+
+/**
+ * A read-only back-off model whose probabilities and backoff weights are
+ * given explicitly, as read from an ARPA file. The n-grams are stored in a
+ * {@link FrozenLongTrie} and their log-probabilities and backoff weights are
+ * indexed by the position of their node in its level. As in ARPA toolkits,
+ * tokens that are not in the vocabulary are mapped to UNK at all positions.
+ *
+ * The probabilities and backoff weights may be quantized (see
+ * {@link #quantize(int)}) to a codebook per order, so that each n-gram only
+ * needs one or two bytes for each of them.
+ *
+ * @see ArpaFile
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class ArpaNGramLM extends AbstractNGramLM {
+
+	private static final long serialVersionUID = -2707519113463298376L;
+
+	/**
+	 * The log2 probability of each n-gram, per level, or null if the model
+	 * is quantized.
+	 */
+	private final float[][] logProbs;
+
+	/**
+	 * The log2 backoff weight of each n-gram, per level, or null if the
+	 * model is quantized.
+	 */
+	private final float[][] logBackoffs;
+
+	/**
+	 * The quantized log2 probability of each n-gram, per level, or null if
+	 * the model is not quantized.
+	 */
+	private final QuantizedValues[] quantizedLogProbs;
+
+	/**
+	 * The quantized log2 backoff weight of each n-gram, per level, or null if
+	 * the model is not quantized.
+	 */
+	private final QuantizedValues[] quantizedLogBackoffs;
+
+	/**
+	 * Create a model on the given frozen trie.
+	 *
+	 * @param size
+	 * @param tokenizer
+	 * @param trie
+	 * @param logProbs
+	 * @param logBackoffs
+	 */
+	ArpaNGramLM(final int size, final ITokenizer tokenizer,
+			final LongTrie<String> trie, final float[][] logProbs,
+			final float[][] logBackoffs) {
+		super(size, tokenizer, trie);
+		checkArgument(trie.isFrozen());
+		this.logProbs = logProbs;
+		this.logBackoffs = logBackoffs;
+		quantizedLogProbs = null;
+		quantizedLogBackoffs = null;
+	}
+
+	/**
+	 * Create a quantized model on the given frozen trie.
+	 *
+	 * @param size
+	 * @param tokenizer
+	 * @param trie
+	 * @param quantizedLogProbs
+	 * @param quantizedLogBackoffs
+	 */
+	ArpaNGramLM(final int size, final ITokenizer tokenizer,
+			final LongTrie<String> trie,
+			final QuantizedValues[] quantizedLogProbs,
+			final QuantizedValues[] quantizedLogBackoffs) {
+		super(size, tokenizer, trie);
+		checkArgument(trie.isFrozen());
+		logProbs = null;
+		logBackoffs = null;
+		this.quantizedLogProbs = quantizedLogProbs;
+		this.quantizedLogBackoffs = quantizedLogBackoffs;
+	}
+
+	private static float[][] dequantize(final QuantizedValues[] quantized) {
+		final float[][] values = new float[quantized.length][];
+		for (int l = 0; l < quantized.length; l++) {
+			values[l] = quantized[l].toArray();
+		}
+		return values;
+	}
+
+	@Override
+	public void addFromSentence(final List<String> sentence,
+			final boolean addNewVoc) {
+		throw new UnsupportedOperationException(
+				"ArpaNGramLM is an immutable Language Model");
+	}
+
+	@Override
+	protected void addNgram(final NGram<String> ngram, final boolean addNewVoc) {
+		throw new UnsupportedOperationException(
+				"ArpaNGramLM is an immutable Language Model");
+	}
+
+	@Override
+	public void addSentences(final Collection<List<String>> sentenceSet,
+			final boolean addNewVocabulary) {
+		throw new UnsupportedOperationException(
+				"ArpaNGramLM is an immutable Language Model");
+	}
+
+	@Override
+	public void cutoffRare(final int threshold) {
+		throw new UnsupportedOperationException(
+				"ArpaNGramLM is an immutable Language Model");
+	}
+
+	@Override
+	public ILanguageModel getImmutableVersion() {
+		return this;
+	}
+
+	@Override
+	public double getLogBackoffWeight(final NGram<String> context) {
+		checkArgument(context.size() > 0);
+		final long[] symbols = getSymbolIds(context.toList());
+		final ILongTrieNode node = trie.getNGramNodeForInput(symbols, 0,
+				symbols.length, false);
+		if (node == null || context.size() >= getN()) {
+			return 0;
+		}
+		return getLogBackoff(context.size(), trie.getFrozenTrie()
+				.getNodeIndex(node));
+	}
+
+	private float getLogBackoff(final int level, final int index) {
+		if (quantizedLogBackoffs != null) {
+			return quantizedLogBackoffs[level].get(index);
+		}
+		return logBackoffs[level][index];
+	}
+
+	/**
+	 * Return the log2 backoff weights of the n-grams, per level and node
+	 * position. Not to be modified. Quantized models return a dequantized
+	 * copy.
+	 */
+	float[][] getLogBackoffs() {
+		if (quantizedLogBackoffs != null) {
+			return dequantize(quantizedLogBackoffs);
+		}
+		return logBackoffs;
+	}
+
+	@Override
+	public double getLogProbabilityFor(final SymbolSequence sequence,
+			final int from, final int to) {
+		final int order = to - from;
+		checkArgument(order > 0 && order <= getN());
+		final ContextState state = getContextState(sequence, to - 1);
+		double logBackoff = 0;
+		for (int k = order; k > 0; k--) {
+			final int ngram = state.getNGramIndex(k);
+			if (ngram >= 0) {
+				return logBackoff + getLogProb(k, ngram);
+			}
+			final int context = state.getContextIndex(k);
+			if (context >= 0 && k > 1) {
+				logBackoff += getLogBackoff(k - 1, context);
+			}
+		}
+		throw new IllegalArgumentException(
+				"The model has no UNK for out of vocabulary tokens");
+	}
+
+	private float getLogProb(final int level, final int index) {
+		if (quantizedLogProbs != null) {
+			return quantizedLogProbs[level].get(index);
+		}
+		return logProbs[level][index];
+	}
+
+	/**
+	 * Return the log2 probabilities of the n-grams, per level and node
+	 * position. Not to be modified. Quantized models return a dequantized
+	 * copy.
+	 */
+	float[][] getLogProbs() {
+		if (quantizedLogProbs != null) {
+			return dequantize(quantizedLogProbs);
+		}
+		return logProbs;
+	}
+
+	@Override
+	public double getProbabilityFor(final NGram<String> ngram) {
+		final SymbolSequence sequence = getSymbolSequence(ngram.toList());
+		return Math.pow(2, getLogProbabilityFor(sequence, 0, sequence.size()));
+	}
+
+	@Override
+	public double getProbabilityFor(final SymbolSequence sequence,
+			final int from, final int to) {
+		return Math.pow(2, getLogProbabilityFor(sequence, from, to));
+	}
+
+	/**
+	 * Return the quantized log2 backoff weights, per level, or null if the
+	 * model is not quantized. Not to be modified.
+	 */
+	QuantizedValues[] getQuantizedLogBackoffs() {
+		return quantizedLogBackoffs;
+	}
+
+	/**
+	 * Return the quantized log2 probabilities, per level, or null if the
+	 * model is not quantized. Not to be modified.
+	 */
+	QuantizedValues[] getQuantizedLogProbs() {
+		return quantizedLogProbs;
+	}
+
+	/**
+	 * Return the symbol ids of the tokens, where the tokens that are not in
+	 * the vocabulary are mapped to UNK.
+	 */
+	private long[] getSymbolIds(final List<String> tokens) {
+		final long[] symbols = trie.getSymbolIdArray(tokens);
+		final long unkSymbolId = trie.getUnkSymbolId();
+		for (int i = 0; i < symbols.length; i++) {
+			if (symbols[i] == LongArrayTrie.NO_SYMBOL) {
+				symbols[i] = unkSymbolId;
+			}
+		}
+		return symbols;
+	}
+
+	@Override
+	public SymbolSequence getSymbolSequence(final List<String> sentence) {
+		return new SymbolSequence(sentence, getSymbolIds(sentence),
+				trie.createContextState(getN()));
+	}
+
+	public boolean isQuantized() {
+		return quantizedLogProbs != null;
+	}
+
+	/**
+	 * Return a copy of this model, where the probabilities and the backoff
+	 * weights of each order are quantized to a codebook of at most 2^bits
+	 * values. The trie is shared.
+	 *
+	 * @param bits
+	 *            the bits per value, up to 16
+	 * @return
+	 */
+	public ArpaNGramLM quantize(final int bits) {
+		final float[][] probs = getLogProbs();
+		final float[][] backoffs = getLogBackoffs();
+		final QuantizedValues[] quantizedProbs = new QuantizedValues[probs.length];
+		final QuantizedValues[] quantizedBackoffs = new QuantizedValues[backoffs.length];
+		for (int l = 0; l < probs.length; l++) {
+			quantizedProbs[l] = new QuantizedValues(probs[l], bits);
+			quantizedBackoffs[l] = new QuantizedValues(backoffs[l], bits);
+		}
+		return new ArpaNGramLM(getN(), getTokenizer(), trie, quantizedProbs,
+				quantizedBackoffs);
+	}
+
+	@Override
+	public void removeNgram(final NGram<String> ngram) {
+		throw new UnsupportedOperationException(
+				"ArpaNGramLM is an immutable Language Model");
+	}
+
+	@Override
+	public void trainIncrementalModel(final Collection<File> files)
+			throws IOException {
+		throw new UnsupportedOperationException(
+				"ArpaNGramLM is an immutable Language Model");
+	}
+
+	@Override
+	public void trainModel(final Collection<File> files) throws IOException {
+		throw new UnsupportedOperationException(
+				"ArpaNGramLM is an immutable Language Model");
+	}
+
+}
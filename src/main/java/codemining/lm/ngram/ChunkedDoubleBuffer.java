@@ -0,0 +1,127 @@
+/**
+ *
+ */
+package codemining.lm.ngram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * A read-only array of doubles that is split in chunks of 2^chunkBits doubles,
+ * so that arrays larger than 2GB can be memory-mapped (a single mapping is
+ * limited to 2GB). Arrays in the heap are wrapped in a single chunk.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public final class ChunkedDoubleBuffer implements Serializable {
+
+	private static final long serialVersionUID = 6180925472297339018L;
+
+	/**
+	 * Map the given number of (big-endian) doubles from the given position of
+	 * the channel.
+	 *
+	 * @param channel
+	 * @param position
+	 * @param size
+	 * @param chunkBits
+	 *            the (log2) number of doubles in each chunk
+	 * @return
+	 * @throws IOException
+	 */
+	static ChunkedDoubleBuffer map(final FileChannel channel,
+			final long position, final int size, final int chunkBits)
+			throws IOException {
+		checkArgument(chunkBits >= 0 && (8L << chunkBits) <= Integer.MAX_VALUE,
+				"Each chunk must fit in a mapping");
+		final int nChunks = Math.max(1,
+				(int) ((size + (1L << chunkBits) - 1) >>> chunkBits));
+		final DoubleBuffer[] chunks = new DoubleBuffer[nChunks];
+		for (int c = 0; c < nChunks; c++) {
+			final long from = ((long) c) << chunkBits;
+			final long length = Math.min(1L << chunkBits, size - from);
+			chunks[c] = channel
+					.map(MapMode.READ_ONLY, position + 8 * from, 8 * length)
+					.order(ByteOrder.BIG_ENDIAN).asDoubleBuffer();
+		}
+		return new ChunkedDoubleBuffer(chunks, chunkBits, size);
+	}
+
+	/**
+	 * Wrap the given array, without copying it.
+	 *
+	 * @param array
+	 * @return
+	 */
+	public static ChunkedDoubleBuffer wrap(final double[] array) {
+		return new ChunkedDoubleBuffer(
+				new DoubleBuffer[] { DoubleBuffer.wrap(array) }, 31, array.length);
+	}
+
+	private transient DoubleBuffer[] chunks;
+
+	private transient int chunkBits;
+
+	private transient int chunkMask;
+
+	private transient int size;
+
+	private ChunkedDoubleBuffer(final DoubleBuffer[] chunks, final int chunkBits,
+			final int size) {
+		set(chunks, chunkBits, size);
+	}
+
+	public double get(final int index) {
+		return chunks[index >>> chunkBits].get(index & chunkMask);
+	}
+
+	private void readObject(final ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		final double[] array = (double[]) in.readObject();
+		set(new DoubleBuffer[] { DoubleBuffer.wrap(array) }, 31, array.length);
+	}
+
+	private void set(final DoubleBuffer[] chunks, final int chunkBits,
+			final int size) {
+		this.chunks = chunks;
+		this.chunkBits = chunkBits;
+		chunkMask = (int) ((1L << chunkBits) - 1);
+		this.size = size;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Return a copy of the doubles in an array.
+	 */
+	public double[] toArray() {
+		final double[] array = new double[size];
+		int offset = 0;
+		for (final DoubleBuffer chunk : chunks) {
+			final DoubleBuffer buffer = chunk.duplicate();
+			buffer.clear();
+			final int length = buffer.remaining();
+			buffer.get(array, offset, length);
+			offset += length;
+		}
+		return array;
+	}
+
+	private void writeObject(final ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeObject(toArray());
+	}
+
+}
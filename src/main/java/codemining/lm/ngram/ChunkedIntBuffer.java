@@ -0,0 +1,127 @@
+/**
+ *
+ */
+package codemining.lm.ngram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * A read-only array of ints that is split in chunks of 2^chunkBits ints,
+ * so that arrays larger than 2GB can be memory-mapped (a single mapping is
+ * limited to 2GB). Arrays in the heap are wrapped in a single chunk.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public final class ChunkedIntBuffer implements Serializable {
+
+	private static final long serialVersionUID = -7031266358472130915L;
+
+	/**
+	 * Map the given number of (big-endian) ints from the given position of
+	 * the channel.
+	 *
+	 * @param channel
+	 * @param position
+	 * @param size
+	 * @param chunkBits
+	 *            the (log2) number of ints in each chunk
+	 * @return
+	 * @throws IOException
+	 */
+	static ChunkedIntBuffer map(final FileChannel channel,
+			final long position, final int size, final int chunkBits)
+			throws IOException {
+		checkArgument(chunkBits >= 0 && (4L << chunkBits) <= Integer.MAX_VALUE,
+				"Each chunk must fit in a mapping");
+		final int nChunks = Math.max(1,
+				(int) ((size + (1L << chunkBits) - 1) >>> chunkBits));
+		final IntBuffer[] chunks = new IntBuffer[nChunks];
+		for (int c = 0; c < nChunks; c++) {
+			final long from = ((long) c) << chunkBits;
+			final long length = Math.min(1L << chunkBits, size - from);
+			chunks[c] = channel
+					.map(MapMode.READ_ONLY, position + 4 * from, 4 * length)
+					.order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+		}
+		return new ChunkedIntBuffer(chunks, chunkBits, size);
+	}
+
+	/**
+	 * Wrap the given array, without copying it.
+	 *
+	 * @param array
+	 * @return
+	 */
+	public static ChunkedIntBuffer wrap(final int[] array) {
+		return new ChunkedIntBuffer(
+				new IntBuffer[] { IntBuffer.wrap(array) }, 31, array.length);
+	}
+
+	private transient IntBuffer[] chunks;
+
+	private transient int chunkBits;
+
+	private transient int chunkMask;
+
+	private transient int size;
+
+	private ChunkedIntBuffer(final IntBuffer[] chunks, final int chunkBits,
+			final int size) {
+		set(chunks, chunkBits, size);
+	}
+
+	public int get(final int index) {
+		return chunks[index >>> chunkBits].get(index & chunkMask);
+	}
+
+	private void readObject(final ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		final int[] array = (int[]) in.readObject();
+		set(new IntBuffer[] { IntBuffer.wrap(array) }, 31, array.length);
+	}
+
+	private void set(final IntBuffer[] chunks, final int chunkBits,
+			final int size) {
+		this.chunks = chunks;
+		this.chunkBits = chunkBits;
+		chunkMask = (int) ((1L << chunkBits) - 1);
+		this.size = size;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Return a copy of the ints in an array.
+	 */
+	public int[] toArray() {
+		final int[] array = new int[size];
+		int offset = 0;
+		for (final IntBuffer chunk : chunks) {
+			final IntBuffer buffer = chunk.duplicate();
+			buffer.clear();
+			final int length = buffer.remaining();
+			buffer.get(array, offset, length);
+			offset += length;
+		}
+		return array;
+	}
+
+	private void writeObject(final ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeObject(toArray());
+	}
+
+}
@@ -0,0 +1,213 @@
+/**
+ *
+ */
+package codemining.lm.ngram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The symbols of a level of a {@link FrozenLongTrie}, compressed with delta
+ * and variable-byte encoding. Symbol ids are allocated sequentially, so the
+ * (sorted) children of a node have small gaps that fit in one or two bytes
+ * instead of eight.
+ *
+ * The symbols are split in blocks of BLOCK_SIZE. The first symbol of each
+ * block is stored uncompressed and the rest as zig-zag encoded deltas from
+ * the previous symbol (a block may span more than one node, so deltas may be
+ * negative). Random access decodes at most one block and a search within the
+ * children of a node first binary searches the block heads.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+final class CompressedSymbolLevel implements Serializable {
+
+	private static final long serialVersionUID = -6405093431276914232L;
+
+	static final int BLOCK_SIZE = 16;
+
+	/**
+	 * The largest array that the VM can allocate.
+	 */
+	private static final int MAX_ENCODED_BYTES = Integer.MAX_VALUE - 8;
+
+	/**
+	 * The first symbol of each block.
+	 */
+	private final long[] blockHeads;
+
+	/**
+	 * The offset in deltas of the encoded deltas of each block. Has one more
+	 * element than the blocks.
+	 */
+	private final int[] blockOffsets;
+
+	/**
+	 * The variable-byte encoded deltas.
+	 */
+	private final byte[] deltas;
+
+	private final int size;
+
+	/**
+	 * Compress the given symbols.
+	 *
+	 * @param symbols
+	 */
+	CompressedSymbolLevel(final ChunkedLongBuffer symbols) {
+		size = symbols.size();
+		final int nBlocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		blockHeads = new long[nBlocks];
+		blockOffsets = new int[nBlocks + 1];
+		byte[] encoded = new byte[(int) Math.min(2L * size,
+				MAX_ENCODED_BYTES)];
+		int nBytes = 0;
+		long previous = 0;
+		for (int i = 0; i < size; i++) {
+			final long symbol = symbols.get(i);
+			if (i % BLOCK_SIZE == 0) {
+				blockHeads[i / BLOCK_SIZE] = symbol;
+				blockOffsets[i / BLOCK_SIZE] = nBytes;
+			} else {
+				// Zig-zag, so that small negative deltas are short
+				final long delta = symbol - previous;
+				long value = (delta << 1) ^ (delta >> 63);
+				if (nBytes + 10L > encoded.length) {
+					checkArgument(encoded.length < MAX_ENCODED_BYTES,
+							"The deltas of %s symbols do not fit in an array",
+							size);
+					encoded = Arrays.copyOf(encoded, (int) Math.min(
+							Math.max(2L * encoded.length, 16),
+							MAX_ENCODED_BYTES));
+				}
+				while ((value & ~0x7FL) != 0) {
+					encoded[nBytes++] = (byte) ((value & 0x7F) | 0x80);
+					value >>>= 7;
+				}
+				encoded[nBytes++] = (byte) value;
+			}
+			previous = symbol;
+		}
+		blockOffsets[nBlocks] = nBytes;
+		deltas = Arrays.copyOf(encoded, nBytes);
+	}
+
+	/**
+	 * Return the position of the key in the sorted range [from, to) or -1 if
+	 * the key does not exist.
+	 */
+	int find(final int from, final int to, final long key) {
+		if (from >= to) {
+			return -1;
+		}
+		// Find the last block that starts within the range with a head <= key
+		final int firstBlock = from / BLOCK_SIZE;
+		int low = firstBlock + 1;
+		int high = (to - 1) / BLOCK_SIZE;
+		int block = firstBlock;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			final long head = blockHeads[mid];
+			if (head < key) {
+				block = mid;
+				low = mid + 1;
+			} else if (head > key) {
+				high = mid - 1;
+			} else {
+				return mid * BLOCK_SIZE;
+			}
+		}
+
+		// Scan the block
+		final int end = Math.min(to, (block + 1) * BLOCK_SIZE);
+		int pos = block * BLOCK_SIZE;
+		int offset = blockOffsets[block];
+		long symbol = blockHeads[block];
+		while (true) {
+			if (pos >= from) {
+				if (symbol == key) {
+					return pos;
+				} else if (symbol > key) {
+					return -1;
+				}
+			}
+			pos++;
+			if (pos >= end) {
+				return -1;
+			}
+			long value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = deltas[offset++];
+				value |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			symbol += (value >>> 1) ^ -(value & 1);
+		}
+	}
+
+	/**
+	 * Return the symbol at the given position.
+	 */
+	long get(final int i) {
+		checkArgument(i >= 0 && i < size);
+		final int block = i / BLOCK_SIZE;
+		int offset = blockOffsets[block];
+		long symbol = blockHeads[block];
+		for (int pos = block * BLOCK_SIZE; pos < i; pos++) {
+			long value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = deltas[offset++];
+				value |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			symbol += (value >>> 1) ^ -(value & 1);
+		}
+		return symbol;
+	}
+
+	/**
+	 * Return the (approximate) number of bytes used by the compressed symbols.
+	 */
+	long getSizeInBytes() {
+		return 8L * blockHeads.length + 4L * blockOffsets.length
+				+ deltas.length;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Return the decompressed symbols.
+	 */
+	long[] toArray() {
+		final long[] symbols = new long[size];
+		for (int block = 0; block < blockHeads.length; block++) {
+			int offset = blockOffsets[block];
+			long symbol = blockHeads[block];
+			final int end = Math.min(size, (block + 1) * BLOCK_SIZE);
+			symbols[block * BLOCK_SIZE] = symbol;
+			for (int pos = block * BLOCK_SIZE + 1; pos < end; pos++) {
+				long value = 0;
+				int shift = 0;
+				byte b;
+				do {
+					b = deltas[offset++];
+					value |= (long) (b & 0x7F) << shift;
+					shift += 7;
+				} while (b < 0);
+				symbol += (value >>> 1) ^ -(value & 1);
+				symbols[pos] = symbol;
+			}
+		}
+		return symbols;
+	}
+
+}
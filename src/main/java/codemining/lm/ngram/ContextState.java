@@ -0,0 +1,124 @@
+/**
+ *
+ */
+package codemining.lm.ngram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The state of a left-to-right walk of a sentence over a trie. The state
+ * holds the trie nodes of all the suffixes of the current context, so that
+ * advancing by one symbol costs one child lookup per n-gram order, instead
+ * of walking from the root for each n-gram, its prefix and each of its
+ * backoff suffixes.
+ *
+ * After {@link #advance(long)}, the counts of the n-grams that end at the
+ * last symbol can be retrieved for each order. The counts are the same as
+ * {@link ISymbolTrie#getCount(long[], boolean, boolean)} without UNKs.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public abstract class ContextState {
+
+	/**
+	 * The maximum n-gram order.
+	 */
+	protected final int maxOrder;
+
+	/**
+	 * The number of symbols advanced since the last reset.
+	 */
+	protected int nSymbols = 0;
+
+	protected ContextState(final int maxOrder) {
+		checkArgument(maxOrder > 0);
+		this.maxOrder = maxOrder;
+	}
+
+	/**
+	 * Advance the state by one symbol.
+	 *
+	 * @param symbol
+	 */
+	public abstract void advance(long symbol);
+
+	/**
+	 * Check that there is an n-gram of the given order ending at the last
+	 * symbol.
+	 */
+	protected final void checkOrder(final int order) {
+		checkArgument(order > 0 && order <= getMaxAvailableOrder(),
+				"Order %s is not available", order);
+	}
+
+	/**
+	 * Return the count of the context of the n-gram of the given order that
+	 * ends at the last symbol, excluding the sequences that terminate at the
+	 * context.
+	 *
+	 * @param order
+	 * @return
+	 */
+	public abstract long getContextCount(int order);
+
+	/**
+	 * Return the position in its level of the context node of the n-gram of
+	 * the given order that ends at the last symbol, or -1 if it does not
+	 * exist. Only supported by the states of a {@link FrozenLongTrie}, whose
+	 * nodes are identified by their level and position.
+	 *
+	 * @param order
+	 * @return
+	 */
+	public int getContextIndex(final int order) {
+		throw new UnsupportedOperationException(
+				"Node positions are only available on frozen tries");
+	}
+
+	/**
+	 * Return the maximum order of the n-grams ending at the last symbol.
+	 */
+	public final int getMaxAvailableOrder() {
+		return Math.min(nSymbols, maxOrder);
+	}
+
+	public final int getMaxOrder() {
+		return maxOrder;
+	}
+
+	/**
+	 * Return the count of the n-gram of the given order that ends at the last
+	 * symbol.
+	 *
+	 * @param order
+	 * @return
+	 */
+	public abstract long getNGramCount(int order);
+
+	/**
+	 * Return the position in its level of the node of the n-gram of the given
+	 * order that ends at the last symbol, or -1 if it does not exist.
+	 *
+	 * @see #getContextIndex(int)
+	 * @param order
+	 * @return
+	 */
+	public int getNGramIndex(final int order) {
+		throw new UnsupportedOperationException(
+				"Node positions are only available on frozen tries");
+	}
+
+	/**
+	 * Return the number of symbols advanced since the last reset.
+	 */
+	public final int getNumSymbols() {
+		return nSymbols;
+	}
+
+	/**
+	 * Reset the state to the empty context.
+	 */
+	public abstract void reset();
+
+}
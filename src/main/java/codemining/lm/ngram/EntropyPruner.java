@@ -0,0 +1,556 @@
+/**
+ *
+ */
+package codemining.lm.ngram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import codemining.util.parallel.ParallelThreadPool;
+
+import com.google.common.math.DoubleMath;
+
+/**
+ * Relative entropy (Stolcke) pruning of back-off models. Each n-gram of order
+ * 2 or more is scored by the increase in the relative entropy of the model if
+ * it was removed and its probability was given by backing off, i.e.
+ *
+ * D(w|h) = -P(h) [P(w|h) (log P(w|h') + log a'(h) - log P(w|h)) + (log a'(h)
+ * - log a(h)) (1 - sum_w P(w|h))]
+ *
+ * where a(h) and a'(h) are the backoff weights of the context before and
+ * after the removal. The n-grams with the lowest scores are removed until the
+ * model has the target number of n-grams, keeping the n-grams that are the
+ * context of a kept n-gram. Finally, the backoff weights of all the contexts
+ * are recomputed in increasing order, from the pruned lower order
+ * distributions, so that the pruned model is normalized. This includes the
+ * contexts that kept all their n-grams but back off to a context that lost
+ * some.
+ *
+ * The scores are computed in parallel over ranges of the n-grams of each
+ * order. Other models can be pruned after converting them with
+ * {@link ArpaFile}.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public final class EntropyPruner {
+
+	/**
+	 * Computes the backoff weights of a range of the contexts of a level of
+	 * the pruned model.
+	 */
+	private class BackoffTask implements Runnable {
+
+		final int level;
+
+		final int from;
+
+		final int to;
+
+		BackoffTask(final int level, final int from, final int to) {
+			this.level = level;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public void run() {
+			final long[] path = new long[level + 1];
+			for (int i = from; i < to; i++) {
+				fillPath(prunedSymbols, prunedParents, level, i, path);
+				double residual = 1;
+				double lowerResidual = 1;
+				for (int j = prunedChildStart[level][i]; j < prunedChildStart[level][i + 1]; j++) {
+					path[level] = prunedSymbols[level + 1][j];
+					residual -= Math.pow(2, prunedLogProbs[level + 1][j]);
+					lowerResidual -= Math.pow(
+							2,
+							getLogProb(prunedSymbols, prunedChildStart,
+									prunedLogProbs, prunedLogBackoffs, path, 1,
+									level + 1));
+				}
+				prunedLogBackoffs[level][i] = (float) getLogBackoff(residual,
+						lowerResidual);
+			}
+		}
+	}
+
+	/**
+	 * Computes the backed-off probabilities of a range of the n-grams of a
+	 * level.
+	 */
+	private class LowerLogProbTask implements Runnable {
+
+		final int level;
+
+		final int from;
+
+		final int to;
+
+		LowerLogProbTask(final int level, final int from, final int to) {
+			this.level = level;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public void run() {
+			final long[] path = new long[level];
+			for (int i = from; i < to; i++) {
+				fillPath(symbols, parents, level, i, path);
+				lowerLogProbs[level][i] = getLogProb(symbols, childStart,
+						model.getLogProbs(), model.getLogBackoffs(), path, 1,
+						level);
+			}
+		}
+	}
+
+	/**
+	 * Computes the scores of a range of the n-grams of a level.
+	 */
+	private class ScoreTask implements Runnable {
+
+		final int level;
+
+		final int from;
+
+		final int to;
+
+		final double[] contextLogProbs;
+
+		ScoreTask(final int level, final int from, final int to,
+				final double[] contextLogProbs) {
+			this.level = level;
+			this.from = from;
+			this.to = to;
+			this.contextLogProbs = contextLogProbs;
+		}
+
+		@Override
+		public void run() {
+			final float[] logProbs = model.getLogProbs()[level];
+			for (int i = from; i < to; i++) {
+				final int context = parents[level][i];
+				final double residual = Math.max(0,
+						residuals[level - 1][context]);
+				final double lowerResidual = Math.max(0,
+						lowerResiduals[level - 1][context]);
+				final double logProb = logProbs[i];
+				final double prob = Math.pow(2, logProb);
+				final double lowerLogProb = lowerLogProbs[level][i];
+
+				final double logBackoff = getLogBackoff(residual,
+						lowerResidual);
+				final double newLogBackoff = getLogBackoff(residual + prob,
+						lowerResidual + Math.pow(2, lowerLogProb));
+				double delta = prob * (lowerLogProb + newLogBackoff - logProb);
+				if (residual > 0 && lowerResidual > 0) {
+					delta += residual * (newLogBackoff - logBackoff);
+				}
+				scores[level][i] = -Math.pow(2, contextLogProbs[context])
+						* delta;
+			}
+		}
+	}
+
+	/**
+	 * The number of n-grams per task.
+	 */
+	private static final int TASK_SIZE = 1 << 14;
+
+	private static final Logger LOGGER = Logger.getLogger(EntropyPruner.class
+			.getName());
+
+	private final ArpaNGramLM model;
+
+	private final int n;
+
+	private final long[][] symbols;
+
+	private final int[][] childStart;
+
+	/**
+	 * The parent of each node, per level.
+	 */
+	private final int[][] parents;
+
+	/**
+	 * The log2 probability of each n-gram when backing off from its context
+	 * to the context without its first symbol, i.e. log P(w|h').
+	 */
+	private final double[][] lowerLogProbs;
+
+	/**
+	 * The left-over probability of each context, 1 - sum_w P(w|h).
+	 */
+	private final double[][] residuals;
+
+	/**
+	 * The left-over probability of each context for the backed-off
+	 * distribution, 1 - sum_w P(w|h').
+	 */
+	private final double[][] lowerResiduals;
+
+	/**
+	 * The relative entropy increase of removing each n-gram.
+	 */
+	private final double[][] scores;
+
+	/**
+	 * The nodes and tables of the pruned model, per level.
+	 */
+	private long[][] prunedSymbols;
+
+	private int[][] prunedChildStart;
+
+	private int[][] prunedParents;
+
+	private float[][] prunedLogProbs;
+
+	private float[][] prunedLogBackoffs;
+
+	/**
+	 * Prune the given model to (at most) the given number of n-grams of all
+	 * orders. Unigrams are never removed.
+	 *
+	 * @param model
+	 * @param targetSize
+	 * @return the pruned model, or the model itself if none of its n-grams
+	 *         can be removed
+	 */
+	public static ArpaNGramLM prune(final ArpaNGramLM model,
+			final long targetSize) {
+		return new EntropyPruner(model).prune(targetSize);
+	}
+
+	private EntropyPruner(final ArpaNGramLM model) {
+		this.model = model;
+		n = model.getN();
+		final FrozenLongTrie frozen = model.getTrie().getFrozenTrie();
+		checkArgument(frozen.getNumLevels() == n + 1);
+		symbols = new long[n + 1][];
+		childStart = new int[n + 1][];
+		parents = new int[n + 1][];
+		for (int l = 0; l <= n; l++) {
+			symbols[l] = frozen.getSymbols(l).toArray();
+			childStart[l] = frozen.getChildStart(l).toArray();
+		}
+		for (int l = 1; l <= n; l++) {
+			parents[l] = new int[symbols[l].length];
+			for (int p = 0; p < symbols[l - 1].length; p++) {
+				Arrays.fill(parents[l], childStart[l - 1][p],
+						childStart[l - 1][p + 1], p);
+			}
+		}
+		lowerLogProbs = new double[n + 1][];
+		residuals = new double[n][];
+		lowerResiduals = new double[n][];
+		scores = new double[n + 1][];
+	}
+
+	/**
+	 * Return the log2 backoff weight of a context given its residual
+	 * probabilities, as in
+	 * {@link AbstractNGramLM#getLogBackoffWeight(NGram)}.
+	 */
+	private static double getLogBackoff(final double residual,
+			final double lowerResidual) {
+		if (residual <= 0) {
+			// No probability is remaining
+			return DoubleMath.log2(1E-10);
+		} else if (lowerResidual <= 0) {
+			return 0;
+		}
+		return DoubleMath.log2(residual / lowerResidual);
+	}
+
+	/**
+	 * Compute the lower order probabilities, the residuals and the scores of
+	 * all the n-grams.
+	 */
+	private void computeScores() {
+		final float[][] logProbs = model.getLogProbs();
+		for (int l = 2; l <= n; l++) {
+			lowerLogProbs[l] = new double[symbols[l].length];
+			final ParallelThreadPool threadPool = new ParallelThreadPool();
+			for (int i = 0; i < symbols[l].length; i += TASK_SIZE) {
+				threadPool.pushTask(new LowerLogProbTask(l, i, Math.min(i
+						+ TASK_SIZE, symbols[l].length)));
+			}
+			threadPool.waitForTermination();
+		}
+
+		// The residuals of each context and the (log2) probability of each
+		// context, as the product of the probabilities of its prefixes
+		final double[][] contextLogProbs = new double[n][];
+		for (int l = 1; l < n; l++) {
+			residuals[l] = new double[symbols[l].length];
+			lowerResiduals[l] = new double[symbols[l].length];
+			contextLogProbs[l] = new double[symbols[l].length];
+			Arrays.fill(residuals[l], 1);
+			Arrays.fill(lowerResiduals[l], 1);
+			for (int i = 0; i < symbols[l].length; i++) {
+				contextLogProbs[l][i] = logProbs[l][i]
+						+ (l > 1 ? contextLogProbs[l - 1][parents[l][i]] : 0);
+			}
+			for (int i = 0; i < symbols[l + 1].length; i++) {
+				final int parent = parents[l + 1][i];
+				residuals[l][parent] -= Math.pow(2, logProbs[l + 1][i]);
+				lowerResiduals[l][parent] -= Math.pow(2,
+						lowerLogProbs[l + 1][i]);
+			}
+		}
+
+		for (int l = 2; l <= n; l++) {
+			scores[l] = new double[symbols[l].length];
+			final ParallelThreadPool threadPool = new ParallelThreadPool();
+			for (int i = 0; i < symbols[l].length; i += TASK_SIZE) {
+				threadPool.pushTask(new ScoreTask(l, i, Math.min(i
+						+ TASK_SIZE, symbols[l].length),
+						contextLogProbs[l - 1]));
+			}
+			threadPool.waitForTermination();
+		}
+	}
+
+	/**
+	 * Return the number of kept nodes in [from, to) of the given level.
+	 */
+	private static int countKept(final boolean[][] removed, final int level,
+			final int from, final int to) {
+		if (level < 2) {
+			return to - from;
+		}
+		int nKept = 0;
+		for (int i = from; i < to; i++) {
+			if (!removed[level][i]) {
+				nKept++;
+			}
+		}
+		return nKept;
+	}
+
+	/**
+	 * Fill the symbols of the given node in path[0, level).
+	 */
+	private static void fillPath(final long[][] nodeSymbols,
+			final int[][] nodeParents, final int level, final int index,
+			final long[] path) {
+		int current = index;
+		for (int l = level; l > 0; l--) {
+			path[l - 1] = nodeSymbols[l][current];
+			current = nodeParents[l][current];
+		}
+	}
+
+	/**
+	 * Return the position of the n-gram path[from, to) or -1 if it does not
+	 * exist.
+	 */
+	private static int findNode(final long[][] nodeSymbols,
+			final int[][] nodeChildStart, final long[] path, final int from,
+			final int to) {
+		int index = 0;
+		for (int i = from; i < to; i++) {
+			final int level = i - from;
+			final int pos = Arrays.binarySearch(nodeSymbols[level + 1],
+					nodeChildStart[level][index],
+					nodeChildStart[level][index + 1], path[i]);
+			if (pos < 0) {
+				return -1;
+			}
+			index = pos;
+		}
+		return index;
+	}
+
+	/**
+	 * Return the log2 probability that the model with the given nodes and
+	 * tables gives to the last symbol of path[from, to) given the rest.
+	 */
+	private static double getLogProb(final long[][] nodeSymbols,
+			final int[][] nodeChildStart, final float[][] logProbs,
+			final float[][] logBackoffs, final long[] path, final int from,
+			final int to) {
+		double logBackoff = 0;
+		for (int k = to - from; k > 0; k--) {
+			final int ngram = findNode(nodeSymbols, nodeChildStart, path, to
+					- k, to);
+			if (ngram >= 0) {
+				return logBackoff + logProbs[k][ngram];
+			}
+			final int context = findNode(nodeSymbols, nodeChildStart, path, to
+					- k, to - 1);
+			if (context >= 0 && k > 1) {
+				logBackoff += logBackoffs[k - 1][context];
+			}
+		}
+		throw new IllegalArgumentException("Unknown symbol "
+				+ path[to - 1]);
+	}
+
+	/**
+	 * Mark the n-grams that are removed at the given score threshold, i.e.
+	 * those with a score not above it that are not the context of a kept
+	 * n-gram.
+	 *
+	 * @return the number of n-grams that are removed
+	 */
+	private long markRemoved(final double threshold, final boolean[][] removed) {
+		long nRemoved = 0;
+		boolean[] hasKeptChild = null;
+		for (int l = n; l >= 2; l--) {
+			final boolean[] nextHasKeptChild = new boolean[symbols[l - 1].length];
+			for (int i = 0; i < symbols[l].length; i++) {
+				removed[l][i] = scores[l][i] <= threshold
+						&& (hasKeptChild == null || !hasKeptChild[i]);
+				if (removed[l][i]) {
+					nRemoved++;
+				} else {
+					nextHasKeptChild[parents[l][i]] = true;
+				}
+			}
+			hasKeptChild = nextHasKeptChild;
+		}
+		return nRemoved;
+	}
+
+	private ArpaNGramLM prune(final long targetSize) {
+		long size = 0;
+		for (int l = 1; l <= n; l++) {
+			size += symbols[l].length;
+		}
+		if (size <= targetSize || n < 2) {
+			return model;
+		}
+		computeScores();
+
+		// Find the smallest threshold that removes enough n-grams
+		final boolean[][] removed = new boolean[n + 1][];
+		int nCandidates = 0;
+		for (int l = 2; l <= n; l++) {
+			removed[l] = new boolean[symbols[l].length];
+			nCandidates += symbols[l].length;
+		}
+		if (nCandidates == 0) {
+			LOGGER.warning("Could not prune the model: it has only unigrams");
+			return model;
+		}
+		final double[] sortedScores = new double[nCandidates];
+		int pos = 0;
+		for (int l = 2; l <= n; l++) {
+			System.arraycopy(scores[l], 0, sortedScores, pos, scores[l].length);
+			pos += scores[l].length;
+		}
+		Arrays.sort(sortedScores);
+
+		final long toRemove = size - targetSize;
+		int low = 0;
+		int high = nCandidates - 1;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (markRemoved(sortedScores[mid], removed) >= toRemove) {
+				high = mid;
+			} else {
+				low = mid + 1;
+			}
+		}
+		final long nRemoved = markRemoved(sortedScores[low], removed);
+		if (nRemoved < toRemove) {
+			LOGGER.warning("Could only prune the model to "
+					+ (size - nRemoved) + " n-grams");
+		}
+		LOGGER.info("Pruning " + nRemoved + " n-grams with a relative entropy"
+				+ " increase up to " + sortedScores[low]);
+		return rebuild(removed);
+	}
+
+	/**
+	 * Create the model without the removed n-grams. The backoff weights of
+	 * all the contexts are recomputed, from the lower orders to the higher
+	 * ones, so that each context backs off to the already normalized pruned
+	 * distribution of its suffix.
+	 */
+	private ArpaNGramLM rebuild(final boolean[][] removed) {
+		final float[][] logProbs = model.getLogProbs();
+		prunedSymbols = new long[n + 1][];
+		prunedChildStart = new int[n + 1][];
+		prunedParents = new int[n + 1][];
+		prunedLogProbs = new float[n + 1][];
+		prunedLogBackoffs = new float[n + 1][];
+		prunedSymbols[0] = symbols[0];
+		prunedLogProbs[0] = logProbs[0];
+		prunedLogBackoffs[0] = model.getLogBackoffs()[0];
+		prunedSymbols[1] = symbols[1];
+		prunedParents[1] = parents[1];
+		prunedLogProbs[1] = logProbs[1];
+		prunedChildStart[0] = childStart[0];
+
+		for (int l = 2; l <= n; l++) {
+			int nKept = 0;
+			for (int i = 0; i < symbols[l].length; i++) {
+				if (!removed[l][i]) {
+					nKept++;
+				}
+			}
+			prunedSymbols[l] = new long[nKept];
+			prunedParents[l] = new int[nKept];
+			prunedLogProbs[l] = new float[nKept];
+			prunedChildStart[l - 1] = new int[prunedSymbols[l - 1].length + 1];
+
+			int next = 0;
+			int newParent = -1;
+			int previousParent = -1;
+			for (int i = 0; i < symbols[l].length; i++) {
+				if (removed[l][i]) {
+					continue;
+				}
+				final int parent = parents[l][i];
+				if (parent != previousParent) {
+					// The kept parents keep their relative order
+					newParent += countKept(removed, l - 1, previousParent + 1,
+							parent + 1);
+					previousParent = parent;
+				}
+				prunedSymbols[l][next] = symbols[l][i];
+				prunedParents[l][next] = newParent;
+				prunedLogProbs[l][next] = logProbs[l][i];
+				prunedChildStart[l - 1][newParent + 1]++;
+				next++;
+			}
+			for (int i = 0; i < prunedSymbols[l - 1].length; i++) {
+				prunedChildStart[l - 1][i + 1] += prunedChildStart[l - 1][i];
+			}
+		}
+		prunedChildStart[n] = new int[prunedSymbols[n].length + 1];
+
+		// The backoffs of a level only depend on the lower levels
+		prunedLogBackoffs[n] = new float[prunedSymbols[n].length];
+		for (int l = 1; l < n; l++) {
+			prunedLogBackoffs[l] = new float[prunedSymbols[l].length];
+			final ParallelThreadPool threadPool = new ParallelThreadPool();
+			for (int i = 0; i < prunedSymbols[l].length; i += TASK_SIZE) {
+				threadPool.pushTask(new BackoffTask(l, i, Math.min(i
+						+ TASK_SIZE, prunedSymbols[l].length)));
+			}
+			threadPool.waitForTermination();
+		}
+
+		final LongTrie<String> trie = model.getTrie();
+		final Map<String, Long> alphabet = trie.getAlphabet();
+		long nextId = Long.MIN_VALUE;
+		for (final long id : alphabet.values()) {
+			nextId = Math.max(nextId, id + 1);
+		}
+		return new ArpaNGramLM(n, model.getTokenizer(), new LongTrie<String>(
+				alphabet, nextId, AbstractNGramLM.UNK_SYMBOL, ArpaFile.wrap(
+						trie.getUnkSymbolId(), prunedSymbols,
+						prunedChildStart)),
+				prunedLogProbs, prunedLogBackoffs);
+	}
+
+}
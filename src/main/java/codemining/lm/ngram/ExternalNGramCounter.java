@@ -0,0 +1,648 @@
+package codemining.lm.ngram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import codemining.languagetools.ITokenizer;
+import codemining.lm.util.TokenVocabularyBuilder;
+import codemining.util.SettingsLoader;
+import codemining.util.parallel.ParallelThreadPool;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * Count the n-grams of a corpus that does not fit in memory and write them to
+ * an {@link NGramModelFile}. The n-grams of the files are collected in a
+ * buffer of bounded size, which is sorted and spilled to disk when full. The
+ * sorted spill files are then merged and, since the lexicographic order of
+ * the n-grams is also the order of the trie nodes within each level, the
+ * levels of the frozen trie are written directly from the merged stream. At
+ * most {@link #DEFAULT_MERGE_FAN_IN} spill files are merged at once, so larger
+ * corpora need intermediate merge passes that write merged spill files.
+ *
+ * Memory usage (and the number of open files) is bounded by the buffer size
+ * and the merge fan-in (plus the vocabulary), regardless of the size of the
+ * corpus. If a spill fails, e.g. because the disk is full, counting stops and
+ * the failure is thrown, instead of writing a model with missing n-grams.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class ExternalNGramCounter {
+
+	/**
+	 * A writer of lexicographically sorted sequences with their counts.
+	 */
+	private interface ICountedSequenceWriter {
+
+		/**
+		 * Add the next sequence with its count.
+		 */
+		void add(long[] sequence, long count) throws IOException;
+	}
+
+	/**
+	 * Extract the n-grams of a file into the buffer.
+	 */
+	private class NGramSpillingRunnable implements Runnable {
+
+		final File codeFile;
+
+		public NGramSpillingRunnable(final File file) {
+			codeFile = file;
+		}
+
+		@Override
+		public void run() {
+			if (spillFailure != null) {
+				return;
+			}
+			LOGGER.finer("Reading file " + codeFile.getAbsolutePath());
+			final List<String> tokens;
+			try {
+				final char[] code = FileUtils.readFileToString(codeFile)
+						.toCharArray();
+				tokens = ImmutableList.copyOf(tokenizer.tokenListFromCode(code));
+			} catch (final IOException e) {
+				LOGGER.warning(ExceptionUtils.getFullStackTrace(e));
+				return;
+			}
+			try {
+				addSentence(tokens);
+			} catch (final IOException e) {
+				// The spill failure is recorded and thrown by countAndWrite()
+				LOGGER.fine("Not counting " + codeFile.getAbsolutePath()
+						+ " after a spill failure");
+			}
+		}
+	}
+
+	/**
+	 * Reads the (sorted) records of a spill file.
+	 */
+	private static final class SpillReader implements Closeable {
+
+		final DataInputStream in;
+
+		long[] current;
+
+		long currentCount;
+
+		SpillReader(final File spillFile) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(spillFile), IO_BUFFER_SIZE));
+		}
+
+		/**
+		 * Read the next record. Return false if there are no more records.
+		 */
+		boolean advance() throws IOException {
+			final int length = in.readInt();
+			if (length < 0) {
+				current = null;
+				return false;
+			}
+			current = new long[length];
+			for (int i = 0; i < length; i++) {
+				current[i] = in.readLong();
+			}
+			currentCount = in.readLong();
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes sorted records to a spill file. The records are terminated by a
+	 * negative length, so that a partially written spill file is detected.
+	 */
+	private static final class SpillWriter implements Closeable,
+			ICountedSequenceWriter {
+
+		final DataOutputStream out;
+
+		SpillWriter(final File spillFile) throws IOException {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(spillFile), IO_BUFFER_SIZE));
+		}
+
+		@Override
+		public void add(final long[] sequence, final long count)
+				throws IOException {
+			out.writeInt(sequence.length);
+			for (final long symbol : sequence) {
+				out.writeLong(symbol);
+			}
+			out.writeLong(count);
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+
+		/**
+		 * Terminate the records and close the file.
+		 */
+		void finish() throws IOException {
+			out.writeInt(-1);
+			close();
+		}
+	}
+
+	/**
+	 * Builds the levels of the trie from a stream of lexicographically sorted,
+	 * distinct sequences. The nodes of each level are closed in order, so each
+	 * level is written to its own files as it is produced.
+	 */
+	private final class TrieLevelWriter implements Closeable,
+			ICountedSequenceWriter {
+
+		/**
+		 * The output streams of the symbols, counts, terminateHere counts and
+		 * child offsets of each level.
+		 */
+		final DataOutputStream[][] levelOut = new DataOutputStream[n + 1][4];
+
+		final File[][] levelFiles = new File[n + 1][4];
+
+		final int[] levelSizes = new int[n + 1];
+
+		/**
+		 * The path of open nodes. The node at depth d has symbol path[d-1].
+		 */
+		final long[] path = new long[n];
+
+		final long[] openCount = new long[n + 1];
+
+		final long[] openTerminateHere = new long[n + 1];
+
+		final int[] openChildStart = new int[n + 1];
+
+		int depth = 0;
+
+		int maxDepth = 0;
+
+		TrieLevelWriter() throws IOException {
+			for (int l = 0; l <= n; l++) {
+				for (int i = 0; i < 4; i++) {
+					levelFiles[l][i] = File.createTempFile("level" + l + "_",
+							".bin", tempDir);
+					levelOut[l][i] = new DataOutputStream(
+							new BufferedOutputStream(new FileOutputStream(
+									levelFiles[l][i]), IO_BUFFER_SIZE));
+				}
+			}
+		}
+
+		@Override
+		public void add(final long[] sequence, final long count)
+				throws IOException {
+			checkArgument(sequence.length <= n);
+			int common = 0;
+			while (common < depth && common < sequence.length
+					&& path[common] == sequence[common]) {
+				common++;
+			}
+			while (depth > common) {
+				closeNode();
+			}
+			while (depth < sequence.length) {
+				depth++;
+				path[depth - 1] = sequence[depth - 1];
+				openCount[depth] = 0;
+				openTerminateHere[depth] = 0;
+				openChildStart[depth] = depth < n ? levelSizes[depth + 1] : 0;
+			}
+			maxDepth = Math.max(maxDepth, depth);
+			openTerminateHere[depth] += count;
+		}
+
+		@Override
+		public void close() throws IOException {
+			for (int l = 0; l <= n; l++) {
+				for (int i = 0; i < 4; i++) {
+					levelOut[l][i].close();
+				}
+			}
+		}
+
+		/**
+		 * Close the deepest open node, writing it to its level.
+		 */
+		void closeNode() throws IOException {
+			final long count = openCount[depth] + openTerminateHere[depth];
+			final DataOutputStream[] out = levelOut[depth];
+			out[0].writeLong(depth > 0 ? path[depth - 1] : 0);
+			out[1].writeLong(count);
+			out[2].writeLong(openTerminateHere[depth]);
+			out[3].writeInt(openChildStart[depth]);
+			levelSizes[depth]++;
+			if (depth > 0) {
+				openCount[depth - 1] += count;
+			}
+			depth--;
+		}
+
+		void deleteFiles() {
+			for (int l = 0; l <= n; l++) {
+				for (int i = 0; i < 4; i++) {
+					levelFiles[l][i].delete();
+				}
+			}
+		}
+
+		/**
+		 * Close all open nodes, including the root, and write the final child
+		 * offset of each level.
+		 */
+		void finish() throws IOException {
+			while (depth >= 0) {
+				closeNode();
+			}
+			for (int l = 0; l <= n; l++) {
+				levelOut[l][3].writeInt(l < n ? levelSizes[l + 1] : 0);
+			}
+			close();
+		}
+	}
+
+	private static final Logger LOGGER = Logger
+			.getLogger(ExternalNGramCounter.class.getName());
+
+	public static final int DEFAULT_BUFFER_SIZE_MB = (int) SettingsLoader
+			.getNumericSetting("ExternalCountBufferMB", 256);
+
+	/**
+	 * The maximum number of spill files that are merged at once. Each of them
+	 * is read through a buffer of {@link #IO_BUFFER_SIZE} bytes.
+	 */
+	public static final int DEFAULT_MERGE_FAN_IN = (int) SettingsLoader
+			.getNumericSetting("ExternalMergeFanIn", 64);
+
+	private static final int IO_BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Lexicographic order of symbol sequences, where a prefix precedes its
+	 * extensions.
+	 */
+	static final Comparator<long[]> SEQUENCE_ORDER = new Comparator<long[]>() {
+
+		@Override
+		public int compare(final long[] o1, final long[] o2) {
+			final int length = Math.min(o1.length, o2.length);
+			for (int i = 0; i < length; i++) {
+				final int cmp = Long.compare(o1[i], o2[i]);
+				if (cmp != 0) {
+					return cmp;
+				}
+			}
+			return Integer.compare(o1.length, o2.length);
+		}
+
+	};
+
+	private final int n;
+
+	private final ITokenizer tokenizer;
+
+	private final File tempDir;
+
+	/**
+	 * The maximum number of n-grams kept in memory before spilling.
+	 */
+	private final int maxBufferedNgrams;
+
+	/**
+	 * The maximum number of spill files merged at once.
+	 */
+	private final int maxMergeFanIn;
+
+	private final List<long[]> buffer = Lists.newArrayList();
+
+	private final Lock bufferLock = new ReentrantLock();
+
+	private final List<File> spillFiles = Lists.newArrayList();
+
+	/**
+	 * The first failure to spill the buffer. The n-grams of the buffer were
+	 * lost, so no more n-grams are counted and no model is written.
+	 */
+	private volatile IOException spillFailure;
+
+	private LongTrie<String> vocabulary;
+
+	/**
+	 * @param size
+	 *            the n of the n-grams
+	 * @param tokenizerModule
+	 * @param bufferSizeMB
+	 *            the approximate memory used by the buffer of n-grams
+	 * @param temporaryDirectory
+	 *            where to write the spill files
+	 */
+	public ExternalNGramCounter(final int size,
+			final ITokenizer tokenizerModule, final int bufferSizeMB,
+			final File temporaryDirectory) {
+		// Approximate size of a buffered n-gram: the array header, the
+		// symbols and the list reference.
+		this(size, tokenizerModule, temporaryDirectory, (int) Math.min(
+				Integer.MAX_VALUE - 8, bufferSizeMB * (1L << 20)
+						/ (16 + 8 * size + 8)), DEFAULT_MERGE_FAN_IN);
+	}
+
+	ExternalNGramCounter(final int size, final ITokenizer tokenizerModule,
+			final File temporaryDirectory, final int maxBufferedNgrams,
+			final int maxMergeFanIn) {
+		checkArgument(size > 0);
+		checkArgument(maxBufferedNgrams > 0);
+		checkArgument(maxMergeFanIn > 1,
+				"At least two spill files must be merged at once");
+		n = size;
+		tokenizer = tokenizerModule;
+		tempDir = temporaryDirectory;
+		this.maxBufferedNgrams = maxBufferedNgrams;
+		this.maxMergeFanIn = maxMergeFanIn;
+	}
+
+	/**
+	 * Add the n-grams of the sentence to the buffer, spilling if needed.
+	 *
+	 * @param sentence
+	 * @throws IOException
+	 *             if this or a previous spill has failed
+	 */
+	void addSentence(final List<String> sentence) throws IOException {
+		final List<long[]> ngrams = Lists.newArrayList();
+		for (final NGram<String> ngram : NGramLM.getNgramsFromSentence(
+				sentence, n)) {
+			ngrams.add(vocabulary.getSymbolIdsWithUNKs(ngram));
+		}
+
+		bufferLock.lock();
+		try {
+			checkSpillFailure();
+			buffer.addAll(ngrams);
+			if (buffer.size() >= maxBufferedNgrams) {
+				spill();
+			}
+		} finally {
+			bufferLock.unlock();
+		}
+	}
+
+	/**
+	 * Throw if a spill has failed, since its n-grams were lost.
+	 *
+	 * @throws IOException
+	 */
+	private void checkSpillFailure() throws IOException {
+		if (spillFailure != null) {
+			throw new IOException("Spilling the n-grams has failed",
+					spillFailure);
+		}
+	}
+
+	/**
+	 * Count the n-grams of the given files and write the model file.
+	 *
+	 * @param files
+	 * @param modelClass
+	 *            the class of the model, that will be created on the counts
+	 *            when the model file is read.
+	 * @param outputFile
+	 * @throws IOException
+	 *             if spilling or merging the n-grams fails
+	 */
+	public void countAndWrite(final Collection<File> files,
+			final String modelClass, final String outputFile)
+			throws IOException {
+		LOGGER.info("Building vocabulary...");
+		setVocabulary(TokenVocabularyBuilder.buildVocabulary(files,
+				tokenizer, NGramLM.CLEAN_THRESHOLD));
+
+		LOGGER.info("Counting n-grams...");
+		final ParallelThreadPool threadPool = new ParallelThreadPool();
+		for (final File fi : files) {
+			threadPool.pushTask(new NGramSpillingRunnable(fi));
+		}
+		threadPool.waitForTermination();
+
+		writeModel(modelClass, outputFile);
+	}
+
+	/**
+	 * Set the vocabulary. Tokens not in the vocabulary are counted as UNK.
+	 *
+	 * @param words
+	 */
+	void setVocabulary(final Set<String> words) {
+		vocabulary = new LongTrie<String>(AbstractNGramLM.UNK_SYMBOL);
+		vocabulary.buildVocabularySymbols(words);
+	}
+
+	/**
+	 * Merge the n-grams counted so far and write them to the model file.
+	 *
+	 * @param modelClass
+	 * @param outputFile
+	 * @throws IOException
+	 *             if spilling or merging the n-grams fails
+	 */
+	void writeModel(final String modelClass, final String outputFile)
+			throws IOException {
+		try {
+			checkSpillFailure();
+			spill();
+			reduceSpillFiles();
+
+			LOGGER.info("Merging " + spillFiles.size() + " spill files...");
+			final TrieLevelWriter levelWriter = new TrieLevelWriter();
+			try {
+				merge(spillFiles, levelWriter);
+				levelWriter.finish();
+
+				final int nLevels = levelWriter.maxDepth + 1;
+				final int[] levelSizes = new int[nLevels];
+				System.arraycopy(levelWriter.levelSizes, 0, levelSizes, 0,
+						nLevels);
+				NGramModelFile.write(outputFile, n, modelClass, tokenizer,
+						vocabulary, levelSizes, levelWriter.levelFiles);
+			} finally {
+				levelWriter.close();
+				levelWriter.deleteFiles();
+			}
+		} finally {
+			for (final File spillFile : spillFiles) {
+				spillFile.delete();
+			}
+			spillFiles.clear();
+		}
+		LOGGER.info("Model written to " + outputFile);
+	}
+
+	/**
+	 * Merge the given spill files, summing the counts of equal sequences.
+	 *
+	 * @param files
+	 * @param writer
+	 * @throws IOException
+	 */
+	private void merge(final List<File> files,
+			final ICountedSequenceWriter writer) throws IOException {
+		final PriorityQueue<SpillReader> queue = new PriorityQueue<SpillReader>(
+				Math.max(1, files.size()), new Comparator<SpillReader>() {
+
+					@Override
+					public int compare(final SpillReader o1,
+							final SpillReader o2) {
+						return SEQUENCE_ORDER.compare(o1.current, o2.current);
+					}
+
+				});
+		final List<SpillReader> readers = Lists.newArrayList();
+		try {
+			for (final File spillFile : files) {
+				final SpillReader reader = new SpillReader(spillFile);
+				readers.add(reader);
+				if (reader.advance()) {
+					queue.add(reader);
+				}
+			}
+
+			long[] currentSequence = null;
+			long currentCount = 0;
+			while (!queue.isEmpty()) {
+				final SpillReader reader = queue.poll();
+				if (currentSequence != null
+						&& SEQUENCE_ORDER.compare(currentSequence,
+								reader.current) == 0) {
+					currentCount += reader.currentCount;
+				} else {
+					if (currentSequence != null) {
+						writer.add(currentSequence, currentCount);
+					}
+					currentSequence = reader.current;
+					currentCount = reader.currentCount;
+				}
+				if (reader.advance()) {
+					queue.add(reader);
+				}
+			}
+			if (currentSequence != null) {
+				writer.add(currentSequence, currentCount);
+			}
+		} finally {
+			for (final SpillReader reader : readers) {
+				reader.close();
+			}
+		}
+	}
+
+	/**
+	 * Merge the oldest spill files, at most maxMergeFanIn at a time, into new
+	 * spill files until at most maxMergeFanIn are left.
+	 *
+	 * @throws IOException
+	 */
+	private void reduceSpillFiles() throws IOException {
+		while (spillFiles.size() > maxMergeFanIn) {
+			final List<File> mergedFiles = Lists.newArrayList(spillFiles
+					.subList(0, maxMergeFanIn));
+			final File spillFile = File.createTempFile("ngrams", ".spill",
+					tempDir);
+			// Deleted with the others if the merge fails
+			spillFiles.add(spillFile);
+			LOGGER.info("Merging " + maxMergeFanIn + " of "
+					+ (spillFiles.size() - 1) + " spill files...");
+
+			final SpillWriter writer = new SpillWriter(spillFile);
+			try {
+				merge(mergedFiles, writer);
+				writer.finish();
+			} finally {
+				writer.close();
+			}
+			for (final File mergedFile : mergedFiles) {
+				mergedFile.delete();
+			}
+			spillFiles.subList(0, maxMergeFanIn).clear();
+		}
+	}
+
+	/**
+	 * Sort the buffer, aggregate equal n-grams and write them to a new spill
+	 * file. Must be called while holding the buffer lock. If the spill fails,
+	 * the partial spill file is deleted and the failure is recorded.
+	 *
+	 * @throws IOException
+	 */
+	private void spill() throws IOException {
+		if (buffer.isEmpty()) {
+			return;
+		}
+		Collections.sort(buffer, SEQUENCE_ORDER);
+		File spillFile = null;
+		try {
+			spillFile = File.createTempFile("ngrams", ".spill", tempDir);
+			LOGGER.fine("Spilling " + buffer.size() + " n-grams to "
+					+ spillFile.getAbsolutePath());
+
+			final SpillWriter writer = new SpillWriter(spillFile);
+			try {
+				int i = 0;
+				while (i < buffer.size()) {
+					final long[] sequence = buffer.get(i);
+					long count = 0;
+					while (i < buffer.size()
+							&& SEQUENCE_ORDER.compare(sequence, buffer.get(i)) == 0) {
+						count++;
+						i++;
+					}
+					writer.add(sequence, count);
+				}
+				writer.finish();
+			} finally {
+				writer.close();
+			}
+			spillFiles.add(spillFile);
+		} catch (final IOException e) {
+			if (spillFile != null) {
+				spillFile.delete();
+			}
+			if (spillFailure == null) {
+				spillFailure = e;
+			}
+			throw e;
+		} finally {
+			buffer.clear();
+		}
+	}
+
+}
@@ -0,0 +1,764 @@
+package codemining.lm.ngram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+/**
+ * A read-only trie of long symbol ids, laid out level by level in flat
+ * parallel arrays. Level 0 contains only the root. The children of the i-th
+ * node of level l are the nodes childStart[l][i] to childStart[l][i+1]
+ * (exclusive) of level l+1 and are sorted by their symbol id. Since there is no
+ * per-node object and the trie never changes, queries need no locking.
+ *
+ * The arrays are accessed through (chunked) buffers, so that they may either
+ * live in the heap or be mapped directly from a model file (see
+ * {@link NGramModelFile}), even if they are larger than 2GB.
+ * The symbols of a trie may further be compressed with
+ * {@link #compressSymbols()}, which trades some lookup speed for memory.
+ * Tries whose probabilities are given explicitly (e.g. ARPA models) may have
+ * no counts, in which case only the symbols and the child offsets are stored
+ * and the methods that return counts throw an
+ * {@link UnsupportedOperationException}.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class FrozenLongTrie implements ISymbolTrie {
+
+	/**
+	 * A context state that holds the positions of the nodes of the current
+	 * context. A node of length k is in level k.
+	 */
+	private final class IndexContextState extends ContextState {
+
+		/**
+		 * The position of the context of each length, i.e. of the last k
+		 * symbols before the last symbol, or -1 if it does not exist.
+		 */
+		final int[] contexts;
+
+		/**
+		 * The position of the n-gram of each order that ends at the last
+		 * symbol or -1 if it does not exist.
+		 */
+		final int[] ngrams;
+
+		IndexContextState(final int maxOrder) {
+			super(maxOrder);
+			contexts = new int[maxOrder];
+			ngrams = new int[maxOrder + 1];
+			reset();
+		}
+
+		@Override
+		public void advance(final long symbol) {
+			if (nSymbols > 0) {
+				System.arraycopy(ngrams, 1, contexts, 1, maxOrder - 1);
+			}
+			nSymbols++;
+			final int maxAvailableOrder = getMaxAvailableOrder();
+			for (int k = 0; k < maxAvailableOrder; k++) {
+				final int context = contexts[k];
+				ngrams[k + 1] = context < 0 ? -1 : findChild(k, context,
+						symbol);
+			}
+		}
+
+		@Override
+		public long getContextCount(final int order) {
+			checkOrder(order);
+			final int level = order - 1;
+			final int context = contexts[level];
+			if (context < 0) {
+				return 0;
+			}
+			checkHasCounts();
+			return counts[level].get(context)
+					- terminateHere[level].get(context)
+					- getUnkDiscount(level, context, false);
+		}
+
+		@Override
+		public int getContextIndex(final int order) {
+			checkOrder(order);
+			return contexts[order - 1];
+		}
+
+		@Override
+		public long getNGramCount(final int order) {
+			checkOrder(order);
+			final int ngram = ngrams[order];
+			if (ngram < 0) {
+				return 0;
+			}
+			checkHasCounts();
+			return counts[order].get(ngram)
+					- getUnkDiscount(order, ngram, false);
+		}
+
+		@Override
+		public int getNGramIndex(final int order) {
+			checkOrder(order);
+			return ngrams[order];
+		}
+
+		@Override
+		public void reset() {
+			nSymbols = 0;
+			Arrays.fill(contexts, -1);
+			Arrays.fill(ngrams, -1);
+			contexts[0] = 0;
+		}
+	}
+
+	/**
+	 * A lightweight view of a node, identified by its level and its position
+	 * in that level.
+	 */
+	private final class NodeView implements ILongTrieNode {
+
+		final int level;
+
+		final int index;
+
+		NodeView(final int level, final int index) {
+			this.level = level;
+			this.index = index;
+		}
+
+		@Override
+		public ILongTrieNode getChild(final long symbol) {
+			final int pos = findChild(level, index, symbol);
+			if (pos < 0) {
+				return null;
+			}
+			return new NodeView(level + 1, pos);
+		}
+
+		@Override
+		public ILongTrieNode getChildAt(final int i) {
+			checkArgument(i < nChildren());
+			return new NodeView(level + 1, childStart[level].get(index) + i);
+		}
+
+		@Override
+		public long getCount() {
+			checkHasCounts();
+			return counts[level].get(index);
+		}
+
+		@Override
+		public long getSymbolAt(final int i) {
+			checkArgument(i < nChildren());
+			return getSymbol(level + 1, childStart[level].get(index) + i);
+		}
+
+		@Override
+		public long getTerminateHere() {
+			checkHasCounts();
+			return terminateHere[level].get(index);
+		}
+
+		@Override
+		public int nChildren() {
+			return childStart[level].get(index + 1)
+					- childStart[level].get(index);
+		}
+	}
+
+	private static final long serialVersionUID = -3264014883296546045L;
+
+	/**
+	 * The symbol of each node, per level, or null if the symbols are
+	 * compressed. The symbol of the root is unused.
+	 */
+	private transient ChunkedLongBuffer[] symbols;
+
+	/**
+	 * The compressed symbols of each level, or null if the symbols are not
+	 * compressed.
+	 */
+	private transient CompressedSymbolLevel[] compressedSymbols;
+
+	/**
+	 * The count of each node, per level, or null if the trie has no counts.
+	 */
+	private transient ChunkedLongBuffer[] counts;
+
+	/**
+	 * The number of n-grams that end at each node, per level, or null if the
+	 * trie has no counts.
+	 */
+	private transient ChunkedLongBuffer[] terminateHere;
+
+	/**
+	 * The offset of the first child of each node in the next level, per
+	 * level. Each buffer has one more element than the nodes of the level.
+	 */
+	private transient ChunkedIntBuffer[] childStart;
+
+	private final long unkSymbolId;
+
+	/**
+	 * Create a frozen copy of the given trie. The trie must not be edited
+	 * while it is copied.
+	 *
+	 * @param trie
+	 */
+	FrozenLongTrie(final LongArrayTrie trie) {
+		unkSymbolId = trie.getUnkSymbolId();
+
+		// Find the number of nodes at each level
+		final int[] levelSizes = countNodesPerLevel(trie.getRoot());
+		final int nLevels = levelSizes.length;
+		final long[][] symbols = new long[nLevels][];
+		final long[][] counts = new long[nLevels][];
+		final long[][] terminateHere = new long[nLevels][];
+		final int[][] childStart = new int[nLevels][];
+		for (int l = 0; l < nLevels; l++) {
+			symbols[l] = new long[levelSizes[l]];
+			counts[l] = new long[levelSizes[l]];
+			terminateHere[l] = new long[levelSizes[l]];
+			childStart[l] = new int[levelSizes[l] + 1];
+		}
+
+		// Copy breadth-first, so that the children of each node are contiguous
+		ILongTrieNode[] currentLevel = { trie.getRoot() };
+		counts[0][0] = trie.getRoot().getCount();
+		terminateHere[0][0] = trie.getRoot().getTerminateHere();
+		for (int l = 0; l < nLevels - 1; l++) {
+			final ILongTrieNode[] nextLevel = new ILongTrieNode[levelSizes[l + 1]];
+			int nextPos = 0;
+			for (int i = 0; i < currentLevel.length; i++) {
+				final ILongTrieNode node = currentLevel[i];
+				childStart[l][i] = nextPos;
+				for (int j = 0; j < node.nChildren(); j++) {
+					final ILongTrieNode child = node.getChildAt(j);
+					symbols[l + 1][nextPos] = node.getSymbolAt(j);
+					counts[l + 1][nextPos] = child.getCount();
+					terminateHere[l + 1][nextPos] = child.getTerminateHere();
+					nextLevel[nextPos] = child;
+					nextPos++;
+				}
+			}
+			childStart[l][currentLevel.length] = nextPos;
+			currentLevel = nextLevel;
+		}
+		wrap(symbols, counts, terminateHere, childStart);
+	}
+
+	/**
+	 * Create a trie from the given per-level buffers. The counts and the
+	 * terminateHere counts are either both given or both null, for a trie
+	 * without counts.
+	 *
+	 * @param unkSymbolId
+	 * @param symbols
+	 * @param counts
+	 * @param terminateHere
+	 * @param childStart
+	 */
+	FrozenLongTrie(final long unkSymbolId, final ChunkedLongBuffer[] symbols,
+			final ChunkedLongBuffer[] counts,
+			final ChunkedLongBuffer[] terminateHere,
+			final ChunkedIntBuffer[] childStart) {
+		checkArgument(symbols.length > 0);
+		checkArgument(symbols.length == childStart.length);
+		if (counts == null) {
+			checkArgument(terminateHere == null);
+		} else {
+			checkArgument(symbols.length == counts.length
+					&& symbols.length == terminateHere.length);
+		}
+		this.unkSymbolId = unkSymbolId;
+		this.symbols = symbols;
+		this.counts = counts;
+		this.terminateHere = terminateHere;
+		this.childStart = childStart;
+	}
+
+	/**
+	 * Create a copy of the given trie with compressed symbols. The counts are
+	 * shared with the original trie.
+	 */
+	private FrozenLongTrie(final FrozenLongTrie original) {
+		unkSymbolId = original.unkSymbolId;
+		counts = original.counts;
+		terminateHere = original.terminateHere;
+		childStart = original.childStart;
+		compressedSymbols = new CompressedSymbolLevel[childStart.length];
+		for (int l = 0; l < compressedSymbols.length; l++) {
+			compressedSymbols[l] = new CompressedSymbolLevel(
+					original.getSymbols(l));
+		}
+	}
+
+	/**
+	 * Binary search for the key in the range [from, to) of the buffer. Return
+	 * its position or -1 if the key does not exist.
+	 */
+	private static int binarySearch(final ChunkedLongBuffer buffer,
+			final int from, final int to, final long key) {
+		int low = from;
+		int high = to - 1;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			final long midVal = buffer.get(mid);
+			if (midVal < key) {
+				low = mid + 1;
+			} else if (midVal > key) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Return the number of nodes at each level of the trie below (and
+	 * including) the given root.
+	 *
+	 * @param root
+	 * @return
+	 */
+	private static int[] countNodesPerLevel(final ILongTrieNode root) {
+		int[] levelSizes = new int[] { 1 };
+		ILongTrieNode[] currentLevel = { root };
+		while (true) {
+			int nextSize = 0;
+			for (final ILongTrieNode node : currentLevel) {
+				nextSize += node.nChildren();
+			}
+			if (nextSize == 0) {
+				return levelSizes;
+			}
+			final ILongTrieNode[] nextLevel = new ILongTrieNode[nextSize];
+			int pos = 0;
+			for (final ILongTrieNode node : currentLevel) {
+				for (int i = 0; i < node.nChildren(); i++) {
+					nextLevel[pos++] = node.getChildAt(i);
+				}
+			}
+			levelSizes = Arrays.copyOf(levelSizes, levelSizes.length + 1);
+			levelSizes[levelSizes.length - 1] = nextSize;
+			currentLevel = nextLevel;
+		}
+	}
+
+	/**
+	 * Throw an {@link UnsupportedOperationException} if the trie has no
+	 * counts.
+	 */
+	private void checkHasCounts() {
+		if (counts == null) {
+			throw new UnsupportedOperationException("The trie has no counts");
+		}
+	}
+
+	/**
+	 * Return a copy of this trie whose symbols are delta and variable-byte
+	 * compressed. If the symbols are already compressed, this trie is
+	 * returned as is.
+	 *
+	 * @return
+	 */
+	public FrozenLongTrie compressSymbols() {
+		if (hasCompressedSymbols()) {
+			return this;
+		}
+		return new FrozenLongTrie(this);
+	}
+
+	@Override
+	public long countDistinctStartingWith(final long[] prefix,
+			final boolean useUNKs) {
+		checkArgument(prefix.length > 0);
+		final int pos = findNode(prefix, useUNKs, 0, 0);
+		if (pos < 0) {
+			return 0;
+		}
+		final int level = prefix.length;
+		final int nChildren = childStart[level].get(pos + 1)
+				- childStart[level].get(pos);
+		if (!useUNKs && findChild(level, pos, unkSymbolId) >= 0) {
+			return nChildren - 1;
+		} else {
+			return nChildren;
+		}
+	}
+
+	@Override
+	public ContextState createContextState(final int maxOrder) {
+		return new IndexContextState(maxOrder);
+	}
+
+	/**
+	 * Return the position in level+1 of the child of the given node with the
+	 * given symbol or -1 if no such child exists.
+	 *
+	 * @param level
+	 * @param index
+	 * @param symbol
+	 * @return
+	 */
+	private int findChild(final int level, final int index, final long symbol) {
+		if (level + 1 >= childStart.length) {
+			return -1;
+		}
+		if (compressedSymbols != null) {
+			return compressedSymbols[level + 1].find(
+					childStart[level].get(index),
+					childStart[level].get(index + 1), symbol);
+		}
+		return binarySearch(symbols[level + 1], childStart[level].get(index),
+				childStart[level].get(index + 1), symbol);
+	}
+
+	/**
+	 * Navigate from the given node following the given symbols. Return the
+	 * position of the node at level startLevel + ngramSymbols.length or -1 if
+	 * no such node exists.
+	 *
+	 * @param ngramSymbols
+	 * @param useUNKs
+	 * @param startLevel
+	 * @param startIndex
+	 * @return
+	 */
+	private int findNode(final long[] ngramSymbols, final boolean useUNKs,
+			final int startLevel, final int startIndex) {
+		return findNode(ngramSymbols, 0, ngramSymbols.length, useUNKs,
+				startLevel, startIndex);
+	}
+
+	/**
+	 * Navigate from the given node following the symbols in [from, to).
+	 */
+	private int findNode(final long[] symbols, final int from, final int to,
+			final boolean useUNKs, final int startLevel, final int startIndex) {
+		int level = startLevel;
+		int index = startIndex;
+		for (int i = from; i < to; i++) {
+			final long symbol = symbols[i];
+			int next = findChild(level, index, symbol);
+			if (next < 0 && useUNKs) {
+				next = findChild(level, index, unkSymbolId);
+			}
+			if (next < 0) {
+				return -1;
+			}
+			index = next;
+			level++;
+		}
+		return index;
+	}
+
+	@Override
+	public long getCount(final long[] ngramSymbols, final boolean useUNKs,
+			final boolean useTerminals) {
+		final int pos = findNode(ngramSymbols, useUNKs, 0, 0);
+		if (pos < 0) {
+			return 0;
+		}
+		final int level = ngramSymbols.length;
+		checkHasCounts();
+
+		final long unkDiscountCount = getUnkDiscount(level, pos, useUNKs);
+
+		final long totalCount;
+		if (useTerminals) {
+			totalCount = counts[level].get(pos) - unkDiscountCount;
+		} else {
+			totalCount = counts[level].get(pos) - terminateHere[level].get(pos)
+					- unkDiscountCount;
+		}
+
+		checkArgument(totalCount >= 0);
+		return totalCount;
+	}
+
+	@Override
+	public void getNGramCounts(final long[] symbols, final int from,
+			final int to, final boolean useUNKs, final long[] nGramCounts) {
+		checkArgument(from < to);
+		final int prefixLevel = to - 1 - from;
+		final int prefixPos = findNode(symbols, from, to - 1, useUNKs, 0, 0);
+		if (prefixPos < 0) {
+			nGramCounts[0] = 0;
+			nGramCounts[1] = 0;
+			return;
+		}
+		checkHasCounts();
+		nGramCounts[1] = counts[prefixLevel].get(prefixPos)
+				- terminateHere[prefixLevel].get(prefixPos)
+				- getUnkDiscount(prefixLevel, prefixPos, useUNKs);
+		checkArgument(nGramCounts[1] >= 0);
+
+		int pos = findChild(prefixLevel, prefixPos, symbols[to - 1]);
+		if (pos < 0 && useUNKs) {
+			pos = findChild(prefixLevel, prefixPos, unkSymbolId);
+		}
+		if (pos < 0) {
+			nGramCounts[0] = 0;
+		} else {
+			nGramCounts[0] = counts[prefixLevel + 1].get(pos)
+					- getUnkDiscount(prefixLevel + 1, pos, useUNKs);
+			checkArgument(nGramCounts[0] >= 0);
+		}
+	}
+
+	ChunkedIntBuffer getChildStart(final int level) {
+		return childStart[level];
+	}
+
+	/**
+	 * Return the counts of the given level or null if the trie has no
+	 * counts.
+	 */
+	ChunkedLongBuffer getCounts(final int level) {
+		return counts == null ? null : counts[level];
+	}
+
+	/**
+	 * Return the number of nodes in the given level.
+	 */
+	public int getLevelSize(final int level) {
+		return childStart[level].size() - 1;
+	}
+
+	/**
+	 * Return the position of the given node in its level. The node must have
+	 * been returned by this trie. The level of a node is its length.
+	 *
+	 * @param node
+	 * @return
+	 */
+	public int getNodeIndex(final ILongTrieNode node) {
+		return ((NodeView) node).index;
+	}
+
+	/**
+	 * Return the number of levels of the trie, including the root level.
+	 */
+	public int getNumLevels() {
+		return childStart.length;
+	}
+
+	@Override
+	public ILongTrieNode getRoot() {
+		return new NodeView(0, 0);
+	}
+
+	/**
+	 * Return the symbol of the node at the given position of the given level.
+	 */
+	private long getSymbol(final int level, final int index) {
+		if (compressedSymbols != null) {
+			return compressedSymbols[level].get(index);
+		}
+		return symbols[level].get(index);
+	}
+
+	/**
+	 * Return the symbols of the given level. If the symbols are compressed,
+	 * they are decompressed in a new buffer.
+	 */
+	ChunkedLongBuffer getSymbols(final int level) {
+		if (compressedSymbols != null) {
+			return ChunkedLongBuffer.wrap(compressedSymbols[level].toArray());
+		}
+		return symbols[level];
+	}
+
+	/**
+	 * Return the number of bytes used to store the symbols of all levels.
+	 */
+	public long getSymbolSizeInBytes() {
+		long size = 0;
+		for (int l = 0; l < childStart.length; l++) {
+			if (compressedSymbols != null) {
+				size += compressedSymbols[l].getSizeInBytes();
+			} else {
+				size += 8L * symbols[l].size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Return the terminateHere counts of the given level or null if the trie
+	 * has no counts.
+	 */
+	ChunkedLongBuffer getTerminateHere(final int level) {
+		return terminateHere == null ? null : terminateHere[level];
+	}
+
+	@Override
+	public ILongTrieNode getTrieNodeForInput(final long[] ngramSymbols,
+			final boolean useUNKs) {
+		return getTrieNodeForInput(ngramSymbols, useUNKs, getRoot());
+	}
+
+	@Override
+	public ILongTrieNode getTrieNodeForInput(final long[] symbols,
+			final int from, final int to, final boolean useUNKs) {
+		final int pos = findNode(symbols, from, to, useUNKs, 0, 0);
+		if (pos < 0) {
+			return null;
+		}
+		return new NodeView(to - from, pos);
+	}
+
+	@Override
+	public ILongTrieNode getTrieNodeForInput(final long[] ngramSymbols,
+			final boolean useUNKs, final ILongTrieNode startNode) {
+		final NodeView start = (NodeView) startNode;
+		final int pos = findNode(ngramSymbols, useUNKs, start.level,
+				start.index);
+		if (pos < 0) {
+			return null;
+		}
+		return new NodeView(start.level + ngramSymbols.length, pos);
+	}
+
+	/**
+	 * Return the count that should be subtracted from the count of the node
+	 * when UNKs are not used, i.e. the count of its UNK child.
+	 */
+	private long getUnkDiscount(final int level, final int pos,
+			final boolean useUNKs) {
+		if (useUNKs) {
+			return 0;
+		}
+		checkHasCounts();
+		final int unkPos = findChild(level, pos, unkSymbolId);
+		if (unkPos >= 0) {
+			return counts[level + 1].get(unkPos);
+		}
+		return 0;
+	}
+
+	@Override
+	public long getUnkSymbolId() {
+		return unkSymbolId;
+	}
+
+	/**
+	 * Return true if the trie has the counts of its nodes.
+	 */
+	public boolean hasCounts() {
+		return counts != null;
+	}
+
+	/**
+	 * Return true if the symbols of this trie are compressed.
+	 */
+	public boolean hasCompressedSymbols() {
+		return compressedSymbols != null;
+	}
+
+	@Override
+	public long sumStartingWith(final long[] prefix, final boolean useUNKs) {
+		checkArgument(prefix.length > 0);
+		final int pos = findNode(prefix, useUNKs, 0, 0);
+		if (pos < 0) {
+			return 0;
+		}
+		checkHasCounts();
+		return counts[prefix.length].get(pos)
+				- terminateHere[prefix.length].get(pos);
+	}
+
+	/**
+	 * Set the buffers, wrapping the given arrays.
+	 */
+	private void wrap(final long[][] symbolArrays, final long[][] countArrays,
+			final long[][] terminateHereArrays, final int[][] childStartArrays) {
+		final int nLevels = symbolArrays.length;
+		symbols = new ChunkedLongBuffer[nLevels];
+		for (int l = 0; l < nLevels; l++) {
+			symbols[l] = ChunkedLongBuffer.wrap(symbolArrays[l]);
+		}
+		wrap(countArrays, terminateHereArrays, childStartArrays);
+	}
+
+	/**
+	 * Set the count and child buffers, wrapping the given arrays. The count
+	 * arrays are null if the trie has no counts.
+	 */
+	private void wrap(final long[][] countArrays,
+			final long[][] terminateHereArrays, final int[][] childStartArrays) {
+		final int nLevels = childStartArrays.length;
+		childStart = new ChunkedIntBuffer[nLevels];
+		for (int l = 0; l < nLevels; l++) {
+			childStart[l] = ChunkedIntBuffer.wrap(childStartArrays[l]);
+		}
+		if (countArrays == null) {
+			counts = null;
+			terminateHere = null;
+			return;
+		}
+		counts = new ChunkedLongBuffer[nLevels];
+		terminateHere = new ChunkedLongBuffer[nLevels];
+		for (int l = 0; l < nLevels; l++) {
+			counts[l] = ChunkedLongBuffer.wrap(countArrays[l]);
+			terminateHere[l] = ChunkedLongBuffer.wrap(terminateHereArrays[l]);
+		}
+	}
+
+	private void readObject(final ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		final int nLevels = in.readInt();
+		final boolean hasCounts = in.readBoolean();
+		final Object[] symbolLevels = new Object[nLevels];
+		final long[][] countArrays = hasCounts ? new long[nLevels][] : null;
+		final long[][] terminateHereArrays = hasCounts ? new long[nLevels][]
+				: null;
+		final int[][] childStartArrays = new int[nLevels][];
+		for (int l = 0; l < nLevels; l++) {
+			symbolLevels[l] = in.readObject();
+			if (hasCounts) {
+				countArrays[l] = (long[]) in.readObject();
+				terminateHereArrays[l] = (long[]) in.readObject();
+			}
+			childStartArrays[l] = (int[]) in.readObject();
+		}
+		wrap(countArrays, terminateHereArrays, childStartArrays);
+		if (nLevels > 0 && symbolLevels[0] instanceof CompressedSymbolLevel) {
+			compressedSymbols = new CompressedSymbolLevel[nLevels];
+			for (int l = 0; l < nLevels; l++) {
+				compressedSymbols[l] = (CompressedSymbolLevel) symbolLevels[l];
+			}
+		} else {
+			symbols = new ChunkedLongBuffer[nLevels];
+			for (int l = 0; l < nLevels; l++) {
+				symbols[l] = ChunkedLongBuffer.wrap((long[]) symbolLevels[l]);
+			}
+		}
+	}
+
+	private void writeObject(final ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeInt(childStart.length);
+		out.writeBoolean(hasCounts());
+		for (int l = 0; l < childStart.length; l++) {
+			if (compressedSymbols != null) {
+				out.writeObject(compressedSymbols[l]);
+			} else {
+				out.writeObject(symbols[l].toArray());
+			}
+			if (hasCounts()) {
+				out.writeObject(counts[l].toArray());
+				out.writeObject(terminateHere[l].toArray());
+			}
+			out.writeObject(childStart[l].toArray());
+		}
+	}
+
+}
@@ -0,0 +1,41 @@
+package codemining.lm.ngram;
+
+/**
+ * A read-only view of a node in a trie of long symbol ids.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public interface ILongTrieNode {
+
+	/**
+	 * Return the child for the given symbol or null if it does not exist.
+	 */
+	ILongTrieNode getChild(long symbol);
+
+	/**
+	 * Return the i-th child, in increasing symbol order.
+	 */
+	ILongTrieNode getChildAt(int i);
+
+	/**
+	 * Return the number of sequences that pass through this node.
+	 */
+	long getCount();
+
+	/**
+	 * Return the symbol of the i-th child, in increasing symbol order.
+	 */
+	long getSymbolAt(int i);
+
+	/**
+	 * Return the number of sequences that terminate at this node.
+	 */
+	long getTerminateHere();
+
+	/**
+	 * Return the number of children of this node.
+	 */
+	int nChildren();
+
+}
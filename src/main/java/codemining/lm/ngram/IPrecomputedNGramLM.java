@@ -0,0 +1,23 @@
+package codemining.lm.ngram;
+
+/**
+ * An n-gram model that precomputes tables with a value per node of its frozen
+ * trie (e.g. the log-probabilities of the n-grams and the backoff weights of
+ * the contexts). {@link NGramModelFile} stores these tables, so that reading
+ * the model maps them instead of computing them again.
+ *
+ * Implementations must have a public constructor accepting an
+ * {@link AbstractNGramLM} and the {@link NodeTables} that were returned by
+ * {@link #getNodeTables()} for the same trie.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public interface IPrecomputedNGramLM {
+
+	/**
+	 * Return the precomputed tables of the model.
+	 */
+	NodeTables getNodeTables();
+
+}
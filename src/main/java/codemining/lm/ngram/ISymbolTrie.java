@@ -0,0 +1,64 @@
+package codemining.lm.ngram;
+
+import java.io.Serializable;
+
+/**
+ * A trie of long symbol ids with an UNK symbol, as used by {@link LongTrie}.
+ * Symbols that are not in the vocabulary should be passed as
+ * {@link LongArrayTrie#NO_SYMBOL}.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public interface ISymbolTrie extends Serializable {
+
+	/**
+	 * Return N_{1+}(prefix,*), that is the number of possible productions.
+	 */
+	long countDistinctStartingWith(final long[] prefix, final boolean useUNKs);
+
+	/**
+	 * Create a state for scoring sequences left-to-right, for n-grams of up
+	 * to maxOrder symbols. The state is reset to the empty context.
+	 */
+	ContextState createContextState(final int maxOrder);
+
+	/**
+	 * Return the count of the given sequence.
+	 */
+	long getCount(final long[] ngramSymbols, final boolean useUNKs,
+			final boolean useTerminals);
+
+	/**
+	 * Store the count of the sequence symbols[from, to) in counts[0] and the
+	 * count of its prefix symbols[from, to - 1) (without the sequences that
+	 * terminate there) in counts[1], walking the trie only once. This is
+	 * equivalent to calling {@link #getCount(long[], boolean, boolean)} for
+	 * both, without creating any objects.
+	 */
+	void getNGramCounts(final long[] symbols, final int from, final int to,
+			final boolean useUNKs, final long[] counts);
+
+	ILongTrieNode getRoot();
+
+	ILongTrieNode getTrieNodeForInput(final long[] ngramSymbols,
+			final boolean useUNKs);
+
+	ILongTrieNode getTrieNodeForInput(final long[] ngramSymbols,
+			final boolean useUNKs, final ILongTrieNode startNode);
+
+	/**
+	 * Return the node of the sequence symbols[from, to) or null if it does not
+	 * exist.
+	 */
+	ILongTrieNode getTrieNodeForInput(final long[] symbols, final int from,
+			final int to, final boolean useUNKs);
+
+	long getUnkSymbolId();
+
+	/**
+	 * Return c_(prefix,*)
+	 */
+	long sumStartingWith(final long[] prefix, final boolean useUNKs);
+
+}
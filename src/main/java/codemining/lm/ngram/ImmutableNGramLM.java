@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
 
+import codemining.languagetools.ITokenizer;
 import codemining.lm.ILanguageModel;
 
 /**
@@ -24,6 +25,18 @@ public class ImmutableNGramLM extends AbstractNGramLM {
 		super(originalDict);
 	}
 
+	/**
+	 * Create an immutable model on the given (frozen) trie.
+	 * 
+	 * @param size
+	 * @param tokenizer
+	 * @param trie
+	 */
+	public ImmutableNGramLM(final int size, final ITokenizer tokenizer,
+			final LongTrie<String> trie) {
+		super(size, tokenizer, trie.freeze());
+	}
+
 	@Override
 	public void addFromSentence(final List<String> sentence,
 			final boolean addNewVoc) {
@@ -68,6 +81,12 @@ public class ImmutableNGramLM extends AbstractNGramLM {
 		return getMLProbabilityFor(ngram, false);
 	}
 
+	@Override
+	public double getProbabilityFor(final SymbolSequence sequence,
+			final int from, final int to) {
+		return getMLProbabilityFor(sequence, from, to, false);
+	}
+
 	@Override
 	public void removeNgram(final NGram<String> ngram) {
 		throw new UnsupportedOperationException(
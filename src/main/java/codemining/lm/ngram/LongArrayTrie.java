@@ -0,0 +1,1102 @@
+package codemining.lm.ngram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+import codemining.util.parallel.ParallelThreadPool;
+
+import com.google.common.collect.Lists;
+
+/**
+ * A trie of long symbol ids with an UNK symbol. The children of each node are
+ * kept in sorted primitive arrays and looked up using binary search, so that no
+ * boxed keys or map entries are allocated per edge (as in {@link Trie}).
+ *
+ * This implementation is thread-safe but only eventually consistent after
+ * edits (add/remove). Edits are striped by the first symbol of the sequence,
+ * since each first symbol owns a separate subtree of the root. Only the
+ * children of the root are shared among the stripes; they are protected by a
+ * {@link StampedLock} and looked up with optimistic reads, while the count of
+ * the root is kept in a {@link LongAdder}. Thus, concurrent insertions of
+ * sequences with different first symbols do not contend.
+ *
+ * Pruning does not modify the nodes that readers may be visiting. Each pruned
+ * subtree is built as a copy and published by replacing the child of the root
+ * under the lock of the root, so lookups that run concurrently with
+ * {@link #cutoffRare(int)} see either the old or the pruned subtree.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class LongArrayTrie implements ISymbolTrie {
+
+	/**
+	 * A node of the trie. The children are stored in two parallel arrays that
+	 * are sorted by the symbol id.
+	 */
+	public static final class Node implements ILongTrieNode, Serializable {
+
+		private static final long serialVersionUID = -1270580462541848442L;
+
+		private static final int INITIAL_CAPACITY = 2;
+
+		long count;
+
+		long terminateHere;
+
+		/**
+		 * The symbols of the children. Null if this node has no children.
+		 */
+		private long[] symbols;
+
+		/**
+		 * The children of this node, parallel to symbols.
+		 */
+		private Node[] children;
+
+		private int nChildren;
+
+		@Override
+		public Node getChild(final long symbol) {
+			final int pos = indexOf(symbol);
+			if (pos < 0) {
+				return null;
+			}
+			return children[pos];
+		}
+
+		@Override
+		public Node getChildAt(final int i) {
+			checkArgument(i < nChildren);
+			return children[i];
+		}
+
+		@Override
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Return the child for the given symbol, creating it if it does not
+		 * exist.
+		 */
+		Node getOrCreateChild(final long symbol) {
+			final int pos = indexOf(symbol);
+			if (pos >= 0) {
+				return children[pos];
+			}
+			final Node child = new Node();
+			insertChildAt(-pos - 1, symbol, child);
+			return child;
+		}
+
+		@Override
+		public long getSymbolAt(final int i) {
+			checkArgument(i < nChildren);
+			return symbols[i];
+		}
+
+		@Override
+		public long getTerminateHere() {
+			return terminateHere;
+		}
+
+		/**
+		 * Binary search for the symbol. Returns the position of the symbol or
+		 * (-(insertion point) - 1) if it does not exist.
+		 */
+		int indexOf(final long symbol) {
+			if (nChildren == 0) {
+				return -1;
+			}
+			return Arrays.binarySearch(symbols, 0, nChildren, symbol);
+		}
+
+		private void insertChildAt(final int pos, final long symbol,
+				final Node child) {
+			if (symbols == null) {
+				symbols = new long[INITIAL_CAPACITY];
+				children = new Node[INITIAL_CAPACITY];
+			} else if (nChildren == symbols.length) {
+				final int newCapacity = nChildren + (nChildren >> 1) + 1;
+				symbols = Arrays.copyOf(symbols, newCapacity);
+				children = Arrays.copyOf(children, newCapacity);
+			}
+			System.arraycopy(symbols, pos, symbols, pos + 1, nChildren - pos);
+			System.arraycopy(children, pos, children, pos + 1, nChildren
+					- pos);
+			symbols[pos] = symbol;
+			children[pos] = child;
+			nChildren++;
+		}
+
+		@Override
+		public int nChildren() {
+			return nChildren;
+		}
+
+		/**
+		 * Add or replace the child at the given symbol.
+		 */
+		void putChild(final long symbol, final Node child) {
+			final int pos = indexOf(symbol);
+			if (pos >= 0) {
+				children[pos] = child;
+			} else {
+				insertChildAt(-pos - 1, symbol, child);
+			}
+		}
+
+		/**
+		 * Remove the children with the given symbols, that are sorted in
+		 * increasing order. Symbols that are not children are ignored. The
+		 * children are compacted in place, so this is only used on the root
+		 * under the write lock of the root, or on nodes that are not yet
+		 * reachable by readers.
+		 */
+		void removeChildren(final long[] removedSymbols, final int nRemoved) {
+			int nKept = 0;
+			int j = 0;
+			for (int i = 0; i < nChildren; i++) {
+				while (j < nRemoved && removedSymbols[j] < symbols[i]) {
+					j++;
+				}
+				if (j < nRemoved && removedSymbols[j] == symbols[i]) {
+					continue;
+				}
+				symbols[nKept] = symbols[i];
+				children[nKept] = children[i];
+				nKept++;
+			}
+			truncateChildren(nKept);
+		}
+
+		/**
+		 * Keep only the first nKept children. Used after the children have
+		 * been compacted in place.
+		 */
+		void truncateChildren(final int nKept) {
+			checkArgument(nKept <= nChildren);
+			if (nKept == nChildren) {
+				return;
+			}
+			Arrays.fill(children, nKept, nChildren, null);
+			nChildren = nKept;
+		}
+
+		/**
+		 * Release any unused capacity of the children arrays.
+		 */
+		void trimToSize() {
+			if (nChildren == 0) {
+				symbols = null;
+				children = null;
+			} else if (nChildren < symbols.length) {
+				symbols = Arrays.copyOf(symbols, nChildren);
+				children = Arrays.copyOf(children, nChildren);
+			}
+		}
+	}
+
+	/**
+	 * A context state that holds the nodes of the current context.
+	 */
+	private final class NodeContextState extends ContextState {
+
+		/**
+		 * The node of the context of each length, i.e. of the last k symbols
+		 * before the last symbol, or null if it does not exist.
+		 */
+		final Node[] contexts;
+
+		/**
+		 * The node of the n-gram of each order that ends at the last symbol
+		 * or null if it does not exist.
+		 */
+		final Node[] ngrams;
+
+		NodeContextState(final int maxOrder) {
+			super(maxOrder);
+			contexts = new Node[maxOrder];
+			ngrams = new Node[maxOrder + 1];
+			reset();
+		}
+
+		@Override
+		public void advance(final long symbol) {
+			if (nSymbols > 0) {
+				System.arraycopy(ngrams, 1, contexts, 1, maxOrder - 1);
+			}
+			nSymbols++;
+			final int maxAvailableOrder = getMaxAvailableOrder();
+			for (int k = 0; k < maxAvailableOrder; k++) {
+				final Node context = contexts[k];
+				ngrams[k + 1] = context == null ? null : getChild(context,
+						symbol);
+			}
+		}
+
+		@Override
+		public long getContextCount(final int order) {
+			checkOrder(order);
+			final Node context = contexts[order - 1];
+			if (context == null) {
+				return 0;
+			}
+			return context.count - context.terminateHere
+					- getUnkDiscount(context, false);
+		}
+
+		@Override
+		public long getNGramCount(final int order) {
+			checkOrder(order);
+			final Node ngram = ngrams[order];
+			if (ngram == null) {
+				return 0;
+			}
+			return ngram.count - getUnkDiscount(ngram, false);
+		}
+
+		@Override
+		public void reset() {
+			nSymbols = 0;
+			Arrays.fill(contexts, null);
+			Arrays.fill(ngrams, null);
+			contexts[0] = getRoot();
+		}
+	}
+
+	private static final long serialVersionUID = 4212868211596946216L;
+
+	/**
+	 * A symbol id that is never assigned to any symbol. Used for symbols that
+	 * are not in the vocabulary.
+	 */
+	public static final long NO_SYMBOL = Long.MAX_VALUE;
+
+	/**
+	 * The number of edit lock stripes. Must be a power of 2.
+	 */
+	private static final int N_STRIPES = 256;
+
+	/**
+	 * The locks for editing the subtrees of the root, striped by the symbol
+	 * of the root child.
+	 */
+	private final Lock[] editLocks = new Lock[N_STRIPES];
+
+	/**
+	 * A lock that serializes the pruning of the trie. Pruning does not block
+	 * the edits to the stripes that are not currently pruned.
+	 */
+	private final Lock cutoffLock = new ReentrantLock();
+
+	/**
+	 * A lock protecting the children of the root.
+	 */
+	private final StampedLock rootLock = new StampedLock();
+
+	/**
+	 * The number of sequences in the trie. The count of the root is
+	 * synchronized with this adder when the root is read.
+	 */
+	private final LongAdder rootCount = new LongAdder();
+
+	private final Node root = new Node();
+
+	private final long unkSymbolId;
+
+	public LongArrayTrie(final long unk) {
+		unkSymbolId = unk;
+		for (int i = 0; i < N_STRIPES; i++) {
+			editLocks[i] = new ReentrantLock();
+		}
+	}
+
+	/**
+	 * Add the sequence of symbols to the trie.
+	 *
+	 * @param elementSequence
+	 */
+	public final void add(final long[] elementSequence) {
+		rootCount.increment();
+		if (elementSequence.length == 0) {
+			final long stamp = rootLock.writeLock();
+			root.terminateHere++;
+			rootLock.unlockWrite(stamp);
+			return;
+		}
+
+		final Lock stripeLock = getStripeLock(elementSequence[0]);
+		stripeLock.lock();
+		try {
+			Node currentUnit = getOrCreateRootChild(elementSequence[0]);
+			currentUnit.count++;
+			for (int i = 1; i < elementSequence.length; i++) {
+				final Node next = currentUnit
+						.getOrCreateChild(elementSequence[i]);
+				next.count++;
+				currentUnit = next;
+			}
+			currentUnit.terminateHere++;
+		} finally {
+			stripeLock.unlock();
+		}
+	}
+
+	/**
+	 * Undo the removal from the root and throw if the root count became
+	 * negative.
+	 */
+	private final void checkRootCount() {
+		if (rootCount.sum() >= 0) {
+			return;
+		}
+		rootCount.increment();
+		throw new IllegalStateException("Removed a non-existent sequence.");
+	}
+
+	/**
+	 * Add all the sequences of the given tries to this trie. The merge is
+	 * performed in parallel across the subtrees of the root. The nodes of the
+	 * given tries are reused, so they must not be used afterwards.
+	 *
+	 * @param partials
+	 */
+	public final void addAll(final Collection<LongArrayTrie> partials) {
+		// Split the subtrees of the partial tries per stripe
+		final List<List<Node>> stripeNodes = Lists.newArrayList();
+		final List<List<Long>> stripeSymbols = Lists.newArrayList();
+		for (int i = 0; i < N_STRIPES; i++) {
+			stripeNodes.add(Lists.<Node> newArrayList());
+			stripeSymbols.add(Lists.<Long> newArrayList());
+		}
+
+		long addedTerminateHere = 0;
+		for (final LongArrayTrie partial : partials) {
+			checkArgument(partial.unkSymbolId == unkSymbolId);
+			rootCount.add(partial.rootCount.sum());
+			addedTerminateHere += partial.root.terminateHere;
+			final Node partialRoot = partial.root;
+			for (int i = 0; i < partialRoot.nChildren; i++) {
+				final int stripe = getStripe(partialRoot.symbols[i]);
+				stripeNodes.get(stripe).add(partialRoot.children[i]);
+				stripeSymbols.get(stripe).add(partialRoot.symbols[i]);
+			}
+		}
+		final long stamp = rootLock.writeLock();
+		root.terminateHere += addedTerminateHere;
+		rootLock.unlockWrite(stamp);
+
+		final ParallelThreadPool threadPool = new ParallelThreadPool();
+		for (int i = 0; i < N_STRIPES; i++) {
+			final int stripe = i;
+			if (stripeNodes.get(stripe).isEmpty()) {
+				continue;
+			}
+			threadPool.pushTask(new Runnable() {
+
+				@Override
+				public void run() {
+					mergeStripe(stripe, stripeSymbols.get(stripe),
+							stripeNodes.get(stripe));
+				}
+
+			});
+		}
+		threadPool.waitForTermination();
+	}
+
+	private final void checkCount(final Node node) {
+		if (node.count >= 0) {
+			return;
+		}
+		node.count = 0;
+		throw new IllegalStateException("Removed a non-existent sequence.");
+	}
+
+	@Override
+	public final long countDistinctStartingWith(final long[] prefix,
+			final boolean useUNKs) {
+		checkArgument(prefix.length > 0);
+		final Node current = getTrieNodeForInput(prefix, useUNKs);
+
+		if (current == null) {
+			return 0;
+		}
+
+		if (!useUNKs && current.getChild(unkSymbolId) != null) {
+			return current.nChildren - 1;
+		} else {
+			return current.nChildren;
+		}
+	}
+
+	@Override
+	public final ContextState createContextState(final int maxOrder) {
+		return new NodeContextState(maxOrder);
+	}
+
+	/**
+	 * Remove elements with low count, merging them into UNK.
+	 *
+	 * The subtrees of the root are pruned in parallel, each stripe holding
+	 * only its own edit lock, so that insertions to the other stripes are not
+	 * blocked. The rare children of the root are detached by their stripe and
+	 * merged into the UNK child of the root at the end. The pruning is
+	 * iterative, so its stack depth does not depend on the order of the
+	 * model. The pruned subtrees are copies of the original ones, so pruning
+	 * needs additional memory for the subtrees of the stripes that are
+	 * currently pruned.
+	 *
+	 * @param threshold
+	 */
+	public final void cutoffRare(final int threshold) {
+		cutoffLock.lock();
+		try {
+			// Split the current children of the root per stripe
+			final List<List<Node>> stripeNodes = Lists.newArrayList();
+			final List<List<Long>> stripeSymbols = Lists.newArrayList();
+			for (int i = 0; i < N_STRIPES; i++) {
+				stripeNodes.add(Lists.<Node> newArrayList());
+				stripeSymbols.add(Lists.<Long> newArrayList());
+			}
+			final long stamp = rootLock.readLock();
+			try {
+				for (int i = 0; i < root.nChildren; i++) {
+					if (root.symbols[i] == unkSymbolId) {
+						continue;
+					}
+					final int stripe = getStripe(root.symbols[i]);
+					stripeNodes.get(stripe).add(root.children[i]);
+					stripeSymbols.get(stripe).add(root.symbols[i]);
+				}
+			} finally {
+				rootLock.unlockRead(stamp);
+			}
+
+			final Node[] stripeRareNodes = new Node[N_STRIPES];
+			final ParallelThreadPool threadPool = new ParallelThreadPool();
+			for (int i = 0; i < N_STRIPES; i++) {
+				final int stripe = i;
+				if (stripeNodes.get(stripe).isEmpty()) {
+					continue;
+				}
+				threadPool.pushTask(new Runnable() {
+
+					@Override
+					public void run() {
+						stripeRareNodes[stripe] = cutoffStripe(stripe,
+								stripeSymbols.get(stripe),
+								stripeNodes.get(stripe), threshold);
+					}
+
+				});
+			}
+			threadPool.waitForTermination();
+
+			cutoffRootUnk(stripeRareNodes, threshold);
+		} finally {
+			cutoffLock.unlock();
+		}
+	}
+
+	/**
+	 * Merge the rare children of the root into a copy of the UNK child of the
+	 * root, prune it and replace the UNK child of the root.
+	 *
+	 * @param rareNodes
+	 *            the merged rare children of the root of each stripe, or
+	 *            null. These are not reachable by readers.
+	 * @param threshold
+	 */
+	private final void cutoffRootUnk(final Node[] rareNodes,
+			final int threshold) {
+		final Lock stripeLock = getStripeLock(unkSymbolId);
+		stripeLock.lock();
+		try {
+			final Node currentUnk = getRootChild(unkSymbolId);
+			Node unkUnit = null;
+			if (currentUnk != null) {
+				unkUnit = new Node();
+				mergeTrieNodes(currentUnk, unkUnit, true);
+			}
+			for (final Node rare : rareNodes) {
+				if (rare == null) {
+					continue;
+				}
+				if (unkUnit == null) {
+					unkUnit = new Node();
+				}
+				mergeTrieNodes(rare, unkUnit, false);
+			}
+			if (unkUnit == null) {
+				return;
+			}
+			cutoffSubtree(unkUnit, threshold);
+
+			final long stamp = rootLock.writeLock();
+			try {
+				root.putChild(unkSymbolId, unkUnit);
+			} finally {
+				rootLock.unlockWrite(stamp);
+			}
+		} finally {
+			stripeLock.unlock();
+		}
+	}
+
+	/**
+	 * Prune the given children of the root, that belong to the given stripe,
+	 * while holding the edit lock of the stripe. The rare children are
+	 * removed from the root and the rest are replaced by their pruned copies.
+	 *
+	 * @param stripe
+	 * @param symbols
+	 *            the symbols of the children in increasing order
+	 * @param children
+	 * @param threshold
+	 * @return a copy of all the rare children merged together, or null if
+	 *         there were none
+	 */
+	private final Node cutoffStripe(final int stripe, final List<Long> symbols,
+			final List<Node> children, final int threshold) {
+		final Lock stripeLock = editLocks[stripe];
+		stripeLock.lock();
+		try {
+			Node rareNodes = null;
+			final long[] rareSymbols = new long[symbols.size()];
+			int nRare = 0;
+			final Node[] prunedChildren = new Node[symbols.size()];
+			for (int i = 0; i < symbols.size(); i++) {
+				final Node child = children.get(i);
+				if (child.count <= threshold) {
+					if (rareNodes == null) {
+						rareNodes = new Node();
+					}
+					mergeTrieNodes(child, rareNodes, true);
+					rareSymbols[nRare] = symbols.get(i);
+					nRare++;
+				} else {
+					prunedChildren[i] = copyPruned(child, threshold);
+				}
+			}
+
+			final long stamp = rootLock.writeLock();
+			try {
+				root.removeChildren(rareSymbols, nRare);
+				for (int i = 0; i < symbols.size(); i++) {
+					if (prunedChildren[i] != null) {
+						root.putChild(symbols.get(i), prunedChildren[i]);
+					}
+				}
+			} finally {
+				rootLock.unlockWrite(stamp);
+			}
+			return rareNodes;
+		} finally {
+			stripeLock.unlock();
+		}
+	}
+
+	/**
+	 * Prune the subtree of the given node in place, merging the rare children
+	 * of each node into its UNK child. The subtree must not be reachable by
+	 * readers.
+	 *
+	 * @param subtreeRoot
+	 * @param threshold
+	 */
+	private final void cutoffSubtree(final Node subtreeRoot,
+			final int threshold) {
+		final ArrayDeque<Node> toCut = new ArrayDeque<Node>();
+		toCut.push(subtreeRoot);
+		while (!toCut.isEmpty()) {
+			final Node node = toCut.pop();
+
+			// Create or retrieve the UNK
+			Node unkUnit = node.getChild(unkSymbolId);
+			if (unkUnit == null) {
+				unkUnit = new Node();
+			}
+
+			// For every production that is below the threshold, merge. The
+			// kept children are compacted in place and cut afterwards.
+			int nKept = 0;
+			for (int i = 0; i < node.nChildren; i++) {
+				final long production = node.symbols[i];
+				final Node currentPos = node.children[i];
+				if (currentPos.count <= threshold
+						&& production != unkSymbolId) {
+					mergeTrieNodes(currentPos, unkUnit, false);
+				} else {
+					if (production != unkSymbolId) {
+						toCut.push(currentPos);
+					}
+					node.symbols[nKept] = production;
+					node.children[nKept] = currentPos;
+					nKept++;
+				}
+			}
+			node.truncateChildren(nKept);
+
+			if (unkUnit.count > 0) {
+				node.putChild(unkSymbolId, unkUnit);
+				toCut.push(unkUnit);
+			}
+		}
+	}
+
+	/**
+	 * Return a pruned copy of the subtree of the given node, as pruned by
+	 * {@link #cutoffSubtree(Node, int)}, without modifying the subtree. The
+	 * leaves that are kept are shared with the copy, since pruning does not
+	 * modify them.
+	 *
+	 * @param subtreeRoot
+	 * @param threshold
+	 * @return
+	 */
+	private final Node copyPruned(final Node subtreeRoot, final int threshold) {
+		final Node copy = new Node();
+		final ArrayDeque<Node> originals = new ArrayDeque<Node>();
+		final ArrayDeque<Node> copies = new ArrayDeque<Node>();
+		originals.push(subtreeRoot);
+		copies.push(copy);
+		while (!originals.isEmpty()) {
+			final Node original = originals.pop();
+			final Node nodeCopy = copies.pop();
+			nodeCopy.count = original.count;
+			nodeCopy.terminateHere = original.terminateHere;
+
+			// The rare children are merged into a copy of the UNK
+			Node unkUnit = null;
+			final Node originalUnk = original.getChild(unkSymbolId);
+			if (originalUnk != null) {
+				unkUnit = new Node();
+				mergeTrieNodes(originalUnk, unkUnit, true);
+			}
+			for (int i = 0; i < original.nChildren; i++) {
+				final long production = original.symbols[i];
+				final Node child = original.children[i];
+				if (production == unkSymbolId) {
+					continue;
+				} else if (child.count <= threshold) {
+					if (unkUnit == null) {
+						unkUnit = new Node();
+					}
+					mergeTrieNodes(child, unkUnit, true);
+				} else if (child.nChildren == 0) {
+					nodeCopy.putChild(production, child);
+				} else {
+					final Node childCopy = new Node();
+					nodeCopy.putChild(production, childCopy);
+					originals.push(child);
+					copies.push(childCopy);
+				}
+			}
+
+			if (unkUnit != null && unkUnit.count > 0) {
+				cutoffSubtree(unkUnit, threshold);
+				nodeCopy.putChild(unkSymbolId, unkUnit);
+			} else if (unkUnit != null && originalUnk != null) {
+				nodeCopy.putChild(unkSymbolId, unkUnit);
+			}
+			nodeCopy.trimToSize();
+		}
+		return copy;
+	}
+
+	/**
+	 * Return a read-only, flat copy of this trie.
+	 *
+	 * @return
+	 */
+	public final FrozenLongTrie freeze() {
+		final long stamp = lockAll();
+		try {
+			syncRootCount();
+			return new FrozenLongTrie(this);
+		} finally {
+			unlockAll(stamp);
+		}
+	}
+
+	/**
+	 * Return the child of the node with the given symbol. The children of the
+	 * root are read under the lock of the root, since pruning replaces them.
+	 */
+	private final Node getChild(final Node node, final long symbol) {
+		if (node == root) {
+			return getRootChild(symbol);
+		}
+		return node.getChild(symbol);
+	}
+
+	@Override
+	public final long getCount(final long[] ngramSymbols,
+			final boolean useUNKs, final boolean useTerminals) {
+		final Node current = getTrieNodeForInput(ngramSymbols, useUNKs);
+		if (current == null) {
+			return 0;
+		}
+
+		final long unkDiscountCount = getUnkDiscount(current, useUNKs);
+
+		final long totalCount;
+		if (useTerminals) {
+			totalCount = current.count - unkDiscountCount;
+		} else {
+			totalCount = current.count - current.terminateHere
+					- unkDiscountCount;
+		}
+
+		checkArgument(totalCount >= 0);
+		return totalCount;
+	}
+
+	@Override
+	public final void getNGramCounts(final long[] symbols, final int from,
+			final int to, final boolean useUNKs, final long[] counts) {
+		checkArgument(from < to);
+		final Node prefix = getTrieNodeForInput(symbols, from, to - 1,
+				useUNKs);
+		if (prefix == null) {
+			counts[0] = 0;
+			counts[1] = 0;
+			return;
+		}
+		final long prefixUnkDiscount = getUnkDiscount(prefix, useUNKs);
+		counts[1] = prefix.count - prefix.terminateHere - prefixUnkDiscount;
+		checkArgument(counts[1] >= 0);
+
+		Node current = prefix.getChild(symbols[to - 1]);
+		if (current == null && useUNKs) {
+			current = prefix.getChild(unkSymbolId);
+		}
+		if (current == null) {
+			counts[0] = 0;
+		} else {
+			counts[0] = current.count - getUnkDiscount(current, useUNKs);
+			checkArgument(counts[0] >= 0);
+		}
+	}
+
+	/**
+	 * Return the child of the root with the given symbol, creating it if it
+	 * does not exist. The caller must hold the stripe lock of the symbol.
+	 *
+	 * @param symbol
+	 * @return
+	 */
+	private final Node getOrCreateRootChild(final long symbol) {
+		final long optimisticStamp = rootLock.tryOptimisticRead();
+		if (optimisticStamp != 0) {
+			final Node child = getRootChildUnsafe(symbol);
+			if (child != null && rootLock.validate(optimisticStamp)) {
+				return child;
+			}
+		}
+
+		final long stamp = rootLock.writeLock();
+		try {
+			return root.getOrCreateChild(symbol);
+		} finally {
+			rootLock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Return the child of the root with the given symbol, or null if it does
+	 * not exist.
+	 *
+	 * @param symbol
+	 * @return
+	 */
+	private final Node getRootChild(final long symbol) {
+		final long optimisticStamp = rootLock.tryOptimisticRead();
+		if (optimisticStamp != 0) {
+			final Node child = getRootChildUnsafe(symbol);
+			if (rootLock.validate(optimisticStamp)) {
+				return child;
+			}
+		}
+
+		final long stamp = rootLock.readLock();
+		try {
+			return root.getChild(symbol);
+		} finally {
+			rootLock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public final Node getRoot() {
+		syncRootCount();
+		return root;
+	}
+
+	/**
+	 * Look up the child of the root without locking. The arrays of the root
+	 * may be concurrently modified, so the result must be validated.
+	 *
+	 * @param symbol
+	 * @return
+	 */
+	private final Node getRootChildUnsafe(final long symbol) {
+		final long[] symbols = root.symbols;
+		final Node[] children = root.children;
+		if (symbols == null || children == null) {
+			return null;
+		}
+		final int n = Math.min(root.nChildren,
+				Math.min(symbols.length, children.length));
+		final int pos = Arrays.binarySearch(symbols, 0, n, symbol);
+		if (pos < 0) {
+			return null;
+		}
+		return children[pos];
+	}
+
+	/**
+	 * Return the stripe of the given (first) symbol.
+	 */
+	private static int getStripe(final long symbol) {
+		final int hash = (int) (symbol ^ (symbol >>> 32));
+		return hash & (N_STRIPES - 1);
+	}
+
+	/**
+	 * Return the edit lock of the stripe of the given (first) symbol.
+	 */
+	private final Lock getStripeLock(final long symbol) {
+		return editLocks[getStripe(symbol)];
+	}
+
+	@Override
+	public final Node getTrieNodeForInput(final long[] ngramSymbols,
+			final boolean useUNKs) {
+		return getTrieNodeForInput(ngramSymbols, useUNKs, getRoot());
+	}
+
+	@Override
+	public final Node getTrieNodeForInput(final long[] ngramSymbols,
+			final boolean useUNKs, final ILongTrieNode startNode) {
+		return getTrieNodeForInput(ngramSymbols, 0, ngramSymbols.length,
+				useUNKs, (Node) startNode);
+	}
+
+	@Override
+	public final Node getTrieNodeForInput(final long[] symbols,
+			final int from, final int to, final boolean useUNKs) {
+		return getTrieNodeForInput(symbols, from, to, useUNKs, getRoot());
+	}
+
+	private final Node getTrieNodeForInput(final long[] symbols,
+			final int from, final int to, final boolean useUNKs,
+			final Node startNode) {
+		Node fromNode = startNode;
+		for (int i = from; i < to; i++) {
+			Node next = getChild(fromNode, symbols[i]);
+			if (next == null && useUNKs) {
+				next = getChild(fromNode, unkSymbolId);
+			}
+			if (next == null) {
+				return null;
+			}
+			fromNode = next;
+		}
+		return fromNode;
+	}
+
+	/**
+	 * Return the count that should be subtracted from the count of the node
+	 * when UNKs are not used, i.e. the count of its UNK child.
+	 */
+	private final long getUnkDiscount(final Node node, final boolean useUNKs) {
+		if (useUNKs) {
+			return 0;
+		}
+		final Node unkUnit = getChild(node, unkSymbolId);
+		if (unkUnit != null) {
+			return unkUnit.count;
+		}
+		return 0;
+	}
+
+	@Override
+	public final long getUnkSymbolId() {
+		return unkSymbolId;
+	}
+
+	/**
+	 * Acquire all the edit locks, so that no other edit can happen.
+	 *
+	 * @return the stamp of the root lock
+	 */
+	private final long lockAll() {
+		for (final Lock lock : editLocks) {
+			lock.lock();
+		}
+		return rootLock.writeLock();
+	}
+
+	/**
+	 * Merge the first trie node into the second, including their subtrees.
+	 *
+	 * @param from
+	 * @param to
+	 * @param copy
+	 *            whether to copy the nodes of the first subtree, so that it is
+	 *            not modified or shared with the second. Otherwise, the first
+	 *            subtree must not be used afterwards.
+	 */
+	private final void mergeTrieNodes(final Node from, final Node to,
+			final boolean copy) {
+		final ArrayDeque<Node> fromNodes = new ArrayDeque<Node>();
+		final ArrayDeque<Node> toNodes = new ArrayDeque<Node>();
+		fromNodes.push(checkNotNull(from));
+		toNodes.push(checkNotNull(to));
+		while (!fromNodes.isEmpty()) {
+			final Node fromNode = fromNodes.pop();
+			final Node toNode = toNodes.pop();
+			toNode.count += fromNode.count;
+			toNode.terminateHere += fromNode.terminateHere;
+
+			for (int i = 0; i < fromNode.nChildren; i++) {
+				final long symbol = fromNode.symbols[i];
+				Node toChild = toNode.getChild(symbol);
+				if (toChild == null && !copy) {
+					toNode.putChild(symbol, fromNode.children[i]);
+					continue;
+				} else if (toChild == null) {
+					toChild = new Node();
+					toNode.putChild(symbol, toChild);
+				}
+				fromNodes.push(fromNode.children[i]);
+				toNodes.push(toChild);
+			}
+		}
+	}
+
+	/**
+	 * Merge the given subtrees into the children of the root with the
+	 * respective symbols. All symbols must belong to the given stripe.
+	 *
+	 * @param stripe
+	 * @param symbols
+	 * @param subtrees
+	 */
+	private final void mergeStripe(final int stripe, final List<Long> symbols,
+			final List<Node> subtrees) {
+		final Lock stripeLock = editLocks[stripe];
+		stripeLock.lock();
+		try {
+			for (int i = 0; i < symbols.size(); i++) {
+				mergeTrieNodes(subtrees.get(i),
+						getOrCreateRootChild(symbols.get(i)), false);
+			}
+		} finally {
+			stripeLock.unlock();
+		}
+	}
+
+	/**
+	 * Remove the sequence of symbols from the trie. The sequence must exist.
+	 *
+	 * @param elementSequence
+	 */
+	public final void remove(final long[] elementSequence) {
+		rootCount.decrement();
+		checkRootCount();
+		if (elementSequence.length == 0) {
+			final long stamp = rootLock.writeLock();
+			root.terminateHere--;
+			rootLock.unlockWrite(stamp);
+			return;
+		}
+
+		final Lock stripeLock = getStripeLock(elementSequence[0]);
+		stripeLock.lock();
+		try {
+			Node currentUnit = getOrCreateRootChild(elementSequence[0]);
+			currentUnit.count--;
+			checkCount(currentUnit);
+			for (int i = 1; i < elementSequence.length; i++) {
+				final Node next = currentUnit
+						.getOrCreateChild(elementSequence[i]);
+				next.count--;
+				checkCount(next);
+				currentUnit = next;
+			}
+			currentUnit.terminateHere--;
+		} finally {
+			stripeLock.unlock();
+		}
+	}
+
+	@Override
+	public final long sumStartingWith(final long[] prefix,
+			final boolean useUNKs) {
+		checkArgument(prefix.length > 0);
+		final Node unit = getTrieNodeForInput(prefix, useUNKs);
+
+		if (unit == null) {
+			return 0;
+		}
+
+		return unit.count - unit.terminateHere;
+	}
+
+	/**
+	 * Set the count of the root to the number of sequences added.
+	 */
+	private final void syncRootCount() {
+		root.count = rootCount.sum();
+	}
+
+	/**
+	 * Release the unused capacity of all the nodes. This is useful after
+	 * training has finished.
+	 */
+	public final void trimToSize() {
+		final long stamp = lockAll();
+		try {
+			final ArrayDeque<Node> toVisit = new ArrayDeque<Node>();
+			toVisit.push(root);
+			while (!toVisit.isEmpty()) {
+				final Node node = toVisit.pop();
+				node.trimToSize();
+				for (int i = 0; i < node.nChildren; i++) {
+					toVisit.push(node.children[i]);
+				}
+			}
+		} finally {
+			unlockAll(stamp);
+		}
+	}
+
+	private final void unlockAll(final long stamp) {
+		rootLock.unlockWrite(stamp);
+		for (final Lock lock : editLocks) {
+			lock.unlock();
+		}
+	}
+
+	private void writeObject(final ObjectOutputStream out) throws IOException {
+		syncRootCount();
+		out.defaultWriteObject();
+	}
+}
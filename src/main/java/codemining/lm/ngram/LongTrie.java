@@ -7,18 +7,17 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.io.Serializable;
 import java.util.ArrayDeque;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
 
-import codemining.lm.ngram.Trie.TrieNode;
-
 import com.esotericsoftware.kryo.DefaultSerializer;
 import com.esotericsoftware.kryo.serializers.JavaSerializer;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
+import com.google.common.collect.ImmutableBiMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
@@ -31,9 +30,9 @@ import com.google.common.collect.Sets;
 @DefaultSerializer(JavaSerializer.class)
 public class LongTrie<K> implements Serializable {
 
-	private final Trie<Long> baseTrie = new Trie<Long>(null);
+	private final ISymbolTrie baseTrie;
 
-	private static final long serialVersionUID = -7194495381473625925L;
+	private static final long serialVersionUID = 2921316524734937014L;
 
 	/**
 	 * An alphabet containing a mapping of Keys to Strings.
@@ -47,12 +46,29 @@ public class LongTrie<K> implements Serializable {
 	public LongTrie(final K unk) {
 		nextId = Long.MIN_VALUE;
 		alphabet = HashBiMap.create();
-		baseTrie.unkSymbolId = nextId;
+		baseTrie = new LongArrayTrie(nextId);
 		unkSymbol = unk;
-		alphabet.put(unk, baseTrie.unkSymbolId);
+		alphabet.put(unk, baseTrie.getUnkSymbolId());
 		nextId++;
 	}
 
+	/**
+	 * Create a read-only trie with the given alphabet.
+	 *
+	 * @param alphabet
+	 * @param nextId
+	 * @param unk
+	 * @param frozen
+	 *            a {@link FrozenLongTrie} or a {@link ProbingHashTrie}
+	 */
+	LongTrie(final Map<K, Long> alphabet, final long nextId, final K unk,
+			final ISymbolTrie frozen) {
+		this.nextId = nextId;
+		this.alphabet = ImmutableBiMap.copyOf(alphabet);
+		baseTrie = frozen;
+		unkSymbol = unk;
+	}
+
 	/**
 	 * Add an n-gram to the trie. If parts of the ngram do not exist in the
 	 * dictionary, introduce them
@@ -60,16 +76,32 @@ public class LongTrie<K> implements Serializable {
 	 * @param ngram
 	 */
 	public void add(final NGram<K> ngram, final boolean introduceVoc) {
-		final List<Long> keys = getSymbolIds(ngram, introduceVoc);
+		final long[] keys = getSymbolIdArray(ngram, introduceVoc);
 		if (!introduceVoc) {
 			// replace with unks
-			for (int i = 0; i < keys.size(); i++) {
-				if (keys.get(i) == null) {
-					keys.set(i, baseTrie.getUnkSymbolId());
-				}
-			}
+			replaceMissingWithUNK(keys);
 		}
-		baseTrie.add(keys);
+		getMutableTrie().add(keys);
+	}
+
+	/**
+	 * Add a sequence of symbol ids (that must be in the alphabet of this trie
+	 * or be the UNK symbol id) to the trie.
+	 *
+	 * @param keys
+	 */
+	void add(final long[] keys) {
+		getMutableTrie().add(keys);
+	}
+
+	/**
+	 * Add all the sequences of the given tries (that use the symbols of this
+	 * trie) to this trie.
+	 *
+	 * @param partials
+	 */
+	void addAll(final Collection<LongArrayTrie> partials) {
+		getMutableTrie().addAll(partials);
 	}
 
 	private synchronized long addSymbolId(final K element) {
@@ -100,23 +132,32 @@ public class LongTrie<K> implements Serializable {
 	 */
 	public long countDistinctStartingWith(final NGram<K> ngram,
 			final boolean useUNKs) {
-		return baseTrie.countDistinctStartingWith(getSymbolIds(ngram, false),
-				useUNKs);
+		return baseTrie.countDistinctStartingWith(
+				getSymbolIdArray(ngram, false), useUNKs);
+	}
+
+	/**
+	 * Create a context state on this trie.
+	 *
+	 * @see ISymbolTrie#createContextState(int)
+	 */
+	public ContextState createContextState(final int maxOrder) {
+		return baseTrie.createContextState(maxOrder);
 	}
 
 	public void cutoffRare(final int threshold) {
-		baseTrie.cutoffRare(threshold);
+		getMutableTrie().cutoffRare(threshold);
 
 		// Now scan everything and remove unwanted symbols from vocabulary.
-		final Set<Long> usedSymbols = Sets.newTreeSet();
-		final ArrayDeque<TrieNode<Long>> stack = new ArrayDeque<TrieNode<Long>>();
+		final Set<Long> usedSymbols = Sets.newHashSet();
+		final ArrayDeque<ILongTrieNode> stack = new ArrayDeque<ILongTrieNode>();
 		stack.push(baseTrie.getRoot());
 
 		while (!stack.isEmpty()) {
-			final TrieNode<Long> node = stack.pop();
-			usedSymbols.addAll(node.prods.keySet());
-			for (final TrieNode<Long> childNode : node.prods.values()) {
-				stack.push(childNode);
+			final ILongTrieNode node = stack.pop();
+			for (int i = 0; i < node.nChildren(); i++) {
+				usedSymbols.add(node.getSymbolAt(i));
+				stack.push(node.getChildAt(i));
 			}
 		}
 
@@ -130,6 +171,50 @@ public class LongTrie<K> implements Serializable {
 		}
 	}
 
+	/**
+	 * Return a read-only copy of this trie, backed by a {@link FrozenLongTrie}.
+	 * If this trie is already frozen, it is returned as is.
+	 *
+	 * @return
+	 */
+	public LongTrie<K> freeze() {
+		if (isFrozen()) {
+			return this;
+		}
+		return new LongTrie<K>(alphabet, nextId, unkSymbol, getMutableTrie()
+				.freeze());
+	}
+
+	/**
+	 * Return a read-only copy of this trie, whose symbols are compressed.
+	 *
+	 * @see FrozenLongTrie#compressSymbols()
+	 * @return
+	 */
+	public LongTrie<K> compressSymbols() {
+		final FrozenLongTrie frozen = freeze().getFrozenTrie();
+		if (frozen.hasCompressedSymbols()) {
+			return freeze();
+		}
+		return new LongTrie<K>(alphabet, nextId, unkSymbol,
+				frozen.compressSymbols());
+	}
+
+	/**
+	 * Return a read-only copy of this trie whose n-grams are looked up
+	 * through a {@link ProbingHashTrie}. If this trie is already backed by
+	 * one, it is returned as is.
+	 *
+	 * @return
+	 */
+	public LongTrie<K> toProbingHash() {
+		if (baseTrie instanceof ProbingHashTrie) {
+			return this;
+		}
+		return new LongTrie<K>(alphabet, nextId, unkSymbol,
+				new ProbingHashTrie(freeze().getFrozenTrie()));
+	}
+
 	/**
 	 * Returns the count of the n-gram in the dictionary. If a token does not
 	 * exist in the dictionary then it is replaced with UNK. If UNKs do not
@@ -140,22 +225,89 @@ public class LongTrie<K> implements Serializable {
 	 */
 	public long getCount(final NGram<K> ngram, final boolean useUNKs,
 			final boolean useTerminals) {
-		return baseTrie.getCount(getSymbolIds(ngram, false), useUNKs,
+		return baseTrie.getCount(getSymbolIdArray(ngram, false), useUNKs,
 				useTerminals);
 	}
 
-	public TrieNode<Long> getNGramNodeForInput(final NGram<K> ngram,
+	/**
+	 * Store the count of the n-gram symbols[from, to) and of its prefix in
+	 * counts.
+	 *
+	 * @see ISymbolTrie#getNGramCounts(long[], int, int, boolean, long[])
+	 */
+	public void getNGramCounts(final long[] symbols, final int from,
+			final int to, final boolean useUNKs, final long[] counts) {
+		baseTrie.getNGramCounts(symbols, from, to, useUNKs, counts);
+	}
+
+	Map<K, Long> getAlphabet() {
+		return alphabet;
+	}
+
+	ISymbolTrie getBaseTrie() {
+		return baseTrie;
+	}
+
+	/**
+	 * Return the underlying trie, if it is frozen. For a trie backed by a
+	 * {@link ProbingHashTrie}, the trie that the hash tables index is
+	 * returned.
+	 *
+	 * @return
+	 */
+	public FrozenLongTrie getFrozenTrie() {
+		if (!isFrozen()) {
+			throw new UnsupportedOperationException("LongTrie is not frozen");
+		} else if (baseTrie instanceof ProbingHashTrie) {
+			return ((ProbingHashTrie) baseTrie).getFrozenTrie();
+		}
+		return (FrozenLongTrie) baseTrie;
+	}
+
+	/**
+	 * Return the underlying trie, if it can be edited.
+	 *
+	 * @return
+	 */
+	private LongArrayTrie getMutableTrie() {
+		if (isFrozen()) {
+			throw new UnsupportedOperationException(
+					"Cannot modify a frozen LongTrie");
+		}
+		return (LongArrayTrie) baseTrie;
+	}
+
+	long getNextId() {
+		return nextId;
+	}
+
+	public ILongTrieNode getNGramNodeForInput(final NGram<K> ngram,
 			final boolean useUNKs) {
-		return baseTrie
-				.getTrieNodeForInput(getSymbolIds(ngram, false), useUNKs);
+		return baseTrie.getTrieNodeForInput(getSymbolIdArray(ngram, false),
+				useUNKs);
 	}
 
-	public TrieNode<Long> getNGramNodeForInput(final NGram<K> ngram,
-			final boolean useUNKs, final TrieNode<Long> fromNode) {
-		return baseTrie.getTrieNodeForInput(getSymbolIds(ngram, false),
+	public ILongTrieNode getNGramNodeForInput(final NGram<K> ngram,
+			final boolean useUNKs, final ILongTrieNode fromNode) {
+		return baseTrie.getTrieNodeForInput(getSymbolIdArray(ngram, false),
 				useUNKs, fromNode);
 	}
 
+	/**
+	 * Return the node of the symbols in [from, to) or null if it does not
+	 * exist.
+	 *
+	 * @param symbols
+	 * @param from
+	 * @param to
+	 * @param useUNKs
+	 * @return
+	 */
+	public ILongTrieNode getNGramNodeForInput(final long[] symbols,
+			final int from, final int to, final boolean useUNKs) {
+		return baseTrie.getTrieNodeForInput(symbols, from, to, useUNKs);
+	}
+
 	/**
 	 * Return all the possible productions from a specific prefix.
 	 *
@@ -163,8 +315,8 @@ public class LongTrie<K> implements Serializable {
 	 * @return
 	 */
 	public Map<K, Long> getPossibleProductionsWithCounts(final NGram<K> prefix) {
-		final TrieNode<Long> node = baseTrie.getTrieNodeForInput(
-				getSymbolIds(prefix, false), false);
+		final ILongTrieNode node = baseTrie.getTrieNodeForInput(
+				getSymbolIdArray(prefix, false), false);
 
 		final Map<K, Long> productions = new TreeMap<K, Long>();
 
@@ -172,10 +324,9 @@ public class LongTrie<K> implements Serializable {
 			return productions;
 		}
 
-		for (final Entry<Long, TrieNode<Long>> prodEntry : node.prods
-				.entrySet()) {
-			final K key = alphabet.inverse().get(prodEntry.getKey());
-			final long count = prodEntry.getValue().count;
+		for (int i = 0; i < node.nChildren(); i++) {
+			final K key = alphabet.inverse().get(node.getSymbolAt(i));
+			final long count = node.getChildAt(i).getCount();
 			if (key != null) {
 				productions.put(key, count);
 			} else {
@@ -186,15 +337,15 @@ public class LongTrie<K> implements Serializable {
 		return productions;
 	}
 
-	public TrieNode<Long> getRoot() {
+	public ILongTrieNode getRoot() {
 		return baseTrie.getRoot();
 	}
 
 	public Set<K> getRootSymbols() {
 		final Set<K> rootProductions = Sets.newHashSet();
-		final TrieNode<Long> rootNode = baseTrie.getRoot();
-		for (final long symbolId : rootNode.prods.keySet()) {
-			rootProductions.add(getSymbolFromKey(symbolId));
+		final ILongTrieNode rootNode = baseTrie.getRoot();
+		for (int i = 0; i < rootNode.nChildren(); i++) {
+			rootProductions.add(getSymbolFromKey(rootNode.getSymbolAt(i)));
 		}
 
 		return rootProductions;
@@ -207,12 +358,88 @@ public class LongTrie<K> implements Serializable {
 	 * @return
 	 */
 	public K getSymbolFromKey(final Long key) {
-		if (key.equals(baseTrie.unkSymbolId)) {
+		if (key.longValue() == baseTrie.getUnkSymbolId()) {
 			return unkSymbol;
 		}
 		return alphabet.inverse().get(key);
 	}
 
+	/**
+	 * Helper function to create a primitive array of the symbol ids of an
+	 * n-gram. Symbols that are not in the vocabulary are mapped to
+	 * {@link LongArrayTrie#NO_SYMBOL} unless createIfNotFound is true.
+	 *
+	 * @param ngram
+	 * @param createIfNotFound
+	 * @return
+	 */
+	private long[] getSymbolIdArray(final NGram<K> ngram,
+			final boolean createIfNotFound) {
+		final long[] symbols = new long[ngram.size()];
+		for (int i = 0; i < symbols.length; i++) {
+			final K element = ngram.get(i);
+			final Long key = alphabet.get(element);
+			if (key == null && createIfNotFound) {
+				symbols[i] = addSymbolId(element);
+			} else if (key == null) {
+				symbols[i] = LongArrayTrie.NO_SYMBOL;
+			} else {
+				symbols[i] = key;
+			}
+		}
+		return symbols;
+	}
+
+	/**
+	 * Return the symbol id of the element, or the UNK symbol id if the element
+	 * is not in the vocabulary.
+	 *
+	 * @param element
+	 * @return
+	 */
+	long getSymbolIdWithUNK(final K element) {
+		final Long key = alphabet.get(element);
+		if (key == null) {
+			return baseTrie.getUnkSymbolId();
+		}
+		return key;
+	}
+
+	/**
+	 * Return the symbol ids of a sequence. Elements that are not in the
+	 * vocabulary are mapped to {@link LongArrayTrie#NO_SYMBOL}, as in
+	 * {@link #getCount(NGram, boolean, boolean)}.
+	 *
+	 * @param sequence
+	 * @return
+	 */
+	public long[] getSymbolIdArray(final List<K> sequence) {
+		final long[] symbols = new long[sequence.size()];
+		for (int i = 0; i < symbols.length; i++) {
+			final Long key = alphabet.get(sequence.get(i));
+			if (key == null) {
+				symbols[i] = LongArrayTrie.NO_SYMBOL;
+			} else {
+				symbols[i] = key;
+			}
+		}
+		return symbols;
+	}
+
+	/**
+	 * Return the symbol ids of the n-gram, as they would be added to the trie
+	 * without introducing new vocabulary, i.e. with missing symbols replaced
+	 * by UNK.
+	 *
+	 * @param ngram
+	 * @return
+	 */
+	long[] getSymbolIdsWithUNKs(final NGram<K> ngram) {
+		final long[] keys = getSymbolIdArray(ngram, false);
+		replaceMissingWithUNK(keys);
+		return keys;
+	}
+
 	/**
 	 * Helper function to create symbol IDs from list.
 	 *
@@ -236,6 +463,10 @@ public class LongTrie<K> implements Serializable {
 		return symbols;
 	}
 
+	K getUnkSymbol() {
+		return unkSymbol;
+	}
+
 	public Long getUnkSymbolId() {
 		return baseTrie.getUnkSymbolId();
 	}
@@ -244,6 +475,11 @@ public class LongTrie<K> implements Serializable {
 		return alphabet.keySet();
 	}
 
+	public boolean isFrozen() {
+		return baseTrie instanceof FrozenLongTrie
+				|| baseTrie instanceof ProbingHashTrie;
+	}
+
 	public boolean isUNK(final K token) {
 		return !alphabet.containsKey(token);
 	}
@@ -254,16 +490,26 @@ public class LongTrie<K> implements Serializable {
 	 * @param ngram
 	 */
 	public void remove(final NGram<K> ngram) {
-		final List<Long> keys = getSymbolIds(ngram, false);
+		final long[] keys = getSymbolIdArray(ngram, false);
 
-		// replace nulls with unks
-		for (int i = 0; i < keys.size(); i++) {
-			if (keys.get(i) == null) {
-				keys.set(i, baseTrie.getUnkSymbolId());
+		// replace missing symbols with unks
+		replaceMissingWithUNK(keys);
+
+		getMutableTrie().remove(keys);
+	}
+
+	/**
+	 * Replace in-place all the symbols that are not in the vocabulary with the
+	 * UNK symbol.
+	 *
+	 * @param keys
+	 */
+	private void replaceMissingWithUNK(final long[] keys) {
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] == LongArrayTrie.NO_SYMBOL) {
+				keys[i] = baseTrie.getUnkSymbolId();
 			}
 		}
-
-		baseTrie.remove(keys);
 	}
 
 	/**
@@ -277,7 +523,7 @@ public class LongTrie<K> implements Serializable {
 		for (final K gram : ngram) {
 			final Long key = alphabet.get(gram);
 			if (key == null) {
-				ngramCopy.add(alphabet.inverse().get(baseTrie.unkSymbolId));
+				ngramCopy.add(alphabet.inverse().get(baseTrie.getUnkSymbolId()));
 			} else {
 				ngramCopy.add(gram);
 			}
@@ -293,19 +539,20 @@ public class LongTrie<K> implements Serializable {
 	 * @return
 	 */
 	public long sumStartingWith(final NGram<K> ngram, final boolean useUNKs) {
-		return baseTrie.sumStartingWith(getSymbolIds(ngram, false), useUNKs);
+		return baseTrie.sumStartingWith(getSymbolIdArray(ngram, false),
+				useUNKs);
 	}
 
 	@Override
 	public String toString() {
 		final StringBuffer buf = new StringBuffer();
 		buf.append('[');
-		for (final Entry<Long, TrieNode<Long>> ngramEntry : baseTrie.getRoot().prods
-				.entrySet()) {
-			final Long ngram = ngramEntry.getKey();
+		final ILongTrieNode root = baseTrie.getRoot();
+		for (int i = 0; i < root.nChildren(); i++) {
+			final Long ngram = root.getSymbolAt(i);
 			final List<String> prods = Lists.newArrayList();
 			toStringHelper(alphabet.inverse().get(ngram).toString(),
-					ngramEntry.getValue(), prods);
+					root.getChildAt(i), prods);
 			for (final String prod : prods) {
 				buf.append(prod + System.lineSeparator());
 			}
@@ -322,18 +569,24 @@ public class LongTrie<K> implements Serializable {
 	 * @param productions
 	 */
 	private void toStringHelper(final String currentString,
-			final TrieNode<Long> currentUnit, final List<String> productions) {
-		if (currentUnit.prods.size() == 0) {
-			productions.add(currentString + " count:" + currentUnit.count);
+			final ILongTrieNode currentUnit, final List<String> productions) {
+		if (currentUnit.nChildren() == 0) {
+			productions.add(currentString + " count:" + currentUnit.getCount());
 		} else {
-			for (final Entry<Long, TrieNode<Long>> prodEntry : currentUnit.prods
-					.entrySet()) {
-				final Long prod = prodEntry.getKey();
+			for (int i = 0; i < currentUnit.nChildren(); i++) {
+				final Long prod = currentUnit.getSymbolAt(i);
 				toStringHelper(
 						currentString + ", " + alphabet.inverse().get(prod),
-						prodEntry.getValue(), productions);
+						currentUnit.getChildAt(i), productions);
 			}
 		}
 	}
 
+	/**
+	 * Release any unused capacity in the underlying trie.
+	 */
+	public void trimToSize() {
+		getMutableTrie().trimToSize();
+	}
+
 }
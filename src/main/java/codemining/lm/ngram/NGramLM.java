@@ -7,8 +7,10 @@ import static com.google.common.base.Preconditions.checkArgument;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Logger;
 
 import org.apache.commons.io.FileUtils;
@@ -17,10 +19,13 @@ import org.apache.commons.lang.exception.ExceptionUtils;
 import codemining.languagetools.ITokenizer;
 import codemining.lm.ILanguageModel;
 import codemining.lm.util.TokenVocabularyBuilder;
+import codemining.lm.util.TokenizedCorpus;
+import codemining.lm.util.TokenizedCorpusStore;
 import codemining.util.SettingsLoader;
 import codemining.util.parallel.ParallelThreadPool;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 
 /**
  * A language model using ngrams.
@@ -45,6 +50,96 @@ public class NGramLM extends AbstractNGramLM {
 
 	}
 
+	/**
+	 * Count the ngrams of an already tokenized file, given as a sequence of
+	 * token ids. The ngrams are added to the private trie of the current
+	 * thread or, if there are no private tries, to the trie of the model.
+	 * 
+	 * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+	 * 
+	 */
+	private static class IdSequenceExtractorRunnable implements Runnable {
+
+		final int[] sequence;
+
+		final long[] symbolIds;
+
+		final NGramLM dict;
+
+		final ThreadLocal<LongArrayTrie> localTrie;
+
+		public IdSequenceExtractorRunnable(final int[] tokenIds,
+				final long[] tokenIdToSymbol, final NGramLM ngramModel,
+				final ThreadLocal<LongArrayTrie> threadTrie) {
+			sequence = tokenIds;
+			symbolIds = tokenIdToSymbol;
+			dict = ngramModel;
+			localTrie = threadTrie;
+		}
+
+		@Override
+		public void run() {
+			final long[] symbols = new long[sequence.length];
+			for (int i = 0; i < symbols.length; i++) {
+				symbols[i] = symbolIds[sequence[i]];
+			}
+			final List<long[]> ngrams = getNgramsFromSequence(symbols,
+					dict.getN());
+			if (localTrie == null) {
+				for (final long[] ngram : ngrams) {
+					dict.trie.add(ngram);
+				}
+			} else {
+				final LongArrayTrie partial = localTrie.get();
+				for (final long[] ngram : ngrams) {
+					partial.add(ngram);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Count the ngrams of a specific file into the private trie of the current
+	 * thread.
+	 * 
+	 * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+	 * 
+	 */
+	private static class LocalNGramExtractorRunnable implements Runnable {
+
+		final File codeFile;
+
+		final NGramLM dict;
+
+		final ThreadLocal<LongArrayTrie> localTrie;
+
+		public LocalNGramExtractorRunnable(final File file,
+				final NGramLM ngramModel,
+				final ThreadLocal<LongArrayTrie> threadTrie) {
+			codeFile = file;
+			dict = ngramModel;
+			localTrie = threadTrie;
+		}
+
+		@Override
+		public void run() {
+			LOGGER.finer("Reading file " + codeFile.getAbsolutePath());
+			try {
+				final char[] code = FileUtils.readFileToString(codeFile)
+						.toCharArray();
+				final List<String> tokens = ImmutableList.copyOf(dict
+						.getTokenizer().tokenListFromCode(code));
+				final LongArrayTrie partial = localTrie.get();
+				for (final NGram<String> ngram : getNgramsFromSentence(tokens,
+						dict.getN())) {
+					partial.add(dict.trie.getSymbolIdsWithUNKs(ngram));
+				}
+			} catch (final IOException e) {
+				LOGGER.warning(ExceptionUtils.getFullStackTrace(e));
+			}
+		}
+	}
+
 	/**
 	 * Extract ngrams from a specific file.
 	 * 
@@ -86,6 +181,24 @@ public class NGramLM extends AbstractNGramLM {
 		}
 	}
 
+	/**
+	 * The strategy used for counting the n-grams of the training files.
+	 */
+	public enum TrainingStrategy {
+		/**
+		 * All threads add the n-grams to the shared trie.
+		 */
+		SHARED_TRIE,
+
+		/**
+		 * Each thread counts the n-grams of its files in a private trie. The
+		 * private tries are merged at the end, in parallel across the first
+		 * tokens. This avoids any contention while counting, at the cost of
+		 * memory for the private tries.
+		 */
+		THREAD_LOCAL_MERGE
+	}
+
 	private static final Logger LOGGER = Logger.getLogger(NGramLM.class
 			.getName());
 
@@ -97,8 +210,22 @@ public class NGramLM extends AbstractNGramLM {
 	public static final int CLEAN_THRESHOLD = (int) SettingsLoader
 			.getNumericSetting("CleanCountThreshold", 1);
 
+	/**
+	 * Tokenize each training file only once, building the vocabulary and
+	 * counting the n-grams from the same token id sequences. This trades the
+	 * memory of the tokenized corpus for the second tokenization pass.
+	 */
+	public static final boolean SINGLE_PASS_TRAINING = SettingsLoader
+			.getBooleanSetting("SinglePassTraining", false);
+
+	public static final TrainingStrategy DEFAULT_TRAINING_STRATEGY = TrainingStrategy
+			.valueOf(SettingsLoader.getStringSetting("TrainingStrategy",
+					TrainingStrategy.SHARED_TRIE.name()));
+
 	private boolean neverCleanedUp = true;
 
+	private transient TrainingStrategy trainingStrategy = DEFAULT_TRAINING_STRATEGY;
+
 	/**
 	 * Constructor.
 	 * 
@@ -118,17 +245,8 @@ public class NGramLM extends AbstractNGramLM {
 	@Override
 	public void addFromSentence(final List<String> sentence,
 			final boolean addNewToks) {
-		for (int i = 0; i < sentence.size(); i++) {
-			final NGram<String> ngram = NGram.constructNgramAt(i, sentence,
-					getN());
-			if (ngram.size() > 1) {
-				addNgram(ngram, addNewToks);
-			}
-		}
-
-		for (int i = sentence.size() - getN() + 1; i < sentence.size(); i++) {
-			final NGram<String> ngram = NGram.constructNgramAt(
-					sentence.size() - 1, sentence, sentence.size() - i);
+		for (final NGram<String> ngram : getNgramsFromSentence(sentence,
+				getN())) {
 			addNgram(ngram, addNewToks);
 		}
 	}
@@ -160,6 +278,27 @@ public class NGramLM extends AbstractNGramLM {
 		}
 	}
 
+	/**
+	 * Create the private tries used when counting with
+	 * {@link TrainingStrategy#THREAD_LOCAL_MERGE}. Each private trie is added
+	 * to partials when it is first used.
+	 * 
+	 * @param partials
+	 * @return
+	 */
+	private ThreadLocal<LongArrayTrie> createLocalTries(
+			final Collection<LongArrayTrie> partials) {
+		final long unkSymbolId = trie.getUnkSymbolId();
+		return new ThreadLocal<LongArrayTrie>() {
+			@Override
+			protected LongArrayTrie initialValue() {
+				final LongArrayTrie partial = new LongArrayTrie(unkSymbolId);
+				partials.add(partial);
+				return partial;
+			}
+		};
+	}
+
 	/**
 	 * Cut-off rare ngrams by removing rare tokens.
 	 * 
@@ -175,11 +314,75 @@ public class NGramLM extends AbstractNGramLM {
 		return new ImmutableNGramLM(this);
 	}
 
+	/**
+	 * Return all the n-grams that should be added to an n-gram model for the
+	 * given sentence.
+	 * 
+	 * @param sentence
+	 * @param n
+	 * @return
+	 */
+	static List<NGram<String>> getNgramsFromSentence(
+			final List<String> sentence, final int n) {
+		final List<NGram<String>> ngrams = Lists.newArrayList();
+		for (int i = 0; i < sentence.size(); i++) {
+			final NGram<String> ngram = NGram.constructNgramAt(i, sentence, n);
+			if (ngram.size() > 1) {
+				ngrams.add(ngram);
+			}
+		}
+
+		for (int i = sentence.size() - n + 1; i < sentence.size(); i++) {
+			ngrams.add(NGram.constructNgramAt(sentence.size() - 1, sentence,
+					sentence.size() - i));
+		}
+		return ngrams;
+	}
+
+	/**
+	 * Return all the n-grams that should be added to an n-gram model for the
+	 * given sequence of symbols. This is the equivalent of
+	 * {@link #getNgramsFromSentence(List, int)} for symbol ids.
+	 * 
+	 * @param sequence
+	 * @param n
+	 * @return
+	 */
+	static List<long[]> getNgramsFromSequence(final long[] sequence,
+			final int n) {
+		final List<long[]> ngrams = Lists.newArrayList();
+		for (int i = 0; i < sequence.length; i++) {
+			final int start = Math.max(0, i - n + 1);
+			if (i + 1 - start > 1) {
+				ngrams.add(Arrays.copyOfRange(sequence, start, i + 1));
+			}
+		}
+
+		for (int i = sequence.length - n + 1; i < sequence.length; i++) {
+			ngrams.add(Arrays.copyOfRange(sequence, Math.max(0, i),
+					sequence.length));
+		}
+		return ngrams;
+	}
+
 	@Override
 	public double getProbabilityFor(final NGram<String> ngram) {
 		return getMLProbabilityFor(ngram, false);
 	}
 
+	@Override
+	public double getProbabilityFor(final SymbolSequence sequence,
+			final int from, final int to) {
+		return getMLProbabilityFor(sequence, from, to, false);
+	}
+
+	public TrainingStrategy getTrainingStrategy() {
+		if (trainingStrategy == null) {
+			return DEFAULT_TRAINING_STRATEGY;
+		}
+		return trainingStrategy;
+	}
+
 	@Override
 	public void removeNgram(final NGram<String> ngram) {
 		checkArgument(ngram.size() > 0 && ngram.size() <= getN(),
@@ -188,6 +391,15 @@ public class NGramLM extends AbstractNGramLM {
 		trie.remove(ngram);
 	}
 
+	/**
+	 * Set the strategy used for counting the n-grams in trainModel().
+	 * 
+	 * @param strategy
+	 */
+	public void setTrainingStrategy(final TrainingStrategy strategy) {
+		trainingStrategy = strategy;
+	}
+
 	@Override
 	public void trainIncrementalModel(final Collection<File> files)
 			throws IOException {
@@ -197,12 +409,62 @@ public class NGramLM extends AbstractNGramLM {
 
 	@Override
 	public void trainModel(final Collection<File> files) throws IOException {
+		if (SINGLE_PASS_TRAINING || TokenizedCorpusStore.isCacheEnabled()) {
+			trainModel(TokenizedCorpusStore.tokenize(files, getTokenizer()));
+			return;
+		}
+
 		LOGGER.finer("Building vocabulary...");
 		trie.buildVocabularySymbols(TokenVocabularyBuilder.buildVocabulary(
 				files, getTokenizer(), CLEAN_THRESHOLD));
 
 		LOGGER.finer("Vocabulary Built. Counting n-grams");
-		trainModel(files, false, false);
+		if (getTrainingStrategy() == TrainingStrategy.THREAD_LOCAL_MERGE) {
+			trainModelWithLocalTries(files);
+		} else {
+			trainModel(files, false, false);
+		}
+		trie.trimToSize();
+	}
+
+	/**
+	 * Train the model on an already tokenized corpus. The vocabulary is built
+	 * from the token counts of the corpus and the tokens that are not in the
+	 * vocabulary are mapped to UNK, so that the files are not tokenized
+	 * again.
+	 * 
+	 * @param corpus
+	 */
+	public void trainModel(final TokenizedCorpus corpus) {
+		LOGGER.finer("Building vocabulary...");
+		trie.buildVocabularySymbols(corpus.getVocabulary(CLEAN_THRESHOLD));
+
+		final long[] symbolIds = new long[corpus.getNumTokens()];
+		for (int i = 0; i < symbolIds.length; i++) {
+			symbolIds[i] = trie.getSymbolIdWithUNK(corpus.getToken(i));
+		}
+
+		LOGGER.finer("Vocabulary Built. Counting n-grams");
+		final ConcurrentLinkedQueue<LongArrayTrie> partials = new ConcurrentLinkedQueue<LongArrayTrie>();
+		final ThreadLocal<LongArrayTrie> localTrie;
+		if (getTrainingStrategy() == TrainingStrategy.THREAD_LOCAL_MERGE) {
+			localTrie = createLocalTries(partials);
+		} else {
+			localTrie = null;
+		}
+
+		final ParallelThreadPool threadPool = new ParallelThreadPool();
+		for (final int[] sequence : corpus.getSequences()) {
+			threadPool.pushTask(new IdSequenceExtractorRunnable(sequence,
+					symbolIds, this, localTrie));
+		}
+		threadPool.waitForTermination();
+
+		if (!partials.isEmpty()) {
+			LOGGER.finer("Merging " + partials.size() + " partial tries");
+			trie.addAll(partials);
+		}
+		trie.trimToSize();
 	}
 
 	/**
@@ -230,4 +492,25 @@ public class NGramLM extends AbstractNGramLM {
 			cutoffRare(CLEAN_THRESHOLD);
 		}
 	}
+
+	/**
+	 * Count the n-grams of the files in per-thread tries and merge them into
+	 * the trie of this model. The vocabulary must already be built.
+	 * 
+	 * @param files
+	 */
+	private void trainModelWithLocalTries(final Collection<File> files) {
+		final ConcurrentLinkedQueue<LongArrayTrie> partials = new ConcurrentLinkedQueue<LongArrayTrie>();
+		final ThreadLocal<LongArrayTrie> localTrie = createLocalTries(partials);
+
+		final ParallelThreadPool threadPool = new ParallelThreadPool();
+		for (final File fi : files) {
+			threadPool.pushTask(new LocalNGramExtractorRunnable(fi, this,
+					localTrie));
+		}
+		threadPool.waitForTermination();
+
+		LOGGER.finer("Merging " + partials.size() + " partial tries");
+		trie.addAll(partials);
+	}
 }
@@ -0,0 +1,731 @@
+package codemining.lm.ngram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Logger;
+
+import codemining.languagetools.ITokenizer;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+
+/**
+ * A binary n-gram model file that is memory-mapped when read, so that the
+ * (frozen) trie is queried directly from the mapping and does not need to be
+ * deserialized. Several JVMs that read the same file share the OS page cache.
+ *
+ * The file contains the magic number, the version and the length of the
+ * header, followed by the header and then by the per-level arrays of a
+ * {@link FrozenLongTrie}. The header contains the order of the model, the
+ * class of the model, the (Java serialized) tokenizer, the vocabulary, the
+ * size of each level, whether the trie has counts, the parameters and the
+ * number of levels of the precomputed tables of the model and the width of
+ * the values of an {@link ArpaNGramLM}, along with its codebooks if it is
+ * quantized. Each level is stored as the symbols, counts and terminateHere
+ * (longs, if the trie has counts) followed by the child offsets (ints). The
+ * levels are followed by the precomputed tables (doubles), level by level,
+ * and then by the log-probabilities and the backoff weights of an
+ * {@link ArpaNGramLM} (floats or codes), level by level. Each array starts at
+ * an 8-byte aligned position and is mapped in chunks of at most 1GB, so that
+ * levels larger than 2GB can be mapped.
+ *
+ * The model class must have a constructor accepting an
+ * {@link AbstractNGramLM}, as the smoothers do. Models that implement
+ * {@link IPrecomputedNGramLM} (e.g. Katz and stupid backoff) are created from
+ * their mapped tables, while the rest (e.g. modified Kneser-Ney) recompute
+ * their tables from the counts of the trie when the model file is read.
+ * {@link ArpaNGramLM}s are stored on a trie without counts and their values
+ * (or codes, if quantized) are read in the heap, since they are much smaller
+ * than the trie.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public final class NGramModelFile {
+
+	public static final int MAGIC = 0x4E474C4D; // NGLM
+
+	public static final int VERSION = 1;
+
+	/**
+	 * The suggested extension for model files.
+	 */
+	public static final String FILE_EXTENSION = ".nglm";
+
+	private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+	/**
+	 * The (log2) size in bytes of the chunks that the arrays are mapped in.
+	 */
+	private static final int MAPPED_CHUNK_BITS = 30;
+
+	private static final Logger LOGGER = Logger.getLogger(NGramModelFile.class
+			.getName());
+
+	private static long align(final long position) {
+		return (position + 7) & ~7L;
+	}
+
+	/**
+	 * Return the number of bytes of each value of the given model: 4 for
+	 * floats or the bytes of the codes of a quantized model.
+	 */
+	private static int getValueBytes(final ArpaNGramLM model) {
+		if (!model.isQuantized()) {
+			return 4;
+		}
+		return model.getQuantizedLogProbs()[0].getByteCodes() != null ? 1 : 2;
+	}
+
+	/**
+	 * Return true if the given file starts with the magic number of a model
+	 * file.
+	 *
+	 * @param filename
+	 * @return
+	 */
+	public static boolean isModelFile(final String filename) {
+		final File file = new File(filename);
+		if (!file.isFile() || file.length() < 4) {
+			return false;
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			return raf.readInt() == MAGIC;
+		} catch (final IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Open the given model file. The trie of the model is memory-mapped.
+	 *
+	 * @param filename
+	 * @return
+	 * @throws IOException
+	 */
+	public static AbstractNGramLM read(final String filename)
+			throws IOException {
+		return read(filename, MAPPED_CHUNK_BITS);
+	}
+
+	/**
+	 * Open the given model file, mapping its arrays in chunks of 2^chunkBits
+	 * bytes.
+	 */
+	static AbstractNGramLM read(final String filename, final int chunkBits)
+			throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(filename, "r")) {
+			final FileChannel channel = raf.getChannel();
+			if (raf.readInt() != MAGIC) {
+				throw new IOException(filename + " is not an n-gram model file");
+			}
+			final int version = raf.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported model file version "
+						+ version);
+			}
+			final byte[] header = new byte[raf.readInt()];
+			raf.readFully(header);
+
+			final DataInputStream in = new DataInputStream(
+					new ByteArrayInputStream(header));
+			final int n = in.readInt();
+			final String modelClass = readString(in);
+			final ITokenizer tokenizer = readTokenizer(in);
+			final String unkSymbol = readString(in);
+			final long unkSymbolId = in.readLong();
+			final long nextId = in.readLong();
+			final int vocabularySize = in.readInt();
+			final Map<String, Long> alphabet = Maps
+					.newHashMapWithExpectedSize(vocabularySize);
+			for (int i = 0; i < vocabularySize; i++) {
+				final long id = in.readLong();
+				alphabet.put(readString(in), id);
+			}
+
+			final int nLevels = in.readInt();
+			final int[] levelSizes = new int[nLevels];
+			for (int l = 0; l < nLevels; l++) {
+				levelSizes[l] = in.readInt();
+			}
+			final boolean hasCounts = in.readBoolean();
+			final double[] parameters = new double[in.readInt()];
+			for (int i = 0; i < parameters.length; i++) {
+				parameters[i] = in.readDouble();
+			}
+			final int[] tableLevels = new int[in.readInt()];
+			for (int t = 0; t < tableLevels.length; t++) {
+				tableLevels[t] = in.readInt();
+			}
+			// The codebooks of the probabilities and the backoff weights of
+			// each level, if the values are codes
+			final int valueBytes = in.readInt();
+			final float[][] codebooks = new float[valueBytes == 1
+					|| valueBytes == 2 ? 2 * nLevels : 0][];
+			for (int c = 0; c < codebooks.length; c++) {
+				codebooks[c] = new float[in.readInt()];
+				for (int i = 0; i < codebooks[c].length; i++) {
+					codebooks[c][i] = in.readFloat();
+				}
+			}
+
+			final ChunkedLongBuffer[] symbols = new ChunkedLongBuffer[nLevels];
+			final ChunkedLongBuffer[] counts = hasCounts ? new ChunkedLongBuffer[nLevels]
+					: null;
+			final ChunkedLongBuffer[] terminateHere = hasCounts ? new ChunkedLongBuffer[nLevels]
+					: null;
+			final ChunkedIntBuffer[] childStart = new ChunkedIntBuffer[nLevels];
+			long position = align(12 + header.length);
+			for (int l = 0; l < nLevels; l++) {
+				final int levelSize = levelSizes[l];
+				symbols[l] = ChunkedLongBuffer.map(channel, position,
+						levelSize, chunkBits - 3);
+				position += 8L * levelSize;
+				if (hasCounts) {
+					counts[l] = ChunkedLongBuffer.map(channel, position,
+							levelSize, chunkBits - 3);
+					position += 8L * levelSize;
+					terminateHere[l] = ChunkedLongBuffer.map(channel,
+							position, levelSize, chunkBits - 3);
+					position += 8L * levelSize;
+				}
+				childStart[l] = ChunkedIntBuffer.map(channel, position,
+						levelSize + 1, chunkBits - 2);
+				position = align(position + 4L * (levelSize + 1));
+			}
+
+			final ChunkedDoubleBuffer[][] tables = new ChunkedDoubleBuffer[tableLevels.length][];
+			for (int t = 0; t < tables.length; t++) {
+				tables[t] = new ChunkedDoubleBuffer[tableLevels[t]];
+				for (int l = 0; l < tableLevels[t]; l++) {
+					tables[t][l] = ChunkedDoubleBuffer.map(channel, position,
+							levelSizes[l], chunkBits - 3);
+					position += 8L * levelSizes[l];
+				}
+			}
+
+			final FrozenLongTrie frozenTrie = new FrozenLongTrie(unkSymbolId,
+					symbols, counts, terminateHere, childStart);
+			final LongTrie<String> trie = new LongTrie<String>(alphabet,
+					nextId, unkSymbol, frozenTrie);
+			final AbstractNGramLM model;
+			if (modelClass.equals(ArpaNGramLM.class.getName())) {
+				model = readArpaModel(channel, position, n, tokenizer, trie,
+						levelSizes, valueBytes, codebooks);
+			} else {
+				model = instantiate(modelClass, new ImmutableNGramLM(n,
+						tokenizer, trie),
+						tables.length > 0 ? new NodeTables(tables, parameters)
+								: null);
+			}
+			LOGGER.info("Mapped " + model.getClass().getSimpleName()
+					+ " model from " + filename);
+			return model;
+		}
+	}
+
+	/**
+	 * Create a model of the given class, on top of the base model and with
+	 * the given precomputed tables, if they are not null.
+	 */
+	private static AbstractNGramLM instantiate(final String modelClass,
+			final ImmutableNGramLM base, final NodeTables tables)
+			throws IOException {
+		if (modelClass.equals(ImmutableNGramLM.class.getName())) {
+			return base;
+		}
+		try {
+			final Class<? extends AbstractNGramLM> smoothedNgramClass = Class
+					.forName(modelClass).asSubclass(AbstractNGramLM.class);
+			if (tables != null) {
+				return smoothedNgramClass.getDeclaredConstructor(
+						AbstractNGramLM.class, NodeTables.class).newInstance(
+						base, tables);
+			}
+			return smoothedNgramClass.getDeclaredConstructor(
+					AbstractNGramLM.class).newInstance(base);
+		} catch (final ClassNotFoundException | InstantiationException
+				| IllegalAccessException | InvocationTargetException
+				| NoSuchMethodException e) {
+			throw new IOException("Cannot create model of class "
+					+ modelClass, e);
+		}
+	}
+
+	/**
+	 * Read the values of an ARPA model, which start at the given position,
+	 * in the heap and create the model.
+	 */
+	private static ArpaNGramLM readArpaModel(final FileChannel channel,
+			final long valuesPosition, final int n, final ITokenizer tokenizer,
+			final LongTrie<String> trie, final int[] levelSizes,
+			final int valueBytes, final float[][] codebooks)
+			throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE)
+				.order(ByteOrder.BIG_ENDIAN);
+		final int nLevels = levelSizes.length;
+		long position = valuesPosition;
+		if (valueBytes == 4) {
+			final float[][] logProbs = new float[nLevels][];
+			final float[][] logBackoffs = new float[nLevels][];
+			for (int l = 0; l < nLevels; l++) {
+				logProbs[l] = readFloats(channel, buffer, position,
+						levelSizes[l]);
+				position = align(position + 4L * levelSizes[l]);
+				logBackoffs[l] = readFloats(channel, buffer, position,
+						levelSizes[l]);
+				position = align(position + 4L * levelSizes[l]);
+			}
+			return new ArpaNGramLM(n, tokenizer, trie, logProbs, logBackoffs);
+		} else if (valueBytes != 1 && valueBytes != 2) {
+			throw new IOException("Unsupported value width " + valueBytes);
+		}
+
+		final QuantizedValues[] logProbs = new QuantizedValues[nLevels];
+		final QuantizedValues[] logBackoffs = new QuantizedValues[nLevels];
+		for (int l = 0; l < nLevels; l++) {
+			logProbs[l] = readCodes(channel, buffer, position, levelSizes[l],
+					valueBytes, codebooks[2 * l]);
+			position = align(position + (long) valueBytes * levelSizes[l]);
+			logBackoffs[l] = readCodes(channel, buffer, position,
+					levelSizes[l], valueBytes, codebooks[2 * l + 1]);
+			position = align(position + (long) valueBytes * levelSizes[l]);
+		}
+		return new ArpaNGramLM(n, tokenizer, trie, logProbs, logBackoffs);
+	}
+
+	/**
+	 * Read the given number of codes of the given width (in bytes) from the
+	 * given position of the channel.
+	 */
+	private static QuantizedValues readCodes(final FileChannel channel,
+			final ByteBuffer buffer, final long position, final int size,
+			final int codeBytes, final float[] codebook) throws IOException {
+		if (codeBytes == 1) {
+			final byte[] codes = new byte[size];
+			readFully(channel, ByteBuffer.wrap(codes), position);
+			return new QuantizedValues(codebook, codes, null);
+		}
+		final short[] codes = new short[size];
+		for (int i = 0; i < size;) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), 2L * (size - i)));
+			readFully(channel, buffer, position + 2L * i);
+			final int nRead = buffer.remaining() / 2;
+			buffer.asShortBuffer().get(codes, i, nRead);
+			i += nRead;
+		}
+		return new QuantizedValues(codebook, null, codes);
+	}
+
+	/**
+	 * Read the given number of floats from the given position of the
+	 * channel.
+	 */
+	private static float[] readFloats(final FileChannel channel,
+			final ByteBuffer buffer, final long position, final int size)
+			throws IOException {
+		final float[] values = new float[size];
+		for (int i = 0; i < size;) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), 4L * (size - i)));
+			readFully(channel, buffer, position + 4L * i);
+			final int nRead = buffer.remaining() / 4;
+			buffer.asFloatBuffer().get(values, i, nRead);
+			i += nRead;
+		}
+		return values;
+	}
+
+	/**
+	 * Fill the buffer with the bytes at the given position of the channel
+	 * and flip it.
+	 */
+	private static void readFully(final FileChannel channel,
+			final ByteBuffer buffer, final long position) throws IOException {
+		long readPosition = position;
+		while (buffer.hasRemaining()) {
+			final int nRead = channel.read(buffer, readPosition);
+			if (nRead < 0) {
+				throw new EOFException("The model file is truncated");
+			}
+			readPosition += nRead;
+		}
+		buffer.flip();
+	}
+
+	private static String readString(final DataInputStream in)
+			throws IOException {
+		final byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, Charsets.UTF_8);
+	}
+
+	private static ITokenizer readTokenizer(final DataInputStream in)
+			throws IOException {
+		final byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		try (ObjectInputStream ois = new ObjectInputStream(
+				new ByteArrayInputStream(bytes))) {
+			return (ITokenizer) ois.readObject();
+		} catch (final ClassNotFoundException e) {
+			throw new IOException("Cannot read tokenizer", e);
+		}
+	}
+
+	/**
+	 * Write the given model to a model file. The trie of the model is frozen,
+	 * if it is not already. The tables of an {@link IPrecomputedNGramLM} and
+	 * the (possibly quantized) values of an {@link ArpaNGramLM} are written
+	 * along with the trie.
+	 *
+	 * @param model
+	 * @param filename
+	 * @throws IOException
+	 */
+	public static void write(final AbstractNGramLM model, final String filename)
+			throws IOException {
+		final String modelClass;
+		final ArpaNGramLM arpaModel;
+		if (model instanceof NGramLM) {
+			modelClass = ImmutableNGramLM.class.getName();
+			arpaModel = null;
+		} else if (model instanceof ArpaNGramLM) {
+			modelClass = ArpaNGramLM.class.getName();
+			arpaModel = (ArpaNGramLM) model;
+		} else {
+			arpaModel = null;
+			modelClass = model.getClass().getName();
+			try {
+				model.getClass().getDeclaredConstructor(AbstractNGramLM.class);
+			} catch (final NoSuchMethodException e) {
+				throw new IllegalArgumentException(modelClass
+						+ " cannot be written to a model file", e);
+			}
+		}
+
+		final LongTrie<String> trie = model.getTrie().freeze();
+		final FrozenLongTrie frozenTrie = trie.getFrozenTrie();
+		final int[] levelSizes = new int[frozenTrie.getNumLevels()];
+		for (int l = 0; l < levelSizes.length; l++) {
+			levelSizes[l] = frozenTrie.getLevelSize(l);
+		}
+
+		final NodeTables tables;
+		if (model instanceof IPrecomputedNGramLM) {
+			try {
+				model.getClass().getDeclaredConstructor(AbstractNGramLM.class,
+						NodeTables.class);
+			} catch (final NoSuchMethodException e) {
+				throw new IllegalArgumentException(modelClass
+						+ " cannot be created from its precomputed tables", e);
+			}
+			tables = ((IPrecomputedNGramLM) model).getNodeTables();
+			for (int t = 0; t < tables.getNumTables(); t++) {
+				final ChunkedDoubleBuffer[] table = tables.getTable(t);
+				checkArgument(table.length <= levelSizes.length);
+				for (int l = 0; l < table.length; l++) {
+					checkArgument(table[l].size() == levelSizes[l],
+							"Table %s does not match level %s", t, l);
+				}
+			}
+		} else {
+			tables = null;
+		}
+
+		try (RandomAccessFile raf = new RandomAccessFile(filename, "rw")) {
+			raf.setLength(0);
+			final FileChannel channel = raf.getChannel();
+			final ByteBuffer buffer = ByteBuffer
+					.allocateDirect(WRITE_BUFFER_SIZE).order(
+							ByteOrder.BIG_ENDIAN);
+			writeHeader(channel, model.getN(), modelClass,
+					model.getTokenizer(), trie, levelSizes,
+					frozenTrie.hasCounts(), tables, arpaModel);
+
+			for (int l = 0; l < levelSizes.length; l++) {
+				pad(channel, buffer);
+				writeLongs(channel, buffer, frozenTrie.getSymbols(l));
+				if (frozenTrie.hasCounts()) {
+					writeLongs(channel, buffer, frozenTrie.getCounts(l));
+					writeLongs(channel, buffer,
+							frozenTrie.getTerminateHere(l));
+				}
+				final ChunkedIntBuffer childStart = frozenTrie.getChildStart(l);
+				for (int i = 0; i < childStart.size(); i++) {
+					if (buffer.remaining() < 4) {
+						flush(channel, buffer);
+					}
+					buffer.putInt(childStart.get(i));
+				}
+			}
+			for (int t = 0; tables != null && t < tables.getNumTables(); t++) {
+				for (final ChunkedDoubleBuffer level : tables.getTable(t)) {
+					pad(channel, buffer);
+					for (int i = 0; i < level.size(); i++) {
+						if (buffer.remaining() < 8) {
+							flush(channel, buffer);
+						}
+						buffer.putDouble(level.get(i));
+					}
+				}
+			}
+			if (arpaModel != null) {
+				writeArpaValues(channel, buffer, arpaModel);
+			}
+			flush(channel, buffer);
+		}
+	}
+
+	/**
+	 * Write a model file whose levels are stored in separate files. For each
+	 * level, the files contain the symbols, the counts, the terminateHere
+	 * counts and the child offsets as big-endian longs (ints for the
+	 * offsets).
+	 *
+	 * @param filename
+	 * @param n
+	 * @param modelClass
+	 * @param tokenizer
+	 * @param vocabulary
+	 *            a trie whose alphabet contains the symbols of the levels
+	 * @param levelSizes
+	 * @param levelFiles
+	 * @throws IOException
+	 */
+	static void write(final String filename, final int n,
+			final String modelClass, final ITokenizer tokenizer,
+			final LongTrie<String> vocabulary, final int[] levelSizes,
+			final File[][] levelFiles) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(filename, "rw")) {
+			raf.setLength(0);
+			final FileChannel channel = raf.getChannel();
+			final ByteBuffer buffer = ByteBuffer.allocate(8);
+			writeHeader(channel, n, modelClass, tokenizer, vocabulary,
+					levelSizes, true, null, null);
+
+			for (int l = 0; l < levelSizes.length; l++) {
+				pad(channel, buffer);
+				flush(channel, buffer);
+				for (final File levelFile : levelFiles[l]) {
+					try (RandomAccessFile in = new RandomAccessFile(levelFile,
+							"r")) {
+						final FileChannel inChannel = in.getChannel();
+						long transferred = 0;
+						while (transferred < inChannel.size()) {
+							transferred += inChannel.transferTo(transferred,
+									inChannel.size() - transferred, channel);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private static void flush(final FileChannel channel,
+			final ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Write the log-probabilities and the backoff weights of the given ARPA
+	 * model (or their codes, if it is quantized), level by level.
+	 */
+	private static void writeArpaValues(final FileChannel channel,
+			final ByteBuffer buffer, final ArpaNGramLM model)
+			throws IOException {
+		if (!model.isQuantized()) {
+			final float[][] logProbs = model.getLogProbs();
+			final float[][] logBackoffs = model.getLogBackoffs();
+			for (int l = 0; l < logProbs.length; l++) {
+				writeFloats(channel, buffer, logProbs[l]);
+				writeFloats(channel, buffer, logBackoffs[l]);
+			}
+			return;
+		}
+		final QuantizedValues[] logProbs = model.getQuantizedLogProbs();
+		final QuantizedValues[] logBackoffs = model.getQuantizedLogBackoffs();
+		for (int l = 0; l < logProbs.length; l++) {
+			writeCodes(channel, buffer, logProbs[l]);
+			writeCodes(channel, buffer, logBackoffs[l]);
+		}
+	}
+
+	/**
+	 * Write the codes of the given values, starting at an 8-byte aligned
+	 * position.
+	 */
+	private static void writeCodes(final FileChannel channel,
+			final ByteBuffer buffer, final QuantizedValues values)
+			throws IOException {
+		pad(channel, buffer);
+		if (values.getByteCodes() != null) {
+			for (final byte code : values.getByteCodes()) {
+				if (!buffer.hasRemaining()) {
+					flush(channel, buffer);
+				}
+				buffer.put(code);
+			}
+		} else {
+			for (final short code : values.getShortCodes()) {
+				if (buffer.remaining() < 2) {
+					flush(channel, buffer);
+				}
+				buffer.putShort(code);
+			}
+		}
+	}
+
+	/**
+	 * Write the given floats, starting at an 8-byte aligned position.
+	 */
+	private static void writeFloats(final FileChannel channel,
+			final ByteBuffer buffer, final float[] values) throws IOException {
+		pad(channel, buffer);
+		for (final float value : values) {
+			if (buffer.remaining() < 4) {
+				flush(channel, buffer);
+			}
+			buffer.putFloat(value);
+		}
+	}
+
+	/**
+	 * Write the magic number, the version and the header of a model file.
+	 * The tables may be null, if the model has no precomputed tables, and
+	 * the ARPA model is null for all other models.
+	 */
+	private static void writeHeader(final FileChannel channel, final int n,
+			final String modelClass, final ITokenizer tokenizer,
+			final LongTrie<String> trie, final int[] levelSizes,
+			final boolean hasCounts, final NodeTables tables,
+			final ArpaNGramLM arpaModel) throws IOException {
+		final ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		final DataOutputStream header = new DataOutputStream(headerBytes);
+		header.writeInt(MAGIC);
+		header.writeInt(VERSION);
+		header.writeInt(0); // The length of the header, set below
+		header.writeInt(n);
+		writeString(header, modelClass);
+		writeTokenizer(header, tokenizer);
+		writeString(header, trie.getUnkSymbol());
+		header.writeLong(trie.getUnkSymbolId());
+		header.writeLong(trie.getNextId());
+		header.writeInt(trie.getAlphabet().size());
+		for (final Entry<String, Long> entry : trie.getAlphabet().entrySet()) {
+			header.writeLong(entry.getValue());
+			writeString(header, entry.getKey());
+		}
+		header.writeInt(levelSizes.length);
+		for (final int levelSize : levelSizes) {
+			header.writeInt(levelSize);
+		}
+		header.writeBoolean(hasCounts);
+		if (tables == null) {
+			header.writeInt(0);
+			header.writeInt(0);
+		} else {
+			header.writeInt(tables.getParameters().length);
+			for (final double parameter : tables.getParameters()) {
+				header.writeDouble(parameter);
+			}
+			header.writeInt(tables.getNumTables());
+			for (int t = 0; t < tables.getNumTables(); t++) {
+				header.writeInt(tables.getTable(t).length);
+			}
+		}
+		if (arpaModel == null) {
+			header.writeInt(0);
+		} else {
+			header.writeInt(getValueBytes(arpaModel));
+			if (arpaModel.isQuantized()) {
+				for (int l = 0; l < levelSizes.length; l++) {
+					writeCodebook(header, arpaModel.getQuantizedLogProbs()[l]);
+					writeCodebook(header,
+							arpaModel.getQuantizedLogBackoffs()[l]);
+				}
+			}
+		}
+		header.close();
+
+		final ByteBuffer headerBuffer = ByteBuffer.wrap(headerBytes
+				.toByteArray());
+		headerBuffer.putInt(8, headerBuffer.limit() - 12);
+		while (headerBuffer.hasRemaining()) {
+			channel.write(headerBuffer);
+		}
+	}
+
+	/**
+	 * Pad the output so that the next array starts at an 8-byte aligned
+	 * position.
+	 */
+	private static void pad(final FileChannel channel, final ByteBuffer buffer)
+			throws IOException {
+		final long position = channel.position() + buffer.position();
+		for (long i = position; i < align(position); i++) {
+			buffer.put((byte) 0);
+		}
+	}
+
+	private static void writeCodebook(final DataOutputStream out,
+			final QuantizedValues values) throws IOException {
+		final float[] codebook = values.getCodebook();
+		out.writeInt(codebook.length);
+		for (final float value : codebook) {
+			out.writeFloat(value);
+		}
+	}
+
+	private static void writeLongs(final FileChannel channel,
+			final ByteBuffer buffer, final ChunkedLongBuffer values)
+			throws IOException {
+		for (int i = 0; i < values.size(); i++) {
+			if (buffer.remaining() < 8) {
+				flush(channel, buffer);
+			}
+			buffer.putLong(values.get(i));
+		}
+	}
+
+	private static void writeString(final DataOutputStream out,
+			final String string) throws IOException {
+		final byte[] bytes = string.getBytes(Charsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static void writeTokenizer(final DataOutputStream out,
+			final ITokenizer tokenizer) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+			oos.writeObject(tokenizer);
+		}
+		out.writeInt(bytes.size());
+		bytes.writeTo(out);
+	}
+
+	private NGramModelFile() {
+	}
+
+}
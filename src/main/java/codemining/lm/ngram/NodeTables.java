@@ -0,0 +1,51 @@
+/**
+ *
+ */
+package codemining.lm.ngram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The tables that an {@link IPrecomputedNGramLM} computes on a frozen trie,
+ * along with the parameters that it needs to use them. Each table has a
+ * buffer per level of the trie, with a value per node of the level.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public final class NodeTables {
+
+	private final ChunkedDoubleBuffer[][] tables;
+
+	private final double[] parameters;
+
+	/**
+	 * @param tables
+	 *            the buffer of each table, per level
+	 * @param parameters
+	 */
+	public NodeTables(final ChunkedDoubleBuffer[][] tables,
+			final double[] parameters) {
+		for (final ChunkedDoubleBuffer[] table : tables) {
+			checkArgument(table.length > 0);
+		}
+		this.tables = tables;
+		this.parameters = parameters;
+	}
+
+	public int getNumTables() {
+		return tables.length;
+	}
+
+	public double[] getParameters() {
+		return parameters;
+	}
+
+	/**
+	 * Return the buffers of the given table, per level.
+	 */
+	public ChunkedDoubleBuffer[] getTable(final int table) {
+		return tables[table];
+	}
+
+}
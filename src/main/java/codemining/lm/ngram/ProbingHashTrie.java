@@ -0,0 +1,446 @@
+/**
+ *
+ */
+package codemining.lm.ngram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Arrays;
+
+/**
+ * A read-only n-gram store that finds n-grams through one open-addressed
+ * ("probing") hash table per order, as in KenLM. Each n-gram is keyed by a
+ * 64-bit hash of its symbol ids, so looking up an n-gram costs (about) one
+ * random memory access, instead of one binary search per symbol in a
+ * {@link FrozenLongTrie}.
+ *
+ * The tables map each n-gram to the position of its node in its level of the
+ * underlying frozen trie. So, the counts are shared with the trie and the
+ * per-node values that smoothers precompute (probabilities, backoff weights)
+ * are found at the same positions. Navigating the children of a node still
+ * uses the trie. Only the keys are stored, so (with a very small
+ * probability) two n-grams may collide.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class ProbingHashTrie implements ISymbolTrie {
+
+	/**
+	 * A context state that holds the hashes and positions of the n-grams that
+	 * end at the current symbol.
+	 */
+	private final class HashContextState extends ContextState {
+
+		/**
+		 * The position of the context of each length or -1 if it does not
+		 * exist.
+		 */
+		final int[] contexts;
+
+		final long[] contextHashes;
+
+		/**
+		 * The position of the n-gram of each order that ends at the last
+		 * symbol or -1 if it does not exist.
+		 */
+		final int[] ngrams;
+
+		final long[] ngramHashes;
+
+		HashContextState(final int maxOrder) {
+			super(maxOrder);
+			contexts = new int[maxOrder];
+			contextHashes = new long[maxOrder];
+			ngrams = new int[maxOrder + 1];
+			ngramHashes = new long[maxOrder + 1];
+			reset();
+		}
+
+		@Override
+		public void advance(final long symbol) {
+			if (nSymbols > 0) {
+				System.arraycopy(ngrams, 1, contexts, 1, maxOrder - 1);
+				System.arraycopy(ngramHashes, 1, contextHashes, 1,
+						maxOrder - 1);
+			}
+			nSymbols++;
+			final int maxAvailableOrder = getMaxAvailableOrder();
+			for (int k = 0; k < maxAvailableOrder; k++) {
+				if (contexts[k] < 0) {
+					ngrams[k + 1] = -1;
+				} else {
+					ngramHashes[k + 1] = extendHash(contextHashes[k], symbol);
+					ngrams[k + 1] = find(k + 1, ngramHashes[k + 1]);
+				}
+			}
+		}
+
+		@Override
+		public long getContextCount(final int order) {
+			checkOrder(order);
+			final int level = order - 1;
+			final int context = contexts[level];
+			if (context < 0) {
+				return 0;
+			}
+			return counts[level].get(context)
+					- terminateHere[level].get(context)
+					- getUnkDiscount(level, contextHashes[level], false);
+		}
+
+		@Override
+		public int getContextIndex(final int order) {
+			checkOrder(order);
+			return contexts[order - 1];
+		}
+
+		@Override
+		public long getNGramCount(final int order) {
+			checkOrder(order);
+			final int ngram = ngrams[order];
+			if (ngram < 0) {
+				return 0;
+			}
+			return counts[order].get(ngram)
+					- getUnkDiscount(order, ngramHashes[order], false);
+		}
+
+		@Override
+		public int getNGramIndex(final int order) {
+			checkOrder(order);
+			return ngrams[order];
+		}
+
+		@Override
+		public void reset() {
+			nSymbols = 0;
+			Arrays.fill(contexts, -1);
+			Arrays.fill(ngrams, -1);
+			contexts[0] = 0;
+			contextHashes[0] = ROOT_HASH;
+		}
+	}
+
+	private static final long serialVersionUID = 1914575325796740107L;
+
+	/**
+	 * The hash of the empty n-gram.
+	 */
+	private static final long ROOT_HASH = 0;
+
+	/**
+	 * The maximum ratio of n-grams to buckets.
+	 */
+	private static final double MAX_LOAD_FACTOR = .67;
+
+	/**
+	 * The largest number of buckets of a level. This is the largest power of
+	 * two that fits in an array.
+	 */
+	private static final long MAX_BUCKETS = 1L << 30;
+
+	/**
+	 * Return the hash of the n-gram that extends the n-gram with the given
+	 * hash by the given symbol. The hash of the empty n-gram is 0.
+	 */
+	public static long extendHash(final long hash, final long symbol) {
+		// The finalizer of MurmurHash3
+		long h = hash * 0x9E3779B97F4A7C15L ^ symbol;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private final FrozenLongTrie trie;
+
+	/**
+	 * The hash of the n-gram in each bucket, per order.
+	 */
+	private transient long[][] keys;
+
+	/**
+	 * The position of the n-gram in each bucket in its level of the trie or
+	 * -1 if the bucket is empty, per order.
+	 */
+	private transient int[][] values;
+
+	private transient ChunkedLongBuffer[] counts;
+
+	private transient ChunkedLongBuffer[] terminateHere;
+
+	private transient ChunkedIntBuffer[] childStart;
+
+	/**
+	 * Create a hash table store of the n-grams of the given trie.
+	 *
+	 * @param trie
+	 */
+	public ProbingHashTrie(final FrozenLongTrie trie) {
+		checkArgument(trie.hasCounts(), "The trie has no counts");
+		this.trie = trie;
+		buildTables();
+	}
+
+	/**
+	 * Build the hash tables and the buffers from the trie.
+	 */
+	private void buildTables() {
+		final int nLevels = trie.getNumLevels();
+		counts = new ChunkedLongBuffer[nLevels];
+		terminateHere = new ChunkedLongBuffer[nLevels];
+		childStart = new ChunkedIntBuffer[nLevels];
+		keys = new long[nLevels][];
+		values = new int[nLevels][];
+		for (int l = 0; l < nLevels; l++) {
+			counts[l] = trie.getCounts(l);
+			terminateHere[l] = trie.getTerminateHere(l);
+			childStart[l] = trie.getChildStart(l);
+			if (l == 0) {
+				continue;
+			}
+			final long minBuckets = (long) Math.ceil(trie.getLevelSize(l)
+					/ MAX_LOAD_FACTOR);
+			final long nBuckets = Long.highestOneBit(Math.max(1,
+					minBuckets - 1)) << 1;
+			checkArgument(nBuckets <= MAX_BUCKETS, "Level " + l + " has "
+					+ trie.getLevelSize(l) + " n-grams, more than the "
+					+ (long) (MAX_BUCKETS * MAX_LOAD_FACTOR)
+					+ " that a probing hash table can hold");
+			keys[l] = new long[(int) nBuckets];
+			values[l] = new int[(int) nBuckets];
+			Arrays.fill(values[l], -1);
+		}
+
+		// Hash the n-grams level by level, extending the hashes of their
+		// prefixes
+		long[] parentHashes = { ROOT_HASH };
+		for (int l = 1; l < nLevels; l++) {
+			final ChunkedLongBuffer symbols = trie.getSymbols(l);
+			final long[] levelHashes = new long[trie.getLevelSize(l)];
+			for (int parent = 0; parent < parentHashes.length; parent++) {
+				final int to = childStart[l - 1].get(parent + 1);
+				for (int i = childStart[l - 1].get(parent); i < to; i++) {
+					levelHashes[i] = extendHash(parentHashes[parent],
+							symbols.get(i));
+					insert(l, levelHashes[i], i);
+				}
+			}
+			parentHashes = levelHashes;
+		}
+	}
+
+	@Override
+	public long countDistinctStartingWith(final long[] prefix,
+			final boolean useUNKs) {
+		checkArgument(prefix.length > 0);
+		final long hash = findHash(prefix, 0, prefix.length, useUNKs);
+		final int level = prefix.length;
+		final int pos = find(level, hash);
+		if (pos < 0) {
+			return 0;
+		}
+		final int nChildren = childStart[level].get(pos + 1)
+				- childStart[level].get(pos);
+		if (!useUNKs
+				&& find(level + 1, extendHash(hash, getUnkSymbolId())) >= 0) {
+			return nChildren - 1;
+		} else {
+			return nChildren;
+		}
+	}
+
+	@Override
+	public ContextState createContextState(final int maxOrder) {
+		return new HashContextState(maxOrder);
+	}
+
+	/**
+	 * Return the position of the n-gram with the given hash in the given
+	 * level or -1 if it does not exist. The root is at level 0.
+	 */
+	private int find(final int level, final long hash) {
+		if (level == 0) {
+			return hash == ROOT_HASH ? 0 : -1;
+		} else if (level >= keys.length) {
+			return -1;
+		}
+		final long[] levelKeys = keys[level];
+		final int[] levelValues = values[level];
+		final int mask = levelKeys.length - 1;
+		int bucket = (int) hash & mask;
+		while (levelValues[bucket] >= 0) {
+			if (levelKeys[bucket] == hash) {
+				return levelValues[bucket];
+			}
+			bucket = (bucket + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Return the hash of the n-gram symbols[from, to). When UNKs are used,
+	 * the symbols that do not follow their prefix are substituted with UNK,
+	 * as the trie does. Without UNKs, the hash is computed without any
+	 * lookup.
+	 */
+	private long findHash(final long[] symbols, final int from, final int to,
+			final boolean useUNKs) {
+		long hash = ROOT_HASH;
+		for (int i = from; i < to; i++) {
+			final long extended = extendHash(hash, symbols[i]);
+			if (useUNKs && find(i - from + 1, extended) < 0) {
+				hash = extendHash(hash, getUnkSymbolId());
+			} else {
+				hash = extended;
+			}
+		}
+		return hash;
+	}
+
+	@Override
+	public long getCount(final long[] ngramSymbols, final boolean useUNKs,
+			final boolean useTerminals) {
+		final int level = ngramSymbols.length;
+		final long hash = findHash(ngramSymbols, 0, level, useUNKs);
+		final int pos = find(level, hash);
+		if (pos < 0) {
+			return 0;
+		}
+
+		final long unkDiscountCount = getUnkDiscount(level, hash, useUNKs);
+		final long totalCount;
+		if (useTerminals) {
+			totalCount = counts[level].get(pos) - unkDiscountCount;
+		} else {
+			totalCount = counts[level].get(pos) - terminateHere[level].get(pos)
+					- unkDiscountCount;
+		}
+
+		checkArgument(totalCount >= 0);
+		return totalCount;
+	}
+
+	/**
+	 * Return the underlying trie.
+	 */
+	public FrozenLongTrie getFrozenTrie() {
+		return trie;
+	}
+
+	@Override
+	public void getNGramCounts(final long[] symbols, final int from,
+			final int to, final boolean useUNKs, final long[] nGramCounts) {
+		checkArgument(from < to);
+		final int prefixLevel = to - 1 - from;
+		final long prefixHash = findHash(symbols, from, to - 1, useUNKs);
+		final int prefixPos = find(prefixLevel, prefixHash);
+		if (prefixPos < 0) {
+			nGramCounts[0] = 0;
+			nGramCounts[1] = 0;
+			return;
+		}
+		nGramCounts[1] = counts[prefixLevel].get(prefixPos)
+				- terminateHere[prefixLevel].get(prefixPos)
+				- getUnkDiscount(prefixLevel, prefixHash, useUNKs);
+		checkArgument(nGramCounts[1] >= 0);
+
+		long hash = extendHash(prefixHash, symbols[to - 1]);
+		int pos = find(prefixLevel + 1, hash);
+		if (pos < 0 && useUNKs) {
+			hash = extendHash(prefixHash, getUnkSymbolId());
+			pos = find(prefixLevel + 1, hash);
+		}
+		if (pos < 0) {
+			nGramCounts[0] = 0;
+		} else {
+			nGramCounts[0] = counts[prefixLevel + 1].get(pos)
+					- getUnkDiscount(prefixLevel + 1, hash, useUNKs);
+			checkArgument(nGramCounts[0] >= 0);
+		}
+	}
+
+	@Override
+	public ILongTrieNode getRoot() {
+		return trie.getRoot();
+	}
+
+	@Override
+	public ILongTrieNode getTrieNodeForInput(final long[] ngramSymbols,
+			final boolean useUNKs) {
+		return trie.getTrieNodeForInput(ngramSymbols, useUNKs);
+	}
+
+	@Override
+	public ILongTrieNode getTrieNodeForInput(final long[] ngramSymbols,
+			final boolean useUNKs, final ILongTrieNode startNode) {
+		return trie.getTrieNodeForInput(ngramSymbols, useUNKs, startNode);
+	}
+
+	@Override
+	public ILongTrieNode getTrieNodeForInput(final long[] symbols,
+			final int from, final int to, final boolean useUNKs) {
+		return trie.getTrieNodeForInput(symbols, from, to, useUNKs);
+	}
+
+	/**
+	 * Return the count of the UNK child of the n-gram with the given hash and
+	 * length, when UNKs are not used.
+	 */
+	private long getUnkDiscount(final int level, final long hash,
+			final boolean useUNKs) {
+		if (useUNKs) {
+			return 0;
+		}
+		final int unkPos = find(level + 1, extendHash(hash, getUnkSymbolId()));
+		if (unkPos >= 0) {
+			return counts[level + 1].get(unkPos);
+		}
+		return 0;
+	}
+
+	@Override
+	public long getUnkSymbolId() {
+		return trie.getUnkSymbolId();
+	}
+
+	/**
+	 * Insert the position of the n-gram with the given hash to the table of
+	 * the given level.
+	 */
+	private void insert(final int level, final long hash, final int index) {
+		final long[] levelKeys = keys[level];
+		final int[] levelValues = values[level];
+		final int mask = levelKeys.length - 1;
+		int bucket = (int) hash & mask;
+		while (levelValues[bucket] >= 0) {
+			bucket = (bucket + 1) & mask;
+		}
+		levelKeys[bucket] = hash;
+		levelValues[bucket] = index;
+	}
+
+	private void readObject(final ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		buildTables();
+	}
+
+	@Override
+	public long sumStartingWith(final long[] prefix, final boolean useUNKs) {
+		checkArgument(prefix.length > 0);
+		final long hash = findHash(prefix, 0, prefix.length, useUNKs);
+		final int pos = find(prefix.length, hash);
+		if (pos < 0) {
+			return 0;
+		}
+		return counts[prefix.length].get(pos)
+				- terminateHere[prefix.length].get(pos);
+	}
+
+}
@@ -0,0 +1,232 @@
+/**
+ *
+ */
+package codemining.lm.ngram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import com.google.common.primitives.Floats;
+
+/**
+ * An array of floats that is quantized to a codebook of at most 2^bits
+ * values. The codebook is built by binning: the sorted values are split into
+ * bins with (about) the same number of values and each bin is represented by
+ * the mean of its values. As in KenLM, exact zeros (e.g. the backoff weights
+ * of the contexts that are not extended) have a code of their own, so that
+ * they stay exact and no other value is quantized to zero. Codes of up to 8
+ * bits are stored in a byte and codes of up to 16 bits in a short.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+final class QuantizedValues implements Serializable {
+
+	private static final long serialVersionUID = 2966313218698244536L;
+
+	public static final int MAX_BITS = 16;
+
+	/**
+	 * The value of each code, in increasing order.
+	 */
+	private final float[] codebook;
+
+	/**
+	 * The code of zero or -1 if no value is zero.
+	 */
+	private final int zeroCode;
+
+	/**
+	 * The codes, if they fit in a byte, else null.
+	 */
+	private final byte[] byteCodes;
+
+	/**
+	 * The codes, if they do not fit in a byte, else null.
+	 */
+	private final short[] shortCodes;
+
+	/**
+	 * Quantize the given values.
+	 *
+	 * @param values
+	 * @param bits
+	 *            the number of bits of each code, in [1, 16]
+	 */
+	QuantizedValues(final float[] values, final int bits) {
+		checkArgument(bits > 0 && bits <= MAX_BITS,
+				"The number of bits must be between 1 and " + MAX_BITS);
+		codebook = buildCodebook(values, 1 << bits);
+		zeroCode = Floats.contains(values, 0f) ? Arrays.binarySearch(codebook,
+				0f) : -1;
+		if (bits <= 8) {
+			byteCodes = new byte[values.length];
+			shortCodes = null;
+			for (int i = 0; i < values.length; i++) {
+				byteCodes[i] = (byte) getCode(values[i]);
+			}
+		} else {
+			byteCodes = null;
+			shortCodes = new short[values.length];
+			for (int i = 0; i < values.length; i++) {
+				shortCodes[i] = (short) getCode(values[i]);
+			}
+		}
+	}
+
+	/**
+	 * Create quantized values from the given codebook and codes, e.g. as read
+	 * from a model file. Exactly one of the code arrays must be given.
+	 *
+	 * @param codebook
+	 * @param byteCodes
+	 * @param shortCodes
+	 */
+	QuantizedValues(final float[] codebook, final byte[] byteCodes,
+			final short[] shortCodes) {
+		checkArgument((byteCodes == null) != (shortCodes == null),
+				"Exactly one of the code arrays must be given");
+		this.codebook = codebook;
+		zeroCode = Math.max(-1, Arrays.binarySearch(codebook, 0f));
+		this.byteCodes = byteCodes;
+		this.shortCodes = shortCodes;
+	}
+
+	/**
+	 * Return the codebook of the given values, with at most maxSize distinct
+	 * entries. If any value is zero, one of the entries is zero and the rest
+	 * are the bins of the non-zero values.
+	 */
+	private static float[] buildCodebook(final float[] values,
+			final int maxSize) {
+		int nZeros = 0;
+		for (final float value : values) {
+			if (value == 0) {
+				nZeros++;
+			}
+		}
+		final float[] sorted = new float[values.length - nZeros];
+		int pos = 0;
+		for (final float value : values) {
+			if (value != 0) {
+				sorted[pos++] = value;
+			}
+		}
+		Arrays.sort(sorted);
+		final int maxBins = nZeros > 0 ? maxSize - 1 : maxSize;
+		final float[] bins = new float[Math.min(maxBins, sorted.length) + 1];
+		int nBins = 0;
+		int binStart = 0;
+		final int nMaxBins = bins.length - 1;
+		for (int b = 0; b < nMaxBins; b++) {
+			int binEnd = (int) ((long) sorted.length * (b + 1) / nMaxBins);
+			// Equal values go to the same bin
+			while (binEnd < sorted.length && binEnd > binStart
+					&& sorted[binEnd] == sorted[binEnd - 1]) {
+				binEnd++;
+			}
+			if (binEnd <= binStart) {
+				continue;
+			}
+			double sum = 0;
+			for (int i = binStart; i < binEnd; i++) {
+				sum += sorted[i];
+			}
+			final float mean = (float) (sum / (binEnd - binStart));
+			if (nBins == 0 || bins[nBins - 1] != mean) {
+				bins[nBins] = mean;
+				nBins++;
+			}
+			binStart = binEnd;
+		}
+		if (nZeros > 0 && Arrays.binarySearch(bins, 0, nBins, 0f) < 0) {
+			bins[nBins] = 0f;
+			nBins++;
+		}
+		final float[] codebook = Arrays.copyOf(bins, nBins);
+		Arrays.sort(codebook);
+		return codebook;
+	}
+
+	/**
+	 * Return the (dequantized) value at the given position.
+	 */
+	public float get(final int i) {
+		if (byteCodes != null) {
+			return codebook[byteCodes[i] & 0xFF];
+		}
+		return codebook[shortCodes[i] & 0xFFFF];
+	}
+
+	/**
+	 * Return the codes if they fit in a byte, else null. Not to be modified.
+	 */
+	byte[] getByteCodes() {
+		return byteCodes;
+	}
+
+	/**
+	 * Return the code of the nearest entry of the codebook. Only zero is
+	 * given the code of zero, unless zero is the only entry (i.e. the mean of
+	 * the only bin of the non-zero values is zero).
+	 */
+	private int getCode(final float value) {
+		if (value == 0 && zeroCode >= 0) {
+			return zeroCode;
+		}
+		final int pos = Arrays.binarySearch(codebook, value);
+		if (pos >= 0) {
+			return pos;
+		}
+		final int next = -pos - 1;
+		final int lower = next - 1 == zeroCode ? next - 2 : next - 1;
+		final int upper = next == zeroCode ? next + 1 : next;
+		if (lower < 0 && upper >= codebook.length) {
+			return zeroCode;
+		} else if (lower < 0) {
+			return upper;
+		} else if (upper >= codebook.length) {
+			return lower;
+		}
+		return value - codebook[lower] <= codebook[upper] - value ? lower
+				: upper;
+	}
+
+	/**
+	 * Return the value of each code. Not to be modified.
+	 */
+	float[] getCodebook() {
+		return codebook;
+	}
+
+	/**
+	 * Return the number of distinct values.
+	 */
+	public int getCodebookSize() {
+		return codebook.length;
+	}
+
+	/**
+	 * Return the codes if they do not fit in a byte, else null. Not to be
+	 * modified.
+	 */
+	short[] getShortCodes() {
+		return shortCodes;
+	}
+
+	/**
+	 * Return the dequantized values.
+	 */
+	public float[] toArray() {
+		final int size = byteCodes != null ? byteCodes.length
+				: shortCodes.length;
+		final float[] values = new float[size];
+		for (int i = 0; i < size; i++) {
+			values[i] = get(i);
+		}
+		return values;
+	}
+
+}
@@ -0,0 +1,120 @@
+/**
+ *
+ */
+package codemining.lm.ngram;
+
+import java.util.List;
+
+/**
+ * A sentence mapped to the symbol ids of a trie, used for scoring all its
+ * n-grams without creating objects for each n-gram. The n-grams are given as
+ * ranges [from, to) of the sentence. The sequence holds a {@link ContextState}
+ * on the trie, so that n-grams that end at increasing positions are counted
+ * incrementally, and the counts of the last counted n-gram. Therefore, it
+ * should be used by a single thread and only with the model that created it.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public final class SymbolSequence {
+
+	private final List<String> tokens;
+
+	private final long[] symbols;
+
+	/**
+	 * The count of the last counted n-gram and of its prefix.
+	 */
+	final long[] counts = new long[2];
+
+	private final ContextState state;
+
+	/**
+	 * The position of the last symbol that the state has advanced to, or -1.
+	 */
+	private int statePosition = -1;
+
+	SymbolSequence(final List<String> tokens, final long[] symbols,
+			final ContextState state) {
+		this.tokens = tokens;
+		this.symbols = symbols;
+		this.state = state;
+	}
+
+	/**
+	 * Return the maximum order of the n-grams that the state can count.
+	 */
+	int getMaxOrder() {
+		return state.getMaxOrder();
+	}
+
+	/**
+	 * Return the n-gram of the tokens in [from, to).
+	 *
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public NGram<String> getNGram(final int from, final int to) {
+		return new NGram<String>(tokens, from, to);
+	}
+
+	/**
+	 * Return the count of the last counted n-gram.
+	 *
+	 * @see AbstractNGramLM#countNGram(SymbolSequence, int, int, boolean)
+	 */
+	public long getNGramCount() {
+		return counts[0];
+	}
+
+	/**
+	 * Return the count of the prefix of the last counted n-gram, excluding
+	 * the sequences that terminate at the prefix.
+	 *
+	 * @see AbstractNGramLM#countNGram(SymbolSequence, int, int, boolean)
+	 */
+	public long getPrefixCount() {
+		return counts[1];
+	}
+
+	/**
+	 * Return the state positioned at the given token, i.e. for the n-grams
+	 * that end at that token. The state only walks backwards (by restarting
+	 * from the longest context) when positions are requested out of order.
+	 *
+	 * @param position
+	 * @return
+	 */
+	ContextState getStateAt(final int position) {
+		if (position < statePosition || statePosition < 0
+				|| position - statePosition >= state.getMaxOrder()) {
+			state.reset();
+			statePosition = Math.max(0, position - state.getMaxOrder() + 1) - 1;
+		}
+		while (statePosition < position) {
+			statePosition++;
+			state.advance(symbols[statePosition]);
+		}
+		return state;
+	}
+
+	/**
+	 * Return the symbol ids of the tokens. Tokens that are not in the
+	 * vocabulary are {@link LongArrayTrie#NO_SYMBOL}. The array must not be
+	 * modified.
+	 *
+	 * @return
+	 */
+	public long[] getSymbols() {
+		return symbols;
+	}
+
+	public List<String> getTokens() {
+		return tokens;
+	}
+
+	public int size() {
+		return symbols.length;
+	}
+}
@@ -0,0 +1,146 @@
+/**
+ * 
+ */
+package codemining.lm.ngram.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import codemining.lm.ngram.cache.ParameterOptimizer.LPair;
+import codemining.util.parallel.ParallelThreadPool;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
+
+/**
+ * Collect the calibration data of a cache from a set of files, scoring the
+ * files in parallel. Each file uses its own cache, so the pairs of each file
+ * are collected separately.
+ * 
+ * The files are scored in batches, in the order they are given. The pairs of
+ * the files are merged in the same order and once the number of distinct
+ * pairs exceeds the threshold, the remaining files are skipped. The pairs are
+ * therefore the same as when scoring the files one by one, while at most one
+ * batch is scored in vain.
+ * 
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ * 
+ */
+abstract class CalibrationDataExtractor {
+
+	private static final Logger LOGGER = Logger
+			.getLogger(CalibrationDataExtractor.class.getName());
+
+	/**
+	 * The number of files that are scored in parallel between checking the
+	 * number of distinct pairs.
+	 */
+	private static final int BATCH_SIZE = 4 * Runtime.getRuntime()
+			.availableProcessors();
+
+	private final long distinctPairsThreshold;
+
+	/**
+	 * The pairs of the file that each thread currently scores.
+	 */
+	private final ThreadLocal<Multiset<LPair>> currentFilePairs = new ThreadLocal<Multiset<LPair>>();
+
+	/**
+	 * @param distinctPairsThreshold
+	 *            the number of distinct pairs after which no more files are
+	 *            scored
+	 */
+	CalibrationDataExtractor(final long distinctPairsThreshold) {
+		this.distinctPairsThreshold = distinctPairsThreshold;
+	}
+
+	/**
+	 * Add a pair. This should be called from scoreFile().
+	 */
+	final void addPair(final LPair pair) {
+		currentFilePairs.get().add(pair);
+	}
+
+	/**
+	 * Score all the files and return the pairs that were added.
+	 * 
+	 * @param files
+	 * @return
+	 * @throws IOException
+	 *             the first exception thrown by scoreFile(), after the batch
+	 *             of the file has been scored
+	 */
+	final Multiset<LPair> extract(final Collection<File> files)
+			throws IOException {
+		final Multiset<LPair> pairs = HashMultiset.create();
+		final List<File> fileList = Lists.newArrayList(files);
+		for (int from = 0; from < fileList.size()
+				&& pairs.elementSet().size() <= distinctPairsThreshold; from += BATCH_SIZE) {
+			final List<File> batch = fileList.subList(from,
+					Math.min(from + BATCH_SIZE, fileList.size()));
+			final List<Multiset<LPair>> batchPairs = scoreBatch(batch);
+			for (final Multiset<LPair> filePairs : batchPairs) {
+				if (pairs.elementSet().size() > distinctPairsThreshold) {
+					break;
+				}
+				pairs.addAll(filePairs);
+			}
+		}
+		return pairs;
+	}
+
+	/**
+	 * Score the files in parallel and return the pairs of each file.
+	 */
+	private List<Multiset<LPair>> scoreBatch(final List<File> batch)
+			throws IOException {
+		final List<Multiset<LPair>> batchPairs = Lists.newArrayList();
+		for (int i = 0; i < batch.size(); i++) {
+			batchPairs.add(HashMultiset.<LPair> create());
+		}
+
+		final AtomicReference<IOException> exception = new AtomicReference<IOException>();
+		final ParallelThreadPool threadPool = new ParallelThreadPool();
+		for (int i = 0; i < batch.size(); i++) {
+			final int fileIdx = i;
+			threadPool.pushTask(new Runnable() {
+
+				@Override
+				public void run() {
+					currentFilePairs.set(batchPairs.get(fileIdx));
+					try {
+						scoreFile(batch.get(fileIdx));
+					} catch (final IOException e) {
+						exception.compareAndSet(null, e);
+						LOGGER.warning(ExceptionUtils.getFullStackTrace(e));
+					} finally {
+						currentFilePairs.remove();
+					}
+				}
+
+			});
+		}
+		threadPool.waitForTermination();
+
+		if (exception.get() != null) {
+			throw exception.get();
+		}
+		return batchPairs;
+	}
+
+	/**
+	 * Score a single file, calling addPair() for each pair.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	protected abstract void scoreFile(File file) throws IOException;
+
+}
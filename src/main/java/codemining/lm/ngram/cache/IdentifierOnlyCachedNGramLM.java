@@ -24,10 +24,8 @@ import codemining.lm.ILanguageModel;
 import codemining.lm.ITokenGeneratingLanguageModel;
 import codemining.lm.ngram.AbstractNGramLM;
 import codemining.lm.ngram.NGram;
-import codemining.lm.ngram.cache.SymbolicWeightCache.DecayFactor;
 import codemining.util.SettingsLoader;
 
-import com.google.common.collect.HashMultiset;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multiset;
@@ -47,16 +45,26 @@ public class IdentifierOnlyCachedNGramLM implements
 
 		private static final long serialVersionUID = 3047560629014010487L;
 
-		final Multiset<ParameterOptimizer.LPair> elements = HashMultiset
-				.create();
+		private final CalibrationDataExtractor extractor = new CalibrationDataExtractor(
+				CALIBRATION_SIZE_THRESHOLD) {
 
-		public IdentifierOnlyCachedNGramLMDataExtractor(
-				final AbstractNGramLM baseNgram,
-				final AbstractNGramLM typeNgram, final String identifierType) {
-			super(baseNgram, typeNgram, identifierType, .5, .5); // These params
-																	// are not
-																	// really
-																	// used...
+			@Override
+			protected void scoreFile(final File file) {
+				try {
+					getAbsoluteEntropy(file);
+				} catch (final IOException e) {
+					LOGGER.warning(ExceptionUtils.getFullStackTrace(e));
+				}
+			}
+
+		};
+
+		IdentifierOnlyCachedNGramLMDataExtractor(
+				final ProbabilityMemo baseProbabilities,
+				final ProbabilityMemo typeProbabilities,
+				final String identifierType) {
+			// These params are not really used...
+			super(baseProbabilities, typeProbabilities, identifierType, .5, .5);
 		}
 
 		@Override
@@ -64,43 +72,37 @@ public class IdentifierOnlyCachedNGramLM implements
 			return new SymbolicWeightCache<String>(.5, firstEntry);
 		}
 
+		/**
+		 * Score the files in parallel and return the calibration pairs.
+		 */
 		final Multiset<ParameterOptimizer.LPair> getDataParameters(
 				final Collection<File> files) {
-			for (final File f : files) {
-				try {
-					this.getAbsoluteEntropy(f);
-				} catch (final IOException e) {
-					LOGGER.warning(ExceptionUtils.getFullStackTrace(e));
-				}
-				if (elements.entrySet().size() > CALIBRATION_SIZE_THRESHOLD) {
-					break;
-				}
+			try {
+				return extractor.extract(files);
+			} catch (final IOException e) {
+				// scoreFile() does not throw
+				throw new IllegalStateException(e);
 			}
-			return elements;
 		}
 
 		@Override
 		public double getProbabilityFor(final NGram<String> ngram,
 				final ICache<String> cache, final double probOfIdentifier) {
-			final double ngramProb = baseNgram.getProbabilityFor(ngram);
+			final double ngramProb = getBaseProbabilities()
+					.getProbabilityFor(ngram);
 			final String lastWord = ngram.get(ngram.size() - 1);
 			final SymbolicWeightCache<String> symbolicCache = (SymbolicWeightCache<String>) cache;
 
-			final List<DecayFactor> cacheProb = symbolicCache
-					.getDecayFactorFor(lastWord);
-
 			final ParameterOptimizer.LPair ngramPair = new ParameterOptimizer.LPair();
 			ngramPair.ngramProb = ngramProb;
-			if (cacheProb != null) {
-				ngramPair.cacheProb = Lists.newArrayList(cacheProb);
-			} else {
-				ngramPair.cacheProb = Lists.newArrayList();
-			}
+			ngramPair.decayCounts = symbolicCache.getDecayCountsFor(lastWord);
+			ngramPair.initialDecayCount = symbolicCache
+					.getInitialDecayCountFor(lastWord);
 			ngramPair.importance = probOfIdentifier;
 			checkArgument(ngramProb > 0 && ngramProb <= 1,
 					"N-gram probablity should be between 0,1 but is "
 							+ ngramProb);
-			elements.add(ngramPair);
+			extractor.addPair(ngramPair);
 
 			return .5;
 		}
@@ -126,6 +128,14 @@ public class IdentifierOnlyCachedNGramLM implements
 
 	final String identiferNameType;
 
+	/**
+	 * The memoized probabilities of baseNgram and typeNgram. The memos are
+	 * not serialized, but created again when they are first used.
+	 */
+	private transient volatile ProbabilityMemo baseProbabilities;
+
+	private transient volatile ProbabilityMemo typeProbabilities;
+
 	public static final int MAX_GENERATED_SENTENCE_LENGTH = 10000;
 
 	/**
@@ -143,9 +153,14 @@ public class IdentifierOnlyCachedNGramLM implements
 		this.baseNgram = baseNgram;
 		this.typeNgram = typeNgram;
 		identiferNameType = identifierType;
+		baseProbabilities = new ProbabilityMemo(baseNgram,
+				ProbabilityMemo.DEFAULT_MAX_SIZE);
+		typeProbabilities = new ProbabilityMemo(typeNgram,
+				ProbabilityMemo.DEFAULT_MAX_SIZE);
 
+		// Share the memos with the extractor
 		final IdentifierOnlyCachedNGramLMDataExtractor ex = new IdentifierOnlyCachedNGramLMDataExtractor(
-				baseNgram, typeNgram, identifierType);
+				baseProbabilities, typeProbabilities, identifierType);
 
 		final ParameterOptimizer opt = new ParameterOptimizer(
 				ex.getDataParameters(parameterCalibrationFiles));
@@ -161,9 +176,28 @@ public class IdentifierOnlyCachedNGramLM implements
 	public IdentifierOnlyCachedNGramLM(final AbstractNGramLM baseNgram,
 			final AbstractNGramLM typeNgram, final String identifierType,
 			final double cacheLambda, final double cacheDecay) {
-		this.baseNgram = baseNgram;
-		this.typeNgram = typeNgram;
+		this(new ProbabilityMemo(baseNgram, ProbabilityMemo.DEFAULT_MAX_SIZE),
+				new ProbabilityMemo(typeNgram, ProbabilityMemo.DEFAULT_MAX_SIZE),
+				identifierType, cacheLambda, cacheDecay);
+	}
+
+	/**
+	 * @param baseProbabilities
+	 *            the memo of the base model, that may be shared with other
+	 *            models
+	 * @param typeProbabilities
+	 *            the memo of the type model, that may be shared with other
+	 *            models
+	 */
+	IdentifierOnlyCachedNGramLM(final ProbabilityMemo baseProbabilities,
+			final ProbabilityMemo typeProbabilities,
+			final String identifierType, final double cacheLambda,
+			final double cacheDecay) {
+		baseNgram = baseProbabilities.getModel();
+		typeNgram = typeProbabilities.getModel();
 		identiferNameType = identifierType;
+		this.baseProbabilities = baseProbabilities;
+		this.typeProbabilities = typeProbabilities;
 		cacheWeight = cacheLambda;
 		cacheDecayConst = cacheDecay;
 	}
@@ -186,6 +220,21 @@ public class IdentifierOnlyCachedNGramLM implements
 		return new WeightCache<String>(cacheDecayConst, className);
 	}
 
+	/**
+	 * Create the memos of the models, if they have not been created (e.g.
+	 * after deserialization).
+	 */
+	private synchronized void createMemos() {
+		if (baseProbabilities == null) {
+			baseProbabilities = new ProbabilityMemo(baseNgram,
+					ProbabilityMemo.DEFAULT_MAX_SIZE);
+		}
+		if (typeProbabilities == null) {
+			typeProbabilities = new ProbabilityMemo(typeNgram,
+					ProbabilityMemo.DEFAULT_MAX_SIZE);
+		}
+	}
+
 	@Override
 	public List<FullToken> generateSentence() {
 		final List<FullToken> production = Lists.newArrayList();
@@ -272,6 +321,17 @@ public class IdentifierOnlyCachedNGramLM implements
 		return getLogProbOfSentence(tokens, className);
 	}
 
+	/**
+	 * Return the memo of the probabilities of the base model, e.g. for its
+	 * hit rate.
+	 */
+	public ProbabilityMemo getBaseProbabilities() {
+		if (baseProbabilities == null) {
+			createMemos();
+		}
+		return baseProbabilities;
+	}
+
 	/**
 	 * @param file
 	 */
@@ -339,14 +399,14 @@ public class IdentifierOnlyCachedNGramLM implements
 			final NGram<String> valueNgram = NGram.constructNgramAt(i,
 					tokenValues, baseNgram.getN());
 
-			final double probOfIdentifier = typeNgram
+			final double probOfIdentifier = getTypeProbabilities()
 					.getProbabilityFor(constructIdentNgram(tokTypeNgram));
 
 			if (valueNgram.size() > 1) {
 				final double prob = probOfIdentifier
 						* getProbabilityFor(valueNgram, cache, probOfIdentifier)
 						+ (1. - probOfIdentifier)
-						* baseNgram.getProbabilityFor(valueNgram);
+						* getBaseProbabilities().getProbabilityFor(valueNgram);
 				checkArgument(prob > 0);
 				checkArgument(!Double.isInfinite(prob));
 				logProb += DoubleMath.log2(prob);
@@ -362,7 +422,8 @@ public class IdentifierOnlyCachedNGramLM implements
 
 	public double getProbabilityFor(final NGram<String> ngram,
 			final ICache<String> cache, final double probOfIdentifier) {
-		final double ngramProb = baseNgram.getProbabilityFor(ngram);
+		final double ngramProb = getBaseProbabilities().getProbabilityFor(
+				ngram);
 		final String lastWord = ngram.get(ngram.size() - 1);
 		final double cacheProb = cache.getProbabilityFor(lastWord);
 
@@ -374,6 +435,16 @@ public class IdentifierOnlyCachedNGramLM implements
 		return baseNgram.getTokenizer();
 	}
 
+	/**
+	 * Return the memo of the probabilities of the token type model.
+	 */
+	public ProbabilityMemo getTypeProbabilities() {
+		if (typeProbabilities == null) {
+			createMemos();
+		}
+		return typeProbabilities;
+	}
+
 	@Override
 	public AbstractFileFilter modelledFilesFilter() {
 		return baseNgram.modelledFilesFilter();
@@ -6,14 +6,15 @@ package codemining.lm.ngram.cache;
 import static com.google.common.base.Preconditions.checkArgument;
 
 import java.util.Arrays;
-import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.logging.Logger;
 
 import org.apache.commons.lang.exception.ExceptionUtils;
 
 import cc.mallet.optimize.GradientAscent;
 import cc.mallet.optimize.Optimizable;
-import codemining.lm.ngram.cache.SymbolicWeightCache.DecayFactor;
+import codemining.util.parallel.ParallelThreadPool;
 
 import com.google.common.base.Objects;
 import com.google.common.collect.Multiset;
@@ -21,14 +22,90 @@ import com.google.common.collect.Multiset.Entry;
 import com.google.common.math.DoubleMath;
 
 /**
+ * Optimizes the weight of a cache given the n-gram probability and the
+ * symbolic cache weights of a set of tokens. The data are flattened into
+ * primitive arrays and the cache probability of each token is computed once
+ * per decay. The decays of the grid are optimized concurrently, each with
+ * its own objective over the shared data, and the value and gradient sums
+ * are computed by parallel reductions over fixed chunks of the data, so that
+ * they do not depend on the scheduling of the threads.
+ * 
  * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
  * 
  */
-class ParameterOptimizer implements Optimizable.ByGradientValue {
+class ParameterOptimizer {
+
+	/**
+	 * The objective of the optimization of the cache weight (lambda) for a
+	 * fixed decay.
+	 */
+	private final class FixedDecayObjective implements
+			Optimizable.ByGradientValue {
+
+		final double decay;
+
+		final double[] cacheProbs;
+
+		double lambda = .5;
+
+		FixedDecayObjective(final double decay) {
+			this.decay = decay;
+			cacheProbs = computeCacheProbabilities(decay);
+		}
+
+		@Override
+		public int getNumParameters() {
+			return 1;
+		}
+
+		@Override
+		public double getParameter(final int i) {
+			return lambda;
+		}
+
+		@Override
+		public void getParameters(final double[] buffer) {
+			buffer[0] = lambda;
+		}
+
+		@Override
+		public double getValue() {
+			return computeValue(cacheProbs, lambda);
+		}
+
+		@Override
+		public void getValueGradient(final double[] gradient) {
+			gradient[0] = computeGradient(cacheProbs, lambda);
+			LOGGER.fine("At d=" + decay + " l=" + lambda + " the gradient is "
+					+ gradient[0]);
+		}
+
+		@Override
+		public void setParameter(final int i, final double value) {
+			lambda = value;
+		}
+
+		@Override
+		public void setParameters(final double[] values) {
+			lambda = values[0];
+		}
+	}
 
 	public static class LPair {
 		double ngramProb;
-		List<DecayFactor> cacheProb;
+
+		/**
+		 * The decay counts of the occurrences of the token in the cache.
+		 * 
+		 * @see SymbolicWeightCache#getDecayCountsFor(Object)
+		 */
+		int[] decayCounts = new int[0];
+
+		/**
+		 * @see SymbolicWeightCache#getInitialDecayCountFor(Object)
+		 */
+		int initialDecayCount = -1;
+
 		double importance = 1; // This is used when only some tokens use this
 								// cache
 
@@ -41,95 +118,164 @@ class ParameterOptimizer implements Optimizable.ByGradientValue {
 				return false;
 			if (Double.compare(importance, other.importance) != 0)
 				return false;
-			if (other.cacheProb.equals(cacheProb))
+			if (initialDecayCount != other.initialDecayCount)
+				return false;
+			if (!Arrays.equals(other.decayCounts, decayCounts))
 				return false;
 			return true;
 		}
 
 		@Override
 		public int hashCode() {
-			return Objects.hashCode(ngramProb, cacheProb, importance);
+			return Objects.hashCode(ngramProb, importance, initialDecayCount)
+					* 31 + Arrays.hashCode(decayCounts);
 		}
 
 	}
 
-	final Multiset<LPair> elems;
+	/**
+	 * Sums the value or the gradient terms of a range of pairs, splitting it
+	 * in halves down to REDUCTION_CHUNK_SIZE pairs.
+	 */
+	private final class ReductionTask extends RecursiveTask<Double> {
+
+		private static final long serialVersionUID = -8305478575123449112L;
+
+		final double[] cacheProbs;
+
+		final double lambda;
+
+		final boolean isGradient;
+
+		final int from;
+
+		final int to;
+
+		ReductionTask(final double[] cacheProbs, final double lambda,
+				final boolean isGradient, final int from, final int to) {
+			this.cacheProbs = cacheProbs;
+			this.lambda = lambda;
+			this.isGradient = isGradient;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Double compute() {
+			if (to - from <= REDUCTION_CHUNK_SIZE) {
+				return isGradient ? sumGradient(cacheProbs, lambda, from, to)
+						: sumValue(cacheProbs, lambda, from, to);
+			}
+			final int mid = (from + to) >>> 1;
+			final ReductionTask left = new ReductionTask(cacheProbs, lambda,
+					isGradient, from, mid);
+			final ReductionTask right = new ReductionTask(cacheProbs, lambda,
+					isGradient, mid, to);
+			left.fork();
+			final double rightSum = right.compute();
+			return left.join() + rightSum;
+		}
+	}
 
 	protected static final Logger LOGGER = Logger
 			.getLogger(ParameterOptimizer.class.getName());
 
-	double currentLambda = .5;
+	/**
+	 * The number of pairs that are summed sequentially.
+	 */
+	private static final int REDUCTION_CHUNK_SIZE = 1 << 14;
 
-	double decay = .5;
+	/**
+	 * The n-gram probability, importance and multiplicity of each distinct
+	 * pair.
+	 */
+	private final double[] ngramProbs;
 
-	public ParameterOptimizer(Multiset<LPair> data) {
-		elems = data;
-	}
+	private final double[] importances;
+
+	private final int[] multiplicities;
 
 	/**
-	 * @param decayValue
-	 * @param lamdbaValue
-	 * @return
+	 * The decay counts of all pairs. The counts of the i-th pair are in
+	 * [decayOffsets[i], decayOffsets[i+1]).
 	 */
-	private double computeValue(final double decayValue, double lamdbaValue) {
+	private final int[] decayCounts;
 
-		double penalty = 0;
-		if (lamdbaValue < 0) {
-			lamdbaValue = 10E-10;
-			penalty = lamdbaValue * lamdbaValue;
-		} else if (lamdbaValue > 1) {
-			lamdbaValue = 1 - 10E-10;
-			penalty = (lamdbaValue - 1) * (lamdbaValue - 1);
-		}
+	private final int[] decayOffsets;
 
-		double sum = 0;
-		for (final Entry<LPair> p : elems.entrySet()) {
-			double decaySums = 0;
-			for (final DecayFactor f : p.getElement().cacheProb) {
-				decaySums += f.getForAlpha(decayValue);
-			}
+	private final int[] initialDecayCounts;
 
-			checkArgument(p.getElement().ngramProb > 0
-					&& p.getElement().ngramProb <= 1.);
-			double baseProb = lamdbaValue * decaySums + (1. - lamdbaValue)
-					* p.getElement().ngramProb;
-			sum += p.getCount()
-					* DoubleMath.log2(p.getElement().importance * baseProb
-							+ (1. - p.getElement().importance)
-							* p.getElement().ngramProb);
-		}
-		final double value = sum / elems.size() - penalty;
-		checkArgument(!Double.isInfinite(value) && !Double.isNaN(value),
-				"Value Should not be NaN or Inf but is " + value + " with sum="
-						+ sum);
+	/**
+	 * The total number of pairs, including duplicates.
+	 */
+	private final int nPairs;
 
-		return value;
-	}
+	double currentLambda = .5;
 
-	@Override
-	public int getNumParameters() {
-		return 1;
-	}
+	double decay = .5;
 
-	@Override
-	public double getParameter(int i) {
-		return currentLambda;
+	public ParameterOptimizer(Multiset<LPair> data) {
+		final int nDistinct = data.entrySet().size();
+		ngramProbs = new double[nDistinct];
+		importances = new double[nDistinct];
+		multiplicities = new int[nDistinct];
+		decayOffsets = new int[nDistinct + 1];
+		initialDecayCounts = new int[nDistinct];
+		nPairs = data.size();
+
+		int nDecayCounts = 0;
+		for (final Entry<LPair> p : data.entrySet()) {
+			nDecayCounts += p.getElement().decayCounts.length;
+		}
+		decayCounts = new int[nDecayCounts];
+
+		int i = 0;
+		for (final Entry<LPair> p : data.entrySet()) {
+			final LPair pair = p.getElement();
+			checkArgument(pair.ngramProb > 0 && pair.ngramProb <= 1.);
+			ngramProbs[i] = pair.ngramProb;
+			importances[i] = pair.importance;
+			multiplicities[i] = p.getCount();
+			initialDecayCounts[i] = pair.initialDecayCount;
+			System.arraycopy(pair.decayCounts, 0, decayCounts,
+					decayOffsets[i], pair.decayCounts.length);
+			decayOffsets[i + 1] = decayOffsets[i] + pair.decayCounts.length;
+			i++;
+		}
 	}
 
-	@Override
-	public void getParameters(double[] buffer) {
-		buffer[0] = currentLambda;
-	}
+	/**
+	 * Return the cache probability of each pair for the given decay.
+	 */
+	private double[] computeCacheProbabilities(final double decay) {
+		final double[] decayPowers = new double[SymbolicWeightCache.MAX_DECAY_COUNT + 1];
+		decayPowers[0] = 1;
+		for (int k = 1; k < decayPowers.length; k++) {
+			decayPowers[k] = decayPowers[k - 1] * decay;
+		}
 
-	@Override
-	public double getValue() {
-		return computeValue(decay, currentLambda);
+		final double[] cacheProbs = new double[ngramProbs.length];
+		for (int i = 0; i < cacheProbs.length; i++) {
+			double decaySum = 0;
+			for (int j = decayOffsets[i]; j < decayOffsets[i + 1]; j++) {
+				decaySum += decayPowers[decayCounts[j]];
+			}
+			decaySum *= 1. - decay;
+			if (initialDecayCounts[i] >= 0) {
+				decaySum += decayPowers[initialDecayCounts[i]];
+			}
+			checkArgument(decaySum >= 0 && decaySum <= 1 + 1E-10,
+					"Decay must be between 0 and 1 but is " + decaySum);
+			cacheProbs[i] = decaySum;
+		}
+		return cacheProbs;
 	}
 
-	@Override
-	public void getValueGradient(final double[] gradient) {
-
-		double lambdaValue = currentLambda;
+	/**
+	 * Return the gradient of the value over lambda.
+	 */
+	private double computeGradient(final double[] cacheProbs,
+			double lambdaValue) {
 		double penalty = 0;
 		if (lambdaValue < 0) {
 			lambdaValue = 10E-10;
@@ -138,80 +284,112 @@ class ParameterOptimizer implements Optimizable.ByGradientValue {
 			lambdaValue = 1;
 			penalty = 2 * (lambdaValue - 1);
 		}
-		double lambdaSum = 0;
-		for (final Entry<LPair> p : elems.entrySet()) {
-			double decayValueSum = 0;
-			for (final DecayFactor f : p.getElement().cacheProb) {
-				decayValueSum += f.getForAlpha(decay);
-			}
-
-			checkArgument(decayValueSum >= 0 && decayValueSum <= 1,
-					"Decay must be between 0 and 1 but is " + decayValueSum);
-
-			final double denominator = Math.log(2)
-					* (p.getElement().importance
-							* (lambdaValue * decayValueSum + (1. - lambdaValue)
-									* p.getElement().ngramProb) + (1 - p
-							.getElement().importance)
-							* p.getElement().ngramProb);
-
-			lambdaSum += p.getCount() * p.getElement().importance
-					* (decayValueSum - p.getElement().ngramProb) / denominator;
-		}
+		final double lambdaSum = ForkJoinPool.commonPool().invoke(
+				new ReductionTask(cacheProbs, lambdaValue, true, 0,
+						ngramProbs.length));
 
-		gradient[0] = lambdaSum / elems.size() - penalty;
+		final double gradient = lambdaSum / nPairs - penalty;
 
-		checkArgument(
-				!Double.isInfinite(gradient[0]) && !Double.isNaN(gradient[0]),
-				"gradient(lambda) should not be NaN or Inf but is "
-						+ gradient[0]);
+		checkArgument(!Double.isInfinite(gradient) && !Double.isNaN(gradient),
+				"gradient(lambda) should not be NaN or Inf but is " + gradient);
 
 		// Do gradient check
 		/*
 		 * final double turbulance = 10E-6; final double lambdaGrad =
-		 * (computeValue(decay, currentLambda + turbulance) -
-		 * computeValue(decay, currentLambda)) / turbulance; checkArgument(
-		 * Math.abs((lambdaGrad - gradient[0]) / gradient[0]) < 10E-4,
+		 * (computeValue(cacheProbs, lambdaValue + turbulance) -
+		 * computeValue(cacheProbs, lambdaValue)) / turbulance; checkArgument(
+		 * Math.abs((lambdaGrad - gradient) / gradient) < 10E-4,
 		 * "Relative diffrence of gradients is larger than threshold. " +
-		 * (lambdaGrad - gradient[0]) / gradient[0] + " to be exact");
+		 * (lambdaGrad - gradient) / gradient + " to be exact");
 		 */
+		return gradient;
+	}
 
-		System.err.println(Arrays.toString(gradient));
+	/**
+	 * @param cacheProbs
+	 * @param lamdbaValue
+	 * @return
+	 */
+	private double computeValue(final double[] cacheProbs, double lamdbaValue) {
+		double penalty = 0;
+		if (lamdbaValue < 0) {
+			lamdbaValue = 10E-10;
+			penalty = lamdbaValue * lamdbaValue;
+		} else if (lamdbaValue > 1) {
+			lamdbaValue = 1 - 10E-10;
+			penalty = (lamdbaValue - 1) * (lamdbaValue - 1);
+		}
+
+		final double sum = ForkJoinPool.commonPool().invoke(
+				new ReductionTask(cacheProbs, lamdbaValue, false, 0,
+						ngramProbs.length));
+		final double value = sum / nPairs - penalty;
+		checkArgument(!Double.isInfinite(value) && !Double.isNaN(value),
+				"Value Should not be NaN or Inf but is " + value + " with sum="
+						+ sum);
+
+		return value;
+	}
+
+	/**
+	 * Return the value for the current lambda and decay.
+	 */
+	public double getValue() {
+		return computeValue(computeCacheProbabilities(decay), currentLambda);
 	}
 
 	/**
-	 * @param simpleCachedNGramLM
-	 * 
+	 * Optimize lambda for each decay of the grid concurrently and keep the
+	 * best converged pair.
 	 */
 	protected void optimizeParameters() {
-		double bestLikelihood = Double.NEGATIVE_INFINITY;
-		double bestD = .8;
-		double bestL = .3;
 		final double[] dMx = { .15, .2, .25, .3, .35, .4, .45, .5, .55, .6,
 				.65, .7, .75, .8, .85, .9, .95, .98, .99 };
+		// Keep only the result of each point, so that the cache probabilities
+		// of each decay can be collected as soon as its optimization ends
+		final double[] lambdas = new double[dMx.length];
+		final boolean[] converged = new boolean[dMx.length];
+		final double[] values = new double[dMx.length];
+
+		final ParallelThreadPool threadPool = new ParallelThreadPool();
+		for (int i = 0; i < dMx.length; i++) {
+			final int point = i;
+			threadPool.pushTask(new Runnable() {
+
+				@Override
+				public void run() {
+					final FixedDecayObjective objective = new FixedDecayObjective(
+							dMx[point]);
+					LOGGER.fine("Start at d=" + dMx[point] + " l="
+							+ objective.lambda);
+					final GradientAscent optimizer = new GradientAscent(
+							objective);
+					optimizer.setMaxStepSize(.01);
+					optimizer.setInitialStepSize(.01);
+					try {
+						converged[point] = optimizer.optimize();
+						values[point] = objective.getValue();
+					} catch (IllegalArgumentException e) {
+						LOGGER.warning(ExceptionUtils.getFullStackTrace(e));
+					}
+					lambdas[point] = objective.lambda;
+				}
+
+			});
+		}
+		threadPool.waitForTermination();
 
-		for (final double decayValue : dMx) {
-			decay = decayValue;
-			currentLambda = .5;
-			System.err.println("Start at d=" + decayValue + " l="
-					+ currentLambda);
-			final GradientAscent optimizer = new GradientAscent(this);
-			optimizer.setMaxStepSize(.01);
-			optimizer.setInitialStepSize(.01);
-			boolean converged = false;
-			try {
-				converged = optimizer.optimize();
-			} catch (IllegalArgumentException e) {
-				LOGGER.warning(ExceptionUtils.getFullStackTrace(e));
-			}
-			if (bestLikelihood < getValue() && converged) {
-				LOGGER.info("With l=" + currentLambda + " d=" + decayValue
-						+ " the value is " + getValue());
-				checkArgument(Double.compare(decayValue, decay) == 0,
-						"Decay value has been changed!");
-				bestD = decayValue;
-				bestL = getParameter(0);
-				bestLikelihood = getValue();
+		// Pick the best point in the order of the grid
+		double bestLikelihood = Double.NEGATIVE_INFINITY;
+		double bestD = .8;
+		double bestL = .3;
+		for (int i = 0; i < dMx.length; i++) {
+			if (converged[i] && bestLikelihood < values[i]) {
+				LOGGER.info("With l=" + lambdas[i] + " d=" + dMx[i]
+						+ " the value is " + values[i]);
+				bestD = dMx[i];
+				bestL = lambdas[i];
+				bestLikelihood = values[i];
 			}
 		}
 		decay = bestD;
@@ -221,18 +399,39 @@ class ParameterOptimizer implements Optimizable.ByGradientValue {
 				+ currentLambda + " val=" + bestLikelihood);
 	}
 
-	@Override
-	public void setParameter(int i, double value) {
-		if (i == 0) {
-			currentLambda = value;
-		} else if (i == 1) {
-			decay = value;
+	/**
+	 * Return the sum of the gradient terms of the pairs in [from, to).
+	 */
+	private double sumGradient(final double[] cacheProbs,
+			final double lambdaValue, final int from, final int to) {
+		double lambdaSum = 0;
+		for (int i = from; i < to; i++) {
+			final double denominator = Math.log(2)
+					* (importances[i]
+							* (lambdaValue * cacheProbs[i] + (1. - lambdaValue)
+									* ngramProbs[i]) + (1 - importances[i])
+							* ngramProbs[i]);
+
+			lambdaSum += multiplicities[i] * importances[i]
+					* (cacheProbs[i] - ngramProbs[i]) / denominator;
 		}
+		return lambdaSum;
 	}
 
-	@Override
-	public void setParameters(double[] values) {
-		currentLambda = values[0];
+	/**
+	 * Return the sum of the log-probabilities of the pairs in [from, to).
+	 */
+	private double sumValue(final double[] cacheProbs, final double lamdbaValue,
+			final int from, final int to) {
+		double sum = 0;
+		for (int i = from; i < to; i++) {
+			final double baseProb = lamdbaValue * cacheProbs[i]
+					+ (1. - lamdbaValue) * ngramProbs[i];
+			sum += multiplicities[i]
+					* DoubleMath.log2(importances[i] * baseProb
+							+ (1. - importances[i]) * ngramProbs[i]);
+		}
+		return sum;
 	}
 
 }
@@ -0,0 +1,236 @@
+/**
+ *
+ */
+package codemining.lm.ngram.cache;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+import codemining.lm.ngram.AbstractNGramLM;
+import codemining.lm.ngram.LongArrayTrie;
+import codemining.lm.ngram.NGram;
+import codemining.lm.ngram.ProbingHashTrie;
+import codemining.util.SettingsLoader;
+
+/**
+ * A bounded memo of the n-gram probabilities of a language model, that can be
+ * shared by many scoring threads. The n-grams are keyed by a 64-bit hash of
+ * their symbol ids, so the model must not change while it is memoized.
+ * N-grams with tokens outside the vocabulary of the model are not memoized,
+ * since these tokens share the same symbol id but some models (e.g. ones that
+ * interpolate with a model of a different vocabulary) score them by their
+ * string.
+ *
+ * The memo is split into stripes, each an open addressing table guarded by a
+ * {@link StampedLock}. Lookups use optimistic reads and a stripe is simply
+ * cleared when it is full. The hits and misses are counted with
+ * {@link LongAdder}s.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public final class ProbabilityMemo implements Serializable {
+
+	private static final class Stripe {
+
+		final StampedLock lock = new StampedLock();
+
+		/**
+		 * The hash of the n-gram in each bucket, or EMPTY.
+		 */
+		final long[] keys;
+
+		final double[] probabilities;
+
+		int size = 0;
+
+		Stripe(final int nBuckets) {
+			keys = new long[nBuckets];
+			probabilities = new double[nBuckets];
+		}
+
+		/**
+		 * Return the probability of the key or NaN if it is not in the stripe.
+		 */
+		double get(final long key) {
+			final long optimisticStamp = lock.tryOptimisticRead();
+			if (optimisticStamp != 0) {
+				final double probability = getUnsafe(key);
+				if (lock.validate(optimisticStamp)) {
+					return probability;
+				}
+			}
+
+			final long stamp = lock.readLock();
+			try {
+				return getUnsafe(key);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+
+		/**
+		 * Return the probability of the key or NaN, without locking.
+		 */
+		private double getUnsafe(final long key) {
+			final int mask = keys.length - 1;
+			for (int i = (int) key & mask, probes = 0; probes < keys.length; i = (i + 1)
+					& mask, probes++) {
+				final long bucketKey = keys[i];
+				if (bucketKey == key) {
+					return probabilities[i];
+				} else if (bucketKey == EMPTY) {
+					return Double.NaN;
+				}
+			}
+			return Double.NaN;
+		}
+
+		void put(final long key, final double probability,
+				final int maxSize) {
+			final long stamp = lock.writeLock();
+			try {
+				if (size >= maxSize) {
+					Arrays.fill(keys, EMPTY);
+					size = 0;
+				}
+				final int mask = keys.length - 1;
+				int i = (int) key & mask;
+				while (keys[i] != EMPTY && keys[i] != key) {
+					i = (i + 1) & mask;
+				}
+				if (keys[i] == EMPTY) {
+					size++;
+				}
+				probabilities[i] = probability;
+				keys[i] = key;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+	}
+
+	private static final long serialVersionUID = -5172340405536787150L;
+
+	/**
+	 * The default maximum number of memoized n-grams of each model.
+	 */
+	public static final int DEFAULT_MAX_SIZE = (int) SettingsLoader
+			.getNumericSetting("probabilityMemoSize", 1 << 19);
+
+	/**
+	 * The key of the empty buckets. N-grams whose hash is EMPTY are not
+	 * memoized.
+	 */
+	private static final long EMPTY = 0;
+
+	/**
+	 * The number of stripes. Must be a power of 2.
+	 */
+	private static final int N_STRIPES = 64;
+
+	private final AbstractNGramLM model;
+
+	private final int maxSize;
+
+	private transient Stripe[] stripes;
+
+	private transient LongAdder hits;
+
+	private transient LongAdder misses;
+
+	/**
+	 * @param model
+	 *            the model whose probabilities are memoized
+	 * @param maxSize
+	 *            the (approximate) maximum number of memoized n-grams
+	 */
+	public ProbabilityMemo(final AbstractNGramLM model, final int maxSize) {
+		checkArgument(maxSize >= N_STRIPES);
+		this.model = model;
+		this.maxSize = maxSize;
+		createStripes();
+	}
+
+	private void createStripes() {
+		final int maxStripeSize = maxSize / N_STRIPES;
+		// Keep the load factor at most 1/2
+		final int nBuckets = Integer.highestOneBit(2 * maxStripeSize - 1) * 2;
+		stripes = new Stripe[N_STRIPES];
+		for (int i = 0; i < N_STRIPES; i++) {
+			stripes[i] = new Stripe(nBuckets);
+		}
+		hits = new LongAdder();
+		misses = new LongAdder();
+	}
+
+	/**
+	 * Return the ratio of the lookups that were found in the memo.
+	 */
+	public double getHitRate() {
+		final long nHits = hits.sum();
+		return ((double) nHits) / (nHits + misses.sum());
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public AbstractNGramLM getModel() {
+		return model;
+	}
+
+	/**
+	 * Return the probability of the n-gram, as computed by the model.
+	 *
+	 * @param ngram
+	 * @return
+	 */
+	public double getProbabilityFor(final NGram<String> ngram) {
+		long key = 0;
+		for (final long symbol : model.getTrie().getSymbolIdArray(
+				ngram.toList())) {
+			if (symbol == LongArrayTrie.NO_SYMBOL) {
+				misses.increment();
+				return model.getProbabilityFor(ngram);
+			}
+			key = ProbingHashTrie.extendHash(key, symbol);
+		}
+		if (key == EMPTY) {
+			misses.increment();
+			return model.getProbabilityFor(ngram);
+		}
+
+		// Use the high bits for the stripe and the low bits for the bucket
+		final Stripe stripe = stripes[(int) (key >>> 58) & (N_STRIPES - 1)];
+		final double memoized = stripe.get(key);
+		if (!Double.isNaN(memoized)) {
+			hits.increment();
+			return memoized;
+		}
+
+		misses.increment();
+		final double probability = model.getProbabilityFor(ngram);
+		if (!Double.isNaN(probability)) {
+			stripe.put(key, probability, maxSize / N_STRIPES);
+		}
+		return probability;
+	}
+
+	private void readObject(final ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		createStripes();
+	}
+
+}
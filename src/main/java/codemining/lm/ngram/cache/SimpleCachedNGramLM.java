@@ -22,11 +22,9 @@ import codemining.lm.ILanguageModel;
 import codemining.lm.ngram.AbstractNGramLM;
 import codemining.lm.ngram.NGram;
 import codemining.lm.ngram.cache.ParameterOptimizer.LPair;
-import codemining.lm.ngram.cache.SymbolicWeightCache.DecayFactor;
 import codemining.util.serialization.ISerializationStrategy.SerializationException;
 import codemining.util.serialization.Serializer;
 
-import com.google.common.collect.HashMultiset;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multiset;
@@ -52,14 +50,23 @@ public class SimpleCachedNGramLM implements ILanguageModel {
 
 		private static final long serialVersionUID = 1L;
 
-		final Multiset<ParameterOptimizer.LPair> elems = HashMultiset.create();
+		private final CalibrationDataExtractor extractor = new CalibrationDataExtractor(
+				IdentifierOnlyCachedNGramLM.CALIBRATION_SIZE_THRESHOLD) {
+
+			@Override
+			protected void scoreFile(final File file) throws IOException {
+				getAbsoluteEntropy(file);
+			}
+
+		};
+
+		final Multiset<ParameterOptimizer.LPair> elems;
 
 		SimpleCacheValueExtractor(final Collection<File> tuneFiles)
 				throws IOException {
-			super(SimpleCachedNGramLM.this.baseNgram, 0.5, 0.5);
-			for (final File f : tuneFiles) {
-				this.getAbsoluteEntropy(f);
-			}
+			// Share the memo of the calibrated model
+			super(SimpleCachedNGramLM.this.getBaseProbabilities(), 0.5, 0.5);
+			elems = extractor.extract(tuneFiles);
 		}
 
 		@Override
@@ -70,23 +77,19 @@ public class SimpleCachedNGramLM implements ILanguageModel {
 		@Override
 		public double getProbabilityFor(final NGram<String> ngram,
 				final ICache<String> cache) {
-			final double ngramProb = baseNgram.getProbabilityFor(ngram);
+			final double ngramProb = getBaseProbabilities()
+					.getProbabilityFor(ngram);
 			final String lastWord = ngram.get(ngram.size() - 1);
 			final SymbolicWeightCache<String> symbolicCache = (SymbolicWeightCache<String>) cache;
-			final List<DecayFactor> cacheProb = symbolicCache
-					.getDecayFactorFor(lastWord);
-
 			final LPair ngramPair = new LPair();
 			ngramPair.ngramProb = ngramProb;
-			if (cacheProb != null) {
-				ngramPair.cacheProb = Lists.newArrayList(cacheProb);
-			} else {
-				ngramPair.cacheProb = Lists.newArrayList();
-			}
+			ngramPair.decayCounts = symbolicCache.getDecayCountsFor(lastWord);
+			ngramPair.initialDecayCount = symbolicCache
+					.getInitialDecayCountFor(lastWord);
 			checkArgument(ngramProb > 0 && ngramProb <= 1,
 					"N-gram probablity should be between 0,1 but is "
 							+ ngramProb);
-			elems.add(ngramPair);
+			extractor.addPair(ngramPair);
 
 			symbolicCache.pushElement(lastWord);
 			return .5; // Should not be used, but we have to return it...
@@ -104,6 +107,12 @@ public class SimpleCachedNGramLM implements ILanguageModel {
 
 	final AbstractNGramLM baseNgram;
 
+	/**
+	 * The memoized probabilities of baseNgram. The memo is not serialized,
+	 * but created again when it is first used.
+	 */
+	private transient volatile ProbabilityMemo baseProbabilities;
+
 	protected static final Logger LOGGER = Logger
 			.getLogger(SimpleCachedNGramLM.class.getName());
 
@@ -130,6 +139,8 @@ public class SimpleCachedNGramLM implements ILanguageModel {
 			final Collection<File> parameterCalibrationFiles)
 			throws IOException {
 		this.baseNgram = baseNgram;
+		baseProbabilities = new ProbabilityMemo(baseNgram,
+				ProbabilityMemo.DEFAULT_MAX_SIZE);
 
 		final SimpleCacheValueExtractor opt = new SimpleCacheValueExtractor(
 				parameterCalibrationFiles);
@@ -145,7 +156,19 @@ public class SimpleCachedNGramLM implements ILanguageModel {
 	 */
 	public SimpleCachedNGramLM(final AbstractNGramLM baseNgram,
 			final double cacheLambda, final double cacheDecay) {
-		this.baseNgram = baseNgram;
+		this(new ProbabilityMemo(baseNgram, ProbabilityMemo.DEFAULT_MAX_SIZE),
+				cacheLambda, cacheDecay);
+	}
+
+	/**
+	 * @param baseProbabilities
+	 *            the memo of the base model, that may be shared with other
+	 *            models
+	 */
+	SimpleCachedNGramLM(final ProbabilityMemo baseProbabilities,
+			final double cacheLambda, final double cacheDecay) {
+		baseNgram = baseProbabilities.getModel();
+		this.baseProbabilities = baseProbabilities;
 		cacheWeight = cacheLambda;
 		cacheDecayConst = cacheDecay;
 	}
@@ -158,6 +181,17 @@ public class SimpleCachedNGramLM implements ILanguageModel {
 		return new WeightCache<String>(cacheDecayConst, firstEntry);
 	}
 
+	/**
+	 * Create the memo of the base model, if it has not been created (e.g.
+	 * after deserialization).
+	 */
+	private synchronized void createMemo() {
+		if (baseProbabilities == null) {
+			baseProbabilities = new ProbabilityMemo(baseNgram,
+					ProbabilityMemo.DEFAULT_MAX_SIZE);
+		}
+	}
+
 	@Override
 	public double getAbsoluteEntropy(final File file) throws IOException {
 		return getAbsoluteEntropy(FileUtils.readFileToString(file),
@@ -182,6 +216,17 @@ public class SimpleCachedNGramLM implements ILanguageModel {
 		return getLogProbOfSentence(tokens, className);
 	}
 
+	/**
+	 * Return the memo of the probabilities of the base model, e.g. for its
+	 * hit rate.
+	 */
+	public ProbabilityMemo getBaseProbabilities() {
+		if (baseProbabilities == null) {
+			createMemo();
+		}
+		return baseProbabilities;
+	}
+
 	/**
 	 * @param file
 	 */
@@ -256,7 +301,8 @@ public class SimpleCachedNGramLM implements ILanguageModel {
 
 	public double getProbabilityFor(final NGram<String> ngram,
 			final ICache<String> cache) {
-		final double ngramProb = baseNgram.getProbabilityFor(ngram);
+		final double ngramProb = getBaseProbabilities().getProbabilityFor(
+				ngram);
 		final String lastWord = ngram.get(ngram.size() - 1);
 		final double cacheProb = cache.getProbabilityFor(lastWord);
 		cache.pushElement(lastWord);
@@ -5,15 +5,19 @@ package codemining.lm.ngram.cache;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-
-import com.google.common.collect.Lists;
 
 /**
- * A weighted cache that also holds a symbolic representation.
+ * A weighted cache that also holds a symbolic representation, i.e. the
+ * number of times that each occurrence of an element has decayed, so that
+ * the weight of the element can be computed for any decay.
+ * 
+ * The cache keeps a clock of the pushes and, per element, the (sorted) times
+ * of its occurrences, so pushing an element costs O(1) and the decay counts
+ * are computed only when they are requested. An occurrence that has decayed
+ * more than {@link #MAX_DECAY_COUNT} times is dropped.
  * 
  * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
  * 
@@ -21,92 +25,128 @@ import com.google.common.collect.Lists;
 public class SymbolicWeightCache<T> extends WeightCache<T> {
 
 	/**
-	 * An object representing the decay of this element.
-	 * 
+	 * The (increasing) times that an element has been pushed. Only the times
+	 * in [start, end) have not been dropped.
 	 */
-	public static class DecayFactor {
-		final int decayCount;
+	private static final class Occurrences {
+		int[] times = new int[2];
 
-		final boolean hasOneMinusAlpha;
+		int start = 0;
 
-		public DecayFactor(int alphaCount, boolean firstElement) {
-			decayCount = alphaCount;
-			hasOneMinusAlpha = !firstElement;
-		}
+		int end = 0;
 
-		public double getDerivativeAt(final double alpha) {
-			if (decayCount == 0 && hasOneMinusAlpha) {
-				return -1;
-			} else if (decayCount == 0 && !hasOneMinusAlpha) {
-				return 0;
-			} else if (!hasOneMinusAlpha) {
-				return decayCount * Math.pow(alpha, decayCount - 1);
-			} else {
-				checkArgument(decayCount > 0);
-				return (1. - alpha) * decayCount
-						* Math.pow(alpha, decayCount - 1.)
-						- Math.pow(alpha, decayCount);
+		void add(final int time) {
+			if (end == times.length) {
+				if (start > times.length / 2) {
+					System.arraycopy(times, start, times, 0, end - start);
+				} else {
+					times = Arrays.copyOf(times, 2 * times.length);
+					System.arraycopy(times, start, times, 0, end - start);
+				}
+				end -= start;
+				start = 0;
 			}
+			times[end] = time;
+			end++;
 		}
 
-		public double getForAlpha(final double alpha) {
-			double accumulator = 1;
-			if (hasOneMinusAlpha) {
-				accumulator = 1. - alpha;
+		/**
+		 * Drop the occurrences that are older than the given time.
+		 */
+		void dropBefore(final int time) {
+			while (start < end && times[start] < time) {
+				start++;
 			}
-			accumulator *= Math.pow(alpha, decayCount);
-			return accumulator;
-		}
-
-		DecayFactor getNext() {
-			return new DecayFactor(decayCount + 1, !hasOneMinusAlpha);
 		}
 	}
 
-	private final Map<T, List<DecayFactor>> symbolicCache = new HashMap<T, List<DecayFactor>>();
+	/**
+	 * The maximum number of times that an occurrence may decay before it is
+	 * dropped.
+	 */
+	public static final int MAX_DECAY_COUNT = 100;
+
+	private static final int[] NO_DECAY_COUNTS = new int[0];
+
+	private final Map<T, Occurrences> symbolicCache = new HashMap<T, Occurrences>();
+
+	/**
+	 * The number of elements pushed. The first element is at time 0 and,
+	 * unlike the pushed elements, its weight has no (1 - decay) factor.
+	 */
+	private int clock = 0;
 
 	public SymbolicWeightCache(final double decayExponent, final T firstElement) {
 		super(decayExponent, firstElement);
-		final DecayFactor lst = new DecayFactor(0, true);
-		final List<DecayFactor> decayList = Lists.newArrayList();
-		decayList.add(lst);
-		symbolicCache.put(firstElement, decayList);
+		final Occurrences occurrences = new Occurrences();
+		occurrences.add(0);
+		symbolicCache.put(firstElement, occurrences);
 	}
 
-	public List<DecayFactor> getDecayFactorFor(final T element) {
-		if (symbolicCache.containsKey(element)) {
-			return symbolicCache.get(element);
-		} else {
-			return null; // A 0 equivalent
+	/**
+	 * Return the number of times that each pushed occurrence of the element
+	 * has decayed, excluding the first element of the cache. The weight of an
+	 * occurrence that has decayed k times is (1 - decay) * decay^k.
+	 * 
+	 * @param element
+	 * @return the decay counts, in increasing order
+	 */
+	public int[] getDecayCountsFor(final T element) {
+		final Occurrences occurrences = getOccurrences(element);
+		if (occurrences == null) {
+			return NO_DECAY_COUNTS;
+		}
+		int from = occurrences.start;
+		if (from < occurrences.end && occurrences.times[from] == 0) {
+			from++;
 		}
+		final int[] decayCounts = new int[occurrences.end - from];
+		for (int i = 0; i < decayCounts.length; i++) {
+			decayCounts[i] = clock - occurrences.times[occurrences.end - 1 - i];
+		}
+		return decayCounts;
+	}
+
+	/**
+	 * Return the number of times that the first element of the cache has
+	 * decayed, if it is the given element, or -1 otherwise. The weight of
+	 * the first element is decay^k.
+	 * 
+	 * @param element
+	 * @return
+	 */
+	public int getInitialDecayCountFor(final T element) {
+		final Occurrences occurrences = getOccurrences(element);
+		if (occurrences == null || occurrences.start == occurrences.end
+				|| occurrences.times[occurrences.start] != 0) {
+			return -1;
+		}
+		return clock;
+	}
+
+	/**
+	 * Return the occurrences of the element that have not been dropped.
+	 */
+	private Occurrences getOccurrences(final T element) {
+		final Occurrences occurrences = symbolicCache.get(element);
+		if (occurrences != null) {
+			occurrences.dropBefore(clock - MAX_DECAY_COUNT);
+		}
+		return occurrences;
 	}
 
 	@Override
 	public void pushElement(final T element) {
 		super.pushElement(element);
+		clock++;
 
-		for (final Entry<T, List<DecayFactor>> ent : symbolicCache.entrySet()) {
-			final List<DecayFactor> lst = ent.getValue();
-			final List<DecayFactor> toRemove = Lists.newArrayList();
-			for (int i = 0; i < lst.size(); i++) {
-				if (lst.get(i).decayCount < 100) {
-					lst.set(i, lst.get(i).getNext());
-				} else {
-					toRemove.add(lst.get(i));
-				}
-			}
-
-			for (final DecayFactor rm : toRemove) {
-				lst.remove(rm);
-			}
-		}
-
-		if (symbolicCache.containsKey(element)) {
-			symbolicCache.get(element).add(new DecayFactor(0, false));
+		Occurrences occurrences = symbolicCache.get(element);
+		if (occurrences == null) {
+			occurrences = new Occurrences();
+			symbolicCache.put(element, occurrences);
 		} else {
-			final List<DecayFactor> decayList = Lists.newArrayList();
-			decayList.add(new DecayFactor(0, false));
-			symbolicCache.put(element, decayList);
+			occurrences.dropBefore(clock - MAX_DECAY_COUNT);
 		}
+		occurrences.add(clock);
 	}
 }
@@ -5,30 +5,58 @@ package codemining.lm.ngram.cache;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
-import java.util.ArrayDeque;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.TreeMap;
 
 import org.apache.commons.lang.math.RandomUtils;
 
 /**
  * A cache that weights its elements T.
  * 
+ * Instead of multiplying the weight of every element by the decay at each
+ * push, the weights are stored divided by a global scale factor, which is the
+ * only value that decays. So, pushing and looking up an element costs O(1).
+ * Elements whose weight falls below {@link #MIN_HOLDING_THRESHOLD} are
+ * treated as evicted when they are read and are removed when the scale
+ * factor is renormalized, i.e. when it becomes too small.
+ * 
  * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
  * 
  */
 public class WeightCache<T> implements ICache<T> {
-	private final Map<T, Double> cache = new HashMap<T, Double>();
+
+	/**
+	 * The weight of an element, divided by the scale factor of the cache.
+	 */
+	private static final class ScaledWeight {
+		double value;
+
+		ScaledWeight(final double value) {
+			this.value = value;
+		}
+	}
+
+	private final Map<T, ScaledWeight> cache = new HashMap<T, ScaledWeight>();
 
 	/**
 	 * The decay parameter of the cache.
 	 */
 	private final double decay;
 
+	/**
+	 * The factor that the stored weights should be multiplied with.
+	 */
+	private double scale = 1;
+
 	public static final double MIN_HOLDING_THRESHOLD = 1E-11;
 
+	/**
+	 * The scale factor below which the weights are renormalized.
+	 */
+	private static final double RENORMALIZATION_THRESHOLD = 1E-100;
+
 	/**
 	 * Constructor.
 	 * 
@@ -40,7 +68,7 @@ public class WeightCache<T> implements ICache<T> {
 		checkArgument(decayExponent < 1. && decayExponent > 0,
 				"Decay exponent must be in (0,1) but is " + decayExponent);
 		decay = decayExponent;
-		cache.put(firstElement, 1.);
+		cache.put(firstElement, new ScaledWeight(1.));
 	}
 
 	/*
@@ -50,19 +78,19 @@ public class WeightCache<T> implements ICache<T> {
 	 */
 	@Override
 	public double getProbabilityFor(final T element) {
-		if (cache.containsKey(element)) {
-			return cache.get(element);
-		} else {
+		final ScaledWeight weight = cache.get(element);
+		if (weight == null) {
 			return 0;
 		}
+		return getWeight(weight);
 	}
 
 	@Override
 	public T getRandomElement() {
 		final double randomPick = RandomUtils.nextDouble();
 		double sum = 0;
-		for (final Entry<T, Double> element : cache.entrySet()) {
-			sum += element.getValue();
+		for (final Entry<T, ScaledWeight> element : cache.entrySet()) {
+			sum += getWeight(element.getValue());
 			if (sum >= randomPick) {
 				return element.getKey();
 			}
@@ -73,6 +101,18 @@ public class WeightCache<T> implements ICache<T> {
 		return null;
 	}
 
+	/**
+	 * Return the actual weight of the given stored weight or 0 if it has
+	 * fallen below the holding threshold.
+	 */
+	private double getWeight(final ScaledWeight weight) {
+		final double value = weight.value * scale;
+		if (value > MIN_HOLDING_THRESHOLD) {
+			return value;
+		}
+		return 0;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -80,32 +120,35 @@ public class WeightCache<T> implements ICache<T> {
 	 */
 	@Override
 	public void pushElement(final T element) {
-		final ArrayDeque<T> toRemove = new ArrayDeque<T>();
-
-		final Map<T, Double> updates = new TreeMap<T, Double>();
-
-		for (final Entry<T, Double> entry : cache.entrySet()) {
-			final double newVal = entry.getValue().doubleValue() * decay;
-			if (newVal > MIN_HOLDING_THRESHOLD) {
-				updates.put(entry.getKey(), newVal);
-			} else {
-				toRemove.push(entry.getKey());
-			}
+		scale *= decay;
+		if (scale < RENORMALIZATION_THRESHOLD) {
+			renormalize();
 		}
 
-		for (final Entry<T, Double> ent : updates.entrySet()) {
-			cache.put(ent.getKey(), ent.getValue());
-		}
-
-		while (!toRemove.isEmpty()) {
-			final T ent = toRemove.pop();
-			cache.remove(ent);
+		final ScaledWeight weight = cache.get(element);
+		if (weight == null) {
+			cache.put(element, new ScaledWeight((1. - decay) / scale));
+		} else if (getWeight(weight) == 0) {
+			// The element had been evicted
+			weight.value = (1. - decay) / scale;
+		} else {
+			weight.value += (1. - decay) / scale;
 		}
+	}
 
-		if (cache.containsKey(element)) {
-			cache.put(element, cache.get(element) + 1. - decay);
-		} else {
-			cache.put(element, 1. - decay);
+	/**
+	 * Multiply all the stored weights by the scale factor, reset it to 1 and
+	 * remove the elements below the holding threshold.
+	 */
+	private void renormalize() {
+		final Iterator<ScaledWeight> weights = cache.values().iterator();
+		while (weights.hasNext()) {
+			final ScaledWeight weight = weights.next();
+			weight.value = getWeight(weight);
+			if (weight.value == 0) {
+				weights.remove();
+			}
 		}
+		scale = 1;
 	}
 }
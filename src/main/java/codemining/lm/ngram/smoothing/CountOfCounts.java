@@ -0,0 +1,132 @@
+package codemining.lm.ngram.smoothing;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.List;
+
+import codemining.lm.ngram.ILongTrieNode;
+import codemining.util.parallel.ParallelThreadPool;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Computes the counts of counts n_c of each n-gram order, i.e. the number of
+ * n-grams that have been seen exactly c times, as needed by the discounts of
+ * Good-Turing, Katz or Kneser-Ney smoothing.
+ *
+ * The subtrees of the root are split in ranges that are traversed in
+ * parallel. Each task fills its own primitive histogram and the histograms
+ * are summed when all tasks finish. The subtree of the UNK child of the root
+ * is not counted, while the UNK children of the other nodes are counted as
+ * any other n-gram.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public final class CountOfCounts {
+
+	/**
+	 * Counts the subtrees of a range of root children.
+	 */
+	private static class CountingTask implements Runnable {
+
+		final ILongTrieNode root;
+
+		final int fromChild;
+
+		final int toChild;
+
+		final long unkSymbolId;
+
+		final long[][] histogram;
+
+		CountingTask(final ILongTrieNode root, final int fromChild,
+				final int toChild, final long unkSymbolId, final int maxOrder,
+				final int maxCount) {
+			this.root = root;
+			this.fromChild = fromChild;
+			this.toChild = toChild;
+			this.unkSymbolId = unkSymbolId;
+			histogram = new long[maxOrder + 1][maxCount + 1];
+		}
+
+		private void count(final ILongTrieNode node, final int order) {
+			final long count = node.getCount();
+			if (count < histogram[order].length) {
+				histogram[order][(int) count]++;
+			}
+			if (order + 1 >= histogram.length) {
+				return;
+			}
+			for (int i = 0; i < node.nChildren(); i++) {
+				count(node.getChildAt(i), order + 1);
+			}
+		}
+
+		@Override
+		public void run() {
+			for (int i = fromChild; i < toChild; i++) {
+				if (root.getSymbolAt(i) != unkSymbolId) {
+					count(root.getChildAt(i), 1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The number of tasks per processor that the root children are split
+	 * into.
+	 */
+	private static final int TASKS_PER_PROCESSOR = 4;
+
+	/**
+	 * Compute the counts of counts of the n-grams in the trie below the given
+	 * root.
+	 *
+	 * @param root
+	 *            the root of the trie
+	 * @param unkSymbolId
+	 *            the id of UNK, whose subtree below the root is ignored
+	 * @param maxOrder
+	 *            the maximum n-gram order to count
+	 * @param maxCount
+	 *            the maximum count c to compute n_c for
+	 * @return n_c for each order at [order][c], for order in [1, maxOrder]
+	 *         and c in [0, maxCount]
+	 */
+	public static long[][] compute(final ILongTrieNode root,
+			final long unkSymbolId, final int maxOrder, final int maxCount) {
+		checkArgument(maxOrder > 0);
+		checkArgument(maxCount >= 0);
+		final int nRootChildren = root.nChildren();
+		final int nTasks = Runtime.getRuntime().availableProcessors()
+				* TASKS_PER_PROCESSOR;
+		final int chunkSize = Math.max(1, (nRootChildren + nTasks - 1)
+				/ nTasks);
+
+		final List<CountingTask> tasks = Lists.newArrayList();
+		final ParallelThreadPool threadPool = new ParallelThreadPool();
+		for (int i = 0; i < nRootChildren; i += chunkSize) {
+			final CountingTask task = new CountingTask(root, i, Math.min(i
+					+ chunkSize, nRootChildren), unkSymbolId, maxOrder,
+					maxCount);
+			tasks.add(task);
+			threadPool.pushTask(task);
+		}
+		threadPool.waitForTermination();
+
+		final long[][] countOfCounts = new long[maxOrder + 1][maxCount + 1];
+		for (final CountingTask task : tasks) {
+			for (int order = 1; order <= maxOrder; order++) {
+				for (int c = 0; c <= maxCount; c++) {
+					countOfCounts[order][c] += task.histogram[order][c];
+				}
+			}
+		}
+		return countOfCounts;
+	}
+
+	private CountOfCounts() {
+	}
+
+}
@@ -7,6 +7,7 @@ import static com.google.common.base.Preconditions.checkArgument;
 import codemining.lm.ngram.AbstractNGramLM;
 import codemining.lm.ngram.NGram;
 import codemining.lm.ngram.NGramLM;
+import codemining.lm.ngram.SymbolSequence;
 
 /**
  * An n-gram lm that is represented as a Dirichlet posterior.
@@ -40,4 +41,11 @@ public class DirichletNgramLM extends NGramLM {
 				/ ((double) (productionCount + dirichletAlpha));
 	}
 
+	@Override
+	public double getProbabilityFor(final SymbolSequence sequence,
+			final int from, final int to) {
+		// The prior may use a different vocabulary
+		return getProbabilityFor(sequence.getNGram(from, to));
+	}
+
 }
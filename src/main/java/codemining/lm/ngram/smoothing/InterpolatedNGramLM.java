@@ -3,6 +3,8 @@
  */
 package codemining.lm.ngram.smoothing;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
@@ -11,6 +13,9 @@ import java.util.List;
 import codemining.lm.ILanguageModel;
 import codemining.lm.ngram.AbstractNGramLM;
 import codemining.lm.ngram.NGram;
+import codemining.lm.ngram.SymbolSequence;
+
+import com.google.common.math.DoubleMath;
 
 /**
  * An n-gram model that interpolates the probability between two models.
@@ -31,7 +36,9 @@ public class InterpolatedNGramLM extends StupidBackoff {
 
 	public InterpolatedNGramLM(final AbstractNGramLM global,
 			final AbstractNGramLM current, final double globalWeight) {
-		super(current);
+		// The backoff probabilities of the current model are computed from
+		// its counts, so they are not precomputed
+		super(current, false);
 		other = global;
 		lambda = globalWeight;
 	}
@@ -96,6 +103,21 @@ public class InterpolatedNGramLM extends StupidBackoff {
 		return this;
 	}
 
+	@Override
+	public double getLogBackoffWeight(final NGram<String> context) {
+		return getNormalizingLogBackoffWeight(context);
+	}
+
+	@Override
+	public double getLogProbabilityFor(final SymbolSequence sequence,
+			final int from, final int to) {
+		// Do not use the precomputed probabilities of the backoff model
+		final double prob = getProbabilityFor(sequence, from, to);
+		checkArgument(prob > 0);
+		checkArgument(!Double.isInfinite(prob));
+		return DoubleMath.log2(prob);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -116,6 +138,13 @@ public class InterpolatedNGramLM extends StupidBackoff {
 				* super.getProbabilityFor(ngram);
 	}
 
+	@Override
+	public double getProbabilityFor(final SymbolSequence sequence,
+			final int from, final int to) {
+		// The other model may use a different vocabulary
+		return getProbabilityFor(sequence.getNGram(from, to));
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
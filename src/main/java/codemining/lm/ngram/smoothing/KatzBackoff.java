@@ -5,38 +5,45 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.logging.Logger;
 
-import org.apache.commons.lang.exception.ExceptionUtils;
-
 import codemining.lm.ILanguageModel;
 import codemining.lm.ngram.AbstractNGramLM;
+import codemining.lm.ngram.ChunkedDoubleBuffer;
+import codemining.lm.ngram.ContextState;
+import codemining.lm.ngram.FrozenLongTrie;
+import codemining.lm.ngram.ILongTrieNode;
+import codemining.lm.ngram.IPrecomputedNGramLM;
 import codemining.lm.ngram.NGram;
-import codemining.lm.ngram.Trie.TrieNode;
+import codemining.lm.ngram.NodeTables;
+import codemining.lm.ngram.SymbolSequence;
 
 import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.Maps;
 import com.google.common.collect.TreeMultiset;
+import com.google.common.math.DoubleMath;
 
 /**
  * An implementation of Katz backoff & smoothing scheme.
  * 
+ * When the model is constructed, the log-probability of each seen n-gram and
+ * the backoff weight of each context are precomputed per node of the frozen
+ * trie (as in an ARPA file), so that scoring a sentence only reads these
+ * tables instead of summing the discounted counts of all the children of
+ * each context. The tables are stored in model files, along with the Katz
+ * counts, so that reading a model does not compute them again.
+ * 
  * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
  * 
  */
-public class KatzBackoff extends AbstractNGramLM {
-
-	private static class NodeOrder {
-		TrieNode<Long> node;
-		int order;
-	}
+public class KatzBackoff extends AbstractNGramLM implements
+		IPrecomputedNGramLM {
 
 	public static final long NO_DISCOUNT_THRESHOLD = 10;
 
@@ -48,6 +55,22 @@ public class KatzBackoff extends AbstractNGramLM {
 	// Contains the counts of counts
 	private final Map<Integer, Map<Long, Long>> countOfCounts = new TreeMap<Integer, Map<Long, Long>>();
 
+	/**
+	 * The log2 probability of each n-gram node, per level, or NaN if the
+	 * n-gram is unseen (i.e. we need to backoff).
+	 */
+	private ChunkedDoubleBuffer[] logProbs;
+
+	/**
+	 * The log2 backoff weight of each context node, per level.
+	 */
+	private ChunkedDoubleBuffer[] logBackoffs;
+
+	/**
+	 * The log2 probability of a unigram that has not been seen.
+	 */
+	private double unseenUnigramLogProb;
+
 	private static final Logger LOGGER = Logger.getLogger(KatzBackoff.class
 			.getName());
 
@@ -58,7 +81,34 @@ public class KatzBackoff extends AbstractNGramLM {
 		for (int i = 1; i <= getN(); i++) {
 			computeKatzCounts(i);
 		}
+		precomputeWeights();
+	}
 
+	/**
+	 * Create the model with the given tables, as returned by
+	 * {@link #getNodeTables()} for the same trie.
+	 * 
+	 * @param original
+	 * @param tables
+	 */
+	public KatzBackoff(final AbstractNGramLM original, final NodeTables tables) {
+		super(original);
+		final double[] parameters = tables.getParameters();
+		final int nCounts = (int) NO_DISCOUNT_THRESHOLD + 1;
+		checkArgument(tables.getNumTables() == 2
+				&& parameters.length == 1 + getN() * nCounts);
+		logProbs = tables.getTable(0);
+		logBackoffs = tables.getTable(1);
+		unseenUnigramLogProb = parameters[0];
+		katzCounts = Maps.newTreeMap();
+		for (int order = 1; order <= getN(); order++) {
+			final Map<Long, Double> ngramKatzCount = Maps.newTreeMap();
+			for (int c = 0; c < nCounts; c++) {
+				ngramKatzCount.put((long) c, parameters[1 + (order - 1)
+						* nCounts + c]);
+			}
+			katzCounts.put(order, ImmutableSortedMap.copyOf(ngramKatzCount));
+		}
 	}
 
 	@Override
@@ -81,22 +131,37 @@ public class KatzBackoff extends AbstractNGramLM {
 				"KatzSmoother is an immutable Language Model");
 	}
 
-	private double computeGamma(final NGram<String> ngram) {
-		// First get all ngrams with the same prefix. Exclude UNK.
-		final NGram<String> prefix = ngram.getPrefix();
-		final double nominator = getResidualProbability(prefix);
-
-		if (nominator == 0) {
-			// No probability is remaining
-			return Math.pow(10, -10);
-		}
+	/**
+	 * Compute the backoff weight of the given context node, i.e. the ratio of
+	 * the probability mass that is left for backing off from the context and
+	 * from its suffix. The symbols of the context are in path[0, level).
+	 * 
+	 * @return the weight or null if it could not be computed.
+	 */
+	private Double computeGamma(final ILongTrieNode context,
+			final long[] path, final int level) {
+		try {
+			final double nominator = getResidualProbability(context, level);
+			if (nominator == 0) {
+				// No probability is remaining
+				return Math.pow(10, -10);
+			}
 
-		final double denominator = getResidualProbability(prefix.getSuffix());
+			final ILongTrieNode suffix = trie.getNGramNodeForInput(path, 1,
+					level, true);
+			if (suffix == null) {
+				return null;
+			}
+			final double denominator = getResidualProbability(suffix,
+					level - 1);
 
-		if (denominator == 0) {
-			return 1;
+			if (denominator == 0) {
+				return 1.;
+			}
+			return nominator / denominator;
+		} catch (final IllegalArgumentException e) {
+			return null;
 		}
-		return nominator / denominator;
 	}
 
 	/**
@@ -155,70 +220,23 @@ public class KatzBackoff extends AbstractNGramLM {
 
 	/**
 	 * Compute the counts of counts. i.e. n_i for each ngram order.
-	 * 
-	 * @param order
 	 */
 	private void computeKatzCountsOfCounts() {
+		final long[][] ngramCountOfCounts = CountOfCounts.compute(
+				trie.getRoot(), trie.getUnkSymbolId(), getN(),
+				(int) NO_DISCOUNT_THRESHOLD + 1);
 
+		final ILongTrieNode unk = trie.getRoot().getChild(
+				trie.getUnkSymbolId());
+		checkArgument(unk != null);
 		for (int i = 1; i <= getN(); i++) {
 			final Map<Long, Long> ngramOrderCounts = Maps.newTreeMap();
 			countOfCounts.put(i, ngramOrderCounts);
 			for (long j = 1; j <= NO_DISCOUNT_THRESHOLD + 1; j++) {
-				ngramOrderCounts.put(j, 0L);
+				ngramOrderCounts.put(j, ngramCountOfCounts[i][(int) j]);
 			}
+			ngramOrderCounts.put(1L, unk.getCount());
 		}
-
-		final ArrayDeque<NodeOrder> toCount = new ArrayDeque<NodeOrder>();
-		final ArrayDeque<NodeOrder> unkToCount = new ArrayDeque<NodeOrder>();
-
-		for (final Entry<Long, TrieNode<Long>> entry : trie.getRoot().prods
-				.entrySet()) {
-			final NodeOrder cnt = new NodeOrder();
-			cnt.order = 1;
-			cnt.node = entry.getValue();
-			if (entry.getKey().equals(trie.getUnkSymbolId())) {
-				unkToCount.push(cnt);
-			} else {
-				toCount.push(cnt);
-			}
-
-		}
-
-		while (!toCount.isEmpty()) {
-			final NodeOrder current = toCount.pop();
-
-			// Count Update
-			final Map<Long, Long> countsForOrder = countOfCounts
-					.get(current.order);
-			Long currentCount = countsForOrder.get(current.node.count);
-			if (current.node.count > NO_DISCOUNT_THRESHOLD + 1) {
-				continue; // We don't care, it's too large.
-			}
-
-			if (currentCount == null) {
-				currentCount = 1L;
-			} else {
-				currentCount += 1L;
-			}
-			countsForOrder.put(current.node.count, currentCount);
-
-			// Push children
-			for (final Entry<Long, TrieNode<Long>> entry : current.node.prods
-					.entrySet()) {
-				final NodeOrder cnt = new NodeOrder();
-				cnt.order = current.order + 1;
-				cnt.node = entry.getValue();
-				toCount.push(cnt);
-			}
-
-		}
-
-		checkArgument(unkToCount.size() == 1);
-		final NodeOrder current = unkToCount.pop();
-		for (int i = 1; i <= getN(); i++) {
-			countOfCounts.get(i).put(1L, current.node.count);
-		}
-
 	}
 
 	@Override
@@ -248,63 +266,115 @@ public class KatzBackoff extends AbstractNGramLM {
 	}
 
 	@Override
-	public double getProbabilityFor(final NGram<String> ngram) {
-		final long thisNgramCount = trie.getCount(ngram, false, true);
-
-		final long productionCount = trie.getCount(ngram.getPrefix(), false,
-				false);
-
-		if (thisNgramCount > 0 || ngram.size() == 1) {
-			// Discount MLE
-			final double discountedNgramCount = getKatzCount(thisNgramCount,
-					ngram.size());
-			return discountedNgramCount / (productionCount);
-
-		} else if (productionCount > 0) {
-			// backoff
-			try {
-				final double gamma = computeGamma(ngram);
-				return gamma * getProbabilityFor(ngram.getSuffix());
-			} catch (final IllegalArgumentException e) {
-				// back off to normal model since we failed at doing something
-				// (probably computing gamma)
-				LOGGER.warning("Failed to compute gamma, using 1 instead: "
-						+ ExceptionUtils.getFullStackTrace(e));
-				return getProbabilityFor(ngram.getSuffix());
+	public double getLogBackoffWeight(final NGram<String> context) {
+		checkArgument(context.size() > 0);
+		final ILongTrieNode node = trie.getNGramNodeForInput(context, false);
+		if (node == null || context.size() >= getN()) {
+			return 0;
+		}
+		return logBackoffs[context.size()].get(trie.getFrozenTrie()
+				.getNodeIndex(node));
+	}
+
+	@Override
+	public double getLogProbabilityFor(final SymbolSequence sequence,
+			final int from, final int to) {
+		// Longer n-grams are scored by their last n tokens
+		final int order = Math.min(to - from, getN());
+		final ContextState state = getContextState(sequence, to - 1);
+		double logBackoff = 0;
+		for (int k = order; k > 1; k--) {
+			final int ngram = state.getNGramIndex(k);
+			if (ngram >= 0) {
+				final double logProb = logProbs[k].get(ngram);
+				if (!Double.isNaN(logProb)) {
+					return logBackoff + logProb;
+				}
+			}
+			final int context = state.getContextIndex(k);
+			if (context >= 0) {
+				logBackoff += logBackoffs[k - 1].get(context);
 			}
-		} else {
-			return getProbabilityFor(ngram.getSuffix());
 		}
+		final int unigram = state.getNGramIndex(1);
+		if (unigram >= 0 && !Double.isNaN(logProbs[1].get(unigram))) {
+			return logBackoff + logProbs[1].get(unigram);
+		}
+		return logBackoff + unseenUnigramLogProb;
 	}
 
 	/**
-	 * @param prefix
+	 * Return the log-probability and backoff weight tables and the
+	 * parameters, i.e. the log-probability of unseen unigrams followed by the
+	 * Katz counts of 0 to NO_DISCOUNT_THRESHOLD of each order.
 	 */
-	private double getResidualProbability(final NGram<String> prefix) {
+	@Override
+	public NodeTables getNodeTables() {
+		final int nCounts = (int) NO_DISCOUNT_THRESHOLD + 1;
+		final double[] parameters = new double[1 + getN() * nCounts];
+		parameters[0] = unseenUnigramLogProb;
+		for (int order = 1; order <= getN(); order++) {
+			for (int c = 0; c < nCounts; c++) {
+				parameters[1 + (order - 1) * nCounts + c] = getKatzCount(c,
+						order);
+			}
+		}
+		return new NodeTables(new ChunkedDoubleBuffer[][] { logProbs,
+				logBackoffs }, parameters);
+	}
 
-		final TrieNode<Long> prefixU = trie.getNGramNodeForInput(prefix, true);
+	@Override
+	public double getProbabilityFor(final NGram<String> ngram) {
+		final SymbolSequence sequence = getSymbolSequence(ngram.toList());
+		return Math.pow(2, getLogProbabilityFor(sequence, 0, sequence.size()));
+	}
+
+	@Override
+	public double getProbabilityFor(final SymbolSequence sequence,
+			final int from, final int to) {
+		return Math.pow(2, getLogProbabilityFor(sequence, from, to));
+	}
+
+	/**
+	 * Return the count of the UNK child of the node, i.e. the count that is
+	 * discounted when UNKs are not used.
+	 */
+	private long getUnkCount(final ILongTrieNode node) {
+		final ILongTrieNode unk = node.getChild(trie.getUnkSymbolId());
+		return unk == null ? 0 : unk.getCount();
+	}
 
+	/**
+	 * Return the probability mass that is left for backing off from the given
+	 * prefix node.
+	 * 
+	 * @param prefixU
+	 * @param prefixSize
+	 * @return
+	 */
+	private double getResidualProbability(final ILongTrieNode prefixU,
+			final int prefixSize) {
 		// now for all these ngrams get their counts and sum their katz
 		final TreeMultiset<Long> counts = TreeMultiset.create();
-		final Long unkSymbolId = trie.getUnkSymbolId();
+		final long unkSymbolId = trie.getUnkSymbolId();
 
-		for (final Entry<Long, TrieNode<Long>> child : prefixU.prods.entrySet()) {
-			if (child.getKey().equals(unkSymbolId)) {
+		for (int i = 0; i < prefixU.nChildren(); i++) {
+			if (prefixU.getSymbolAt(i) == unkSymbolId) {
 				continue;
 			}
-			counts.add(child.getValue().count);
+			counts.add(prefixU.getChildAt(i).getCount());
 		}
 
 		// get the Katz counts and sum them up
 		double katzCountSum = 0;
 		for (final com.google.common.collect.Multiset.Entry<Long> entry : counts
 				.entrySet()) {
-			katzCountSum += getKatzCount(entry.getElement(), prefix.size() + 1)
+			katzCountSum += getKatzCount(entry.getElement(), prefixSize + 1)
 					* (entry.getCount());
 		}
 
 		final double residual = 1. - katzCountSum
-				/ (prefixU.count - prefixU.terminateHere);
+				/ (prefixU.getCount() - prefixU.getTerminateHere());
 
 		// There are cases where no probability mass is left
 		checkArgument(residual >= 0);
@@ -313,6 +383,90 @@ public class KatzBackoff extends AbstractNGramLM {
 		return residual;
 	}
 
+	/**
+	 * Precompute the log-probabilities of the seen n-grams and the backoff
+	 * weights of all the contexts.
+	 */
+	private void precomputeWeights() {
+		final FrozenLongTrie frozen = trie.getFrozenTrie();
+		final int nLevels = Math.min(getN() + 1, frozen.getNumLevels());
+		final double[][] logProbArrays = new double[nLevels][];
+		final double[][] logBackoffArrays = new double[nLevels][];
+		for (int level = 0; level < nLevels; level++) {
+			logProbArrays[level] = new double[frozen.getLevelSize(level)];
+			Arrays.fill(logProbArrays[level], Double.NaN);
+			logBackoffArrays[level] = new double[frozen.getLevelSize(level)];
+		}
+
+		final ILongTrieNode root = frozen.getRoot();
+		final int nFailed = precomputeWeights(frozen, root, 0,
+				new long[getN()], logProbArrays, logBackoffArrays);
+		if (nFailed > 0) {
+			LOGGER.warning("Failed to compute gamma for " + nFailed
+					+ " contexts, using 1 instead");
+		}
+		logProbs = new ChunkedDoubleBuffer[nLevels];
+		logBackoffs = new ChunkedDoubleBuffer[nLevels];
+		for (int level = 0; level < nLevels; level++) {
+			logProbs[level] = ChunkedDoubleBuffer.wrap(logProbArrays[level]);
+			logBackoffs[level] = ChunkedDoubleBuffer
+					.wrap(logBackoffArrays[level]);
+		}
+
+		final long rootCount = root.getCount() - root.getTerminateHere()
+				- getUnkCount(root);
+		unseenUnigramLogProb = DoubleMath.log2(getKatzCount(0, 1)
+				/ rootCount);
+	}
+
+	/**
+	 * Precompute the weights of the children of the given context node in
+	 * the given arrays and recurse. The symbols of the context are in
+	 * path[0, level).
+	 * 
+	 * @return the number of contexts whose backoff weight failed to compute.
+	 */
+	private int precomputeWeights(final FrozenLongTrie frozen,
+			final ILongTrieNode context, final int level, final long[] path,
+			final double[][] logProbArrays, final double[][] logBackoffArrays) {
+		final long contextCount = context.getCount()
+				- context.getTerminateHere() - getUnkCount(context);
+		if (contextCount <= 0) {
+			return 0;
+		}
+
+		int nFailed = 0;
+		if (level > 0) {
+			final Double gamma = computeGamma(context, path, level);
+			if (gamma == null) {
+				nFailed++;
+			} else {
+				logBackoffArrays[level][frozen.getNodeIndex(context)] = DoubleMath
+						.log2(gamma);
+			}
+		}
+
+		final long unkSymbolId = trie.getUnkSymbolId();
+		for (int i = 0; i < context.nChildren(); i++) {
+			if (context.getSymbolAt(i) == unkSymbolId) {
+				continue;
+			}
+			final ILongTrieNode ngram = context.getChildAt(i);
+			final long ngramCount = ngram.getCount() - getUnkCount(ngram);
+			if (ngramCount > 0) {
+				logProbArrays[level + 1][frozen.getNodeIndex(ngram)] = DoubleMath
+						.log2(getKatzCount(ngramCount, level + 1)
+								/ contextCount);
+			}
+			if (level + 1 < getN()) {
+				path[level] = context.getSymbolAt(i);
+				nFailed += precomputeWeights(frozen, ngram, level + 1, path,
+						logProbArrays, logBackoffArrays);
+			}
+		}
+		return nFailed;
+	}
+
 	@Override
 	public void removeNgram(final NGram<String> ngram) {
 		throw new UnsupportedOperationException(
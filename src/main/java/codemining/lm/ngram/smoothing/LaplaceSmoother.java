@@ -8,6 +8,7 @@ import java.util.List;
 import codemining.lm.ILanguageModel;
 import codemining.lm.ngram.AbstractNGramLM;
 import codemining.lm.ngram.NGram;
+import codemining.lm.ngram.SymbolSequence;
 import codemining.util.SettingsLoader;
 
 public class LaplaceSmoother extends AbstractNGramLM {
@@ -61,10 +62,19 @@ public class LaplaceSmoother extends AbstractNGramLM {
 
 		return (ngramCount + COUNT_INCREMENT)
 				/ (productionCount + COUNT_INCREMENT
-						* trie.getRoot().prods.size());
+						* trie.getRoot().nChildren());
 
 	}
 
+	@Override
+	public double getProbabilityFor(final SymbolSequence sequence,
+			final int from, final int to) {
+		countNGram(sequence, from, to, false);
+		return (sequence.getNGramCount() + COUNT_INCREMENT)
+				/ (sequence.getPrefixCount() + COUNT_INCREMENT
+						* trie.getRoot().nChildren());
+	}
+
 	@Override
 	public void removeNgram(final NGram<String> ngram) {
 		throw new UnsupportedOperationException(
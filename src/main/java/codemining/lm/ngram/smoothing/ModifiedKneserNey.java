@@ -0,0 +1,478 @@
+package codemining.lm.ngram.smoothing;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.logging.Logger;
+
+import codemining.languagetools.ITokenizer;
+import codemining.lm.ILanguageModel;
+import codemining.lm.ngram.AbstractNGramLM;
+import codemining.lm.ngram.ContextState;
+import codemining.lm.ngram.FrozenLongTrie;
+import codemining.lm.ngram.ILongTrieNode;
+import codemining.lm.ngram.NGram;
+import codemining.lm.ngram.SymbolSequence;
+import codemining.util.parallel.ParallelThreadPool;
+
+import com.google.common.collect.Lists;
+
+/**
+ * An interpolated modified Kneser-Ney language model (Chen & Goodman, 1998).
+ *
+ * The highest order uses the raw n-gram counts, while each lower order w_i^k
+ * uses the number of distinct symbols that precede it, N1+(*, w_i^k). Since
+ * nothing precedes the sentence start, the lower order n-grams that begin
+ * with it use their raw counts as well (as in KenLM), both for the discounts
+ * and for the weights of their contexts. These left-continuation counts are
+ * computed when the model is constructed, in a single parallel pass over the
+ * subtrees of the root of the frozen trie, and are stored as an int per node,
+ * indexed by the position of the node in its level. Three discounts per order (for counts of 1, 2 and 3+) are estimated
+ * from the counts of counts and the interpolation weight of each context is
+ * precomputed, so that scoring only reads these tables.
+ *
+ * The lowest order is interpolated with the uniform distribution over the
+ * vocabulary, which is also the probability mass of out-of-vocabulary tokens.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class ModifiedKneserNey extends AbstractNGramLM {
+
+	/**
+	 * The left-continuation counting of the subtrees of a range of root
+	 * children. It also collects the counts of counts of the highest order.
+	 */
+	private class ContinuationCountTask implements Runnable {
+
+		final int fromChild;
+
+		final int toChild;
+
+		final AtomicIntegerArray[] counts;
+
+		final long[] highestOrderCountOfCounts = new long[5];
+
+		ContinuationCountTask(final int fromChild, final int toChild,
+				final AtomicIntegerArray[] counts) {
+			this.fromChild = fromChild;
+			this.toChild = toChild;
+			this.counts = counts;
+		}
+
+		/**
+		 * Count the node at the given level as a left continuation of its
+		 * suffix node and recurse. The suffix is null if it contains UNK.
+		 */
+		private void count(final ILongTrieNode node, final ILongTrieNode suffix,
+				final int level, final boolean containsUnk) {
+			if (suffix != null && level > 1) {
+				counts[level - 1].incrementAndGet(frozen.getNodeIndex(suffix));
+			}
+			if (level == getN()) {
+				if (!containsUnk && node.getCount() <= 4) {
+					highestOrderCountOfCounts[(int) node.getCount()]++;
+				}
+				return;
+			}
+			for (int i = 0; i < node.nChildren(); i++) {
+				final long symbol = node.getSymbolAt(i);
+				final boolean isUnk = symbol == trie.getUnkSymbolId();
+				final ILongTrieNode childSuffix = suffix == null || isUnk ? null
+						: suffix.getChild(symbol);
+				count(node.getChildAt(i), childSuffix, level + 1, containsUnk
+						|| isUnk);
+			}
+		}
+
+		@Override
+		public void run() {
+			final ILongTrieNode root = frozen.getRoot();
+			for (int i = fromChild; i < toChild; i++) {
+				// The suffix of the unigram is the empty context, so even
+				// UNK is a distinct left context for the n-grams after it.
+				count(root.getChildAt(i), root, 1,
+						root.getSymbolAt(i) == trie.getUnkSymbolId());
+			}
+		}
+	}
+
+	/**
+	 * The precomputation of the interpolation weights of the contexts in the
+	 * subtrees of a range of root children.
+	 */
+	private class ContextWeightTask implements Runnable {
+
+		final int fromChild;
+
+		final int toChild;
+
+		ContextWeightTask(final int fromChild, final int toChild) {
+			this.fromChild = fromChild;
+			this.toChild = toChild;
+		}
+
+		@Override
+		public void run() {
+			final ILongTrieNode root = frozen.getRoot();
+			for (int i = fromChild; i < toChild; i++) {
+				if (root.getSymbolAt(i) != trie.getUnkSymbolId()) {
+					precomputeContextWeights(root.getChildAt(i), 1);
+				}
+			}
+		}
+	}
+
+	private static final long serialVersionUID = -1887325279016513457L;
+
+	private static final Logger LOGGER = Logger
+			.getLogger(ModifiedKneserNey.class.getName());
+
+	/**
+	 * The number of tasks per processor that the root children are split
+	 * into.
+	 */
+	private static final int TASKS_PER_PROCESSOR = 4;
+
+	private transient FrozenLongTrie frozen;
+
+	/**
+	 * The left-continuation count N1+(*, w) of each node, per level, or the
+	 * raw count of the n-grams that begin with the sentence start. There are
+	 * no counts for the highest order, that uses the raw counts.
+	 */
+	private int[][] continuationCounts;
+
+	/**
+	 * The sum of the continuation counts of the children of each context
+	 * node, N1+(*, h, *), per level.
+	 */
+	private int[][] contextContinuationCounts;
+
+	/**
+	 * The discounted mass of each context node, i.e. D1 N1(h, *) + D2 N2(h,
+	 * *) + D3+ N3+(h, *), per level. Divided by the denominator of the
+	 * context, this is the weight of the lower order distribution.
+	 */
+	private double[][] discountedMass;
+
+	/**
+	 * The discounts D1, D2, D3+ of each order, at positions 1 to 3.
+	 */
+	private final double[][] discounts;
+
+	/**
+	 * The probability of each token under the uniform distribution.
+	 */
+	private final double uniformProbability;
+
+	public ModifiedKneserNey(final AbstractNGramLM original) {
+		super(original);
+		frozen = trie.getFrozenTrie();
+		discounts = new double[getN() + 1][];
+		uniformProbability = 1. / trie.getVocabulary().size();
+		final long[][] countOfCounts = computeContinuationCounts();
+		for (int order = 1; order <= getN(); order++) {
+			discounts[order] = computeDiscounts(countOfCounts[order], order);
+		}
+		precomputeContextWeights();
+		frozen = null;
+	}
+
+	@Override
+	public void addFromSentence(final List<String> sentence,
+			final boolean addNewVoc) {
+		throw new UnsupportedOperationException(
+				"ModifiedKneserNey is an immutable Language Model");
+	}
+
+	@Override
+	protected void addNgram(final NGram<String> ngram, final boolean addNewVoc) {
+		throw new UnsupportedOperationException(
+				"ModifiedKneserNey is an immutable Language Model");
+	}
+
+	@Override
+	public void addSentences(final Collection<List<String>> sentenceSet,
+			final boolean addNewVocabulary) {
+		throw new UnsupportedOperationException(
+				"ModifiedKneserNey is an immutable Language Model");
+	}
+
+	/**
+	 * Compute the left-continuation counts of all the nodes below the
+	 * highest order, splitting the subtrees of the root among the threads.
+	 *
+	 * @return the counts of counts n0..n4 for each order
+	 */
+	private long[][] computeContinuationCounts() {
+		final AtomicIntegerArray[] counts = new AtomicIntegerArray[getN()];
+		for (int level = 1; level < getN() && level < frozen.getNumLevels(); level++) {
+			counts[level] = new AtomicIntegerArray(frozen.getLevelSize(level));
+		}
+
+		final List<ContinuationCountTask> tasks = Lists.newArrayList();
+		final ParallelThreadPool threadPool = new ParallelThreadPool();
+		final int nRootChildren = frozen.getRoot().nChildren();
+		final int chunkSize = getChunkSize(nRootChildren);
+		for (int i = 0; i < nRootChildren; i += chunkSize) {
+			final ContinuationCountTask task = new ContinuationCountTask(i,
+					Math.min(i + chunkSize, nRootChildren), counts);
+			tasks.add(task);
+			threadPool.pushTask(task);
+		}
+		threadPool.waitForTermination();
+		setSentenceStartCounts(counts);
+
+		final long[][] countOfCounts = new long[getN() + 1][5];
+		for (final ContinuationCountTask task : tasks) {
+			for (int i = 0; i < 5; i++) {
+				countOfCounts[getN()][i] += task.highestOrderCountOfCounts[i];
+			}
+		}
+
+		continuationCounts = new int[getN()][];
+		for (int level = 1; level < getN(); level++) {
+			if (counts[level] == null) {
+				continuationCounts[level] = new int[0];
+				continue;
+			}
+			continuationCounts[level] = new int[counts[level].length()];
+			for (int i = 0; i < continuationCounts[level].length; i++) {
+				final int count = counts[level].get(i);
+				continuationCounts[level][i] = count;
+				if (count <= 4) {
+					countOfCounts[level][count]++;
+				}
+			}
+		}
+		return countOfCounts;
+	}
+
+	/**
+	 * Estimate the discounts D1, D2, D3+ from the counts of counts n1..n4 of
+	 * the given order. When these are not enough to estimate them (e.g. on a
+	 * tiny corpus) fixed discounts are used.
+	 */
+	private double[] computeDiscounts(final long[] countOfCounts,
+			final int order) {
+		final double[] orderDiscounts = new double[4];
+		final double y = ((double) countOfCounts[1])
+				/ (countOfCounts[1] + 2. * countOfCounts[2]);
+		for (int c = 1; c <= 3; c++) {
+			final double discount = c - (c + 1.) * y * countOfCounts[c + 1]
+					/ countOfCounts[c];
+			if (countOfCounts[c] == 0 || Double.isNaN(discount)) {
+				LOGGER.warning("Not enough counts of counts for order "
+						+ order + ", using a fixed discount of " + c / 2.
+						+ " for a count of " + c);
+				orderDiscounts[c] = c / 2.;
+			} else {
+				orderDiscounts[c] = Math.max(0, Math.min(c, discount));
+			}
+		}
+		return orderDiscounts;
+	}
+
+	@Override
+	public void cutoffRare(final int threshold) {
+		throw new UnsupportedOperationException(
+				"ModifiedKneserNey is an immutable Language Model");
+	}
+
+	/**
+	 * Return the number of root children that each task processes.
+	 */
+	private int getChunkSize(final int nRootChildren) {
+		final int nTasks = Runtime.getRuntime().availableProcessors()
+				* TASKS_PER_PROCESSOR;
+		return Math.max(1, (nRootChildren + nTasks - 1) / nTasks);
+	}
+
+	/**
+	 * Return the discount of the given count for the given order.
+	 */
+	public double getDiscount(final long count, final int order) {
+		checkArgument(order > 0 && order <= getN());
+		if (count == 0) {
+			return 0;
+		}
+		return discounts[order][(int) Math.min(count, 3)];
+	}
+
+	@Override
+	public ILanguageModel getImmutableVersion() {
+		return this;
+	}
+
+	@Override
+	public double getProbabilityFor(final NGram<String> ngram) {
+		final SymbolSequence sequence = getSymbolSequence(ngram.toList());
+		return getProbabilityFor(sequence, 0, sequence.size());
+	}
+
+	@Override
+	public double getProbabilityFor(final SymbolSequence sequence,
+			final int from, final int to) {
+		final int order = to - from;
+		checkArgument(order > 0 && order <= getN());
+		final ContextState state = getContextState(sequence, to - 1);
+		double probability = uniformProbability;
+		for (int k = 1; k <= order; k++) {
+			final int context = state.getContextIndex(k);
+			if (context < 0) {
+				// All the longer contexts are unseen as well
+				break;
+			}
+			final long denominator;
+			final long count;
+			if (k == getN()) {
+				denominator = state.getContextCount(k);
+				count = state.getNGramCount(k);
+			} else {
+				denominator = contextContinuationCounts[k - 1][context];
+				final int ngram = state.getNGramIndex(k);
+				count = ngram < 0 ? 0 : continuationCounts[k][ngram];
+			}
+			if (denominator <= 0) {
+				break;
+			}
+			probability = (count - getDiscount(count, k) + discountedMass[k - 1][context]
+					* probability)
+					/ denominator;
+		}
+		return probability;
+	}
+
+	/**
+	 * Precompute the denominators and discounted masses of all the contexts.
+	 */
+	private void precomputeContextWeights() {
+		contextContinuationCounts = new int[getN() - 1][];
+		discountedMass = new double[getN()][];
+		for (int level = 0; level < getN() && level < frozen.getNumLevels(); level++) {
+			discountedMass[level] = new double[frozen.getLevelSize(level)];
+			if (level < getN() - 1) {
+				contextContinuationCounts[level] = new int[frozen
+						.getLevelSize(level)];
+			}
+		}
+
+		final ILongTrieNode root = frozen.getRoot();
+		precomputeContextWeight(root, 0);
+		if (getN() > 1) {
+			final ParallelThreadPool threadPool = new ParallelThreadPool();
+			final int nRootChildren = root.nChildren();
+			final int chunkSize = getChunkSize(nRootChildren);
+			for (int i = 0; i < nRootChildren; i += chunkSize) {
+				threadPool.pushTask(new ContextWeightTask(i, Math.min(i
+						+ chunkSize, nRootChildren)));
+			}
+			threadPool.waitForTermination();
+		}
+	}
+
+	/**
+	 * Precompute the denominator and the discounted mass of the given context
+	 * node, over its children that are not UNK.
+	 */
+	private void precomputeContextWeight(final ILongTrieNode context,
+			final int level) {
+		final int contextIndex = frozen.getNodeIndex(context);
+		final boolean isHighestOrder = level + 1 == getN();
+		long denominator = 0;
+		double mass = 0;
+		for (int i = 0; i < context.nChildren(); i++) {
+			if (context.getSymbolAt(i) == trie.getUnkSymbolId()) {
+				continue;
+			}
+			final ILongTrieNode child = context.getChildAt(i);
+			final long count;
+			if (isHighestOrder) {
+				count = child.getCount();
+			} else {
+				count = continuationCounts[level + 1][frozen
+						.getNodeIndex(child)];
+			}
+			denominator += count;
+			mass += getDiscount(count, level + 1);
+		}
+		discountedMass[level][contextIndex] = mass;
+		if (!isHighestOrder) {
+			checkArgument(denominator <= Integer.MAX_VALUE);
+			contextContinuationCounts[level][contextIndex] = (int) denominator;
+		}
+	}
+
+	/**
+	 * Precompute the weights of the given context and all the contexts below
+	 * it, up to the highest order.
+	 */
+	private void precomputeContextWeights(final ILongTrieNode context,
+			final int level) {
+		precomputeContextWeight(context, level);
+		if (level + 1 >= getN()) {
+			return;
+		}
+		for (int i = 0; i < context.nChildren(); i++) {
+			if (context.getSymbolAt(i) != trie.getUnkSymbolId()) {
+				precomputeContextWeights(context.getChildAt(i), level + 1);
+			}
+		}
+	}
+
+	/**
+	 * Set the counts of the n-grams of orders 2 to n-1 that begin with the
+	 * sentence start to their raw counts, i.e. the number of sentences that
+	 * begin with them.
+	 */
+	private void setSentenceStartCounts(final AtomicIntegerArray[] counts) {
+		final Long sentenceStart = trie.getSymbolIds(
+				Lists.newArrayList(ITokenizer.SENTENCE_START), false).get(0);
+		if (sentenceStart == null) {
+			return;
+		}
+		final ILongTrieNode node = frozen.getRoot().getChild(sentenceStart);
+		if (node != null) {
+			setSentenceStartCounts(node, 1, counts);
+		}
+	}
+
+	private void setSentenceStartCounts(final ILongTrieNode node,
+			final int level, final AtomicIntegerArray[] counts) {
+		if (level > 1) {
+			checkArgument(node.getTerminateHere() <= Integer.MAX_VALUE);
+			counts[level].set(frozen.getNodeIndex(node),
+					(int) node.getTerminateHere());
+		}
+		if (level + 1 >= getN()) {
+			return;
+		}
+		for (int i = 0; i < node.nChildren(); i++) {
+			setSentenceStartCounts(node.getChildAt(i), level + 1, counts);
+		}
+	}
+
+	@Override
+	public void removeNgram(final NGram<String> ngram) {
+		throw new UnsupportedOperationException(
+				"ModifiedKneserNey is an immutable Language Model");
+	}
+
+	@Override
+	public void trainIncrementalModel(final Collection<File> files)
+			throws IOException {
+		throw new UnsupportedOperationException(
+				"ModifiedKneserNey is an immutable Language Model");
+	}
+
+	@Override
+	public void trainModel(final Collection<File> files) throws IOException {
+		throw new UnsupportedOperationException(
+				"ModifiedKneserNey is an immutable Language Model");
+	}
+}
@@ -2,16 +2,27 @@ package codemining.lm.ngram.smoothing;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.logging.Logger;
 
 import codemining.lm.ILanguageModel;
 import codemining.lm.ngram.AbstractNGramLM;
+import codemining.lm.ngram.ChunkedDoubleBuffer;
+import codemining.lm.ngram.ContextState;
+import codemining.lm.ngram.FrozenLongTrie;
+import codemining.lm.ngram.ILongTrieNode;
+import codemining.lm.ngram.IPrecomputedNGramLM;
 import codemining.lm.ngram.NGram;
+import codemining.lm.ngram.NodeTables;
+import codemining.lm.ngram.SymbolSequence;
+
+import com.google.common.math.DoubleMath;
 
 /**
  * The stupid backoff as in the following paper:
@@ -20,18 +31,79 @@ import codemining.lm.ngram.NGram;
  * translation}, author={Brants, T. and Popat, A.C. and Xu, P. and Och, F.J. and
  * Dean, J.}, booktitle={In EMNLP}, year={2007}, organization={Citeseer} }
  *
+ * The log-probability of each n-gram is precomputed per node of the frozen
+ * trie when the model is constructed, so that scoring a sentence only adds the
+ * backoff penalties to the log-probability of the longest seen n-gram. The
+ * table is stored in model files, so that reading a model does not compute it
+ * again.
+ *
  * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
  *
  */
-public class StupidBackoff extends AbstractNGramLM {
+public class StupidBackoff extends AbstractNGramLM implements
+		IPrecomputedNGramLM {
 
 	private static final long serialVersionUID = -4632284391688356590L;
 
+	/**
+	 * The backoff penalty of each order.
+	 */
+	private static final double BACKOFF = 0.4;
+
+	private static final double LOG_BACKOFF = DoubleMath.log2(BACKOFF);
+
 	private static final Logger LOGGER = Logger.getLogger(StupidBackoff.class
 			.getName());
 
+	/**
+	 * The log2 ML probability of each n-gram node, per level, or NaN if the
+	 * n-gram is unseen. Unigrams include UNKs. Null if the probabilities are
+	 * not precomputed.
+	 */
+	private ChunkedDoubleBuffer[] logProbs;
+
+	/**
+	 * The position of the UNK unigram or -1 if there is none.
+	 */
+	private int unkUnigram = -1;
+
 	public StupidBackoff(final AbstractNGramLM original) {
+		this(original, true);
+	}
+
+	/**
+	 * @param original
+	 * @param precompute
+	 *            whether to precompute the log-probabilities. Subclasses that
+	 *            do not score through {@link #getLogProbabilityFor} may skip
+	 *            it.
+	 */
+	protected StupidBackoff(final AbstractNGramLM original,
+			final boolean precompute) {
+		super(original);
+		if (precompute) {
+			precomputeProbabilities();
+		}
+	}
+
+	/**
+	 * Create the model with the given table, as returned by
+	 * {@link #getNodeTables()} for the same trie.
+	 *
+	 * @param original
+	 * @param tables
+	 */
+	public StupidBackoff(final AbstractNGramLM original,
+			final NodeTables tables) {
 		super(original);
+		checkArgument(tables.getNumTables() == 1);
+		logProbs = tables.getTable(0);
+		final FrozenLongTrie frozen = trie.getFrozenTrie();
+		final ILongTrieNode unk = frozen.getRoot().getChild(
+				trie.getUnkSymbolId());
+		if (unk != null) {
+			unkUnigram = frozen.getNodeIndex(unk);
+		}
 	}
 
 	@Override
@@ -65,6 +137,44 @@ public class StupidBackoff extends AbstractNGramLM {
 		return this;
 	}
 
+	@Override
+	public double getLogBackoffWeight(final NGram<String> context) {
+		return LOG_BACKOFF;
+	}
+
+	@Override
+	public double getLogProbabilityFor(final SymbolSequence sequence,
+			final int from, final int to) {
+		// Longer n-grams are unseen, so they back off to their last n tokens
+		final int order = Math.min(to - from, getN());
+		final ContextState state = getContextState(sequence, to - 1);
+		double logBackoff = LOG_BACKOFF * (to - from - order);
+		for (int k = order; k > 1; k--) {
+			final int ngram = state.getNGramIndex(k);
+			if (ngram >= 0) {
+				final double logProb = logProbs[k].get(ngram);
+				if (!Double.isNaN(logProb)) {
+					return logBackoff + logProb;
+				}
+			}
+			logBackoff += LOG_BACKOFF;
+		}
+		// Unigrams that are not in the trie are substituted with UNK
+		int unigram = state.getNGramIndex(1);
+		if (unigram < 0) {
+			unigram = unkUnigram;
+		}
+		checkArgument(unigram >= 0 && !Double.isNaN(logProbs[1].get(unigram)));
+		return logBackoff + logProbs[1].get(unigram);
+	}
+
+	@Override
+	public NodeTables getNodeTables() {
+		checkState(logProbs != null, "The probabilities are not precomputed");
+		return new NodeTables(new ChunkedDoubleBuffer[][] { logProbs },
+				new double[0]);
+	}
+
 	/**
 	 * Get the probability using the ngram. It assumes that the last word w_i
 	 * exists in the dictionary (or has been converted to UNK).
@@ -92,8 +202,90 @@ public class StupidBackoff extends AbstractNGramLM {
 			return mlProb;
 		} else {
 			checkArgument(ngram.size() > 1);
-			return 0.4 * getProbabilityFor(ngram.getSuffix());
+			return BACKOFF * getProbabilityFor(ngram.getSuffix());
+
+		}
+	}
+
+	@Override
+	public double getProbabilityFor(final SymbolSequence sequence,
+			final int from, final int to) {
+		return Math.pow(2, getLogProbabilityFor(sequence, from, to));
+	}
+
+	/**
+	 * Return the count of the UNK child of the node, i.e. the count that is
+	 * discounted when UNKs are not used.
+	 */
+	private long getUnkCount(final ILongTrieNode node) {
+		final ILongTrieNode unk = node.getChild(trie.getUnkSymbolId());
+		return unk == null ? 0 : unk.getCount();
+	}
+
+	/**
+	 * Precompute the log-probabilities of all the n-grams, as in
+	 * {@link #getProbabilityFor(NGram)}.
+	 */
+	private void precomputeProbabilities() {
+		final FrozenLongTrie frozen = trie.getFrozenTrie();
+		final int nLevels = Math.min(getN() + 1, frozen.getNumLevels());
+		final double[][] logProbArrays = new double[nLevels][];
+		for (int level = 0; level < nLevels; level++) {
+			logProbArrays[level] = new double[frozen.getLevelSize(level)];
+			Arrays.fill(logProbArrays[level], Double.NaN);
+		}
 
+		// Unigrams are substituted with UNK, i.e. they use UNKs
+		final ILongTrieNode root = frozen.getRoot();
+		final long rootCount = root.getCount() - root.getTerminateHere();
+		final long unkSymbolId = trie.getUnkSymbolId();
+		for (int i = 0; i < root.nChildren(); i++) {
+			final ILongTrieNode unigram = root.getChildAt(i);
+			final int index = frozen.getNodeIndex(unigram);
+			if (root.getSymbolAt(i) == unkSymbolId) {
+				unkUnigram = index;
+			}
+			if (unigram.getCount() > 0) {
+				logProbArrays[1][index] = DoubleMath.log2(((double) unigram
+						.getCount()) / rootCount);
+			}
+			if (getN() > 1) {
+				precomputeProbabilities(frozen, unigram, 1, logProbArrays);
+			}
+		}
+		logProbs = new ChunkedDoubleBuffer[nLevels];
+		for (int level = 0; level < nLevels; level++) {
+			logProbs[level] = ChunkedDoubleBuffer.wrap(logProbArrays[level]);
+		}
+	}
+
+	/**
+	 * Precompute the log-probabilities of the children of the given context
+	 * node of the given length in the given arrays and recurse.
+	 */
+	private void precomputeProbabilities(final FrozenLongTrie frozen,
+			final ILongTrieNode context, final int level,
+			final double[][] logProbArrays) {
+		final long contextCount = context.getCount()
+				- context.getTerminateHere() - getUnkCount(context);
+		if (contextCount <= 0) {
+			return;
+		}
+		final long unkSymbolId = trie.getUnkSymbolId();
+		for (int i = 0; i < context.nChildren(); i++) {
+			if (context.getSymbolAt(i) == unkSymbolId) {
+				continue;
+			}
+			final ILongTrieNode ngram = context.getChildAt(i);
+			final long ngramCount = ngram.getCount() - getUnkCount(ngram);
+			if (ngramCount > 0) {
+				logProbArrays[level + 1][frozen.getNodeIndex(ngram)] = DoubleMath
+						.log2(((double) ngramCount) / contextCount);
+			}
+			if (level + 1 < getN()) {
+				precomputeProbabilities(frozen, ngram, level + 1,
+						logProbArrays);
+			}
 		}
 	}
 
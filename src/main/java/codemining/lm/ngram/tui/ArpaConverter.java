@@ -0,0 +1,55 @@
+/**
+ *
+ */
+package codemining.lm.ngram.tui;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+
+import codemining.languagetools.ITokenizer;
+import codemining.languagetools.TokenizerUtils;
+import codemining.lm.ngram.AbstractNGramLM;
+import codemining.lm.ngram.ArpaFile;
+import codemining.lm.ngram.ArpaNGramLM;
+import codemining.lm.ngram.EntropyPruner;
+import codemining.util.serialization.ISerializationStrategy.SerializationException;
+
+/**
+ * Convert n-gram models from and to the ARPA format and prune ARPA models to
+ * a target number of n-grams.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class ArpaConverter {
+
+	public static void main(final String[] args) throws IOException,
+			ClassNotFoundException, InstantiationException,
+			IllegalAccessException, IllegalArgumentException,
+			InvocationTargetException, NoSuchMethodException,
+			SecurityException, SerializationException {
+		if (args.length == 3 && args[0].equals("export")) {
+			final AbstractNGramLM model = AbstractNGramLM
+					.readFromSerialized(args[1]);
+			ArpaFile.write(model, args[2]);
+		} else if (args.length == 4 && args[0].equals("import")) {
+			final ITokenizer tokenizer = TokenizerUtils
+					.tokenizerForClass(args[2]);
+			final ArpaNGramLM model = ArpaFile.read(args[1], tokenizer);
+			model.serializeToDisk(args[3]);
+		} else if (args.length == 5 && args[0].equals("prune")) {
+			final ITokenizer tokenizer = TokenizerUtils
+					.tokenizerForClass(args[2]);
+			final ArpaNGramLM model = ArpaFile.read(args[1], tokenizer);
+			ArpaFile.write(
+					EntropyPruner.prune(model, Long.parseLong(args[3])),
+					args[4]);
+		} else {
+			System.err
+					.println("Usage export <NGramModel.ser|.nglm> <output.arpa[.gz]>\n"
+							+ "   or import <input.arpa[.gz]> <tokenizationClass> <NGramModel.ser output>\n"
+							+ "   or prune <input.arpa[.gz]> <tokenizationClass> <maxNGrams> <output.arpa[.gz]>");
+		}
+	}
+
+}
@@ -0,0 +1,112 @@
+/**
+ *
+ */
+package codemining.lm.ngram.tui;
+
+import java.util.Random;
+
+import codemining.lm.ngram.ContextState;
+import codemining.lm.ngram.FrozenLongTrie;
+import codemining.lm.ngram.ISymbolTrie;
+import codemining.lm.ngram.LongArrayTrie;
+import codemining.lm.ngram.ProbingHashTrie;
+
+/**
+ * Benchmark the throughput (queries/sec) of n-gram lookups on a
+ * {@link FrozenLongTrie} and on a {@link ProbingHashTrie} over the same
+ * n-grams, both for random n-gram counts and for the left-to-right scoring of
+ * sentences.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class BackendQueryBenchmark {
+
+	public static void main(final String[] args) {
+		if (args.length != 3) {
+			System.err.println("Usage <nNgrams> <n> <nQueries>");
+			return;
+		}
+
+		final int nNgrams = Integer.parseInt(args[0]);
+		final int n = Integer.parseInt(args[1]);
+		final int nQueries = Integer.parseInt(args[2]);
+		final Random rnd = new Random(0);
+
+		final LongArrayTrie trie = new LongArrayTrie(Long.MIN_VALUE);
+		for (final long[] ngram : BenchmarkSequences.createSequences(nNgrams,
+				n, 100000, rnd)) {
+			trie.add(ngram);
+		}
+		final FrozenLongTrie frozen = trie.freeze();
+		final ProbingHashTrie hashed = new ProbingHashTrie(frozen);
+
+		final long[][] queries = BenchmarkSequences.createSequences(nQueries,
+				n, 100000, rnd);
+		final long[][] sentences = BenchmarkSequences.createSequences(
+				Math.max(1, nQueries / 100), 100, 100000, rnd);
+
+		// Warm-up
+		runCountBenchmark(frozen, queries);
+		runCountBenchmark(hashed, queries);
+		runScoringBenchmark(frozen, sentences, n);
+		runScoringBenchmark(hashed, sentences, n);
+
+		System.out.println("backend,countsPerSec,scoredTokensPerSec");
+		System.out.println("trie," + runCountBenchmark(frozen, queries) + ","
+				+ runScoringBenchmark(frozen, sentences, n));
+		System.out.println("probingHash," + runCountBenchmark(hashed, queries)
+				+ "," + runScoringBenchmark(hashed, sentences, n));
+	}
+
+	/**
+	 * Retrieve the counts of all the n-grams and their prefixes.
+	 *
+	 * @return the number of n-grams counted per second.
+	 */
+	private static double runCountBenchmark(final ISymbolTrie trie,
+			final long[][] queries) {
+		final long[] counts = new long[2];
+		long checksum = 0;
+		final long start = System.nanoTime();
+		for (final long[] query : queries) {
+			trie.getNGramCounts(query, 0, query.length, false, counts);
+			checksum += counts[0];
+		}
+		final long elapsed = System.nanoTime() - start;
+		if (checksum < 0) {
+			throw new IllegalStateException();
+		}
+		return queries.length / (elapsed / 1E9);
+	}
+
+	/**
+	 * Walk all the sentences with a context state, retrieving the counts of
+	 * all orders at each token.
+	 *
+	 * @return the number of tokens scored per second.
+	 */
+	private static double runScoringBenchmark(final ISymbolTrie trie,
+			final long[][] sentences, final int n) {
+		final ContextState state = trie.createContextState(n);
+		long checksum = 0;
+		long nTokens = 0;
+		final long start = System.nanoTime();
+		for (final long[] sentence : sentences) {
+			state.reset();
+			for (final long symbol : sentence) {
+				state.advance(symbol);
+				for (int k = 1; k <= state.getMaxAvailableOrder(); k++) {
+					checksum += state.getNGramCount(k);
+				}
+				nTokens++;
+			}
+		}
+		final long elapsed = System.nanoTime() - start;
+		if (checksum < 0) {
+			throw new IllegalStateException();
+		}
+		return nTokens / (elapsed / 1E9);
+	}
+
+}
@@ -0,0 +1,59 @@
+/**
+ *
+ */
+package codemining.lm.ngram.tui;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Random symbol sequences for the benchmarks. The symbols follow a Zipfian
+ * distribution (the frequency of the k-th most frequent symbol is
+ * proportional to 1/k), as tokens in code do.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+final class BenchmarkSequences {
+
+	/**
+	 * Create random sequences of Zipfian-distributed symbols. Symbols are
+	 * numbered from Long.MIN_VALUE + 1, so that they never collide with the
+	 * sentinel of the tries.
+	 *
+	 * @param nSequences
+	 * @param length
+	 * @param vocabularySize
+	 * @param rnd
+	 * @return
+	 */
+	static long[][] createSequences(final int nSequences, final int length,
+			final int vocabularySize, final Random rnd) {
+		checkArgument(vocabularySize > 0, "The vocabulary must not be empty");
+		final double[] cdf = new double[vocabularySize];
+		double sum = 0;
+		for (int k = 0; k < vocabularySize; k++) {
+			sum += 1. / (k + 1);
+			cdf[k] = sum;
+		}
+
+		final long[][] sequences = new long[nSequences][length];
+		for (int i = 0; i < nSequences; i++) {
+			for (int j = 0; j < length; j++) {
+				final double u = rnd.nextDouble() * sum;
+				int rank = Arrays.binarySearch(cdf, u);
+				if (rank < 0) {
+					rank = -rank - 1;
+				}
+				sequences[i][j] = Long.MIN_VALUE + 1
+						+ Math.min(rank, vocabularySize - 1);
+			}
+		}
+		return sequences;
+	}
+
+	private BenchmarkSequences() {
+	}
+}
@@ -37,11 +37,11 @@ public class CacheNGramBuilder {
 			return;
 		}
 
-		final AbstractNGramLM fullNGram = ((AbstractNGramLM) Serializer
-				.getSerializer().deserializeFrom(args[0]));
+		final AbstractNGramLM fullNGram = AbstractNGramLM
+				.readFromSerialized(args[0]);
 
-		final AbstractNGramLM typeNGram = ((AbstractNGramLM) Serializer
-				.getSerializer().deserializeFrom(args[1]));
+		final AbstractNGramLM typeNGram = AbstractNGramLM
+				.readFromSerialized(args[1]);
 
 		final Collection<File> testFiles = FileUtils.listFiles(
 				new File(args[2]), fullNGram.modelledFilesFilter(),
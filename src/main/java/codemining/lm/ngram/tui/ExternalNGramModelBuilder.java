@@ -0,0 +1,58 @@
+/**
+ * 
+ */
+package codemining.lm.ngram.tui;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Collection;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.DirectoryFileFilter;
+
+import codemining.languagetools.ITokenizer;
+import codemining.languagetools.TokenizerUtils;
+import codemining.lm.ngram.ExternalNGramCounter;
+
+/**
+ * Build an n-gram model file from a corpus that does not fit in memory.
+ * 
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ * 
+ */
+public class ExternalNGramModelBuilder {
+
+	private static final Logger LOGGER = Logger
+			.getLogger(ExternalNGramModelBuilder.class.getName());
+
+	public static void main(final String[] args) throws IOException,
+			ClassNotFoundException, InstantiationException,
+			IllegalAccessException, IllegalArgumentException,
+			InvocationTargetException, NoSuchMethodException,
+			SecurityException {
+		if (args.length < 5 || args.length > 7) {
+			System.err
+					.println("Usage <TrainingFiles> <N> <NGramModel.nglm output> <tokenizationClass> <WrapperSmootherClass> [bufferSizeMB] [tempDir]");
+			return;
+		}
+
+		final ITokenizer tokenizer = TokenizerUtils.tokenizerForClass(args[3]);
+		final int n = Integer.parseInt(args[1]);
+		final int bufferSizeMB = args.length > 5 ? Integer.parseInt(args[5])
+				: ExternalNGramCounter.DEFAULT_BUFFER_SIZE_MB;
+		final File tempDir = args.length > 6 ? new File(args[6]) : null;
+
+		LOGGER.info("External NGram Model creater started with " + args[1]
+				+ "-gram for files in " + args[0] + " using " + args[3]
+				+ " tokenizer and a buffer of " + bufferSizeMB + "MB");
+
+		final Collection<File> files = FileUtils.listFiles(new File(args[0]),
+				tokenizer.getFileFilter(), DirectoryFileFilter.DIRECTORY);
+
+		final ExternalNGramCounter counter = new ExternalNGramCounter(n,
+				tokenizer, bufferSizeMB, tempDir);
+		counter.countAndWrite(files, args[4], args[2]);
+	}
+}
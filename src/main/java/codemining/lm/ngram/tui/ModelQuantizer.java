@@ -0,0 +1,63 @@
+/**
+ *
+ */
+package codemining.lm.ngram.tui;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.logging.Logger;
+
+import codemining.languagetools.ITokenizer;
+import codemining.languagetools.TokenizerUtils;
+import codemining.lm.LMComplexity;
+import codemining.lm.ngram.ArpaFile;
+import codemining.lm.ngram.ArpaNGramLM;
+import codemining.lm.ngram.NGramModelFile;
+import codemining.util.serialization.ISerializationStrategy.SerializationException;
+
+/**
+ * Quantize the probabilities and backoff weights of an ARPA model and report
+ * the change of the cross-entropy on a held-out set.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class ModelQuantizer {
+
+	private static final Logger LOGGER = Logger.getLogger(ModelQuantizer.class
+			.getName());
+
+	public static void main(final String[] args) throws IOException,
+			ClassNotFoundException, InstantiationException,
+			IllegalAccessException, IllegalArgumentException,
+			InvocationTargetException, NoSuchMethodException,
+			SecurityException, SerializationException {
+		if (args.length != 4 && args.length != 5) {
+			System.err
+					.println("Usage <input.arpa[.gz]> <tokenizationClass> <bits> <heldOutDir> [<output.nglm>]");
+			return;
+		}
+
+		final ITokenizer tokenizer = TokenizerUtils.tokenizerForClass(args[1]);
+		final ArpaNGramLM model = ArpaFile.read(args[0], tokenizer);
+		final int bits = Integer.parseInt(args[2]);
+		final ArpaNGramLM quantized = model.quantize(bits);
+		LOGGER.info("Quantized model to " + bits + " bits");
+
+		final File heldOut = new File(args[3]);
+		final double crossEntropy = new LMComplexity(model)
+				.getAvgProjectCrossEntropy(heldOut);
+		final double quantizedCrossEntropy = new LMComplexity(quantized)
+				.getAvgProjectCrossEntropy(heldOut);
+		System.out.println("Cross-entropy: " + crossEntropy);
+		System.out.println("Quantized cross-entropy: "
+				+ quantizedCrossEntropy);
+		System.out.println("Delta: " + (quantizedCrossEntropy - crossEntropy));
+
+		if (args.length == 5) {
+			NGramModelFile.write(quantized, args[4]);
+		}
+	}
+
+}
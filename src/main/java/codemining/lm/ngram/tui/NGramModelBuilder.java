@@ -16,6 +16,7 @@ import codemining.languagetools.ITokenizer;
 import codemining.languagetools.TokenizerUtils;
 import codemining.lm.ngram.AbstractNGramLM;
 import codemining.lm.ngram.NGramLM;
+import codemining.lm.ngram.NGramModelFile;
 import codemining.util.serialization.ISerializationStrategy.SerializationException;
 
 /**
@@ -35,7 +36,7 @@ public class NGramModelBuilder {
 
 		if (args.length != 5) {
 			System.err
-					.println("Usage <TrainingFiles> <N> <NGramModel.ser output> <tokenizationClass> <WrapperSmootherClass>");
+					.println("Usage <TrainingFiles> <N> <NGramModel.ser|.nglm output> <tokenizationClass> <WrapperSmootherClass>");
 			return;
 		}
 
@@ -60,7 +61,11 @@ public class NGramModelBuilder {
 				.newInstance(dict);
 
 		LOGGER.info("Ngram model build. Serializing...");
-		ng.serializeToDisk(args[2]);
+		if (args[2].endsWith(NGramModelFile.FILE_EXTENSION)) {
+			NGramModelFile.write(ng, args[2]);
+		} else {
+			ng.serializeToDisk(args[2]);
+		}
 
 	}
 }
@@ -0,0 +1,78 @@
+/**
+ *
+ */
+package codemining.lm.ngram.tui;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import codemining.lm.ngram.LongArrayTrie;
+
+/**
+ * Benchmark the throughput (n-grams/sec) of concurrent insertions into a
+ * {@link LongArrayTrie} for an increasing number of threads.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class TrieInsertionBenchmark {
+
+	public static void main(final String[] args) throws InterruptedException {
+		if (args.length != 3) {
+			System.err.println("Usage <nNgrams> <n> <maxThreads>");
+			return;
+		}
+
+		final int nNgrams = Integer.parseInt(args[0]);
+		final int n = Integer.parseInt(args[1]);
+		final int maxThreads = Integer.parseInt(args[2]);
+		final long[][] ngrams = BenchmarkSequences.createSequences(nNgrams,
+				n, 100000, new Random(0));
+
+		// Warm-up
+		runBenchmark(ngrams, maxThreads);
+
+		System.out.println("threads,ngramsPerSec");
+		for (int nThreads = 1; nThreads <= maxThreads; nThreads *= 2) {
+			final double ngramsPerSec = runBenchmark(ngrams, nThreads);
+			System.out.println(nThreads + "," + ngramsPerSec);
+		}
+	}
+
+	/**
+	 * Insert all n-grams in a new trie using the given number of threads.
+	 *
+	 * @return the number of n-grams inserted per second.
+	 */
+	private static double runBenchmark(final long[][] ngrams,
+			final int nThreads) throws InterruptedException {
+		final LongArrayTrie trie = new LongArrayTrie(Long.MIN_VALUE);
+		final ExecutorService executor = Executors
+				.newFixedThreadPool(nThreads);
+		final int chunkSize = (ngrams.length + nThreads - 1) / nThreads;
+
+		final long start = System.nanoTime();
+		for (int t = 0; t < nThreads; t++) {
+			final int from = t * chunkSize;
+			final int to = Math.min(ngrams.length, from + chunkSize);
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					for (int i = from; i < to; i++) {
+						trie.add(ngrams[i]);
+					}
+				}
+
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		final long elapsed = System.nanoTime() - start;
+
+		return ngrams.length / (elapsed / 1E9);
+	}
+
+}
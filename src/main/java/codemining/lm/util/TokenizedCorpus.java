@@ -0,0 +1,208 @@
+/**
+ *
+ */
+package codemining.lm.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import codemining.languagetools.ITokenizer;
+import codemining.util.parallel.ParallelThreadPool;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * A corpus where each file has been tokenized exactly once and stored as a
+ * compact sequence of token ids. This allows building the vocabulary and
+ * counting the n-grams without tokenizing the files twice. The ids are
+ * assigned in order of appearance and are independent of any vocabulary
+ * threshold, which can be applied afterwards by remapping the rare ids.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class TokenizedCorpus {
+
+	private class TokenizerRunnable implements Runnable {
+		final File codeFile;
+
+		public TokenizerRunnable(final File file) {
+			codeFile = file;
+		}
+
+		@Override
+		public void run() {
+			LOGGER.finer("Reading file " + codeFile.getAbsolutePath());
+			try {
+				addSequence(tokenizer.tokenListFromCode(codeFile));
+			} catch (final IOException e) {
+				LOGGER.warning(ExceptionUtils.getFullStackTrace(e));
+			}
+		}
+	}
+
+	private static final Logger LOGGER = Logger.getLogger(TokenizedCorpus.class
+			.getName());
+
+	/**
+	 * Tokenize all the files (in parallel) into a new corpus.
+	 *
+	 * @param files
+	 * @param tokenizer
+	 * @return
+	 */
+	public static TokenizedCorpus tokenize(final Collection<File> files,
+			final ITokenizer tokenizer) {
+		final TokenizedCorpus corpus = new TokenizedCorpus(tokenizer);
+		final ParallelThreadPool threadPool = new ParallelThreadPool();
+		for (final File fi : files) {
+			threadPool.pushTask(corpus.new TokenizerRunnable(fi));
+		}
+		threadPool.waitForTermination();
+
+		LOGGER.info("Tokenized " + corpus.sequences.size() + " files with "
+				+ corpus.tokens.size() + " distinct tokens");
+		return corpus;
+	}
+
+	private final ITokenizer tokenizer;
+
+	private final ConcurrentHashMap<String, Integer> tokenIds = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * The tokens, indexed by their id.
+	 */
+	private final List<String> tokens = Lists.newArrayList();
+
+	private final ConcurrentLinkedQueue<int[]> sequences = new ConcurrentLinkedQueue<int[]>();
+
+	public TokenizedCorpus(final ITokenizer tokenizerModule) {
+		tokenizer = tokenizerModule;
+	}
+
+	/**
+	 * Create a corpus whose token ids are the indexes of the given tokens.
+	 *
+	 * @param tokenizerModule
+	 * @param vocabulary
+	 */
+	TokenizedCorpus(final ITokenizer tokenizerModule,
+			final List<String> vocabulary) {
+		tokenizer = tokenizerModule;
+		for (final String token : vocabulary) {
+			tokenIds.put(token, tokens.size());
+			tokens.add(token);
+		}
+	}
+
+	/**
+	 * Add a sequence of tokens to the corpus.
+	 *
+	 * @param sequence
+	 */
+	public void addSequence(final List<String> sequence) {
+		final int[] ids = new int[sequence.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = getOrCreateId(sequence.get(i));
+		}
+		sequences.add(ids);
+	}
+
+	/**
+	 * Return the number of occurrences of each token id.
+	 *
+	 * @return
+	 */
+	public long[] getTokenCounts() {
+		final long[] counts = new long[getNumTokens()];
+		for (final int[] sequence : getSequences()) {
+			for (final int id : sequence) {
+				counts[id]++;
+			}
+		}
+		return counts;
+	}
+
+	private int getOrCreateId(final String token) {
+		final Integer id = tokenIds.get(token);
+		if (id != null) {
+			return id;
+		}
+		synchronized (tokens) {
+			final Integer existingId = tokenIds.get(token);
+			if (existingId != null) {
+				return existingId;
+			}
+			final int newId = tokens.size();
+			tokens.add(token);
+			tokenIds.put(token, newId);
+			return newId;
+		}
+	}
+
+	/**
+	 * Return the number of distinct tokens in the corpus.
+	 *
+	 * @return
+	 */
+	public int getNumTokens() {
+		synchronized (tokens) {
+			return tokens.size();
+		}
+	}
+
+	/**
+	 * Return the token sequences of the corpus, one per file.
+	 *
+	 * @return
+	 */
+	public Collection<int[]> getSequences() {
+		return Collections.unmodifiableCollection(sequences);
+	}
+
+	/**
+	 * Return the token with the given id.
+	 *
+	 * @param id
+	 * @return
+	 */
+	public String getToken(final int id) {
+		synchronized (tokens) {
+			return tokens.get(id);
+		}
+	}
+
+	public ITokenizer getTokenizer() {
+		return tokenizer;
+	}
+
+	/**
+	 * Return the tokens that appear more than threshold times, as in
+	 * {@link TokenVocabularyBuilder#buildVocabulary(Collection, ITokenizer, int)}
+	 * .
+	 *
+	 * @param threshold
+	 * @return
+	 */
+	public Set<String> getVocabulary(final int threshold) {
+		final long[] counts = getTokenCounts();
+		final Set<String> vocabulary = Sets.newHashSet();
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] > threshold) {
+				vocabulary.add(getToken(i));
+			}
+		}
+		LOGGER.info("Vocabulary built, with " + vocabulary.size() + " words");
+		return vocabulary;
+	}
+}
@@ -0,0 +1,718 @@
+/**
+ *
+ */
+package codemining.lm.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import codemining.languagetools.ITokenizer;
+import codemining.util.SettingsLoader;
+import codemining.util.parallel.ParallelThreadPool;
+
+import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.collect.Collections2;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+
+/**
+ * A persistent store of tokenized files, so that the same corpus can be used
+ * to train and evaluate many models without tokenizing it again. Each store
+ * directory holds the files tokenized by a single tokenizer configuration, as
+ * sequences of token ids. The shared stores are named after the class and a
+ * hash of the serialized tokenizer, so that tokenizers of the same class that
+ * are configured differently do not share a store. A file is re-tokenized
+ * only when its modification time changes.
+ *
+ * All the files of the store are append-only: the token strings (in id
+ * order), the token id sequences and an index entry for each sequence, which
+ * is written last. An incomplete trailing record (e.g. after a crash) is
+ * therefore discarded when the store is opened. The sequences of modified
+ * files become stale and, when they take more space than the live ones, the
+ * store is compacted when it is opened. The sequences of a corpus are read
+ * from the store when the corpus is iterated, so that the corpus does not
+ * need to fit in memory.
+ *
+ * The store may be shared by multiple threads. A lock on the store directory
+ * keeps other processes from opening it at the same time; the shared store
+ * is not used when its directory is locked.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public final class TokenizedCorpusStore implements Closeable {
+
+	/**
+	 * The location of a tokenized file in the store.
+	 */
+	private static final class Entry {
+		final long lastModified;
+
+		/**
+		 * The position of the sequence in the sequences file.
+		 */
+		final long offset;
+
+		final int length;
+
+		Entry(final long lastModified, final long offset, final int length) {
+			this.lastModified = lastModified;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * The exception thrown when the store directory is locked by another
+	 * store.
+	 */
+	private static final class StoreLockedException extends IOException {
+
+		private static final long serialVersionUID = 6342153716455371457L;
+
+		StoreLockedException(final File directory) {
+			super("The store at " + directory.getAbsolutePath()
+					+ " is used by another process");
+		}
+	}
+
+	/**
+	 * A read-only corpus whose sequences are read from the store whenever
+	 * they are iterated, in the order they are stored.
+	 */
+	private final class StoredCorpus extends TokenizedCorpus {
+
+		private final List<Entry> entries;
+
+		StoredCorpus(final List<String> vocabulary, final List<Entry> entries) {
+			super(tokenizer, vocabulary);
+			this.entries = entries;
+		}
+
+		@Override
+		public void addSequence(final List<String> sequence) {
+			throw new UnsupportedOperationException(
+					"A stored corpus cannot be modified");
+		}
+
+		@Override
+		public Collection<int[]> getSequences() {
+			return Collections2.transform(entries, new Function<Entry, int[]>() {
+
+				@Override
+				public int[] apply(final Entry entry) {
+					try {
+						return readSequence(entry);
+					} catch (final IOException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+
+			});
+		}
+	}
+
+	private class StoringRunnable implements Runnable {
+		final File codeFile;
+
+		public StoringRunnable(final File file) {
+			codeFile = file;
+		}
+
+		@Override
+		public void run() {
+			LOGGER.finer("Reading file " + codeFile.getAbsolutePath());
+			try {
+				tokenizeAndStore(codeFile);
+			} catch (final IOException e) {
+				LOGGER.warning(ExceptionUtils.getFullStackTrace(e));
+			}
+		}
+	}
+
+	private static final Logger LOGGER = Logger
+			.getLogger(TokenizedCorpusStore.class.getName());
+
+	/**
+	 * The directory of the shared stores. If empty, no store is used.
+	 */
+	public static final String CACHE_DIRECTORY = SettingsLoader
+			.getStringSetting("TokenCacheDirectory", "");
+
+	/**
+	 * The shared stores, by name.
+	 */
+	private static final Map<String, TokenizedCorpusStore> SHARED_STORES = Maps
+			.newHashMap();
+
+	/**
+	 * The shared store of each tokenizer (absent if the tokenizer cannot be
+	 * serialized), so that each tokenizer is only serialized once.
+	 */
+	private static final Map<ITokenizer, Optional<TokenizedCorpusStore>> TOKENIZER_STORES = new MapMaker()
+			.weakKeys().makeMap();
+
+	private static final String TOKENS_FILE = "tokens.bin";
+
+	private static final String SEQUENCES_FILE = "sequences.bin";
+
+	private static final String INDEX_FILE = "index.bin";
+
+	private static final String LOCK_FILE = "lock";
+
+	/**
+	 * The suffix of the files written while the store is compacted.
+	 */
+	private static final String COMPACTED_SUFFIX = ".compacted";
+
+	/**
+	 * The minimum number of stale bytes for the store to be compacted.
+	 */
+	private static final long MIN_STALE_BYTES = 1 << 20;
+
+	/**
+	 * Return the index record of the given entry.
+	 */
+	private static ByteBuffer createIndexRecord(final String path,
+			final Entry entry, final long tokensLength, final int nTokens) {
+		final byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+		final ByteBuffer record = ByteBuffer.allocate(4 + pathBytes.length + 8
+				+ 8 + 4 + 8 + 4);
+		writeString(record, pathBytes);
+		record.putLong(entry.lastModified);
+		record.putLong(entry.offset);
+		record.putInt(entry.length);
+		record.putLong(tokensLength);
+		record.putInt(nTokens);
+		return record;
+	}
+
+	/**
+	 * Return the shared store (under {@link #CACHE_DIRECTORY}) for the
+	 * tokenizer, or null if no cache directory is set, the tokenizer cannot
+	 * be serialized or the store is used by another process.
+	 *
+	 * @param tokenizer
+	 * @return
+	 * @throws IOException
+	 */
+	public static TokenizedCorpusStore getSharedStore(
+			final ITokenizer tokenizer) throws IOException {
+		if (!isCacheEnabled()) {
+			return null;
+		}
+		synchronized (SHARED_STORES) {
+			final Optional<TokenizedCorpusStore> tokenizerStore = TOKENIZER_STORES
+					.get(tokenizer);
+			if (tokenizerStore != null) {
+				return tokenizerStore.orNull();
+			}
+			final String storeName = getStoreName(tokenizer);
+			TokenizedCorpusStore store = null;
+			if (storeName != null) {
+				store = SHARED_STORES.get(storeName);
+				if (store == null) {
+					try {
+						store = new TokenizedCorpusStore(new File(
+								CACHE_DIRECTORY, storeName), tokenizer);
+						SHARED_STORES.put(storeName, store);
+					} catch (final StoreLockedException e) {
+						LOGGER.warning(e.getMessage()
+								+ ", so the files are not stored");
+					}
+				}
+			}
+			TOKENIZER_STORES.put(tokenizer, Optional.fromNullable(store));
+			return store;
+		}
+	}
+
+	/**
+	 * Return the name of the shared store of the tokenizer, i.e. its class
+	 * and a hash of its serialized form, or null if the tokenizer cannot be
+	 * serialized.
+	 *
+	 * @param tokenizer
+	 * @return
+	 */
+	static String getStoreName(final ITokenizer tokenizer) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(tokenizer);
+		} catch (final IOException e) {
+			LOGGER.warning("Cannot serialize the configuration of "
+					+ tokenizer.getClass().getName()
+					+ ", so its files are not stored: " + e.getMessage());
+			return null;
+		}
+		return tokenizer.getClass().getName() + "-"
+				+ Hashing.sha1().hashBytes(bytes.toByteArray());
+	}
+
+	/**
+	 * Return the tokens of the file, from the shared store if there is one.
+	 *
+	 * @param file
+	 * @param tokenizer
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<String> getTokens(final File file,
+			final ITokenizer tokenizer) throws IOException {
+		final TokenizedCorpusStore store = getSharedStore(tokenizer);
+		if (store == null) {
+			return tokenizer.tokenListFromCode(file);
+		}
+		return store.getTokens(file);
+	}
+
+	public static boolean isCacheEnabled() {
+		return !CACHE_DIRECTORY.isEmpty();
+	}
+
+	/**
+	 * Tokenize the files, using the shared store if there is one.
+	 *
+	 * @param files
+	 * @param tokenizer
+	 * @return
+	 * @throws IOException
+	 */
+	public static TokenizedCorpus tokenize(final Collection<File> files,
+			final ITokenizer tokenizer) throws IOException {
+		final TokenizedCorpusStore store = getSharedStore(tokenizer);
+		if (store == null) {
+			return TokenizedCorpus.tokenize(files, tokenizer);
+		}
+		return store.getCorpus(files);
+	}
+
+	private static String readString(final DataInputStream in)
+			throws IOException {
+		final byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeString(final ByteBuffer buffer,
+			final byte[] string) {
+		buffer.putInt(string.length);
+		buffer.put(string);
+	}
+
+	private static void writeFully(final FileChannel channel,
+			final ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private final ITokenizer tokenizer;
+
+	private final File directory;
+
+	private final FileChannel tokensChannel;
+
+	private FileChannel sequencesChannel;
+
+	private FileChannel indexChannel;
+
+	/**
+	 * The lock of the store directory, held while the store is open.
+	 */
+	private final FileLock lock;
+
+	/**
+	 * The tokens, indexed by their id.
+	 */
+	private final List<String> tokens = Lists.newArrayList();
+
+	private final Map<String, Integer> tokenIds = Maps.newHashMap();
+
+	/**
+	 * The entries of the files in the store, by absolute path.
+	 */
+	private final Map<String, Entry> index = Maps.newHashMap();
+
+	/**
+	 * Open (or create) the store in the given directory.
+	 *
+	 * @param directory
+	 *            the directory of the store. It should only be used with
+	 *            tokenizers of the same class and configuration.
+	 * @param tokenizerModule
+	 * @throws IOException
+	 *             if the store cannot be opened or is used by another
+	 *             process
+	 */
+	public TokenizedCorpusStore(final File directory,
+			final ITokenizer tokenizerModule) throws IOException {
+		this(directory, tokenizerModule, MIN_STALE_BYTES);
+	}
+
+	/**
+	 * Open (or create) the store in the given directory, compacting it if it
+	 * has at least minStaleBytes stale bytes.
+	 */
+	TokenizedCorpusStore(final File directory,
+			final ITokenizer tokenizerModule, final long minStaleBytes)
+			throws IOException {
+		tokenizer = tokenizerModule;
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create store directory "
+					+ directory.getAbsolutePath());
+		}
+		final FileChannel lockChannel = new RandomAccessFile(new File(
+				directory, LOCK_FILE), "rw").getChannel();
+		FileLock directoryLock;
+		try {
+			directoryLock = lockChannel.tryLock();
+		} catch (final OverlappingFileLockException e) {
+			directoryLock = null;
+		}
+		if (directoryLock == null) {
+			lockChannel.close();
+			throw new StoreLockedException(directory);
+		}
+		lock = directoryLock;
+
+		try {
+			tokensChannel = new RandomAccessFile(new File(directory,
+					TOKENS_FILE), "rw").getChannel();
+			sequencesChannel = new RandomAccessFile(new File(directory,
+					SEQUENCES_FILE), "rw").getChannel();
+			indexChannel = new RandomAccessFile(new File(directory,
+					INDEX_FILE), "rw").getChannel();
+			load(new File(directory, INDEX_FILE), new File(directory,
+					TOKENS_FILE), minStaleBytes);
+		} catch (final IOException e) {
+			lockChannel.close();
+			throw e;
+		}
+		LOGGER.info("Opened tokenized corpus store at "
+				+ directory.getAbsolutePath() + " with " + index.size()
+				+ " files and " + tokens.size() + " distinct tokens");
+	}
+
+	/**
+	 * Append the tokens of the file to the store and return its entry.
+	 */
+	private synchronized Entry append(final File file, final long lastModified,
+			final List<String> fileTokens) throws IOException {
+		// New token strings
+		final int nOldTokens = tokens.size();
+		final int[] ids = new int[fileTokens.size()];
+		int newTokensSize = 0;
+		for (int i = 0; i < ids.length; i++) {
+			final String token = fileTokens.get(i);
+			Integer id = tokenIds.get(token);
+			if (id == null) {
+				id = tokens.size();
+				tokens.add(token);
+				tokenIds.put(token, id);
+				newTokensSize += 4 + token.getBytes(StandardCharsets.UTF_8).length;
+			}
+			ids[i] = id;
+		}
+		if (newTokensSize > 0) {
+			final ByteBuffer buffer = ByteBuffer.allocate(newTokensSize);
+			for (int id = nOldTokens; id < tokens.size(); id++) {
+				writeString(buffer,
+						tokens.get(id).getBytes(StandardCharsets.UTF_8));
+			}
+			writeFully(tokensChannel, buffer);
+		}
+
+		// The sequence
+		final long offset = sequencesChannel.position();
+		final ByteBuffer sequence = ByteBuffer.allocate(4 * ids.length);
+		sequence.asIntBuffer().put(ids);
+		sequence.position(sequence.limit());
+		writeFully(sequencesChannel, sequence);
+
+		// The index entry, that commits the record
+		final Entry fileEntry = new Entry(lastModified, offset, ids.length);
+		writeFully(
+				indexChannel,
+				createIndexRecord(file.getAbsolutePath(), fileEntry,
+						tokensChannel.position(), tokens.size()));
+
+		index.put(file.getAbsolutePath(), fileEntry);
+		return fileEntry;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		tokensChannel.close();
+		sequencesChannel.close();
+		indexChannel.close();
+		lock.release();
+		lock.channel().close();
+	}
+
+	/**
+	 * Rewrite the sequences and the index with only the live entries, in the
+	 * order they are stored. The compacted files are written first and then
+	 * replace the old ones, after the old index is deleted, so that a crash
+	 * at worst empties the store.
+	 */
+	private void compact(final long tokensLength, final int nTokens)
+			throws IOException {
+		final List<Map.Entry<String, Entry>> entries = Lists
+				.newArrayList(index.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, Entry>>() {
+
+			@Override
+			public int compare(final Map.Entry<String, Entry> o1,
+					final Map.Entry<String, Entry> o2) {
+				return Long.compare(o1.getValue().offset,
+						o2.getValue().offset);
+			}
+
+		});
+
+		final File compactedSequences = new File(directory, SEQUENCES_FILE
+				+ COMPACTED_SUFFIX);
+		final File compactedIndex = new File(directory, INDEX_FILE
+				+ COMPACTED_SUFFIX);
+		try (FileChannel sequencesOut = new RandomAccessFile(
+				compactedSequences, "rw").getChannel();
+				FileChannel indexOut = new RandomAccessFile(compactedIndex,
+						"rw").getChannel()) {
+			sequencesOut.truncate(0);
+			indexOut.truncate(0);
+			for (final Map.Entry<String, Entry> entry : entries) {
+				final Entry old = entry.getValue();
+				final Entry compacted = new Entry(old.lastModified,
+						sequencesOut.position(), old.length);
+				long transferred = 0;
+				while (transferred < 4L * old.length) {
+					transferred += sequencesChannel.transferTo(old.offset
+							+ transferred, 4L * old.length - transferred,
+							sequencesOut);
+				}
+				writeFully(
+						indexOut,
+						createIndexRecord(entry.getKey(), compacted,
+								tokensLength, nTokens));
+				entry.setValue(compacted);
+			}
+			sequencesOut.force(true);
+			indexOut.force(true);
+		}
+
+		sequencesChannel.close();
+		indexChannel.close();
+		final File sequencesFile = new File(directory, SEQUENCES_FILE);
+		final File indexFile = new File(directory, INDEX_FILE);
+		if (!indexFile.delete() || !sequencesFile.delete()
+				|| !compactedSequences.renameTo(sequencesFile)
+				|| !compactedIndex.renameTo(indexFile)) {
+			throw new IOException("Cannot replace the files of the store at "
+					+ directory.getAbsolutePath());
+		}
+		sequencesChannel = new RandomAccessFile(sequencesFile, "rw")
+				.getChannel();
+		indexChannel = new RandomAccessFile(indexFile, "rw").getChannel();
+	}
+
+	/**
+	 * Return the corpus of the given files, tokenizing (in parallel) and
+	 * storing the files that are not in the store or have been modified. The
+	 * sequences of the corpus are read from the store, in the order they are
+	 * stored, whenever the corpus is iterated. Files that could not be
+	 * tokenized or were modified again while they were tokenized are
+	 * skipped.
+	 *
+	 * @param files
+	 * @return
+	 * @throws IOException
+	 */
+	public TokenizedCorpus getCorpus(final Collection<File> files)
+			throws IOException {
+		final ParallelThreadPool threadPool = new ParallelThreadPool();
+		int nMissing = 0;
+		for (final File file : files) {
+			if (getEntry(file) == null) {
+				threadPool.pushTask(new StoringRunnable(file));
+				nMissing++;
+			}
+		}
+		threadPool.waitForTermination();
+		LOGGER.info("Tokenized " + nMissing + " new or modified files, "
+				+ (files.size() - nMissing) + " files were in the store");
+
+		final List<Entry> entries = Lists.newArrayList();
+		final List<String> vocabulary;
+		synchronized (this) {
+			for (final File file : files) {
+				final Entry entry = getEntry(file);
+				if (entry != null) {
+					entries.add(entry);
+				}
+			}
+			vocabulary = Lists.newArrayList(tokens);
+		}
+		if (entries.size() < files.size()) {
+			LOGGER.warning("Skipped " + (files.size() - entries.size())
+					+ " files that could not be tokenized or were modified");
+		}
+		Collections.sort(entries, new Comparator<Entry>() {
+
+			@Override
+			public int compare(final Entry o1, final Entry o2) {
+				return Long.compare(o1.offset, o2.offset);
+			}
+
+		});
+
+		return new StoredCorpus(vocabulary, entries);
+	}
+
+	/**
+	 * Return the stored entry of the file or null if the file is not in the
+	 * store or has been modified since it was stored.
+	 */
+	private synchronized Entry getEntry(final File file) {
+		final Entry entry = index.get(file.getAbsolutePath());
+		if (entry == null || entry.lastModified != file.lastModified()) {
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Return the tokens of the file, tokenizing and storing it if needed.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public List<String> getTokens(final File file) throws IOException {
+		Entry entry = getEntry(file);
+		if (entry == null) {
+			entry = tokenizeAndStore(file);
+		}
+		final int[] ids = readSequence(entry);
+		final List<String> fileTokens = Lists.newArrayListWithCapacity(ids.length);
+		synchronized (this) {
+			for (final int id : ids) {
+				fileTokens.add(tokens.get(id));
+			}
+		}
+		return fileTokens;
+	}
+
+	/**
+	 * Read the index and the tokens, discarding any incomplete records, and
+	 * compact the store if its stale sequences take more space than the live
+	 * ones and at least minStaleBytes.
+	 */
+	private void load(final File indexFile, final File tokensFile,
+			final long minStaleBytes) throws IOException {
+		long indexLength = 0;
+		long sequencesLength = 0;
+		long tokensLength = 0;
+		int nTokens = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(indexFile)))) {
+			while (true) {
+				final String path = readString(in);
+				final long lastModified = in.readLong();
+				final long offset = in.readLong();
+				final int length = in.readInt();
+				final long entryTokensLength = in.readLong();
+				final int entryNTokens = in.readInt();
+
+				index.put(path, new Entry(lastModified, offset, length));
+				indexLength += 4 + path.getBytes(StandardCharsets.UTF_8).length
+						+ 8 + 8 + 4 + 8 + 4;
+				sequencesLength = Math.max(sequencesLength, offset + 4L
+						* length);
+				tokensLength = entryTokensLength;
+				nTokens = entryNTokens;
+			}
+		} catch (final EOFException e) {
+			// Reached the end of the complete entries
+		}
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(tokensFile)))) {
+			for (int id = 0; id < nTokens; id++) {
+				final String token = readString(in);
+				tokens.add(token);
+				tokenIds.put(token, id);
+			}
+		}
+
+		tokensChannel.truncate(tokensLength);
+		tokensChannel.position(tokensLength);
+
+		long liveLength = 0;
+		for (final Entry entry : index.values()) {
+			liveLength += 4L * entry.length;
+		}
+		final long staleLength = sequencesLength - liveLength;
+		if (staleLength > liveLength && staleLength >= minStaleBytes) {
+			LOGGER.info("Compacting the store at "
+					+ directory.getAbsolutePath() + ", with " + staleLength
+					+ " stale bytes");
+			compact(tokensLength, nTokens);
+			sequencesLength = liveLength;
+			indexLength = indexChannel.size();
+		}
+		indexChannel.truncate(indexLength);
+		indexChannel.position(indexLength);
+		sequencesChannel.truncate(sequencesLength);
+		sequencesChannel.position(sequencesLength);
+	}
+
+	private int[] readSequence(final Entry entry) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(4 * entry.length);
+		while (buffer.hasRemaining()) {
+			final int read = sequencesChannel.read(buffer, entry.offset
+					+ buffer.position());
+			if (read < 0) {
+				throw new EOFException("Truncated token sequence");
+			}
+		}
+		buffer.flip();
+		final IntBuffer intBuffer = buffer.asIntBuffer();
+		final int[] ids = new int[intBuffer.remaining()];
+		intBuffer.get(ids);
+		return ids;
+	}
+
+	private Entry tokenizeAndStore(final File file) throws IOException {
+		final long lastModified = file.lastModified();
+		final List<String> fileTokens = tokenizer.tokenListFromCode(file);
+		return append(file, lastModified, fileTokens);
+	}
+}
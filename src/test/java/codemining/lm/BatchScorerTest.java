@@ -0,0 +1,148 @@
+package codemining.lm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.filefilter.AbstractFileFilter;
+import org.junit.Test;
+
+import codemining.lm.BatchScorer.Measure;
+import codemining.lm.BatchScorer.Score;
+
+import com.google.common.collect.Lists;
+
+public class BatchScorerTest {
+
+	/**
+	 * A model whose entropy of a string is its length (per character for the
+	 * cross-entropy) that fails on empty strings and counts the strings it is
+	 * scoring at the same time.
+	 */
+	private static class LengthModel implements ILanguageModel {
+
+		private static final long serialVersionUID = 1L;
+
+		final AtomicInteger nScoring = new AtomicInteger();
+
+		final AtomicInteger maxScoring = new AtomicInteger();
+
+		@Override
+		public double getAbsoluteEntropy(final File file) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public double getAbsoluteEntropy(final String fileContent) {
+			final int scoring = nScoring.incrementAndGet();
+			while (true) {
+				final int max = maxScoring.get();
+				if (scoring <= max || maxScoring.compareAndSet(max, scoring)) {
+					break;
+				}
+			}
+			try {
+				if (fileContent.isEmpty()) {
+					throw new IllegalArgumentException();
+				}
+				return fileContent.length();
+			} finally {
+				nScoring.decrementAndGet();
+			}
+		}
+
+		@Override
+		public double getExtrinsticEntropy(final File file) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public double getExtrinsticEntropy(final String fileContent) {
+			return getAbsoluteEntropy(fileContent) / fileContent.length();
+		}
+
+		@Override
+		public ILanguageModel getImmutableVersion() {
+			return this;
+		}
+
+		@Override
+		public AbstractFileFilter modelledFilesFilter() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void trainIncrementalModel(final Collection<File> files) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void trainModel(final Collection<File> files) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	@Test
+	public void testScoreStrings() {
+		final int nStrings = 1000;
+		final AtomicInteger nRead = new AtomicInteger();
+		final Iterator<String> strings = new Iterator<String>() {
+
+			@Override
+			public boolean hasNext() {
+				return nRead.get() < nStrings;
+			}
+
+			@Override
+			public String next() {
+				final int i = nRead.getAndIncrement();
+				final StringBuilder sb = new StringBuilder();
+				for (int j = 0; j < i % 10; j++) {
+					sb.append('a');
+				}
+				return sb.toString();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+		};
+
+		final LengthModel model = new LengthModel();
+		final BatchScorer scorer = new BatchScorer(model, 3);
+		final List<Score<String>> scores = scorer.scoreStrings(strings,
+				Measure.ABSOLUTE_ENTROPY);
+		assertEquals(scores.size(), nStrings);
+		assertTrue(model.maxScoring.get() <= 3);
+
+		double total = 0;
+		for (int i = 0; i < nStrings; i++) {
+			final Score<String> score = scores.get(i);
+			assertEquals(score.getItem().length(), i % 10);
+			if (i % 10 == 0) {
+				assertFalse(score.isScored());
+			} else {
+				assertEquals(score.getEntropy(), i % 10, 0);
+				total += i % 10;
+			}
+		}
+		assertEquals(BatchScorer.getTotal(scores), total, 0);
+
+		final List<String> contents = Lists.newArrayList();
+		for (final Score<String> score : scores) {
+			contents.add(score.getItem());
+		}
+		final List<Score<String>> crossEntropies = scorer.scoreStrings(
+				contents.iterator(), Measure.CROSS_ENTROPY);
+		assertEquals(BatchScorer.getAverage(crossEntropies), 1, 0);
+	}
+
+}
@@ -0,0 +1,124 @@
+package codemining.lm.ngram;
+
+import static codemining.lm.ngram.NGramAssertions.assertSameScores;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+import codemining.lm.ngram.smoothing.KatzBackoff;
+
+import com.google.common.collect.Lists;
+
+public class ArpaFileTest {
+
+	/**
+	 * Return the training corpus, with tokens that contain whitespace and
+	 * backslashes, which must be escaped.
+	 */
+	private static List<List<String>> sentences() {
+		final List<List<String>> sentences = RandomCorpora
+				.createTrainingCorpus();
+		for (final List<String> sentence : sentences) {
+			for (int j = 0; j < sentence.size(); j++) {
+				sentence.set(j, sentence.get(j).replace("t", "t ")
+						.replace("v", "v\\"));
+			}
+		}
+		return sentences;
+	}
+
+	@Test
+	public void testQuantize() throws IOException {
+		final List<List<String>> sentences = sentences();
+		final NGramLM dict = RandomCorpora.trainModel(sentences);
+		final File arpaFile = File.createTempFile("model", ".arpa");
+		arpaFile.deleteOnExit();
+		ArpaFile.write(new KatzBackoff(dict), arpaFile.getAbsolutePath());
+		final ArpaNGramLM arpa = ArpaFile.read(arpaFile.getAbsolutePath(),
+				null);
+
+		final ArpaNGramLM quantized16 = arpa.quantize(16);
+		assertTrue(quantized16.isQuantized());
+		assertSameScores(arpa, quantized16, sentences, 1E-5);
+
+		final ArpaNGramLM quantized8 = arpa.quantize(8);
+		double logProb = 0;
+		double quantizedLogProb = 0;
+		for (final List<String> sentence : sentences) {
+			logProb += arpa.getLogProbOfSentence(sentence);
+			quantizedLogProb += quantized8.getLogProbOfSentence(sentence);
+		}
+		assertEquals(quantizedLogProb, logProb, Math.abs(logProb) * 0.01);
+
+		// Zero backoffs stay exact, even with few codes, and no other
+		// backoff becomes zero
+		final float[][] logBackoffs = arpa.getLogBackoffs();
+		final float[][] quantizedLogBackoffs = arpa.quantize(2)
+				.getLogBackoffs();
+		int nZeros = 0;
+		for (int l = 0; l < logBackoffs.length; l++) {
+			for (int i = 0; i < logBackoffs[l].length; i++) {
+				assertEquals(quantizedLogBackoffs[l][i] == 0,
+						logBackoffs[l][i] == 0);
+				if (logBackoffs[l][i] == 0) {
+					nZeros++;
+				}
+			}
+		}
+		assertTrue(nZeros > 0);
+
+		// Quantized models can be written and requantized
+		final File arpaFile2 = File.createTempFile("model", ".arpa");
+		arpaFile2.deleteOnExit();
+		ArpaFile.write(quantized8, arpaFile2.getAbsolutePath());
+		assertSameScores(quantized8,
+				ArpaFile.read(arpaFile2.getAbsolutePath(), null), sentences,
+				1E-5);
+		assertSameScores(quantized8, quantized8.quantize(8), sentences, 1E-5);
+	}
+
+	@Test
+	public void testQuantizeToZeroOnly() {
+		// The only bin of the non-zero values has a mean of zero
+		final QuantizedValues quantized = new QuantizedValues(new float[] {
+				-1, 1, 0 }, 1);
+		assertEquals(quantized.getCodebookSize(), 1);
+		assertArrayEquals(quantized.toArray(), new float[] { 0, 0, 0 }, 0);
+	}
+
+	@Test
+	public void testWriteAndRead() throws IOException {
+		final List<List<String>> sentences = sentences();
+		final NGramLM dict = RandomCorpora.trainModel(sentences);
+		final KatzBackoff katz = new KatzBackoff(dict);
+
+		final File arpaFile = File.createTempFile("model", ".arpa.gz");
+		arpaFile.deleteOnExit();
+		ArpaFile.write(katz, arpaFile.getAbsolutePath());
+		final ArpaNGramLM arpa = ArpaFile.read(arpaFile.getAbsolutePath(),
+				null);
+		assertEquals(arpa.getN(), 3);
+		assertTrue(arpa.getTrie().getVocabulary().contains("v\\"));
+		assertSameScores(katz, arpa, sentences, 1E-5);
+
+		// Out of vocabulary tokens are scored as UNK
+		final List<String> unseen = Lists.newArrayList("u", "v\\", "x", "w");
+		assertSameScores(katz, arpa,
+				Lists.<List<String>> newArrayList(unseen), 1E-5);
+
+		// Writing a read model gives the same model
+		final File arpaFile2 = File.createTempFile("model", ".arpa");
+		arpaFile2.deleteOnExit();
+		ArpaFile.write(arpa, arpaFile2.getAbsolutePath());
+		final ArpaNGramLM arpa2 = ArpaFile.read(arpaFile2.getAbsolutePath(),
+				null);
+		assertSameScores(arpa, arpa2, sentences, 1E-5);
+	}
+
+}
@@ -0,0 +1,163 @@
+package codemining.lm.ngram;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import codemining.lm.ngram.smoothing.ModifiedKneserNey;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+public class EntropyPrunerTest {
+
+	/**
+	 * Return the empty context and the contexts of all the nodes of the
+	 * model, except the highest order n-grams.
+	 */
+	private static List<List<String>> getContexts(final AbstractNGramLM model) {
+		final LongTrie<String> trie = model.getTrie();
+		final FrozenLongTrie frozen = trie.getFrozenTrie();
+		final List<List<String>> contexts = Lists.newArrayList();
+		List<List<String>> previousLevel = Lists.newArrayList();
+		previousLevel.add(new ArrayList<String>());
+		contexts.addAll(previousLevel);
+		for (int l = 1; l < frozen.getNumLevels() - 1; l++) {
+			final ChunkedLongBuffer symbols = frozen.getSymbols(l);
+			final ChunkedIntBuffer childStart = frozen.getChildStart(l - 1);
+			final List<List<String>> level = Lists.newArrayList();
+			for (int p = 0; p < previousLevel.size(); p++) {
+				for (int i = childStart.get(p); i < childStart.get(p + 1); i++) {
+					final List<String> context = Lists
+							.newArrayList(previousLevel.get(p));
+					context.add(trie.getSymbolFromKey(symbols.get(i)));
+					level.add(context);
+				}
+			}
+			contexts.addAll(level);
+			previousLevel = level;
+		}
+		return contexts;
+	}
+
+	private static long getSize(final AbstractNGramLM model) {
+		final FrozenLongTrie frozen = model.getTrie().getFrozenTrie();
+		long size = 0;
+		for (int l = 1; l < frozen.getNumLevels(); l++) {
+			size += frozen.getLevelSize(l);
+		}
+		return size;
+	}
+
+	private static double getSumOfProbabilities(final AbstractNGramLM model,
+			final List<String> context) {
+		double sum = 0;
+		for (final String token : model.getTrie().getVocabulary()) {
+			final List<String> ngram = Lists.newArrayList(context);
+			ngram.add(token);
+			sum += model.getProbabilityFor(new NGram<String>(ngram));
+		}
+		return sum;
+	}
+
+	@Test
+	public void testPrune() throws IOException {
+		final List<List<String>> sentences = RandomCorpora.createRandomCorpus(
+				0, 300, 100, 2);
+		RandomCorpora.insertPhrase(sentences, Lists.newArrayList("u", "v", "w"),
+				15);
+		final NGramLM dict = new NGramLM(3, null);
+		dict.addSentences(sentences, true);
+
+		final File arpaFile = File.createTempFile("model", ".arpa");
+		arpaFile.deleteOnExit();
+		ArpaFile.write(new ModifiedKneserNey(dict), arpaFile.getAbsolutePath());
+		final ArpaNGramLM model = ArpaFile.read(arpaFile.getAbsolutePath(),
+				null);
+		final long size = getSize(model);
+
+		assertTrue(EntropyPruner.prune(model, size) == model);
+
+		// Prune half of the n-grams of the higher orders
+		final long nUnigrams = model.getTrie().getFrozenTrie().getLevelSize(1);
+		final long targetSize = nUnigrams + (size - nUnigrams) / 2;
+		final ArpaNGramLM pruned = EntropyPruner.prune(model, targetSize);
+		assertTrue(getSize(pruned) <= targetSize);
+		assertTrue(getSize(pruned) > nUnigrams);
+
+		// The pruned contexts are still normalized
+		final List<List<String>> contexts = Lists.newArrayList();
+		contexts.add(Lists.newArrayList("u"));
+		contexts.add(Lists.newArrayList("u", "v"));
+		for (final List<String> sentence : sentences.subList(0, 20)) {
+			contexts.add(sentence.subList(0, 1));
+			contexts.add(sentence.subList(1, 3));
+		}
+		for (final List<String> context : contexts) {
+			assertEquals(getSumOfProbabilities(pruned, context), 1, 1E-5);
+		}
+
+		// Unpruned n-grams keep their probabilities
+		final double logProb = model.getLogProbOfSentence(Lists.newArrayList(
+				"u", "v", "w"));
+		assertEquals(
+				pruned.getLogProbOfSentence(Lists.newArrayList("u", "v", "w")),
+				logProb, 1E-4);
+	}
+
+	@Test
+	public void testPruneUnigramsOnly() throws IOException {
+		final File arpaFile = File.createTempFile("model", ".arpa");
+		arpaFile.deleteOnExit();
+		Files.write("\\data\\\nngram 1=3\nngram 2=0\n\n\\1-grams:\n"
+				+ "-0.5\t<s>\t-0.2\n-0.3\t</s>\n-0.4\ta\t-0.1\n\n"
+				+ "\\2-grams:\n\n\\end\\\n", arpaFile, Charsets.UTF_8);
+		final ArpaNGramLM model = ArpaFile.read(arpaFile.getAbsolutePath(),
+				null);
+
+		assertTrue(EntropyPruner.prune(model, 1) == model);
+	}
+
+	@Test
+	public void testPrunedModelIsNormalized() throws IOException {
+		// "a b" is always followed by t0, but "b" is followed by t0 about as
+		// often as any other token is, so that "b t0" is pruned before "a b
+		// t0" and the context "a b" backs off to a pruned context
+		final List<List<String>> sentences = RandomCorpora.createRandomCorpus(
+				1, 300, 100, 2);
+		for (int i = 0; i < sentences.size(); i++) {
+			sentences.get(i).add(1, "b");
+			if (i % 10 == 0) {
+				sentences.get(i).add(1, "a");
+				sentences.get(i).add(3, "t0");
+			}
+		}
+		final NGramLM dict = new NGramLM(3, null);
+		dict.addSentences(sentences, true);
+
+		final File arpaFile = File.createTempFile("model", ".arpa");
+		arpaFile.deleteOnExit();
+		ArpaFile.write(new ModifiedKneserNey(dict), arpaFile.getAbsolutePath());
+		final ArpaNGramLM model = ArpaFile.read(arpaFile.getAbsolutePath(),
+				null);
+
+		// Keep a fifth of the n-grams of the higher orders
+		final long size = getSize(model);
+		final long nUnigrams = model.getTrie().getFrozenTrie().getLevelSize(1);
+		final long targetSize = nUnigrams + (size - nUnigrams) / 5;
+		final ArpaNGramLM pruned = EntropyPruner.prune(model, targetSize);
+		assertTrue(getSize(pruned) <= targetSize);
+
+		for (final List<String> context : getContexts(pruned)) {
+			assertEquals(getSumOfProbabilities(pruned, context), 1, 1E-5);
+		}
+	}
+
+}
@@ -0,0 +1,120 @@
+package codemining.lm.ngram;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import codemining.util.serialization.ISerializationStrategy.SerializationException;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class ExternalNGramCounterTest {
+
+	private static NGram<String> ngram(final String... tokens) {
+		return new NGram<String>(Lists.newArrayList(tokens));
+	}
+
+	@Test
+	public void testSameAsInMemory() throws IOException,
+			SerializationException {
+		final List<List<String>> sentences = Lists.newArrayList();
+		sentences.add(Lists.newArrayList("h", "a", "e", "h", "a", "m"));
+		sentences.add(Lists.newArrayList("t", "a", "m", "h", "a", "l"));
+		sentences.add(Lists.newArrayList("t", "a", "h", "h", "a"));
+		sentences.add(Lists.newArrayList("a", "h", "a", "q", "a"));
+		final Set<String> vocabulary = Sets.newHashSet("h", "a", "e", "m",
+				"t");
+
+		final NGramLM dict = new NGramLM(3, null);
+		dict.getTrie().buildVocabularySymbols(vocabulary);
+		for (final List<String> sentence : sentences) {
+			dict.addFromSentence(sentence, false);
+		}
+
+		// A fan-in of 2 needs intermediate merges of the spill files
+		for (final int maxMergeFanIn : new int[] { 2,
+				ExternalNGramCounter.DEFAULT_MERGE_FAN_IN }) {
+			final File modelFile = File.createTempFile("model",
+					NGramModelFile.FILE_EXTENSION);
+			modelFile.deleteOnExit();
+			// A tiny buffer forces several spills that must be merged
+			final ExternalNGramCounter counter = new ExternalNGramCounter(3,
+					null, null, 5, maxMergeFanIn);
+			counter.setVocabulary(vocabulary);
+			for (final List<String> sentence : sentences) {
+				counter.addSentence(sentence);
+			}
+			counter.writeModel(ImmutableNGramLM.class.getName(),
+					modelFile.getAbsolutePath());
+
+			final AbstractNGramLM mapped = AbstractNGramLM
+					.readFromSerialized(modelFile.getAbsolutePath());
+			assertTrue(mapped instanceof ImmutableNGramLM);
+			assertEquals(mapped.getN(), 3);
+			assertEquals(mapped.getTrie().getRootSymbols(), dict.getTrie()
+					.getRootSymbols());
+
+			for (final NGram<String> ngram : Lists.newArrayList(
+					ngram("h", "a"), ngram("h", "h"), ngram("h", "a", "e"),
+					ngram("t", "a", "m"), ngram("q", "a"),
+					ngram("a", "q", "a"), ngram("a"))) {
+				for (final boolean useUNKs : new boolean[] { true, false }) {
+					assertEquals(mapped.getMLProbabilityFor(ngram, useUNKs),
+							dict.getMLProbabilityFor(ngram, useUNKs), 1E-10);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSpillFailure() throws IOException {
+		final File tempDir = File.createTempFile("spills", "");
+		tempDir.delete();
+		final File modelFile = new File(tempDir, "model"
+				+ NGramModelFile.FILE_EXTENSION);
+		try {
+			// The spill files cannot be created in a missing directory
+			final ExternalNGramCounter counter = new ExternalNGramCounter(3,
+					null, tempDir, 5, 2);
+			counter.setVocabulary(Sets.newHashSet("a", "b"));
+			try {
+				counter.addSentence(Lists.newArrayList("a", "b", "a", "b"));
+				fail();
+			} catch (final IOException e) {
+				// The first spill fails
+			}
+
+			// The n-grams of the failed spill were lost, so the model is not
+			// written even if the spills could now be written
+			tempDir.mkdirs();
+			try {
+				counter.addSentence(Lists.newArrayList("b", "a"));
+				fail();
+			} catch (final IOException e) {
+				assertNotNull(e.getCause());
+			}
+			try {
+				counter.writeModel(ImmutableNGramLM.class.getName(),
+						modelFile.getAbsolutePath());
+				fail();
+			} catch (final IOException e) {
+				assertFalse(modelFile.exists());
+			}
+			assertEquals(tempDir.list().length, 0);
+		} finally {
+			FileUtils.deleteDirectory(tempDir);
+		}
+	}
+
+}
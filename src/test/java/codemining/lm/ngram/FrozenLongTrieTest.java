@@ -0,0 +1,255 @@
+package codemining.lm.ngram;
+
+import static codemining.lm.ngram.NGramAssertions.assertSameCounts;
+import static codemining.lm.ngram.NGramAssertions.assertSameScores;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class FrozenLongTrieTest {
+
+	private static final long UNK = Long.MIN_VALUE;
+
+	final long[] testList1 = { 1, 2, 3 };
+	final long[] testList3 = { 1, 2, 4 };
+	final long[] testList4 = { 5, 6, 7 };
+
+	private void assertStateCounts(final ISymbolTrie trie, final long[] sentence) {
+		final ContextState state = trie.createContextState(3);
+		for (int i = 0; i < sentence.length; i++) {
+			state.advance(sentence[i]);
+			assertEquals(state.getMaxAvailableOrder(), Math.min(i + 1, 3));
+			for (int order = 1; order <= state.getMaxAvailableOrder(); order++) {
+				final long[] ngram = new long[order];
+				System.arraycopy(sentence, i - order + 1, ngram, 0, order);
+				final long[] context = new long[order - 1];
+				System.arraycopy(ngram, 0, context, 0, order - 1);
+				assertEquals(state.getNGramCount(order),
+						trie.getCount(ngram, false, true));
+				assertEquals(state.getContextCount(order),
+						trie.getCount(context, false, false));
+			}
+		}
+	}
+
+	@Test
+	public void testCompressedSymbols() throws IOException,
+			ClassNotFoundException {
+		final Random rnd = new Random(2);
+		final LongArrayTrie testTrie = new LongArrayTrie(UNK);
+		for (int i = 0; i < 5000; i++) {
+			final long[] ngram = new long[1 + rnd.nextInt(4)];
+			for (int j = 0; j < ngram.length; j++) {
+				// A few ids far apart, to test long deltas. The largest id,
+				// LongArrayTrie.NO_SYMBOL, is not a valid symbol.
+				ngram[j] = rnd.nextInt(100) == 0 ? LongArrayTrie.NO_SYMBOL - 1
+						- rnd.nextInt(3) : UNK + 1 + rnd.nextInt(200);
+			}
+			testTrie.add(ngram);
+		}
+		final FrozenLongTrie frozen = testTrie.freeze();
+		final FrozenLongTrie compressed = frozen.compressSymbols();
+		assertFalse(frozen.hasCompressedSymbols());
+		assertTrue(compressed.hasCompressedSymbols());
+		assertTrue(compressed.compressSymbols() == compressed);
+		assertTrue(compressed.getSymbolSizeInBytes() < frozen
+				.getSymbolSizeInBytes() / 2);
+		assertEquals(compressed.getNumLevels(), frozen.getNumLevels());
+		for (int l = 0; l < frozen.getNumLevels(); l++) {
+			assertEquals(compressed.getLevelSize(l), frozen.getLevelSize(l));
+			assertArrayEquals(compressed.getSymbols(l).toArray(), frozen
+					.getSymbols(l).toArray());
+		}
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(compressed);
+		out.close();
+		final FrozenLongTrie deserialized = (FrozenLongTrie) new ObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray())).readObject();
+		assertTrue(deserialized.hasCompressedSymbols());
+
+		for (int i = 0; i < 2000; i++) {
+			final long[] ngram = new long[rnd.nextInt(5)];
+			for (int j = 0; j < ngram.length; j++) {
+				ngram[j] = rnd.nextInt(50) == 0 ? LongArrayTrie.NO_SYMBOL - 1
+						- rnd.nextInt(4) : UNK + rnd.nextInt(205);
+			}
+			assertSameCounts(testTrie, compressed, ngram);
+			assertSameCounts(testTrie, deserialized, ngram);
+			assertStateCounts(compressed, ngram);
+		}
+
+		final ILongTrieNode root = compressed.getRoot();
+		final long[] rootSymbols = new long[root.nChildren()];
+		for (int i = 0; i < rootSymbols.length; i++) {
+			rootSymbols[i] = root.getSymbolAt(i);
+		}
+		assertArrayEquals(rootSymbols, frozen.getSymbols(1).toArray());
+	}
+
+	@Test
+	public void testCompressedModelScores() {
+		final List<List<String>> sentences = RandomCorpora
+				.createTrainingCorpus();
+		final NGramLM dict = RandomCorpora.trainModel(sentences);
+
+		final LongTrie<String> compressedTrie = dict.getTrie()
+				.compressSymbols();
+		assertTrue(compressedTrie.getFrozenTrie().hasCompressedSymbols());
+		final List<ImmutableNGramLM> compressedDicts = Lists.newArrayList(
+				new ImmutableNGramLM(3, null, compressedTrie),
+				new ImmutableNGramLM(3, null, compressedTrie.toProbingHash()));
+
+		final List<AbstractNGramLM> models = RandomCorpora
+				.createSmoothedModels(dict);
+		for (final ImmutableNGramLM compressedDict : compressedDicts) {
+			assertTrue(compressedDict.getTrie().getFrozenTrie()
+					.hasCompressedSymbols());
+			final List<AbstractNGramLM> compressedModels = RandomCorpora
+					.createSmoothedModels(compressedDict);
+			for (int m = 0; m < models.size(); m++) {
+				assertTrue(compressedModels.get(m).getTrie().getFrozenTrie()
+						.hasCompressedSymbols());
+				assertSameScores(models.get(m), compressedModels.get(m),
+						sentences.subList(0, 50), 1E-10);
+			}
+		}
+	}
+
+	@Test
+	public void testContextState() {
+		final Random rnd = new Random(1);
+		final LongArrayTrie testTrie = new LongArrayTrie(UNK);
+		for (int i = 0; i < 2000; i++) {
+			final long[] ngram = new long[1 + rnd.nextInt(3)];
+			for (int j = 0; j < ngram.length; j++) {
+				ngram[j] = rnd.nextInt(10);
+			}
+			testTrie.add(ngram);
+		}
+		testTrie.cutoffRare(2);
+		final FrozenLongTrie frozen = testTrie.freeze();
+
+		for (int i = 0; i < 50; i++) {
+			final long[] sentence = new long[1 + rnd.nextInt(10)];
+			for (int j = 0; j < sentence.length; j++) {
+				sentence[j] = rnd.nextInt(12);
+			}
+			assertStateCounts(testTrie, sentence);
+			assertStateCounts(frozen, sentence);
+		}
+	}
+
+	@Test
+	public void testCutoff() {
+		final LongArrayTrie testTrie = new LongArrayTrie(UNK);
+		testTrie.add(testList1);
+		testTrie.add(testList1);
+		testTrie.add(testList3);
+		testTrie.add(testList4);
+		testTrie.cutoffRare(1);
+
+		final FrozenLongTrie frozen = testTrie.freeze();
+		assertEquals(frozen.getNumLevels(), 4);
+		assertEquals(frozen.getCount(new long[] { 1, 2 }, true, true), 3);
+		assertEquals(frozen.getCount(new long[] { 1, 2 }, false, true), 2);
+		assertEquals(frozen.getCount(new long[] { 1, 2, 4 }, true, true), 1);
+		assertEquals(frozen.getCount(new long[] { 1, 2, 4 }, false, true), 0);
+		assertEquals(frozen.getCount(testList4, true, true), 1);
+		assertEquals(frozen.getCount(testList4, false, true), 0);
+		assertEquals(frozen.getCount(new long[] { LongArrayTrie.NO_SYMBOL },
+				true, true), 1);
+	}
+
+	@Test
+	public void testFrozenLongTrieIsReadOnly() {
+		final LongTrie<String> trie = new LongTrie<String>("UNK");
+		trie.add(new NGram<String>(Lists.newArrayList("a", "b")), true);
+		final LongTrie<String> frozen = trie.freeze();
+		assertTrue(frozen.isFrozen());
+		assertTrue(frozen.freeze() == frozen);
+		final LongTrie<String> compressed = trie.compressSymbols();
+		assertTrue(compressed.getFrozenTrie().hasCompressedSymbols());
+		assertEquals(
+				compressed.getCount(
+						new NGram<String>(Lists.newArrayList("a", "b")), false,
+						true), 1);
+		assertEquals(
+				frozen.getCount(
+						new NGram<String>(Lists.newArrayList("a", "b")), false,
+						true), 1);
+
+		try {
+			frozen.add(new NGram<String>(Lists.newArrayList("a", "c")), true);
+			fail("Should not be able to add to a frozen trie");
+		} catch (final UnsupportedOperationException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testNavigation() {
+		final LongArrayTrie testTrie = new LongArrayTrie(UNK);
+		testTrie.add(testList1);
+		testTrie.add(testList3);
+		testTrie.add(testList4);
+		final FrozenLongTrie frozen = testTrie.freeze();
+
+		final ILongTrieNode root = frozen.getRoot();
+		assertEquals(root.getCount(), 3);
+		assertEquals(root.nChildren(), 2);
+		assertEquals(root.getSymbolAt(0), 1);
+		assertEquals(root.getSymbolAt(1), 5);
+		assertNull(root.getChild(2));
+
+		final ILongTrieNode node12 = frozen.getTrieNodeForInput(new long[] {
+				1, 2 }, false);
+		assertEquals(node12.getCount(), 2);
+		assertEquals(node12.nChildren(), 2);
+		assertEquals(node12.getChildAt(1).getTerminateHere(), 1);
+		assertEquals(frozen.getTrieNodeForInput(new long[] { 4 }, false, node12)
+				.getCount(), 1);
+		assertNull(frozen.getTrieNodeForInput(new long[] { 4, 5 }, false,
+				node12));
+	}
+
+	@Test
+	public void testSameAsMutable() {
+		final Random rnd = new Random(0);
+		final LongArrayTrie testTrie = new LongArrayTrie(UNK);
+		for (int i = 0; i < 2000; i++) {
+			final long[] ngram = new long[1 + rnd.nextInt(4)];
+			for (int j = 0; j < ngram.length; j++) {
+				ngram[j] = rnd.nextInt(20);
+			}
+			testTrie.add(ngram);
+		}
+		testTrie.cutoffRare(2);
+		final FrozenLongTrie frozen = testTrie.freeze();
+
+		for (int i = 0; i < 2000; i++) {
+			final long[] ngram = new long[rnd.nextInt(5)];
+			for (int j = 0; j < ngram.length; j++) {
+				ngram[j] = rnd.nextInt(22);
+			}
+			assertSameCounts(testTrie, frozen, ngram);
+		}
+	}
+
+}
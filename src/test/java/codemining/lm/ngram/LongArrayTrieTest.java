@@ -0,0 +1,293 @@
+package codemining.lm.ngram;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import codemining.lm.ngram.LongArrayTrie.Node;
+
+import com.google.common.collect.Lists;
+
+public class LongArrayTrieTest {
+
+	private static final long UNK = Long.MIN_VALUE;
+
+	final long[] testList1 = { 1, 2, 3 };
+	final long[] testList3 = { 1, 2, 4 };
+	final long[] testList4 = { 5, 6, 7 };
+
+	/**
+	 * Assert that the count of each node is the sum of the counts of its
+	 * children and the sequences that terminate there.
+	 */
+	private static void assertSubtreeCounts(final Node node) {
+		long sum = node.getTerminateHere();
+		for (int i = 0; i < node.nChildren(); i++) {
+			sum += node.getChildAt(i).getCount();
+			assertSubtreeCounts(node.getChildAt(i));
+		}
+		assertEquals(node.getCount(), sum);
+	}
+
+	@Test
+	public void testAddAll() {
+		final LongArrayTrie expected = new LongArrayTrie(UNK);
+		final LongArrayTrie testTrie = new LongArrayTrie(UNK);
+		testTrie.add(testList1);
+		final List<LongArrayTrie> partials = Lists.newArrayList();
+		for (int t = 0; t < 4; t++) {
+			final LongArrayTrie partial = new LongArrayTrie(UNK);
+			for (long i = t; i < 300; i += 4) {
+				final long[] ngram = { i % 50, i % 3, i % 11 };
+				partial.add(ngram);
+				expected.add(ngram);
+			}
+			partials.add(partial);
+		}
+		partials.get(0).add(new long[0]);
+		partials.get(1).add(testList1);
+		expected.add(new long[0]);
+		expected.add(testList1);
+		expected.add(testList1);
+
+		testTrie.addAll(partials);
+		assertEquals(testTrie.getRoot().getCount(), expected.getRoot()
+				.getCount());
+		assertEquals(testTrie.getRoot().getTerminateHere(), 1);
+		assertEquals(testTrie.getRoot().nChildren(), 50);
+		for (long i = 0; i < 60; i++) {
+			final long[] ngram = { i % 50, i % 3, i % 11 };
+			assertEquals(testTrie.getCount(ngram, false, true),
+					expected.getCount(ngram, false, true));
+			assertEquals(testTrie.getCount(new long[] { i % 50, i % 3 },
+					false, false), expected.getCount(new long[] { i % 50,
+					i % 3 }, false, false));
+		}
+		assertEquals(testTrie.getCount(testList1, false, true), 2);
+	}
+
+	@Test
+	public void testChildrenAreSorted() {
+		final LongArrayTrie testTrie = new LongArrayTrie(UNK);
+		for (long i = 100; i > 0; i -= 3) {
+			testTrie.add(new long[] { i, i + 1 });
+		}
+		testTrie.add(new long[] { 50, 50 });
+
+		final Node root = testTrie.getRoot();
+		assertEquals(root.getCount(), 35);
+		assertEquals(root.nChildren(), 35);
+		for (int i = 1; i < root.nChildren(); i++) {
+			assertTrue(root.getSymbolAt(i - 1) < root.getSymbolAt(i));
+		}
+		assertEquals(root.getChild(50).getCount(), 1);
+		assertEquals(root.getChild(49).getCount(), 1);
+		assertEquals(root.getChild(49).nChildren(), 1);
+		assertNull(root.getChild(51));
+
+		testTrie.trimToSize();
+		assertEquals(root.nChildren(), 35);
+		assertEquals(testTrie.getCount(new long[] { 49, 50 }, false, true), 1);
+	}
+
+	@Test
+	public void testConcurrentAdd() throws InterruptedException {
+		final LongArrayTrie testTrie = new LongArrayTrie(UNK);
+		final ExecutorService executor = Executors.newFixedThreadPool(8);
+		for (int t = 0; t < 8; t++) {
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					for (int i = 0; i < 1000; i++) {
+						testTrie.add(new long[] { i % 100, i % 7, 1 });
+					}
+				}
+
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+
+		final Node root = testTrie.getRoot();
+		assertEquals(root.getCount(), 8000);
+		assertEquals(root.nChildren(), 100);
+		for (int i = 1; i < root.nChildren(); i++) {
+			assertTrue(root.getSymbolAt(i - 1) < root.getSymbolAt(i));
+		}
+		assertEquals(testTrie.getCount(new long[] { 3 }, false, true), 80);
+		assertEquals(testTrie.getCount(new long[] { 3, 3, 1 }, false, true),
+				16);
+		assertEquals(testTrie.getCount(new long[] { 10, 3 }, false, true), 16);
+	}
+
+	@Test
+	public void testConcurrentCutoff() throws InterruptedException {
+		final LongArrayTrie testTrie = new LongArrayTrie(UNK);
+		final ExecutorService executor = Executors.newFixedThreadPool(8);
+		for (int t = 0; t < 8; t++) {
+			final int thread = t;
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					for (int i = 0; i < 1000; i++) {
+						testTrie.add(new long[] { (i * i + thread) % 300,
+								i % 7, i % 3 });
+						if (thread == 0 && i % 100 == 0) {
+							testTrie.cutoffRare(2);
+						}
+					}
+				}
+
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+		testTrie.cutoffRare(2);
+
+		final Node root = testTrie.getRoot();
+		assertEquals(root.getCount(), 8000);
+		assertSubtreeCounts(root);
+		for (int i = 0; i < root.nChildren(); i++) {
+			if (root.getSymbolAt(i) != UNK) {
+				assertTrue(root.getChildAt(i).getCount() > 2);
+			}
+		}
+	}
+
+	@Test
+	public void testConcurrentReadersDuringCutoff()
+			throws InterruptedException {
+		final LongArrayTrie testTrie = new LongArrayTrie(UNK);
+		final LongArrayTrie cutTrie = new LongArrayTrie(UNK);
+		final List<long[]> ngrams = Lists.newArrayList();
+		for (int i = 0; i < 5000; i++) {
+			final long[] ngram = { (i * i) % 500, i % 7, (i * 3) % 13 };
+			testTrie.add(ngram);
+			cutTrie.add(ngram);
+			ngrams.add(ngram);
+		}
+		cutTrie.cutoffRare(3);
+		final long[] countsBefore = new long[ngrams.size()];
+		final long[] countsAfter = new long[ngrams.size()];
+		for (int i = 0; i < ngrams.size(); i++) {
+			countsBefore[i] = testTrie.getCount(ngrams.get(i), true, true);
+			countsAfter[i] = cutTrie.getCount(ngrams.get(i), true, true);
+		}
+
+		// Readers see each n-gram either before or after pruning
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicInteger nErrors = new AtomicInteger();
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		for (int t = 0; t < 4; t++) {
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					while (!done.get()) {
+						for (int i = 0; i < ngrams.size(); i++) {
+							final long count = testTrie.getCount(
+									ngrams.get(i), true, true);
+							if (count != countsBefore[i]
+									&& count != countsAfter[i]) {
+								nErrors.incrementAndGet();
+							}
+						}
+					}
+				}
+
+			});
+		}
+		testTrie.cutoffRare(3);
+		done.set(true);
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+
+		assertEquals(nErrors.get(), 0);
+		for (int i = 0; i < ngrams.size(); i++) {
+			assertEquals(testTrie.getCount(ngrams.get(i), true, true),
+					countsAfter[i]);
+		}
+	}
+
+	@Test
+	public void testCountDistinct() {
+		final LongArrayTrie testTrie = new LongArrayTrie(UNK);
+		testTrie.add(testList1);
+		testTrie.add(testList1);
+		testTrie.add(testList3);
+		testTrie.add(testList4);
+
+		assertEquals(testTrie.countDistinctStartingWith(new long[] { 1 },
+				true), 1);
+		assertEquals(testTrie.countDistinctStartingWith(new long[] { 1, 2 },
+				false), 2);
+		assertEquals(testTrie.countDistinctStartingWith(
+				new long[] { 1, 2, 3 }, true), 0);
+	}
+
+	@Test
+	public void testCutoff() {
+		final LongArrayTrie testTrie = new LongArrayTrie(UNK);
+		testTrie.add(testList1);
+		testTrie.add(testList1);
+		testTrie.add(testList3);
+		testTrie.add(testList4);
+
+		testTrie.cutoffRare(1);
+
+		assertEquals(testTrie.getCount(new long[] { 1 }, true, true), 3);
+		assertEquals(testTrie.getCount(new long[] { 1, 2 }, true, true), 3);
+		assertEquals(testTrie.getCount(new long[] { 1, 2 }, false, true), 2);
+		assertEquals(testTrie.getCount(new long[] { 1, 2, 3 }, true, true), 2);
+		assertEquals(testTrie.getCount(new long[] { 1, 2, 4 }, true, true), 1);
+		assertEquals(testTrie.getCount(new long[] { 1, 2, 4 }, false, true),
+				0);
+
+		assertEquals(testTrie.getCount(testList4, false, true), 0);
+		assertEquals(testTrie.getCount(testList4, true, true), 1);
+		assertEquals(testTrie.getCount(
+				new long[] { LongArrayTrie.NO_SYMBOL }, true, true), 1);
+		assertEquals(testTrie.getCount(
+				new long[] { LongArrayTrie.NO_SYMBOL }, false, true), 0);
+	}
+
+	@Test
+	public void testGetCount() {
+		final LongArrayTrie testTrie = new LongArrayTrie(UNK);
+		testTrie.add(testList1);
+		testTrie.add(testList1);
+		testTrie.add(testList3);
+
+		assertEquals(testTrie.getCount(new long[] { 1 }, false, false), 3);
+		assertEquals(testTrie.getCount(new long[] { 1, 2, 3 }, true, true), 2);
+		assertEquals(testTrie.getCount(new long[] { 1, 2, 3 }, true, false),
+				0);
+		assertEquals(testTrie.sumStartingWith(new long[] { 1, 2 }, true), 3);
+
+		testTrie.remove(testList1);
+		assertEquals(testTrie.getCount(testList1, true, true), 1);
+		testTrie.remove(testList1);
+		assertEquals(testTrie.getCount(testList1, true, true), 0);
+		assertEquals(testTrie.getCount(new long[] { 1 }, false, false), 1);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testRemoveException() {
+		final LongArrayTrie testTrie = new LongArrayTrie(UNK);
+		testTrie.add(testList1);
+		testTrie.remove(testList1);
+		testTrie.remove(testList1);
+	}
+
+}
@@ -0,0 +1,72 @@
+/**
+ *
+ */
+package codemining.lm.ngram;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+/**
+ * Assertions shared by the tests of the tries and the n-gram models.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public final class NGramAssertions {
+
+	/**
+	 * Assert that the given tries return the same counts for the n-gram,
+	 * with and without UNKs.
+	 *
+	 * @param expected
+	 * @param actual
+	 * @param ngram
+	 */
+	public static void assertSameCounts(final ISymbolTrie expected,
+			final ISymbolTrie actual, final long[] ngram) {
+		for (final boolean useUNKs : new boolean[] { true, false }) {
+			for (final boolean useTerminals : new boolean[] { true, false }) {
+				assertEquals(actual.getCount(ngram, useUNKs, useTerminals),
+						expected.getCount(ngram, useUNKs, useTerminals));
+			}
+			if (ngram.length > 0) {
+				assertEquals(actual.countDistinctStartingWith(ngram, useUNKs),
+						expected.countDistinctStartingWith(ngram, useUNKs));
+				assertEquals(actual.sumStartingWith(ngram, useUNKs),
+						expected.sumStartingWith(ngram, useUNKs));
+
+				final long[] expectedCounts = new long[2];
+				final long[] actualCounts = new long[2];
+				expected.getNGramCounts(ngram, 0, ngram.length, useUNKs,
+						expectedCounts);
+				actual.getNGramCounts(ngram, 0, ngram.length, useUNKs,
+						actualCounts);
+				assertEquals(actualCounts[0], expectedCounts[0]);
+				assertEquals(actualCounts[1], expectedCounts[1]);
+			}
+		}
+	}
+
+	/**
+	 * Assert that the given models give the same log-probability to each
+	 * sentence, up to the given relative error.
+	 *
+	 * @param expected
+	 * @param actual
+	 * @param sentences
+	 * @param relativeError
+	 */
+	public static void assertSameScores(final AbstractNGramLM expected,
+			final AbstractNGramLM actual, final List<List<String>> sentences,
+			final double relativeError) {
+		for (final List<String> sentence : sentences) {
+			final double logProb = expected.getLogProbOfSentence(sentence);
+			assertEquals(actual.getLogProbOfSentence(sentence), logProb,
+					Math.abs(logProb) * relativeError);
+		}
+	}
+
+	private NGramAssertions() {
+	}
+}
@@ -4,16 +4,27 @@
 package codemining.lm.ngram;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.util.List;
+import java.util.Set;
 
 import org.junit.Test;
 
+import codemining.languagetools.ITokenizer;
+import codemining.lm.ngram.NGramLM.TrainingStrategy;
+import codemining.lm.ngram.smoothing.KatzBackoff;
+import codemining.lm.ngram.smoothing.LaplaceSmoother;
+import codemining.lm.ngram.smoothing.ModifiedKneserNey;
+import codemining.lm.ngram.smoothing.StupidBackoff;
+import codemining.lm.util.TokenizedCorpus;
 import codemining.util.serialization.ISerializationStrategy.SerializationException;
 import codemining.util.serialization.JavaSerialization;
 import codemining.util.serialization.KryoSerialization;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.math.DoubleMath;
 
 /**
  * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
@@ -21,6 +32,104 @@ import com.google.common.collect.Lists;
  */
 public class NGramLMTest {
 
+	@Test
+	public void testModifiedKneserNeyNormalization() {
+		final NGramLM dict = new NGramLM(3, null);
+		dict.addSentences(RandomCorpora.createRandomCorpus(1, 300, 100, 2),
+				true);
+		final ModifiedKneserNey kneserNey = new ModifiedKneserNey(dict);
+
+		final List<List<String>> contexts = Lists.newArrayList();
+		contexts.add(Lists.<String> newArrayList());
+		contexts.add(Lists.newArrayList("t0"));
+		contexts.add(Lists.newArrayList("t0", "t1"));
+		contexts.add(Lists.newArrayList("t3", "t0"));
+		contexts.add(Lists.newArrayList("unseen", "t2"));
+		contexts.add(Lists.newArrayList("t1", "unseen"));
+		for (final List<String> context : contexts) {
+			double sum = 0;
+			for (final String token : kneserNey.getTrie().getVocabulary()) {
+				final List<String> ngram = Lists.newArrayList(context);
+				ngram.add(token);
+				sum += kneserNey.getProbabilityFor(new NGram<String>(ngram));
+			}
+			assertEquals(sum, 1, 1E-10);
+		}
+
+		final double discount = kneserNey.getDiscount(1, 3);
+		assertTrue(discount > 0 && discount < 1);
+		assertEquals(kneserNey.getDiscount(5, 3),
+				kneserNey.getDiscount(3, 3), 0);
+	}
+
+	@Test
+	public void testModifiedKneserNeySentenceStart() {
+		final List<List<String>> sentences = RandomCorpora.createRandomCorpus(
+				2, 300, 100, 2);
+		for (int i = 0; i < sentences.size(); i++) {
+			final List<String> sentence = sentences.get(i);
+			if (i % 2 == 0) {
+				sentence.add(0, "begin");
+			}
+			sentence.add(0, ITokenizer.SENTENCE_START);
+			sentence.add(ITokenizer.SENTENCE_END);
+		}
+		final NGramLM dict = new NGramLM(4, null);
+		dict.addSentences(sentences, true);
+		final ModifiedKneserNey kneserNey = new ModifiedKneserNey(dict);
+
+		final List<List<String>> contexts = Lists.newArrayList();
+		contexts.add(Lists.newArrayList(ITokenizer.SENTENCE_START));
+		contexts.add(Lists.newArrayList(ITokenizer.SENTENCE_START, "begin"));
+		contexts.add(Lists.newArrayList(ITokenizer.SENTENCE_START, "t0"));
+		contexts.add(Lists.newArrayList(ITokenizer.SENTENCE_START, "begin",
+				"t0"));
+		for (final List<String> context : contexts) {
+			double sum = 0;
+			for (final String token : kneserNey.getTrie().getVocabulary()) {
+				final List<String> ngram = Lists.newArrayList(context);
+				ngram.add(token);
+				sum += kneserNey.getProbabilityFor(new NGram<String>(ngram));
+			}
+			assertEquals(sum, 1, 1E-10);
+		}
+
+		// Half of the sentences begin with "begin", that never appears
+		// elsewhere
+		final double beginProb = kneserNey.getProbabilityFor(new NGram<String>(
+				Lists.newArrayList(ITokenizer.SENTENCE_START, "begin")));
+		assertEquals(beginProb, .5, .05);
+		assertTrue(kneserNey.getProbabilityFor(new NGram<String>(Lists
+				.newArrayList("t0", "begin"))) < .05);
+	}
+
+	@Test
+	public void testPrecomputedBackoffScoring() {
+		final List<List<String>> sentences = RandomCorpora
+				.createTrainingCorpus();
+		final NGramLM dict = RandomCorpora.trainModel(sentences);
+
+		final List<AbstractNGramLM> models = Lists.newArrayList(
+				new KatzBackoff(dict), new StupidBackoff(dict));
+		for (final AbstractNGramLM model : models) {
+			for (final List<String> sentence : sentences.subList(0, 50)) {
+				final SymbolSequence sequence = model
+						.getSymbolSequence(sentence);
+				double logProb = 0;
+				for (int i = sentence.size() - 1; i > 0; i--) {
+					final int from = Math.max(0, i - 2);
+					final double prob = model.getProbabilityFor(
+							new NGram<String>(sentence, from, i + 1));
+					assertEquals(model.getProbabilityFor(sequence, from, i + 1),
+							prob, prob * 1E-10);
+					logProb += DoubleMath.log2(prob);
+				}
+				assertEquals(model.getLogProbOfSentence(sentence), logProb,
+						1E-8);
+			}
+		}
+	}
+
 	@Test
 	public void testSimpleNgrams1() {
 		final List<String> sent = Lists.newArrayList();
@@ -255,4 +364,83 @@ public class NGramLMTest {
 
 	}
 
+	@Test
+	public void testSinglePassTraining() {
+		final List<List<String>> sentences = Lists.newArrayList();
+		sentences.add(Lists.newArrayList("h", "a", "e", "h", "a", "m"));
+		sentences.add(Lists.newArrayList("t", "a", "m", "h", "a", "l"));
+		sentences.add(Lists.newArrayList("t", "a", "h", "h", "a"));
+		sentences.add(Lists.newArrayList("h", "q"));
+		sentences.add(Lists.newArrayList("a"));
+
+		final TokenizedCorpus corpus = new TokenizedCorpus(null);
+		for (final List<String> sentence : sentences) {
+			corpus.addSequence(sentence);
+		}
+		final Set<String> vocabulary = corpus
+				.getVocabulary(NGramLM.CLEAN_THRESHOLD);
+		assertEquals(vocabulary, Sets.newHashSet("h", "a", "m", "t"));
+
+		final NGramLM dict = new NGramLM(3, null);
+		dict.getTrie().buildVocabularySymbols(vocabulary);
+		for (final List<String> sentence : sentences) {
+			dict.addFromSentence(sentence, false);
+		}
+
+		for (final TrainingStrategy strategy : TrainingStrategy.values()) {
+			final NGramLM singlePass = new NGramLM(3, null);
+			singlePass.setTrainingStrategy(strategy);
+			singlePass.trainModel(corpus);
+
+			assertEquals(singlePass.getTrie().getVocabulary(), dict.getTrie()
+					.getVocabulary());
+			for (final List<String> sentence : sentences) {
+				for (final NGram<String> ngram : NGramLM.getNgramsFromSentence(
+						sentence, 3)) {
+					assertEquals(singlePass.getMLProbabilityFor(ngram, true),
+							dict.getMLProbabilityFor(ngram, true), 1E-10);
+					assertEquals(singlePass.getMLProbabilityFor(ngram, false),
+							dict.getMLProbabilityFor(ngram, false), 1E-10);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSymbolSequenceScoring() {
+		final NGramLM dict = new NGramLM(3, null);
+		dict.addFromSentence(
+				Lists.newArrayList("h", "a", "e", "h", "a", "m"), true);
+		dict.addFromSentence(
+				Lists.newArrayList("t", "a", "m", "h", "a", "l"), true);
+		dict.addFromSentence(Lists.newArrayList("t", "a", "h", "h", "a"),
+				true);
+
+		final List<String> sentence = Lists.newArrayList("t", "a", "h", "a",
+				"e", "a", "m", "h", "a");
+		final List<AbstractNGramLM> models = Lists.newArrayList(dict,
+				new ImmutableNGramLM(dict), new StupidBackoff(dict),
+				new LaplaceSmoother(dict));
+		for (final AbstractNGramLM model : models) {
+			final SymbolSequence sequence = model.getSymbolSequence(sentence);
+			double logProb = 0;
+			for (int i = 1; i < sentence.size(); i++) {
+				final int from = Math.max(0, i - 2);
+				final NGram<String> ngram = new NGram<String>(sentence, from,
+						i + 1);
+				assertEquals(model.getProbabilityFor(sequence, from, i + 1),
+						model.getProbabilityFor(ngram), 1E-10);
+				assertEquals(
+						model.getMLProbabilityFor(sequence, from, i + 1, true),
+						model.getMLProbabilityFor(ngram, true), 1E-10);
+				logProb += DoubleMath.log2(model.getProbabilityFor(ngram));
+			}
+			if (!(model instanceof NGramLM || model instanceof ImmutableNGramLM)) {
+				// The unsmoothed models give zero probability to "a e a"
+				assertEquals(model.getLogProbOfSentence(sentence), logProb,
+						1E-10);
+			}
+		}
+	}
+
 }
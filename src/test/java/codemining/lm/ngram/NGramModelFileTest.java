@@ -0,0 +1,206 @@
+package codemining.lm.ngram;
+
+import static codemining.lm.ngram.NGramAssertions.assertSameScores;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+import codemining.lm.ngram.smoothing.KatzBackoff;
+import codemining.lm.ngram.smoothing.StupidBackoff;
+import codemining.util.serialization.ISerializationStrategy.SerializationException;
+import codemining.util.serialization.JavaSerialization;
+
+import com.google.common.collect.Lists;
+
+public class NGramModelFileTest {
+
+	private static NGram<String> ngram(final String... tokens) {
+		return new NGram<String>(Lists.newArrayList(tokens));
+	}
+
+	private NGramLM trainModel() {
+		final List<String> sent = Lists.newArrayList("h", "a", "e", "h", "a",
+				"m");
+		final List<String> sent2 = Lists.newArrayList("t", "a", "m", "h", "a",
+				"l");
+		final List<String> sent3 = Lists.newArrayList("t", "a", "h", "h", "a");
+
+		final NGramLM dict = new NGramLM(3, null);
+		dict.addFromSentence(sent, true);
+		dict.addFromSentence(sent2, true);
+		dict.addFromSentence(sent3, true);
+		return dict;
+	}
+
+	@Test
+	public void testFrozenSerialization() throws SerializationException {
+		final AbstractNGramLM dict = new ImmutableNGramLM(trainModel());
+		assertTrue(dict.getTrie().isFrozen());
+
+		final byte[] serialized = (new JavaSerialization()).serialize(dict);
+		final AbstractNGramLM dictD = (AbstractNGramLM) (new JavaSerialization())
+				.deserializeFrom(serialized);
+
+		assertTrue(dictD.getTrie().isFrozen());
+		assertEquals(dictD.getMLProbabilityFor(ngram("h", "a"), false),
+				5. / 6., .001);
+		assertEquals(dictD.getMLProbabilityFor(ngram("t", "a", "m"), false),
+				1. / 2., .001);
+	}
+
+	@Test
+	public void testWriteAndMap() throws IOException, SerializationException {
+		final NGramLM dict = trainModel();
+		final File modelFile = File.createTempFile("model",
+				NGramModelFile.FILE_EXTENSION);
+		modelFile.deleteOnExit();
+
+		NGramModelFile.write(dict, modelFile.getAbsolutePath());
+		assertTrue(NGramModelFile.isModelFile(modelFile.getAbsolutePath()));
+
+		final AbstractNGramLM mapped = AbstractNGramLM
+				.readFromSerialized(modelFile.getAbsolutePath());
+		assertTrue(mapped instanceof ImmutableNGramLM);
+		assertEquals(mapped.getN(), 3);
+		assertEquals(mapped.getTrie().getVocabulary(), dict.getTrie()
+				.getVocabulary());
+
+		for (final NGram<String> ngram : Lists.newArrayList(ngram("h", "a"),
+				ngram("h", "h"), ngram("h", "a", "e"), ngram("t", "a", "m"),
+				ngram("x", "a"), ngram("a", "x", "m"))) {
+			for (final boolean useUNKs : new boolean[] { true, false }) {
+				assertEquals(mapped.getMLProbabilityFor(ngram, useUNKs),
+						dict.getMLProbabilityFor(ngram, useUNKs), 1E-10);
+			}
+		}
+		assertEquals(mapped.getTrie().getRootSymbols(), dict.getTrie()
+				.getRootSymbols());
+	}
+
+	@Test
+	public void testMapInChunks() throws IOException {
+		final NGramLM dict = trainModel();
+		final File modelFile = File.createTempFile("model",
+				NGramModelFile.FILE_EXTENSION);
+		modelFile.deleteOnExit();
+		NGramModelFile.write(dict, modelFile.getAbsolutePath());
+
+		// Map the arrays in chunks of 16 bytes
+		final AbstractNGramLM mapped = NGramModelFile.read(
+				modelFile.getAbsolutePath(), 4);
+		for (final NGram<String> ngram : Lists.newArrayList(ngram("h", "a"),
+				ngram("h", "h"), ngram("h", "a", "e"), ngram("t", "a", "m"),
+				ngram("x", "a"), ngram("a", "x", "m"))) {
+			for (final boolean useUNKs : new boolean[] { true, false }) {
+				assertEquals(mapped.getMLProbabilityFor(ngram, useUNKs),
+						dict.getMLProbabilityFor(ngram, useUNKs), 1E-10);
+			}
+		}
+		final FrozenLongTrie frozen = mapped.getTrie().getFrozenTrie();
+		final FrozenLongTrie original = dict.getTrie().freeze()
+				.getFrozenTrie();
+		for (int l = 0; l < frozen.getNumLevels(); l++) {
+			assertArrayEquals(frozen.getSymbols(l).toArray(), original
+					.getSymbols(l).toArray());
+			assertArrayEquals(frozen.getChildStart(l).toArray(), original
+					.getChildStart(l).toArray());
+		}
+	}
+
+	@Test
+	public void testMapPrecomputedTables() throws IOException {
+		final List<List<String>> sentences = RandomCorpora
+				.createTrainingCorpus();
+		final NGramLM dict = RandomCorpora.trainModel(sentences);
+
+		for (final AbstractNGramLM model : Lists.newArrayList(
+				new KatzBackoff(dict), new StupidBackoff(dict))) {
+			final File modelFile = File.createTempFile("model",
+					NGramModelFile.FILE_EXTENSION);
+			modelFile.deleteOnExit();
+			NGramModelFile.write(model, modelFile.getAbsolutePath());
+
+			for (final int chunkBits : new int[] { 30, 4 }) {
+				final AbstractNGramLM mapped = NGramModelFile.read(
+						modelFile.getAbsolutePath(), chunkBits);
+				assertEquals(mapped.getClass(), model.getClass());
+
+				// The tables are mapped as they were written
+				final NodeTables tables = ((IPrecomputedNGramLM) model)
+						.getNodeTables();
+				final NodeTables mappedTables = ((IPrecomputedNGramLM) mapped)
+						.getNodeTables();
+				assertArrayEquals(mappedTables.getParameters(),
+						tables.getParameters(), 0);
+				assertEquals(mappedTables.getNumTables(),
+						tables.getNumTables());
+				for (int t = 0; t < tables.getNumTables(); t++) {
+					assertEquals(mappedTables.getTable(t).length,
+							tables.getTable(t).length);
+					for (int l = 0; l < tables.getTable(t).length; l++) {
+						assertArrayEquals(mappedTables.getTable(t)[l]
+								.toArray(), tables.getTable(t)[l].toArray(), 0);
+					}
+				}
+
+				assertSameScores(model, mapped, sentences.subList(0, 30),
+						1E-10);
+				assertEquals(mapped.getProbabilityFor(ngram("u", "v", "x")),
+						model.getProbabilityFor(ngram("u", "v", "x")), 1E-10);
+			}
+		}
+	}
+
+	@Test
+	public void testMapArpaModels() throws IOException {
+		final List<List<String>> sentences = RandomCorpora
+				.createTrainingCorpus();
+		final NGramLM dict = RandomCorpora.trainModel(sentences);
+		final File arpaFile = File.createTempFile("model", ".arpa");
+		arpaFile.deleteOnExit();
+		ArpaFile.write(new KatzBackoff(dict), arpaFile.getAbsolutePath());
+		final ArpaNGramLM arpa = ArpaFile.read(arpaFile.getAbsolutePath(),
+				null);
+		assertFalse(arpa.getTrie().getFrozenTrie().hasCounts());
+
+		for (final ArpaNGramLM model : Lists.newArrayList(arpa,
+				arpa.quantize(8), arpa.quantize(12))) {
+			final File modelFile = File.createTempFile("model",
+					NGramModelFile.FILE_EXTENSION);
+			modelFile.deleteOnExit();
+			NGramModelFile.write(model, modelFile.getAbsolutePath());
+
+			for (final int chunkBits : new int[] { 30, 4 }) {
+				final ArpaNGramLM mapped = (ArpaNGramLM) NGramModelFile.read(
+						modelFile.getAbsolutePath(), chunkBits);
+				assertEquals(mapped.isQuantized(), model.isQuantized());
+				assertFalse(mapped.getTrie().getFrozenTrie().hasCounts());
+				for (int l = 0; l <= model.getN(); l++) {
+					assertArrayEquals(mapped.getLogProbs()[l],
+							model.getLogProbs()[l], 0);
+					assertArrayEquals(mapped.getLogBackoffs()[l],
+							model.getLogBackoffs()[l], 0);
+				}
+				assertSameScores(model, mapped, sentences.subList(0, 30),
+						1E-10);
+			}
+		}
+	}
+
+	@Test
+	public void testNotAModelFile() throws IOException {
+		final File other = File.createTempFile("model", ".ser");
+		other.deleteOnExit();
+		assertFalse(NGramModelFile.isModelFile(other.getAbsolutePath()));
+		assertFalse(NGramModelFile.isModelFile(other.getAbsolutePath()
+				+ ".missing"));
+	}
+
+}
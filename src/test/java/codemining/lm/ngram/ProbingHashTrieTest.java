@@ -0,0 +1,94 @@
+package codemining.lm.ngram;
+
+import static codemining.lm.ngram.NGramAssertions.assertSameCounts;
+import static codemining.lm.ngram.NGramAssertions.assertSameScores;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ProbingHashTrieTest {
+
+	private static final long UNK = Long.MIN_VALUE;
+
+	private void assertSameStates(final FrozenLongTrie trie,
+			final ProbingHashTrie hashed, final long[] sentence) {
+		final ContextState state = trie.createContextState(3);
+		final ContextState hashedState = hashed.createContextState(3);
+		for (final long symbol : sentence) {
+			state.advance(symbol);
+			hashedState.advance(symbol);
+			for (int order = 1; order <= state.getMaxAvailableOrder(); order++) {
+				assertEquals(hashedState.getNGramIndex(order),
+						state.getNGramIndex(order));
+				assertEquals(hashedState.getContextIndex(order),
+						state.getContextIndex(order));
+				assertEquals(hashedState.getNGramCount(order),
+						state.getNGramCount(order));
+				assertEquals(hashedState.getContextCount(order),
+						state.getContextCount(order));
+			}
+		}
+	}
+
+	@Test
+	public void testSameAsFrozen() throws IOException, ClassNotFoundException {
+		final Random rnd = new Random(0);
+		final LongArrayTrie testTrie = new LongArrayTrie(UNK);
+		for (int i = 0; i < 3000; i++) {
+			final long[] ngram = new long[1 + rnd.nextInt(4)];
+			for (int j = 0; j < ngram.length; j++) {
+				ngram[j] = rnd.nextInt(30);
+			}
+			testTrie.add(ngram);
+		}
+		testTrie.cutoffRare(2);
+		final FrozenLongTrie frozen = testTrie.freeze();
+		final ProbingHashTrie hashed = new ProbingHashTrie(frozen);
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(hashed);
+		out.close();
+		final ProbingHashTrie deserialized = (ProbingHashTrie) new ObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+		for (int i = 0; i < 2000; i++) {
+			final long[] ngram = new long[rnd.nextInt(5)];
+			for (int j = 0; j < ngram.length; j++) {
+				ngram[j] = rnd.nextInt(33);
+			}
+			assertSameCounts(testTrie, hashed, ngram);
+			assertSameCounts(testTrie, deserialized, ngram);
+			assertSameStates(frozen, hashed, ngram);
+		}
+	}
+
+	@Test
+	public void testSameModelScores() {
+		final List<List<String>> sentences = RandomCorpora
+				.createTrainingCorpus();
+		final NGramLM dict = RandomCorpora.trainModel(sentences);
+		final ImmutableNGramLM hashedDict = new ImmutableNGramLM(3, null, dict
+				.getTrie().toProbingHash());
+		assertTrue(hashedDict.getTrie().isFrozen());
+
+		final List<AbstractNGramLM> models = RandomCorpora
+				.createSmoothedModels(dict);
+		final List<AbstractNGramLM> hashedModels = RandomCorpora
+				.createSmoothedModels(hashedDict);
+		for (int m = 0; m < models.size(); m++) {
+			assertSameScores(models.get(m), hashedModels.get(m),
+					sentences.subList(0, 50), 1E-10);
+		}
+	}
+
+}
@@ -0,0 +1,116 @@
+/**
+ *
+ */
+package codemining.lm.ngram;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.List;
+import java.util.Random;
+
+import codemining.lm.ngram.smoothing.KatzBackoff;
+import codemining.lm.ngram.smoothing.ModifiedKneserNey;
+import codemining.lm.ngram.smoothing.StupidBackoff;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Random corpora, and the models trained on them, for testing the n-gram
+ * models.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public final class RandomCorpora {
+
+	/**
+	 * Create sentences of 3 to 10 tokens. Each token is "t" + (int)
+	 * (vocabularySize * r^vocabularySkew) for a uniform r in [0,1), so that
+	 * the smaller token ids are more frequent.
+	 *
+	 * @param seed
+	 * @param nSentences
+	 * @param vocabularySize
+	 * @param vocabularySkew
+	 * @return
+	 */
+	public static List<List<String>> createRandomCorpus(final long seed,
+			final int nSentences, final int vocabularySize,
+			final int vocabularySkew) {
+		final Random rnd = new Random(seed);
+		final List<List<String>> sentences = Lists.newArrayList();
+		for (int i = 0; i < nSentences; i++) {
+			final List<String> sentence = Lists.newArrayList();
+			final int length = 3 + rnd.nextInt(8);
+			for (int j = 0; j < length; j++) {
+				final double r = rnd.nextDouble();
+				double token = vocabularySize;
+				for (int k = 0; k < vocabularySkew; k++) {
+					token *= r;
+				}
+				sentence.add("t" + (int) token);
+			}
+			sentences.add(sentence);
+		}
+		return sentences;
+	}
+
+	/**
+	 * Return the Katz, stupid backoff and modified Kneser-Ney models on the
+	 * counts of the given model.
+	 *
+	 * @param dict
+	 * @return
+	 */
+	public static List<AbstractNGramLM> createSmoothedModels(
+			final AbstractNGramLM dict) {
+		return Lists.<AbstractNGramLM> newArrayList(new KatzBackoff(dict),
+				new StupidBackoff(dict), new ModifiedKneserNey(dict));
+	}
+
+	/**
+	 * Create the corpus that the models of the tests are trained on: 300
+	 * sentences with 400 distinct tokens, where the phrase "u v w" is
+	 * inserted 11 times, so that there are n-grams with 11 counts (for Katz).
+	 *
+	 * @return
+	 */
+	public static List<List<String>> createTrainingCorpus() {
+		final List<List<String>> sentences = createRandomCorpus(0, 300, 400, 3);
+		insertPhrase(sentences, Lists.newArrayList("u", "v", "w"), 11);
+		return sentences;
+	}
+
+	/**
+	 * Insert the phrase after the first token of every 20th sentence, for
+	 * the given number of times.
+	 *
+	 * @param sentences
+	 * @param phrase
+	 * @param nTimes
+	 */
+	public static void insertPhrase(final List<List<String>> sentences,
+			final List<String> phrase, final int nTimes) {
+		checkArgument(20 * (nTimes - 1) < sentences.size());
+		for (int i = 0; i < nTimes; i++) {
+			sentences.get(20 * i).addAll(1, phrase);
+		}
+	}
+
+	/**
+	 * Return a trigram model of the given sentences, without the n-grams
+	 * that appear once.
+	 *
+	 * @param sentences
+	 * @return
+	 */
+	public static NGramLM trainModel(final List<List<String>> sentences) {
+		final NGramLM dict = new NGramLM(3, null);
+		dict.addSentences(sentences, true);
+		dict.cutoffRare(2);
+		return dict;
+	}
+
+	private RandomCorpora() {
+	}
+}
@@ -0,0 +1,109 @@
+package codemining.lm.ngram.cache;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+import codemining.lm.ngram.cache.ParameterOptimizer.LPair;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
+
+public class CalibrationDataExtractorTest {
+
+	/**
+	 * Return the pairs of a (fake) file. The name of the file is the number
+	 * of its pairs.
+	 */
+	private static List<LPair> getPairsOf(final File file) {
+		final int nPairs = Integer.parseInt(file.getName());
+		final List<LPair> pairs = Lists.newArrayList();
+		for (int i = 0; i < nPairs; i++) {
+			final LPair pair = new LPair();
+			pair.ngramProb = 1. / (1 + i % 50);
+			pair.decayCounts = new int[] { i % 7 };
+			pairs.add(pair);
+		}
+		return pairs;
+	}
+
+	@Test
+	public void testExtract() throws IOException {
+		final List<File> files = Lists.newArrayList();
+		final Multiset<LPair> expected = HashMultiset.create();
+		for (int i = 0; i < 200; i++) {
+			final File file = new File(Integer.toString(i));
+			files.add(file);
+			expected.addAll(getPairsOf(file));
+		}
+
+		final CalibrationDataExtractor extractor = new CalibrationDataExtractor(
+				Long.MAX_VALUE) {
+
+			@Override
+			protected void scoreFile(final File file) {
+				for (final LPair pair : getPairsOf(file)) {
+					addPair(pair);
+				}
+			}
+
+		};
+		assertEquals(extractor.extract(files), expected);
+		// Extracting again starts from scratch
+		assertEquals(extractor.extract(files), expected);
+	}
+
+	@Test
+	public void testThreshold() throws IOException {
+		final List<File> files = Lists.newArrayList();
+		for (int i = 0; i < 1000; i++) {
+			files.add(new File(Integer.toString(i)));
+		}
+
+		final CalibrationDataExtractor extractor = new CalibrationDataExtractor(
+				100) {
+
+			@Override
+			protected void scoreFile(final File file) {
+				for (final LPair pair : getPairsOf(file)) {
+					addPair(pair);
+				}
+			}
+
+		};
+
+		// The same pairs as when adding the files one by one
+		final Multiset<LPair> expected = HashMultiset.create();
+		for (final File file : files) {
+			if (expected.elementSet().size() > 100) {
+				break;
+			}
+			expected.addAll(getPairsOf(file));
+		}
+		// Files 0 to 101
+		assertEquals(expected.size(), 101 * 102 / 2);
+		for (int i = 0; i < 5; i++) {
+			assertEquals(extractor.extract(files), expected);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testException() throws IOException {
+		final CalibrationDataExtractor extractor = new CalibrationDataExtractor(
+				Long.MAX_VALUE) {
+
+			@Override
+			protected void scoreFile(final File file) throws IOException {
+				throw new IOException();
+			}
+
+		};
+		extractor.extract(Lists.newArrayList(new File("0")));
+	}
+
+}
@@ -0,0 +1,45 @@
+package codemining.lm.ngram.cache;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import codemining.lm.ngram.cache.ParameterOptimizer.LPair;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+
+public class ParameterOptimizerTest {
+
+	@Test
+	public void testParallelValue() {
+		final Random rnd = new Random(0);
+		final Multiset<LPair> pairs = HashMultiset.create();
+		final double lambda = .3;
+		final double decay = .6;
+		double sum = 0;
+		for (int i = 0; i < 100000; i++) {
+			final LPair pair = new LPair();
+			pair.ngramProb = .01 + .99 * rnd.nextDouble();
+			pair.importance = rnd.nextDouble();
+			pair.decayCounts = new int[] { 1 + rnd.nextInt(10) };
+			pairs.add(pair);
+
+			final double cacheProb = (1 - decay)
+					* Math.pow(decay, pair.decayCounts[0]);
+			final double prob = pair.importance
+					* (lambda * cacheProb + (1 - lambda) * pair.ngramProb)
+					+ (1 - pair.importance) * pair.ngramProb;
+			sum += Math.log(prob) / Math.log(2);
+		}
+
+		final ParameterOptimizer optimizer = new ParameterOptimizer(pairs);
+		optimizer.currentLambda = lambda;
+		optimizer.decay = decay;
+		assertEquals(optimizer.getValue(), sum / pairs.size(), 1E-10);
+		assertEquals(optimizer.getValue(), optimizer.getValue(), 0);
+	}
+
+}
@@ -0,0 +1,156 @@
+package codemining.lm.ngram.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import codemining.lm.ngram.AbstractNGramLM;
+import codemining.lm.ngram.LongArrayTrie;
+import codemining.lm.ngram.NGram;
+import codemining.lm.ngram.NGramLM;
+import codemining.lm.ngram.RandomCorpora;
+import codemining.lm.ngram.smoothing.InterpolatedNGramLM;
+import codemining.lm.ngram.smoothing.StupidBackoff;
+import codemining.util.serialization.ISerializationStrategy.SerializationException;
+import codemining.util.serialization.JavaSerialization;
+
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
+
+public class ProbabilityMemoTest {
+
+	@Test
+	public void testOutOfVocabularyTokens() {
+		final List<List<String>> sentences = RandomCorpora.createRandomCorpus(
+				0, 300, 400, 3);
+		final NGramLM current = new NGramLM(3, null);
+		current.addSentences(sentences, true);
+		current.cutoffRare(2);
+
+		// Only the global model knows "x"
+		for (int i = 0; i < 5; i++) {
+			sentences.add(Lists.newArrayList("t0", "a", "x"));
+		}
+		final NGramLM global = new NGramLM(3, null);
+		global.addSentences(sentences, true);
+		global.cutoffRare(2);
+
+		final AbstractNGramLM model = new InterpolatedNGramLM(
+				new StupidBackoff(global), current, .5);
+		final NGram<String> ngramX = new NGram<String>(Lists.newArrayList(
+				"a", "x"));
+		final NGram<String> ngramY = new NGram<String>(Lists.newArrayList(
+				"a", "y"));
+		assertTrue(model.getProbabilityFor(ngramX) > model
+				.getProbabilityFor(ngramY));
+
+		final ProbabilityMemo memo = new ProbabilityMemo(model, 256);
+		for (int i = 0; i < 2; i++) {
+			assertEquals(memo.getProbabilityFor(ngramY),
+					model.getProbabilityFor(ngramY), 0);
+			assertEquals(memo.getProbabilityFor(ngramX),
+					model.getProbabilityFor(ngramX), 0);
+		}
+	}
+
+	@Test
+	public void testNotSerialized() throws SerializationException {
+		final NGramLM dict = new NGramLM(3, null);
+		dict.addSentences(RandomCorpora.createRandomCorpus(0, 300, 400, 3),
+				true);
+		dict.cutoffRare(2);
+		final AbstractNGramLM model = new StupidBackoff(dict);
+		final NGram<String> ngram = new NGram<String>(Lists.newArrayList(
+				"t0", "t1"));
+
+		final SimpleCachedNGramLM cachedModel = new SimpleCachedNGramLM(
+				model, .2, .9);
+		cachedModel.getBaseProbabilities().getProbabilityFor(ngram);
+		final JavaSerialization serialization = new JavaSerialization();
+		final SimpleCachedNGramLM deserialized = (SimpleCachedNGramLM) serialization
+				.deserializeFrom(serialization.serialize(cachedModel));
+		assertEquals(deserialized.getBaseProbabilities().getMisses(), 0);
+		assertEquals(deserialized.getBaseProbabilities().getProbabilityFor(
+				ngram), model.getProbabilityFor(ngram), 0);
+
+		final IdentifierOnlyCachedNGramLM identifierModel = new IdentifierOnlyCachedNGramLM(
+				model, model, "IDENTIFIER", .2, .9);
+		final IdentifierOnlyCachedNGramLM deserializedIdentifierModel = (IdentifierOnlyCachedNGramLM) serialization
+				.deserializeFrom(serialization.serialize(identifierModel));
+		assertEquals(deserializedIdentifierModel.getBaseProbabilities()
+				.getProbabilityFor(ngram), model.getProbabilityFor(ngram), 0);
+		assertEquals(deserializedIdentifierModel.getTypeProbabilities()
+				.getProbabilityFor(ngram), model.getProbabilityFor(ngram), 0);
+	}
+
+	@Test
+	public void testSameProbabilities() throws InterruptedException {
+		final NGramLM dict = new NGramLM(3, null);
+		dict.addSentences(RandomCorpora.createRandomCorpus(0, 300, 400, 3),
+				true);
+		dict.cutoffRare(2);
+		final AbstractNGramLM model = new StupidBackoff(dict);
+
+		final Random rnd = new Random(0);
+		final List<NGram<String>> ngrams = Lists.newArrayList();
+		for (final List<String> sentence : RandomCorpora.createRandomCorpus(1,
+				1000, 400, 3)) {
+			// Include unseen tokens
+			sentence.add("unseen" + rnd.nextInt(3));
+			for (int j = 1; j < sentence.size(); j++) {
+				ngrams.add(NGram.constructNgramAt(j, sentence, 3));
+			}
+		}
+
+		// Small enough for the stripes to be cleared
+		final ProbabilityMemo memo = new ProbabilityMemo(model, 256);
+		final AtomicInteger nErrors = new AtomicInteger();
+		final List<Thread> threads = Lists.newArrayList();
+		for (int t = 0; t < 4; t++) {
+			final Thread thread = new Thread() {
+				@Override
+				public void run() {
+					for (final NGram<String> ngram : ngrams) {
+						if (Double.compare(memo.getProbabilityFor(ngram),
+								model.getProbabilityFor(ngram)) != 0) {
+							nErrors.incrementAndGet();
+						}
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(nErrors.get(), 0);
+		assertEquals(memo.getHits() + memo.getMisses(), 4 * ngrams.size());
+		assertTrue(memo.getHitRate() > 0);
+
+		final ProbabilityMemo largeMemo = new ProbabilityMemo(model, 1 << 16);
+		for (int i = 0; i < 2; i++) {
+			for (final NGram<String> ngram : ngrams) {
+				assertEquals(largeMemo.getProbabilityFor(ngram),
+						model.getProbabilityFor(ngram), 0);
+			}
+		}
+		// All n-grams in the vocabulary are found the second time
+		int nInVocabulary = 0;
+		for (final NGram<String> ngram : ngrams) {
+			if (!Longs.contains(
+					model.getTrie().getSymbolIdArray(ngram.toList()),
+					LongArrayTrie.NO_SYMBOL)) {
+				nInVocabulary++;
+			}
+		}
+		assertTrue(nInVocabulary > 0);
+		assertTrue(largeMemo.getHits() >= nInVocabulary);
+	}
+
+}
@@ -0,0 +1,80 @@
+package codemining.lm.ngram.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import codemining.lm.ngram.cache.ParameterOptimizer.LPair;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+
+public class SymbolicWeightCacheTest {
+
+	/**
+	 * Return the weight of the element for the given decay, as computed from
+	 * its decay counts.
+	 */
+	private static double getWeightFor(final SymbolicWeightCache<String> cache,
+			final String element, final double decay) {
+		double weight = 0;
+		for (final int decayCount : cache.getDecayCountsFor(element)) {
+			weight += (1 - decay) * Math.pow(decay, decayCount);
+		}
+		final int initialDecayCount = cache.getInitialDecayCountFor(element);
+		if (initialDecayCount >= 0) {
+			weight += Math.pow(decay, initialDecayCount);
+		}
+		return weight;
+	}
+
+	@Test
+	public void testDecayCounts() {
+		final Random rnd = new Random(0);
+		final SymbolicWeightCache<String> cache = new SymbolicWeightCache<String>(
+				.5, "e0");
+		final WeightCache<String> otherDecayCache = new WeightCache<String>(
+				.7, "e0");
+		for (int i = 0; i < 1000; i++) {
+			final String element = "e" + rnd.nextInt(i < 50 ? 5 : 50);
+			cache.pushElement(element);
+			otherDecayCache.pushElement(element);
+			for (int j = 0; j < 50; j++) {
+				final String key = "e" + j;
+				assertEquals(getWeightFor(cache, key, .5),
+						cache.getProbabilityFor(key), 1E-10);
+				assertEquals(getWeightFor(cache, key, .7),
+						otherDecayCache.getProbabilityFor(key), 1E-10);
+			}
+		}
+		assertEquals(cache.getInitialDecayCountFor("e0"), -1);
+		for (final int decayCount : cache.getDecayCountsFor("e1")) {
+			assertTrue(decayCount <= SymbolicWeightCache.MAX_DECAY_COUNT);
+		}
+	}
+
+	@Test
+	public void testPairsAreMerged() {
+		final SymbolicWeightCache<String> cache = new SymbolicWeightCache<String>(
+				.5, "a");
+		final Multiset<LPair> pairs = HashMultiset.create();
+		for (int i = 0; i < 2; i++) {
+			final LPair pair = new LPair();
+			pair.ngramProb = .1;
+			pair.decayCounts = cache.getDecayCountsFor("a");
+			pair.initialDecayCount = cache.getInitialDecayCountFor("a");
+			pairs.add(pair);
+		}
+		assertEquals(pairs.elementSet().size(), 1);
+		assertEquals(pairs.size(), 2);
+
+		final ParameterOptimizer optimizer = new ParameterOptimizer(pairs);
+		optimizer.currentLambda = .5;
+		// log2(.5 * 1 + .5 * .1)
+		assertEquals(optimizer.getValue(), Math.log(.55) / Math.log(2), 1E-10);
+	}
+
+}
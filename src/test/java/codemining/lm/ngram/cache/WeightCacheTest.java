@@ -2,10 +2,34 @@ package codemining.lm.ngram.cache;
 
 import static org.junit.Assert.assertEquals;
 
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
 import org.junit.Test;
 
+import com.google.common.collect.Maps;
+
 public class WeightCacheTest {
 
+	/**
+	 * Push the element to a cache that decays all its weights eagerly.
+	 */
+	private static void pushToEagerCache(final Map<String, Double> cache,
+			final double decay, final String element) {
+		final Iterator<Map.Entry<String, Double>> entries = cache.entrySet()
+				.iterator();
+		while (entries.hasNext()) {
+			final Map.Entry<String, Double> entry = entries.next();
+			entry.setValue(entry.getValue() * decay);
+			if (entry.getValue() <= WeightCache.MIN_HOLDING_THRESHOLD) {
+				entries.remove();
+			}
+		}
+		final Double weight = cache.get(element);
+		cache.put(element, (weight == null ? 0 : weight) + 1. - decay);
+	}
+
 	@Test
 	public void test() {
 		final ICache<String> c1 = new WeightCache<String>(.5, "first!");
@@ -28,4 +52,32 @@ public class WeightCacheTest {
 		assertEquals(c1.getProbabilityFor("blah"), 0, 10E-10);
 	}
 
+	@Test
+	public void testSameAsEagerDecay() {
+		final Random rnd = new Random(0);
+		for (final double decay : new double[] { .2, .5, .9, .99 }) {
+			final WeightCache<String> cache = new WeightCache<String>(decay,
+					"e0");
+			final Map<String, Double> eagerCache = Maps.newHashMap();
+			eagerCache.put("e0", 1.);
+			for (int i = 0; i < 5000; i++) {
+				// Some elements are pushed rarely, so they are evicted
+				final String element = "e"
+						+ (rnd.nextInt(10) == 0 ? rnd.nextInt(1000) : rnd
+								.nextInt(20));
+				cache.pushElement(element);
+				pushToEagerCache(eagerCache, decay, element);
+
+				for (int j = 0; j < 30; j++) {
+					final String key = "e" + j;
+					final Double expected = eagerCache.get(key);
+					assertEquals(cache.getProbabilityFor(key),
+							expected == null ? 0 : expected, 1E-12);
+				}
+				final Double expected = eagerCache.get(element);
+				assertEquals(cache.getProbabilityFor(element), expected, 1E-12);
+			}
+		}
+	}
+
 }
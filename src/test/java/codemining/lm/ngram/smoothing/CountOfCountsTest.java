@@ -0,0 +1,68 @@
+package codemining.lm.ngram.smoothing;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+import codemining.lm.ngram.ILongTrieNode;
+import codemining.lm.ngram.LongArrayTrie;
+import codemining.lm.ngram.LongTrie;
+import codemining.lm.ngram.NGramLM;
+import codemining.lm.ngram.RandomCorpora;
+
+public class CountOfCountsTest {
+
+	private static void count(final ILongTrieNode node, final int order,
+			final long[][] countOfCounts) {
+		if (node.getCount() < countOfCounts[order].length) {
+			countOfCounts[order][(int) node.getCount()]++;
+		}
+		for (int i = 0; i < node.nChildren(); i++) {
+			if (order + 1 < countOfCounts.length) {
+				count(node.getChildAt(i), order + 1, countOfCounts);
+			}
+		}
+	}
+
+	@Test
+	public void testCompute() {
+		final NGramLM dict = new NGramLM(3, null);
+		dict.addSentences(RandomCorpora.createRandomCorpus(0, 500, 50, 2), true);
+		dict.cutoffRare(1);
+		final LongTrie<String> trie = dict.getTrie();
+
+		final long[][] expected = new long[4][8];
+		final ILongTrieNode root = trie.getRoot();
+		for (int i = 0; i < root.nChildren(); i++) {
+			if (root.getSymbolAt(i) != trie.getUnkSymbolId()) {
+				count(root.getChildAt(i), 1, expected);
+			}
+		}
+
+		final long[][] countOfCounts = CountOfCounts.compute(root,
+				trie.getUnkSymbolId(), 3, 7);
+		for (int order = 1; order <= 3; order++) {
+			assertArrayEquals(countOfCounts[order], expected[order]);
+		}
+	}
+
+	@Test
+	public void testComputeWithUnks() {
+		final long unk = -1;
+		final LongArrayTrie trie = new LongArrayTrie(unk);
+		trie.add(new long[] { 1, 2, 3 });
+		trie.add(new long[] { 1, 2, 3 });
+		trie.add(new long[] { 1, 2, 4 });
+		trie.add(new long[] { 1, unk, 3 });
+		trie.add(new long[] { unk, 2, 3 });
+		trie.add(new long[] { 5, 6, 7 });
+
+		// Only the subtree of the UNK of the root is ignored
+		final long[][] countOfCounts = CountOfCounts.compute(trie.getRoot(),
+				unk, 3, 4);
+		assertArrayEquals(countOfCounts[1], new long[] { 0, 1, 0, 0, 1 });
+		assertArrayEquals(countOfCounts[2], new long[] { 0, 2, 0, 1, 0 });
+		assertArrayEquals(countOfCounts[3], new long[] { 0, 3, 1, 0, 0 });
+	}
+
+}
@@ -0,0 +1,275 @@
+package codemining.lm.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import codemining.languagetools.ITokenizer;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class TokenizedCorpusStoreTest {
+
+	/**
+	 * A serializable tokenizer handler, whose separator is its configuration.
+	 */
+	private static final class SeparatorTokenizer implements
+			InvocationHandler, Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String separator;
+
+		SeparatorTokenizer(final String separator) {
+			this.separator = separator;
+		}
+
+		@Override
+		public Object invoke(final Object proxy, final Method method,
+				final Object[] args) throws Throwable {
+			if (method.getName().equals("tokenListFromCode")
+					&& args[0] instanceof File) {
+				return Arrays.asList(FileUtils.readFileToString(
+						(File) args[0]).split(separator));
+			}
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private static ITokenizer separatorTokenizer(final String separator) {
+		return (ITokenizer) Proxy.newProxyInstance(
+				ITokenizer.class.getClassLoader(),
+				new Class<?>[] { ITokenizer.class }, new SeparatorTokenizer(
+						separator));
+	}
+
+	/**
+	 * Return a tokenizer that splits files on whitespace and counts the files
+	 * it tokenizes. It fails on files that contain only "FAIL".
+	 */
+	private static ITokenizer whitespaceTokenizer(
+			final AtomicInteger nTokenized) {
+		return (ITokenizer) Proxy.newProxyInstance(
+				ITokenizer.class.getClassLoader(),
+				new Class<?>[] { ITokenizer.class }, new InvocationHandler() {
+
+					@Override
+					public Object invoke(final Object proxy,
+							final Method method, final Object[] args)
+							throws Throwable {
+						if (method.getName().equals("tokenListFromCode")
+								&& args[0] instanceof File) {
+							nTokenized.incrementAndGet();
+							final String code = FileUtils.readFileToString(
+									(File) args[0]).trim();
+							if (code.equals("FAIL")) {
+								throw new IOException("Cannot tokenize");
+							}
+							return Arrays.asList(code.split("\\s+"));
+						}
+						throw new UnsupportedOperationException();
+					}
+
+				});
+	}
+
+	private static File createFile(final File directory, final String name,
+			final String content) throws IOException {
+		final File file = new File(directory, name);
+		FileUtils.writeStringToFile(file, content);
+		return file;
+	}
+
+	private static List<String> tokensOf(final TokenizedCorpus corpus,
+			final int[] sequence) {
+		final List<String> tokens = Lists.newArrayList();
+		for (final int id : sequence) {
+			tokens.add(corpus.getToken(id));
+		}
+		return tokens;
+	}
+
+	@Test
+	public void testStoreAndReopen() throws IOException {
+		final File directory = File.createTempFile("corpus", "");
+		directory.delete();
+		directory.mkdirs();
+		final File storeDir = new File(directory, "store");
+		try {
+			final File f1 = createFile(directory, "a.txt", "a b c a");
+			final File f2 = createFile(directory, "b.txt", "c d");
+			final AtomicInteger nTokenized = new AtomicInteger();
+			final ITokenizer tokenizer = whitespaceTokenizer(nTokenized);
+
+			final TokenizedCorpusStore store = new TokenizedCorpusStore(
+					storeDir, tokenizer);
+			final TokenizedCorpus corpus = store.getCorpus(Lists.newArrayList(
+					f1, f2));
+			assertEquals(nTokenized.get(), 2);
+			assertEquals(corpus.getSequences().size(), 2);
+			assertEquals(corpus.getVocabulary(1), Sets.newHashSet("a", "c"));
+			store.close();
+
+			final TokenizedCorpusStore reopened = new TokenizedCorpusStore(
+					storeDir, tokenizer);
+			assertEquals(reopened.getTokens(f2), Lists.newArrayList("c", "d"));
+			assertEquals(reopened.getTokens(f1),
+					Lists.newArrayList("a", "b", "c", "a"));
+			assertEquals(nTokenized.get(), 2);
+
+			// A modified file is tokenized again
+			FileUtils.writeStringToFile(f2, "d e");
+			f2.setLastModified(f2.lastModified() + 2000);
+			final TokenizedCorpus modified = reopened.getCorpus(Lists
+					.newArrayList(f2));
+			assertEquals(nTokenized.get(), 3);
+			assertEquals(
+					tokensOf(modified, modified.getSequences().iterator()
+							.next()), Lists.newArrayList("d", "e"));
+			reopened.close();
+		} finally {
+			FileUtils.deleteDirectory(directory);
+		}
+	}
+
+	@Test
+	public void testCompaction() throws IOException {
+		final File directory = File.createTempFile("corpus", "");
+		directory.delete();
+		directory.mkdirs();
+		final File storeDir = new File(directory, "store");
+		try {
+			final File f1 = createFile(directory, "a.txt", "a b c a");
+			final File f2 = createFile(directory, "b.txt", "c d");
+			final AtomicInteger nTokenized = new AtomicInteger();
+			final ITokenizer tokenizer = whitespaceTokenizer(nTokenized);
+			final TokenizedCorpusStore store = new TokenizedCorpusStore(
+					storeDir, tokenizer, 0);
+			store.getCorpus(Lists.newArrayList(f1, f2));
+			// Two stale sequences of f1. The modification times are set
+			// explicitly, since both writes may fall in the same second.
+			long lastModified = f1.lastModified();
+			for (final String content : new String[] { "b c d a", "d c b a" }) {
+				FileUtils.writeStringToFile(f1, content);
+				lastModified += 2000;
+				f1.setLastModified(lastModified);
+				store.getTokens(f1);
+			}
+			store.close();
+			assertEquals(new File(storeDir, "sequences.bin").length(),
+					4L * (4 + 2 + 4 + 4));
+
+			final TokenizedCorpusStore compacted = new TokenizedCorpusStore(
+					storeDir, tokenizer, 0);
+			assertEquals(new File(storeDir, "sequences.bin").length(),
+					4L * (4 + 2));
+			final TokenizedCorpus corpus = compacted.getCorpus(Lists
+					.newArrayList(f1, f2));
+			assertEquals(nTokenized.get(), 4);
+			final List<List<String>> sequences = Lists.newArrayList();
+			for (final int[] sequence : corpus.getSequences()) {
+				sequences.add(tokensOf(corpus, sequence));
+			}
+			assertEquals(sequences, Lists.newArrayList(
+					Lists.newArrayList("c", "d"),
+					Lists.newArrayList("d", "c", "b", "a")));
+
+			// New files are appended after the compacted sequences
+			final File f3 = createFile(directory, "c.txt", "e a");
+			assertEquals(compacted.getTokens(f3), Lists.newArrayList("e", "a"));
+			compacted.close();
+			final TokenizedCorpusStore reopened = new TokenizedCorpusStore(
+					storeDir, tokenizer, 0);
+			assertEquals(reopened.getTokens(f1),
+					Lists.newArrayList("d", "c", "b", "a"));
+			assertEquals(reopened.getTokens(f3), Lists.newArrayList("e", "a"));
+			assertEquals(nTokenized.get(), 5);
+			reopened.close();
+		} finally {
+			FileUtils.deleteDirectory(directory);
+		}
+	}
+
+	@Test
+	public void testLockedStore() throws IOException {
+		final File directory = File.createTempFile("corpus", "");
+		directory.delete();
+		directory.mkdirs();
+		try {
+			final AtomicInteger nTokenized = new AtomicInteger();
+			final TokenizedCorpusStore store = new TokenizedCorpusStore(
+					directory, whitespaceTokenizer(nTokenized));
+			try {
+				new TokenizedCorpusStore(directory,
+						whitespaceTokenizer(nTokenized));
+				fail("The store is locked");
+			} catch (final IOException e) {
+				// The store is used by another store
+			}
+			store.close();
+			new TokenizedCorpusStore(directory,
+					whitespaceTokenizer(nTokenized)).close();
+		} finally {
+			FileUtils.deleteDirectory(directory);
+		}
+	}
+
+	@Test
+	public void testSkipStaleFiles() throws IOException {
+		final File directory = File.createTempFile("corpus", "");
+		directory.delete();
+		directory.mkdirs();
+		try {
+			final File f1 = createFile(directory, "a.txt", "a b");
+			final File f2 = createFile(directory, "b.txt", "c d");
+			final AtomicInteger nTokenized = new AtomicInteger();
+			final TokenizedCorpusStore store = new TokenizedCorpusStore(
+					new File(directory, "store"), whitespaceTokenizer(nTokenized));
+			store.getCorpus(Lists.newArrayList(f1, f2));
+
+			// The stored tokens of a file that cannot be tokenized again are
+			// not used
+			FileUtils.writeStringToFile(f1, "FAIL");
+			f1.setLastModified(f1.lastModified() + 2000);
+			final TokenizedCorpus corpus = store.getCorpus(Lists.newArrayList(
+					f1, f2));
+			assertEquals(nTokenized.get(), 3);
+			assertEquals(corpus.getSequences().size(), 1);
+			assertEquals(
+					tokensOf(corpus, corpus.getSequences().iterator().next()),
+					Lists.newArrayList("c", "d"));
+			store.close();
+		} finally {
+			FileUtils.deleteDirectory(directory);
+		}
+	}
+
+	@Test
+	public void testStoreName() {
+		final String spaceStore = TokenizedCorpusStore
+				.getStoreName(separatorTokenizer(" "));
+		assertEquals(TokenizedCorpusStore.getStoreName(separatorTokenizer(" ")),
+				spaceStore);
+		assertFalse(TokenizedCorpusStore.getStoreName(separatorTokenizer(","))
+				.equals(spaceStore));
+		// The configuration of an unserializable tokenizer is unknown
+		assertNull(TokenizedCorpusStore
+				.getStoreName(whitespaceTokenizer(new AtomicInteger())));
+	}
+
+}